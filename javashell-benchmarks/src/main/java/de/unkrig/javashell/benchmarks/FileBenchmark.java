@@ -0,0 +1,83 @@
+
+package de.unkrig.javashell.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.unkrig.javashell.core.JavaShell;
+
+/**
+ * Measures the file system commands "cp" and (glob) "expand", over generated files and trees.
+ */
+@BenchmarkMode(Mode.AverageTime) @OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1) @Measurement(iterations = 5, time = 1) @Fork(1)
+public
+class FileBenchmark {
+
+	@State(Scope.Benchmark)
+	public static
+	class CpState {
+
+		@Param({ "65536", "16777216" }) public int size;
+
+		File from, to;
+		Path directory;
+
+		@Setup public void
+		setup() throws IOException {
+			this.directory = Files.createTempDirectory("javashell-bench-");
+			this.from      = this.directory.resolve("from").toFile();
+			this.to        = this.directory.resolve("to").toFile();
+			Files.write(this.from.toPath(), Inputs.text(this.size).getBytes());
+		}
+
+		@TearDown public void
+		tearDown() throws IOException { Inputs.deleteTree(this.directory); }
+	}
+
+	@State(Scope.Benchmark)
+	public static
+	class ExpandState {
+
+		@Param({ "100", "10000" }) public int fileCount;
+
+		String glob;
+		Path   directory;
+
+		@Setup public void
+		setup() throws IOException {
+
+			// A *relative* path, because "expand()" searches the working directory for relative globs.
+			this.directory = Files.createTempDirectory(Paths.get(""), "javashell-bench-");
+			this.glob      = this.directory + "/**.txt";
+			Inputs.tree(this.directory, this.fileCount);
+		}
+
+		@TearDown public void
+		tearDown() throws IOException { Inputs.deleteTree(this.directory); }
+	}
+
+	@Benchmark public Long
+	cpToFile(CpState state) throws IOException { return JavaShell.cpToFile(state.from, state.to); }
+
+	@Benchmark public List<File>
+	expand(ExpandState state) throws IOException, InterruptedException { return JavaShell.expand(state.glob); }
+}
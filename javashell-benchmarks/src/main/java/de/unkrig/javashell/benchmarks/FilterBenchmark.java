@@ -0,0 +1,70 @@
+
+package de.unkrig.javashell.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.unkrig.javashell.core.JavaShell;
+
+/**
+ * Measures the single-stage filters "tr", "sed" and "wc -l".
+ */
+@BenchmarkMode(Mode.AverageTime) @OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1) @Measurement(iterations = 5, time = 1) @Fork(1)
+@State(Scope.Benchmark)
+public
+class FilterBenchmark {
+
+	private static final Pattern PATTERN = Pattern.compile("qu(\\w+)");
+
+	@Param({ "65536", "4194304" }) public int size;
+
+	private byte[] bytes;
+	private String text;
+
+	@Setup public void
+	setup() {
+		this.text  = Inputs.text(this.size);
+		this.bytes = this.text.getBytes();
+	}
+
+	@Benchmark public int
+	tr() throws IOException {
+		return JavaShell.tr(
+			new ByteArrayInputStream(this.bytes),
+			(byte) 'o',
+			(byte) '0',
+			OutputStream.nullOutputStream()
+		);
+	}
+
+	@Benchmark public int
+	sedSubstituteAll() throws IOException {
+		return JavaShell.sedSubstituteAll(new StringReader(this.text), PATTERN, "QU$1", Writer.nullWriter());
+	}
+
+	@Benchmark public int
+	sedSubstituteFirst() throws IOException {
+		return JavaShell.sedSubstituteFirst(new StringReader(this.text), PATTERN, "QU$1", Writer.nullWriter());
+	}
+
+	@Benchmark public int
+	wcL() throws IOException { return JavaShell.wcL(new StringReader(this.text)); }
+}
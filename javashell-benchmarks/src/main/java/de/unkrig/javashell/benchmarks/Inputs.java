@@ -0,0 +1,53 @@
+
+package de.unkrig.javashell.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Generates the inputs for the benchmarks.
+ */
+final
+class Inputs {
+
+	private Inputs() {}
+
+	/**
+	 * @return ASCII text of exactly <var>size</var> chars, in lines of varying length
+	 */
+	static String
+	text(int size) {
+
+		StringBuilder sb = new StringBuilder(size + 100);
+		for (int i = 0; sb.length() < size; i++) {
+			sb.append("line ").append(i).append(": the quick brown fox jumps over the lazy dog");
+			for (int j = i % 7; j > 0; j--) sb.append(" again");
+			sb.append('\n');
+		}
+		sb.setLength(size);
+
+		return sb.toString();
+	}
+
+	/**
+	 * Creates a tree with <var>fileCount</var> small files, in directories of at most 32 members.
+	 */
+	static void
+	tree(Path root, int fileCount) throws IOException {
+		for (int i = 0; i < fileCount; i++) {
+			Path file = root.resolve("d" + i / 1024).resolve("d" + i / 32 % 32).resolve("file" + i + ".txt");
+			Files.createDirectories(file.getParent());
+			Files.write(file, Inputs.text(100).getBytes());
+		}
+	}
+
+	static void
+	deleteTree(Path root) throws IOException {
+		try (Stream<Path> s = Files.walk(root)) {
+			for (Path p : (Iterable<Path>) s.sorted(Comparator.reverseOrder())::iterator) Files.delete(p);
+		}
+	}
+}
@@ -0,0 +1,78 @@
+
+package de.unkrig.javashell.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.unkrig.javashell.core.ByteFilter;
+import de.unkrig.javashell.core.CharFilter;
+import de.unkrig.javashell.core.JavaShell;
+
+/**
+ * Measures the overhead of {@link JavaShell#byteFilter_(ByteFilter...)} and {@link
+ * JavaShell#charFilter_(CharFilter...)} pipelines of simple substitution stages, depending on the number of stages.
+ * <p>
+ *   The stages are lambdas, so that the {@link de.unkrig.javashell.core.PipelinePlan} optimizer neither drops nor
+ *   merges them.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime) @OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1) @Measurement(iterations = 5, time = 1) @Fork(1)
+@State(Scope.Benchmark)
+public
+class PipelineBenchmark {
+
+	private static final Pattern PATTERN = Pattern.compile("a");
+
+	@Param({ "65536", "4194304" }) public int size;
+	@Param({ "1", "2", "4", "8" })  public int stages;
+
+	private byte[]          bytes;
+	private String          text;
+	private ByteFilter<?>[] byteStages;
+	private CharFilter<?>[] charStages;
+
+	@Setup public void
+	setup() throws IOException {
+
+		this.text  = Inputs.text(this.size);
+		this.bytes = this.text.getBytes();
+
+		this.byteStages = new ByteFilter<?>[this.stages];
+		this.charStages = new CharFilter<?>[this.stages];
+		for (int i = 0; i < this.stages; i++) {
+			this.byteStages[i] = (in, out) -> JavaShell.tr(in, (byte) 'a', (byte) 'b', out);
+			this.charStages[i] = (in, out) -> JavaShell.sedSubstituteAll(in, PipelineBenchmark.PATTERN, "b", out);
+		}
+	}
+
+	@Benchmark public void
+	byteFilterChain() throws IOException {
+		JavaShell.byteFilter_(this.byteStages).execute(
+			new ByteArrayInputStream(this.bytes),
+			OutputStream.nullOutputStream()
+		);
+	}
+
+	@Benchmark public void
+	charFilterChain() throws IOException {
+		JavaShell.charFilter_(this.charStages).execute(new StringReader(this.text), Writer.nullWriter());
+	}
+}
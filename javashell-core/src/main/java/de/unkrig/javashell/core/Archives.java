@@ -0,0 +1,522 @@
+
+package de.unkrig.javashell.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.EnumSet;
+import java.util.Enumeration;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveInputStream;
+import org.apache.commons.compress.archivers.ArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarConstants;
+import org.apache.commons.compress.archivers.zip.UnixStat;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+
+/**
+ * The implementation of {@link JavaShell#tar(File[], OutputStream)}, {@link JavaShell#untar(InputStream, File, int)}
+ * and the ZIP counterparts.
+ * <p>
+ *   Archives are read and written as streams, so they can be piped. When extracting, the archive is necessarily read
+ *   sequentially, but files are written concurrently: Each entry up to {@value #SMALL_FILE_SIZE} bytes is read into a
+ *   pooled buffer and written by a background thread, with at most two such entries per thread in flight. Larger
+ *   entries are written by the reading thread.
+ * </p>
+ */
+final
+class Archives {
+
+	private Archives() {}
+
+	enum Format { TAR, ZIP }
+
+	private static final int SMALL_FILE_SIZE     = 1 << 20;
+	private static final int INITIAL_BUFFER_SIZE = 64 << 10;
+
+	/**
+	 * Writes an archive of the <var>files</var> (directories with their contents) to <var>out</var>, but does not
+	 * close <var>out</var>. Entry names are the paths of the <var>files</var> as given, without leading "{@code /}"s
+	 * and "{@code ..}"s, like "{@code tar}" does.
+	 *
+	 * @return The number of entries written
+	 */
+	static int
+	create(Format format, File[] files, OutputStream out) throws IOException {
+
+		ArchiveOutputStream<? extends ArchiveEntry> aos0;
+		if (format == Format.TAR) {
+			TarArchiveOutputStream tos = new TarArchiveOutputStream(out);
+			tos.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+			tos.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+			aos0 = tos;
+		} else {
+			aos0 = new ZipArchiveOutputStream(out);
+		}
+
+		// Safe, because "entry()" creates the entry type that matches the format.
+		@SuppressWarnings("unchecked") ArchiveOutputStream<ArchiveEntry> aos = (ArchiveOutputStream<ArchiveEntry>) aos0;
+
+		int count = 0;
+		for (File file : files) {
+			count += Archives.add(format, aos, ShellContext.current().resolve(file.toPath()), Archives.entryName(file));
+		}
+
+		aos.finish();
+		aos.flush();
+		return count;
+	}
+
+	private static int
+	add(Format format, ArchiveOutputStream<ArchiveEntry> aos, Path root, String rootName) throws IOException {
+
+		int[] count = new int[1];
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+
+			@Override public FileVisitResult
+			preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException {
+
+				String name = this.name(dir);
+				if (!name.isEmpty()) {
+					aos.putArchiveEntry(Archives.entry(format, name + '/', UnixStat.DIR_FLAG, attributes, 0));
+					aos.closeArchiveEntry();
+					count[0]++;
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override public FileVisitResult
+			visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+
+				String name = this.name(file);
+				if (attributes.isSymbolicLink()) {
+					String target = Files.readSymbolicLink(file).toString().replace(File.separatorChar, '/');
+					if (format == Format.TAR) {
+						TarArchiveEntry e = new TarArchiveEntry(name, TarConstants.LF_SYMLINK);
+						e.setLinkName(target);
+						aos.putArchiveEntry(e);
+					} else {
+						aos.putArchiveEntry(Archives.entry(format, name, UnixStat.LINK_FLAG, attributes, 0));
+						aos.write(target.getBytes(StandardCharsets.UTF_8));
+					}
+				} else
+				if (attributes.isRegularFile()) {
+					long size = attributes.size();
+					aos.putArchiveEntry(Archives.entry(format, name, UnixStat.FILE_FLAG, attributes, size));
+					Files.copy(file, aos);
+				} else
+				{
+
+					// Devices, pipes, sockets.
+					return FileVisitResult.CONTINUE;
+				}
+				aos.closeArchiveEntry();
+				count[0]++;
+				return FileVisitResult.CONTINUE;
+			}
+
+			private String
+			name(Path path) {
+				String relative = root.relativize(path).toString().replace(File.separatorChar, '/');
+				return rootName.isEmpty() ? relative : relative.isEmpty() ? rootName : rootName + '/' + relative;
+			}
+		});
+
+		return count[0];
+	}
+
+	private static ArchiveEntry
+	entry(Format format, String name, int type, BasicFileAttributes attributes, long size) {
+
+		int mode = (
+			attributes instanceof PosixFileAttributes
+			? Archives.mode(((PosixFileAttributes) attributes).permissions())
+			: type == UnixStat.FILE_FLAG ? 0644 : type == UnixStat.DIR_FLAG ? 0755 : 0777
+		);
+
+		if (format == Format.TAR) {
+			TarArchiveEntry result = new TarArchiveEntry(name);
+			result.setMode(type | mode);
+			result.setSize(size);
+			result.setModTime(attributes.lastModifiedTime().toMillis());
+			return result;
+		}
+
+		ZipArchiveEntry result = new ZipArchiveEntry(name);
+		result.setUnixMode(type | mode);
+		result.setTime(attributes.lastModifiedTime().toMillis());
+		return result;
+	}
+
+	/**
+	 * @return The <var>file</var>'s path with "{@code /}" separators, without a root and without leading
+	 *         "{@code ..}"s; the empty string for "{@code .}"
+	 */
+	private static String
+	entryName(File file) {
+
+		Path path = file.toPath().normalize();
+		if (path.getRoot() != null) path = path.getRoot().relativize(path);
+		while (path.getNameCount() > 0 && "..".equals(path.getName(0).toString())) {
+			path = path.getNameCount() == 1 ? Paths.get("") : path.subpath(1, path.getNameCount());
+		}
+
+		return path.toString().replace(File.separatorChar, '/');
+	}
+
+	// ----------------------------------------------------------------------------------------------------------------
+
+	/**
+	 * Extracts all entries from the archive that <var>in</var> reads, and then reads <var>in</var> to its end (but
+	 * does not close it).
+	 *
+	 * @param parallelism  How many threads write the extracted files
+	 * @return             The number of entries extracted
+	 * @throws IOException An entry would be extracted outside the <var>targetDir</var> (which terminates the
+	 *                     extraction immediately); failure to write a file (the first of these is thrown after all
+	 *                     other entries were extracted, with the others attached as "suppressed" exceptions)
+	 */
+	static int
+	extract(Format format, InputStream in, File targetDir, int parallelism) throws IOException {
+
+		if (parallelism < 1) throw new IllegalArgumentException();
+
+		ArchiveInputStream<? extends ArchiveEntry> ais = (
+			format == Format.TAR
+			? new TarArchiveInputStream(in)
+			: new ZipArchiveInputStream(in, "UTF8", true, true)
+		);
+
+		Extractor extractor = new Extractor(targetDir, parallelism);
+		int       count     = 0;
+		try {
+			for (ArchiveEntry entry; (entry = ais.getNextEntry()) != null; count++) extractor.extract(entry, ais);
+
+			// Notice: Tar archives are padded with zeros, which must be consumed, so that an upstream stage does not
+			// fail or block.
+			in.transferTo(OutputStream.nullOutputStream());
+		} catch (IOException | RuntimeException e) {
+			extractor.abort(e);
+			throw e;
+		}
+
+		extractor.finish();
+		return count;
+	}
+
+	/**
+	 * The counterpart of {@link #extract(Format, InputStream, File, int)} for a ZIP file. Unlike a ZIP stream, a ZIP
+	 * file has a central directory, which holds the UNIX file modes and marks symbolic links.
+	 */
+	static int
+	extract(File zipFile, File targetDir, int parallelism) throws IOException {
+
+		if (parallelism < 1) throw new IllegalArgumentException();
+
+		try (
+			ZipFile zf = ZipFile.builder()
+			.setPath(ShellContext.current().resolve(zipFile.toPath()))
+			.setCharset(StandardCharsets.UTF_8)
+			.get()
+		) {
+
+			Extractor extractor = new Extractor(targetDir, parallelism);
+			int       count     = 0;
+			try {
+				for (Enumeration<ZipArchiveEntry> en = zf.getEntriesInPhysicalOrder(); en.hasMoreElements(); count++) {
+					ZipArchiveEntry entry = en.nextElement();
+					try (InputStream is = zf.getInputStream(entry)) {
+						extractor.extract(entry, is);
+					}
+				}
+			} catch (IOException | RuntimeException e) {
+				extractor.abort(e);
+				throw e;
+			}
+
+			extractor.finish();
+			return count;
+		}
+	}
+
+	private static
+	class Extractor {
+
+		private final Path             target;
+		private final Path             realTarget;
+		private final ExecutorService  executor; // null iff parallelism == 1
+		private final int              maxInFlight;
+		private final Semaphore        inFlight;
+		private final Queue<Exception> exceptions = new ConcurrentLinkedQueue<>();
+
+		Extractor(File targetDir, int parallelism) throws IOException {
+			this.target      = ShellContext.current().resolve(targetDir.toPath()).toAbsolutePath().normalize();
+			this.executor    = parallelism == 1 ? null : JavaShell.newDaemonThreadPool(parallelism);
+			this.maxInFlight = 2 * parallelism;
+			this.inFlight    = new Semaphore(this.maxInFlight);
+
+			Files.createDirectories(this.target);
+			this.realTarget = this.target.toRealPath();
+		}
+
+		void
+		extract(ArchiveEntry entry, InputStream in) throws IOException {
+
+			Path path = this.resolve(entry.getName());
+
+			if (entry.isDirectory()) {
+				this.checkRealPath(path, entry.getName());
+				Files.createDirectories(path);
+				return;
+			}
+
+			String symlinkTarget = null;
+			String hardLinkName  = null;
+			int    mode;
+			if (entry instanceof TarArchiveEntry) {
+				TarArchiveEntry te = (TarArchiveEntry) entry;
+				if (te.isSymbolicLink()) {
+					symlinkTarget = te.getLinkName();
+				} else
+				if (te.isLink()) {
+					hardLinkName = te.getLinkName();
+				} else
+				if (!te.isFile()) {
+
+					// Devices, pipes.
+					return;
+				}
+				mode = te.getMode();
+			} else {
+				ZipArchiveEntry ze = (ZipArchiveEntry) entry;
+				if (ze.isUnixSymlink()) symlinkTarget = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+				mode = ze.getUnixMode();
+			}
+
+			this.checkRealPath(path.getParent(), entry.getName());
+			Files.createDirectories(path.getParent());
+
+			if (symlinkTarget != null) {
+				this.resolve(this.target.relativize(path.getParent().resolve(symlinkTarget)).toString());
+
+				// A pending write must not be redirected by a symbolic link that replaces one of its (empty) parent
+				// directories.
+				this.awaitPendingWrites();
+				Files.deleteIfExists(path);
+				Files.createSymbolicLink(path, Paths.get(symlinkTarget));
+				return;
+			}
+
+			if (hardLinkName != null) {
+
+				// The link target must have been written before.
+				Path existing = this.resolve(hardLinkName);
+				this.checkRealPath(existing, hardLinkName);
+				this.awaitPendingWrites();
+				Files.deleteIfExists(path);
+				Files.createLink(path, existing);
+				return;
+			}
+
+			// Never write through a symbolic link that an earlier entry created.
+			if (Files.isSymbolicLink(path)) Files.delete(path);
+
+			long mtime = entry.getLastModifiedDate().getTime();
+
+			if (this.executor == null || entry.getSize() > SMALL_FILE_SIZE) {
+				Archives.write(path, null, 0, in, mode, mtime);
+				return;
+			}
+
+			// Read the entry into a buffer, unless it turns out to be large.
+			long       size   = entry.getSize();
+			ByteBuffer buffer = BufferPool.get().acquire(
+				size >= 0 ? (int) size : INITIAL_BUFFER_SIZE,
+				BufferPool.ALWAYS
+			);
+			int     n        = 0;
+			boolean complete = false;
+			try {
+				for (;;) {
+					if (n == buffer.capacity()) {
+						if (n >= SMALL_FILE_SIZE) break;
+						ByteBuffer bigger = BufferPool.get().acquire(
+							Math.min(2 * n, SMALL_FILE_SIZE),
+							BufferPool.ALWAYS
+						);
+						System.arraycopy(buffer.array(), buffer.arrayOffset(), bigger.array(), bigger.arrayOffset(), n);
+						BufferPool.get().release(buffer);
+						buffer = bigger;
+					}
+					int r = in.read(buffer.array(), buffer.arrayOffset() + n, buffer.capacity() - n);
+					if (r == -1) {
+						complete = true;
+						break;
+					}
+					n += r;
+				}
+
+				if (!complete) {
+					Archives.write(path, buffer, n, in, mode, mtime);
+					return;
+				}
+
+				try {
+					this.inFlight.acquire();
+				} catch (InterruptedException ie) {
+					throw new InterruptedIOException();
+				}
+				ByteBuffer data = buffer;
+				int        len  = n;
+				buffer = null;
+				this.executor.execute(() -> {
+					try {
+						Archives.write(path, data, len, null, mode, mtime);
+					} catch (IOException | RuntimeException e) {
+						this.exceptions.add(e);
+					} finally {
+						BufferPool.get().release(data);
+						this.inFlight.release();
+					}
+				});
+			} finally {
+				if (buffer != null) BufferPool.get().release(buffer);
+			}
+		}
+
+		/**
+		 * Waits until all pending writes are complete, and throws the first exception that any of them produced.
+		 */
+		void
+		finish() throws IOException {
+
+			if (this.executor != null) {
+				this.executor.shutdown();
+				try {
+					while (!this.executor.awaitTermination(1, TimeUnit.MINUTES));
+				} catch (InterruptedException ie) {
+					throw new InterruptedIOException();
+				}
+			}
+
+			Exception first = this.exceptions.poll();
+			if (first == null) return;
+			for (Exception e; (e = this.exceptions.poll()) != null;) first.addSuppressed(e);
+			if (first instanceof IOException) throw (IOException) first;
+			throw (RuntimeException) first;
+		}
+
+		/**
+		 * Waits until all pending writes are complete, after the extraction failed with <var>e</var>; attaches any
+		 * exceptions that they produced to <var>e</var>.
+		 */
+		void
+		abort(Exception e) {
+			try {
+				this.finish();
+			} catch (IOException | RuntimeException e2) {
+				e.addSuppressed(e2);
+			}
+		}
+
+		private void
+		awaitPendingWrites() throws InterruptedIOException {
+			try {
+				this.inFlight.acquire(this.maxInFlight);
+			} catch (InterruptedException ie) {
+				throw new InterruptedIOException();
+			}
+			this.inFlight.release(this.maxInFlight);
+		}
+
+		/**
+		 * Resolves the <var>name</var> against the target directory, and verifies that the result is inside it
+		 * (protection against "zip slip").
+		 */
+		private Path
+		resolve(String name) throws IOException {
+			Path result = this.target.resolve(name).normalize();
+			if (!result.startsWith(this.target)) throw new IOException(name + ": Outside of the target directory");
+			return result;
+		}
+
+		/**
+		 * Verifies that the <var>path</var>, or its deepest existing ancestor, is inside the target directory after
+		 * resolving symbolic links. Otherwise a chain of symbolic links that earlier entries created (e.g. "{@code d
+		 * -> .}" and "{@code d/x/e -> ../..}") could redirect the entry out of it, although its name is harmless.
+		 */
+		private void
+		checkRealPath(Path path, String name) throws IOException {
+
+			Path existing = path;
+			while (existing != null && !Files.exists(existing)) existing = existing.getParent();
+
+			if (existing == null || !existing.toRealPath().startsWith(this.realTarget)) {
+				throw new IOException(name + ": Outside of the target directory");
+			}
+		}
+	}
+
+	/**
+	 * Writes the first <var>n</var> bytes of the <var>buffer</var> (iff not {@code null}) and then the rest of
+	 * <var>in</var> (iff not {@code null}) to the <var>file</var>, and sets its permissions and modification time.
+	 */
+	private static void
+	write(Path file, ByteBuffer buffer, int n, InputStream in, int mode, long mtime) throws IOException {
+
+		try (OutputStream out = Files.newOutputStream(file)) {
+			if (buffer != null) out.write(buffer.array(), buffer.arrayOffset(), n);
+			if (in != null) in.transferTo(out);
+		}
+
+		if ((mode & 0777) != 0) {
+			try {
+				Files.setPosixFilePermissions(file, Archives.permissions(mode));
+			} catch (UnsupportedOperationException uoe) {
+				;
+			}
+		}
+		Files.setLastModifiedTime(file, FileTime.fromMillis(mtime));
+	}
+
+	private static int
+	mode(Set<PosixFilePermission> permissions) {
+		int result = 0;
+		for (PosixFilePermission p : permissions) result |= 0400 >> p.ordinal();
+		return result;
+	}
+
+	private static Set<PosixFilePermission>
+	permissions(int mode) {
+		Set<PosixFilePermission> result = EnumSet.noneOf(PosixFilePermission.class);
+		for (PosixFilePermission p : PosixFilePermission.values()) {
+			if ((mode & (0400 >> p.ordinal())) != 0) result.add(p);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,95 @@
+
+package de.unkrig.javashell.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The {@link ByteBuffer}-oriented counterpart of {@link ByteFilter}. Instead of copying bytes through streams, a
+ * {@link BufferFilter} {@link Source#take() takes} buffers from its input and {@link Sink#put(ByteBuffer) puts}
+ * buffers to its output; with each of these operations, the <em>ownership</em> of the buffer is transferred. Thus
+ * a filter may modify the buffers that it takes and pass them on, without copying any data.
+ * <p>
+ *   "The pipe completes" means: {@link BufferFilter#execute(Source, Sink)} returns.
+ * </p>
+ * <p>
+ *   "The pipe produces a return value" means: {@link BufferFilter#execute(Source, Sink)} returns a value.
+ * </p>
+ * <p>
+ *   "The pipe produces an exception" means: {@link BufferFilter#execute(Source, Sink)} throws an exception.
+ * </p>
+ *
+ * @see JavaShell#bufferFilter_(BufferFilter[])
+ */
+public
+interface BufferFilter<T> {
+
+	/**
+	 * Where a {@link BufferFilter} reads from.
+	 */
+	interface Source {
+
+		/**
+		 * @return The next buffer, ready for reading, or {@code null} at end-of-input; the caller becomes the owner
+		 *         of the buffer
+		 */
+		ByteBuffer take() throws IOException;
+	}
+
+	/**
+	 * Where a {@link BufferFilter} writes to.
+	 */
+	interface Sink {
+
+		/**
+		 * Consumes the remaining bytes of the <var>buffer</var>. The caller must not access the <var>buffer</var>
+		 * afterwards.
+		 */
+		void put(ByteBuffer buffer) throws IOException;
+	}
+
+	T
+	execute(Source in, Sink out) throws IOException;
+
+	/**
+	 * Reads from <var>in</var> into direct buffers, and writes all buffers to <var>out</var>.
+	 */
+	default T
+	execute(ReadableByteChannel in, WritableByteChannel out) throws IOException {
+		return BufferPipe.execute(() -> this.execute(BufferPipe.source(in), BufferPipe.sink(out)));
+	}
+
+	default ByteFilter<T>
+	asByteFilter() {
+		return (in, out) -> BufferPipe.execute(
+			() -> BufferFilter.this.execute(BufferPipe.source(in), BufferPipe.sink(out))
+		);
+	}
+
+	/**
+	 * @return A {@link BufferFilter} that executes the <var>byteFilter</var>, copying the data from and to the
+	 *         buffers
+	 */
+	static <T> BufferFilter<T>
+	from(ByteFilter<T> byteFilter) {
+
+		return (in, out) -> {
+			InputStream  is = BufferPipe.inputStream(in);
+			OutputStream os = BufferPipe.outputStream(out);
+			try {
+				return byteFilter.execute(is, os);
+			} finally {
+				is.close();
+				os.flush();
+			}
+		};
+	}
+
+	default T execute()                 throws IOException { return this.asByteFilter().execute(System.in, System.out); }
+	default T execute(InputStream in)   throws IOException { return this.asByteFilter().execute(in, System.out); }
+	default T execute(OutputStream out) throws IOException { return this.asByteFilter().execute(System.in, out); }
+}
@@ -0,0 +1,452 @@
+
+package de.unkrig.javashell.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import de.unkrig.commons.lang.protocol.ProducerWhichThrows;
+
+/**
+ * Connects two {@link BufferFilter}s that execute in different threads. The buffers are passed by reference, i.e.
+ * without copying any data. Also hosts the adapters between {@link BufferFilter.Source}s/{@link BufferFilter.Sink}s
+ * and streams and channels.
+ * <p>
+ *   While a pipeline {@link #execute(ProducerWhichThrows) executes}, the adapters borrow their buffers from the
+ *   {@link BufferPool}, and wherever a buffer ends its journey through the pipeline (in a sink adapter, or when a
+ *   pipe is closed), it is returned to the pool.
+ * </p>
+ */
+final
+class BufferPipe implements BufferFilter.Source, BufferFilter.Sink {
+
+	private static final ByteBuffer END_OF_INPUT       = ByteBuffer.allocate(0);
+	private static final int        BUFFER_SIZE        = 8192;
+	private static final int        DIRECT_BUFFER_SIZE = 65536;
+
+	private final BlockingQueue<ByteBuffer> queue;
+	private volatile boolean                sinkClosed;
+	private volatile boolean                sourceClosed;
+	private boolean                         endOfInput;
+
+	/**
+	 * @param capacity How many buffers can be {@link #put(ByteBuffer)} before the producer blocks
+	 */
+	BufferPipe(int capacity) { this.queue = new ArrayBlockingQueue<>(capacity); }
+
+	@Override public void
+	put(ByteBuffer buffer) throws IOException {
+
+		if (this.sinkClosed || this.sourceClosed || !buffer.hasRemaining()) {
+			BufferPipe.recycle(buffer);
+			if (this.sinkClosed)   throw new IOException("Pipe closed");
+			if (this.sourceClosed) throw new IOException("Read end dead");
+			return;
+		}
+
+		try {
+			this.queue.put(buffer);
+		} catch (InterruptedException ie) {
+			BufferPipe.recycle(buffer);
+			throw new InterruptedIOException();
+		}
+
+		// The consumer may have closed the pipe while we were blocked.
+		if (this.sourceClosed) this.closeSource();
+	}
+
+	@Override public ByteBuffer
+	take() throws IOException {
+
+		if (this.endOfInput) return null;
+
+		ByteBuffer result;
+		try {
+			result = this.queue.take();
+		} catch (InterruptedException ie) {
+			throw new InterruptedIOException();
+		}
+
+		if (result != END_OF_INPUT) return result;
+
+		this.endOfInput = true;
+		return null;
+	}
+
+	/**
+	 * Signals end-of-input to the consumer, after it has {@link #take()}n all pending buffers.
+	 */
+	void
+	closeSink() {
+
+		if (this.sinkClosed) return;
+		this.sinkClosed = true;
+
+		if (this.sourceClosed) return;
+		try {
+			this.queue.put(END_OF_INPUT);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Discards all pending buffers; any following {@link #put(ByteBuffer)} will fail.
+	 */
+	void
+	closeSource() {
+		this.sourceClosed = true;
+		for (ByteBuffer buffer; (buffer = this.queue.poll()) != null;) BufferPipe.recycle(buffer);
+	}
+
+	// ----------------------------------------------------------------------------------------------------------------
+
+	/**
+	 * Executes the <var>pipeline</var> with a {@link Ledger} of its own, unless the current thread already executes
+	 * a pipeline; the buffers that the pipeline still has not recycled when it completes are {@link
+	 * BufferPool#abandon(int) abandoned}.
+	 */
+	static <T> T
+	execute(ProducerWhichThrows<T, IOException> pipeline) throws IOException {
+
+		if (Ledger.current() != null) return pipeline.produce();
+
+		Ledger ledger = new Ledger();
+		Ledger.CURRENT.set(ledger);
+		try {
+			return pipeline.produce();
+		} finally {
+			Ledger.CURRENT.remove();
+			ledger.close();
+		}
+	}
+
+	/**
+	 * @return A buffer from the {@link BufferPool}, or, iff the current thread does not execute a pipeline, a newly
+	 *         allocated buffer
+	 */
+	private static ByteBuffer
+	borrow(boolean direct) throws InterruptedIOException {
+
+		Ledger ledger = Ledger.current();
+		if (ledger == null) {
+			return direct ? ByteBuffer.allocateDirect(DIRECT_BUFFER_SIZE) : ByteBuffer.allocate(BUFFER_SIZE);
+		}
+
+		ByteBuffer result = (
+			direct
+			? BufferPool.get().acquireDirect(DIRECT_BUFFER_SIZE, BufferPool.ALWAYS)
+			: BufferPool.get().acquire(BUFFER_SIZE, BufferPool.ALWAYS)
+		);
+		ledger.add(result);
+
+		return result;
+	}
+
+	/**
+	 * Returns the <var>buffer</var> to the {@link BufferPool} iff it was {@link #borrow(boolean) borrowed} by the
+	 * pipeline that the current thread executes; otherwise, does nothing. The caller must not use the <var>buffer</var>
+	 * afterwards.
+	 */
+	static void
+	recycle(ByteBuffer buffer) {
+		Ledger ledger = Ledger.CURRENT.get();
+		if (ledger != null && ledger.remove(buffer)) BufferPool.get().release(buffer);
+	}
+
+	/**
+	 * The buffers that the adapters borrowed during one execution of a pipeline, and that were not yet recycled. Only
+	 * these are returned to the pool, so that the buffers that filters allocate themselves are never released, and
+	 * no buffer is released twice. Each pipeline has a ledger (and a lock) of its own; it is bound to the thread that
+	 * executes the pipeline, and, like the {@link ShellContext}, inherited by the threads of the pipeline's stages.
+	 * <p>
+	 *   Because the filters own the buffers that they take, some buffers never come back (e.g. because a filter
+	 *   dropped them). Thus the ledger references the buffers weakly, and abandons the buffers that were garbage
+	 *   collected.
+	 * </p>
+	 */
+	private static final
+	class Ledger {
+
+		static final InheritableThreadLocal<Ledger> CURRENT = new InheritableThreadLocal<>();
+
+		// Keyed by "System.identityHashCode()", because "ByteBuffer.equals()" compares the contents.
+		private final Map<Integer, List<Loan>>   loans   = new HashMap<>();
+		private final ReferenceQueue<ByteBuffer> dropped = new ReferenceQueue<>();
+		private volatile boolean                 closed;
+
+		/**
+		 * @return The ledger of the pipeline that the current thread executes, or {@code null}
+		 */
+		static Ledger
+		current() {
+			Ledger result = Ledger.CURRENT.get();
+			return result == null || result.closed ? null : result;
+		}
+
+		synchronized void
+		add(ByteBuffer buffer) {
+
+			// The pipeline completed while the buffer was borrowed.
+			if (this.closed) {
+				BufferPool.get().abandon(buffer.capacity());
+				return;
+			}
+
+			this.expunge();
+
+			Loan loan = new Loan(buffer, this.dropped);
+			this.loans.computeIfAbsent(loan.key, k -> new ArrayList<>(1)).add(loan);
+		}
+
+		/**
+		 * @return Whether the <var>buffer</var> was in this ledger
+		 */
+		synchronized boolean
+		remove(ByteBuffer buffer) {
+
+			List<Loan> l = this.loans.get(System.identityHashCode(buffer));
+			if (l == null) return false;
+
+			for (Iterator<Loan> it = l.iterator(); it.hasNext();) {
+				Loan loan = it.next();
+				if (loan.get() == buffer) {
+					it.remove();
+					if (l.isEmpty()) this.loans.remove(loan.key);
+					loan.clear();
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Abandons all buffers that are still in this ledger.
+		 */
+		synchronized void
+		close() {
+			this.closed = true;
+			for (List<Loan> l : this.loans.values()) {
+				for (Loan loan : l) BufferPool.get().abandon(loan.capacity);
+			}
+			this.loans.clear();
+		}
+
+		/**
+		 * Abandons the buffers that were garbage collected.
+		 */
+		private void
+		expunge() {
+			for (Reference<? extends ByteBuffer> r; (r = this.dropped.poll()) != null;) {
+				Loan       loan = (Loan) r;
+				List<Loan> l    = this.loans.get(loan.key);
+				if (l == null || !l.remove(loan)) continue;
+				if (l.isEmpty()) this.loans.remove(loan.key);
+				BufferPool.get().abandon(loan.capacity);
+			}
+		}
+
+		private static final
+		class Loan extends WeakReference<ByteBuffer> {
+
+			final int key, capacity;
+
+			Loan(ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue) {
+				super(buffer, queue);
+				this.key      = System.identityHashCode(buffer);
+				this.capacity = buffer.capacity();
+			}
+		}
+	}
+
+	// ----------------------------------------------------------------------------------------------------------------
+
+	static BufferFilter.Source
+	source(InputStream in) {
+		return () -> {
+			ByteBuffer buffer = BufferPipe.borrow(false);
+			try {
+				for (;;) {
+					int n = in.read(buffer.array(), buffer.arrayOffset(), buffer.capacity());
+					if (n == -1) return null;
+					if (n > 0) {
+						buffer.limit(n);
+						ByteBuffer result = buffer;
+						buffer = null;
+						return result;
+					}
+				}
+			} finally {
+				if (buffer != null) BufferPipe.recycle(buffer);
+			}
+		};
+	}
+
+	static BufferFilter.Source
+	source(ReadableByteChannel in) {
+		return () -> {
+			ByteBuffer buffer = BufferPipe.borrow(true);
+			try {
+				for (;;) {
+					int n = in.read(buffer);
+					if (n == -1) return null;
+					if (n > 0) {
+						buffer.flip();
+						ByteBuffer result = buffer;
+						buffer = null;
+						return result;
+					}
+				}
+			} finally {
+				if (buffer != null) BufferPipe.recycle(buffer);
+			}
+		};
+	}
+
+	static BufferFilter.Sink
+	sink(OutputStream out) {
+		return new BufferFilter.Sink() {
+
+			private byte[] ba; // For copying direct buffers; allocated lazily
+
+			@Override public void
+			put(ByteBuffer buffer) throws IOException {
+				try {
+					if (buffer.hasArray()) {
+						out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+						return;
+					}
+					if (this.ba == null) this.ba = new byte[BUFFER_SIZE];
+					while (buffer.hasRemaining()) {
+						int n = Math.min(buffer.remaining(), this.ba.length);
+						buffer.get(this.ba, 0, n);
+						out.write(this.ba, 0, n);
+					}
+				} finally {
+					BufferPipe.recycle(buffer);
+				}
+			}
+		};
+	}
+
+	static BufferFilter.Sink
+	sink(WritableByteChannel out) {
+		return buffer -> {
+			try {
+				while (buffer.hasRemaining()) out.write(buffer);
+			} finally {
+				BufferPipe.recycle(buffer);
+			}
+		};
+	}
+
+	/**
+	 * @return Reads the buffers of the <var>source</var>
+	 */
+	static InputStream
+	inputStream(BufferFilter.Source source) {
+
+		return new InputStream() {
+
+			private ByteBuffer buffer;
+
+			@Override public int
+			read() throws IOException {
+
+				if (!this.next()) return -1;
+
+				return this.buffer.get() & 0xff;
+			}
+
+			@Override public int
+			read(byte[] b, int off, int len) throws IOException {
+
+				if (len == 0) return 0;
+
+				if (!this.next()) return -1;
+
+				int n = Math.min(len, this.buffer.remaining());
+				this.buffer.get(b, off, n);
+				return n;
+			}
+
+			@Override public void
+			close() {
+				if (this.buffer != null) BufferPipe.recycle(this.buffer);
+				this.buffer = null;
+			}
+
+			/**
+			 * Recycles the current buffer when it is exhausted, and takes the next one.
+			 *
+			 * @return Whether there is a buffer with remaining bytes
+			 */
+			private boolean
+			next() throws IOException {
+				while (this.buffer == null || !this.buffer.hasRemaining()) {
+					if (this.buffer != null) BufferPipe.recycle(this.buffer);
+					if ((this.buffer = source.take()) == null) return false;
+				}
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * @return Collects the bytes written into buffers, and {@link BufferFilter.Sink#put(ByteBuffer) puts} them to
+	 *         the <var>sink</var> when they are full, and on {@link OutputStream#flush()}
+	 */
+	static OutputStream
+	outputStream(BufferFilter.Sink sink) {
+
+		return new OutputStream() {
+
+			private ByteBuffer buffer; // Borrowed lazily
+
+			@Override public void
+			write(int b) throws IOException {
+				if (this.buffer == null) this.buffer = BufferPipe.borrow(false);
+				this.buffer.put((byte) b);
+				if (!this.buffer.hasRemaining()) this.flush();
+			}
+
+			@Override public void
+			write(byte[] b, int off, int len) throws IOException {
+				while (len > 0) {
+					if (this.buffer == null) this.buffer = BufferPipe.borrow(false);
+					int n = Math.min(len, this.buffer.remaining());
+					this.buffer.put(b, off, n);
+					off += n;
+					len -= n;
+					if (!this.buffer.hasRemaining()) this.flush();
+				}
+			}
+
+			@Override public void
+			flush() throws IOException {
+				if (this.buffer == null || this.buffer.position() == 0) return;
+				this.buffer.flip();
+				ByteBuffer buffer = this.buffer;
+				this.buffer = null;
+				sink.put(buffer);
+			}
+
+			@Override public void
+			close() throws IOException { this.flush(); }
+		};
+	}
+}
@@ -0,0 +1,391 @@
+
+package de.unkrig.javashell.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * A JVM-wide pool of heap byte buffers, direct byte buffers and char buffers, which the pipes of {@link
+ * JavaShell#byteFilter_(boolean, boolean, ByteFilter[])} and {@link JavaShell#charFilter_(boolean, boolean,
+ * CharFilter[])} pipelines and commands like {@link JavaShell#cat(java.io.File[], int, OutputStream)}, {@link
+ * JavaShell#cp(InputStream, OutputStream)} and {@link JavaShell#tr(InputStream, byte, byte, OutputStream)} borrow
+ * their buffers from.
+ * <p>
+ *   Buffer capacities are rounded up to size classes (powers of two from {@value #MIN_SIZE} to {@value #MAX_SIZE}
+ *   bytes), so that returned buffers can be reused for later requests of similar size. Larger buffers are allocated
+ *   and dropped as needed.
+ * </p>
+ * <p>
+ *   The total capacity of all borrowed buffers is limited to {@link #getMaxBytes()}; when the limit is reached,
+ *   {@link #acquire(int)} blocks until other threads return buffers. That throttles the producers of thousands of
+ *   concurrent pipelines, instead of letting them fill the heap. (A single buffer is always granted when nothing is
+ *   borrowed, so that a limit smaller than a buffer cannot block forever.) The limit is initialized from the system
+ *   property "{@code de.unkrig.javashell.bufferPool.maxBytes}", and defaults to a quarter of the maximum heap size.
+ * </p>
+ * <p>
+ *   To guarantee progress, JavaShell itself only waits for buffers that hold data <em>in advance</em>: A pipe
+ *   always gets its first chunk, and the working buffers of commands like {@code cp} are always granted; these
+ *   may exceed the limit.
+ * </p>
+ */
+public final
+class BufferPool implements BufferPoolMXBean {
+
+	static final String OBJECT_NAME = "de.unkrig.javashell:type=BufferPool";
+
+	public static final int MIN_SIZE = 4096;
+	public static final int MAX_SIZE = 1 << 20;
+
+	private static final int        MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_SIZE);
+	private static final int        CLASSES   = Integer.numberOfTrailingZeros(MAX_SIZE) - MIN_SHIFT + 1;
+	private static final BufferPool INSTANCE  = new BufferPool(Long.getLong(
+		"de.unkrig.javashell.bufferPool.maxBytes",
+		Runtime.getRuntime().maxMemory() / 4
+	));
+
+	static final BooleanSupplier ALWAYS = () -> true;
+	static final BooleanSupplier NEVER  = () -> false;
+
+	private static volatile boolean mxBeanRegistered;
+
+	private final Deque<ByteBuffer>[] heap   = BufferPool.queues();
+	private final Deque<ByteBuffer>[] direct = BufferPool.queues();
+	private final Deque<CharBuffer>[] chars  = BufferPool.queues();
+
+	private volatile long       maxBytes;
+	private final AtomicLong    borrowedBytes     = new AtomicLong();
+	private final AtomicLong    peakBorrowedBytes = new AtomicLong();
+	private final AtomicLong    idleBytes         = new AtomicLong();
+	private final AtomicLong    acquires          = new AtomicLong();
+	private final AtomicLong    allocations       = new AtomicLong();
+	private final AtomicLong    waits             = new AtomicLong();
+	private final AtomicLong    waitNanos         = new AtomicLong();
+	private final AtomicInteger waiters           = new AtomicInteger();
+
+	private
+	BufferPool(long maxBytes) { this.maxBytes = maxBytes; }
+
+	/**
+	 * @return The JVM-wide buffer pool
+	 */
+	public static BufferPool
+	get() { return BufferPool.INSTANCE; }
+
+	/**
+	 * Changes the limit for the total capacity of the borrowed buffers. Threads that are currently blocked in {@link
+	 * #acquire(int)} are released if the new limit permits.
+	 */
+	public void
+	setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+		this.signal();
+	}
+
+	/**
+	 * @return A heap buffer with a capacity of at least <var>minCapacity</var> bytes, with position 0 and limit ==
+	 *         capacity; must be {@link #release(ByteBuffer) released} when no longer needed
+	 */
+	public ByteBuffer
+	acquire(int minCapacity) throws InterruptedIOException { return this.acquire(minCapacity, NEVER); }
+
+	/**
+	 * Like {@link #acquire(int)}, but returns a direct buffer.
+	 */
+	public ByteBuffer
+	acquireDirect(int minCapacity) throws InterruptedIOException { return this.acquireDirect(minCapacity, NEVER); }
+
+	/**
+	 * Like {@link #acquire(int)}, but returns a char buffer. Its size in bytes is twice the number of chars.
+	 */
+	public CharBuffer
+	acquireChars(int minCapacity) throws InterruptedIOException { return this.acquireChars(minCapacity, NEVER); }
+
+	/**
+	 * @param mayExceedLimit Is evaluated before and while blocking; iff it produces {@code true}, then the buffer is
+	 *                       granted even if the limit is exceeded. {@link #ALWAYS} is appropriate for "working"
+	 *                       buffers, which a thread needs to make progress (and thus to free other buffers)
+	 */
+	ByteBuffer
+	acquire(int minCapacity, BooleanSupplier mayExceedLimit) throws InterruptedIOException {
+		int capacity = BufferPool.capacity(minCapacity);
+		this.reserve(capacity, mayExceedLimit);
+		ByteBuffer result = this.poll(this.heap, capacity);
+		return result != null ? result : this.allocated(ByteBuffer.allocate(capacity));
+	}
+
+	ByteBuffer
+	acquireDirect(int minCapacity, BooleanSupplier mayExceedLimit) throws InterruptedIOException {
+		int capacity = BufferPool.capacity(minCapacity);
+		this.reserve(capacity, mayExceedLimit);
+		ByteBuffer result = this.poll(this.direct, capacity);
+		return result != null ? result : this.allocated(ByteBuffer.allocateDirect(capacity));
+	}
+
+	CharBuffer
+	acquireChars(int minCapacity, BooleanSupplier mayExceedLimit) throws InterruptedIOException {
+		int capacity = BufferPool.capacity(2 * minCapacity);
+		this.reserve(capacity, mayExceedLimit);
+		CharBuffer result = this.poll(this.chars, capacity);
+		return result != null ? result : this.allocated(CharBuffer.allocate(capacity / 2));
+	}
+
+	/**
+	 * Returns a buffer that was acquired through {@link #acquire(int)} or {@link #acquireDirect(int)} to the pool.
+	 * The caller must not use the <var>buffer</var> afterwards.
+	 */
+	public void
+	release(ByteBuffer buffer) {
+		this.release(buffer.isDirect() ? this.direct : this.heap, buffer, buffer.capacity());
+	}
+
+	/**
+	 * Accounts for a buffer of the given <var>capacity</var> that was acquired through {@link #acquire(int)} or
+	 * {@link #acquireDirect(int)}, but will never be released, e.g. because it was passed to code that does not know
+	 * about the pool. The buffer is left to the garbage collector.
+	 */
+	void
+	abandon(int capacity) {
+		this.borrowedBytes.addAndGet(-capacity);
+		this.signal();
+	}
+
+	/**
+	 * Returns a buffer that was acquired through {@link #acquireChars(int)} to the pool. The caller must not use the
+	 * <var>buffer</var> afterwards.
+	 */
+	public void
+	release(CharBuffer buffer) { this.release(this.chars, buffer, 2 * buffer.capacity()); }
+
+	@Override public long getMaxBytes()          { return this.maxBytes;                }
+	@Override public long getBorrowedBytes()     { return this.borrowedBytes.get();     }
+	@Override public long getPeakBorrowedBytes() { return this.peakBorrowedBytes.get(); }
+	@Override public long getIdleBytes()         { return this.idleBytes.get();         }
+	@Override public long getAcquires()          { return this.acquires.get();          }
+	@Override public long getAllocations()       { return this.allocations.get();       }
+	@Override public long getWaits()             { return this.waits.get();             }
+
+	@Override public long
+	getWaitMillis() { return TimeUnit.NANOSECONDS.toMillis(this.waitNanos.get()); }
+
+	@Override public String
+	toString() {
+		return (
+			"borrowed="
+			+ this.getBorrowedBytes()
+			+ "/"
+			+ this.getMaxBytes()
+			+ ", idle="
+			+ this.getIdleBytes()
+			+ ", acquires="
+			+ this.getAcquires()
+			+ ", allocations="
+			+ this.getAllocations()
+			+ ", waits="
+			+ this.getWaits()
+		);
+	}
+
+	static synchronized void
+	registerMXBean() {
+
+		if (BufferPool.mxBeanRegistered) return;
+
+		try {
+			MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+			ObjectName  on  = new ObjectName(OBJECT_NAME);
+			if (!mbs.isRegistered(on)) mbs.registerMBean(INSTANCE, on);
+		} catch (JMException jme) {
+			throw new AssertionError(jme);
+		}
+
+		BufferPool.mxBeanRegistered = true;
+	}
+
+	// ----------------------------------------------------------------------------------------------------------------
+
+	/**
+	 * Copies all bytes from <var>in</var> to <var>out</var> through a pooled buffer.
+	 *
+	 * @return The number of bytes copied
+	 */
+	static long
+	copy(InputStream in, OutputStream out) throws IOException {
+
+		ByteBuffer buffer = INSTANCE.acquire(8192, ALWAYS);
+		try {
+			byte[] ba    = buffer.array();
+			long   count = 0;
+			for (int n; (n = in.read(ba)) != -1; count += n) out.write(ba, 0, n);
+			return count;
+		} finally {
+			INSTANCE.release(buffer);
+		}
+	}
+
+	/**
+	 * Copies all chars from <var>in</var> to <var>out</var> through a pooled buffer.
+	 *
+	 * @return The number of chars copied
+	 */
+	static long
+	copy(Reader in, Writer out) throws IOException {
+
+		CharBuffer buffer = INSTANCE.acquireChars(4096, ALWAYS);
+		try {
+			char[] ca    = buffer.array();
+			long   count = 0;
+			for (int n; (n = in.read(ca)) != -1; count += n) out.write(ca, 0, n);
+			return count;
+		} finally {
+			INSTANCE.release(buffer);
+		}
+	}
+
+	// ----------------------------------------------------------------------------------------------------------------
+
+	@SuppressWarnings("unchecked") private static <B> Deque<B>[]
+	queues() {
+		Deque<B>[] result = (Deque<B>[]) new Deque<?>[CLASSES];
+		for (int i = 0; i < CLASSES; i++) result[i] = new ConcurrentLinkedDeque<>();
+		return result;
+	}
+
+	/**
+	 * @return The size class that the <var>minCapacity</var> falls into, or <var>minCapacity</var> if it is greater
+	 *         than {@link #MAX_SIZE}
+	 */
+	private static int
+	capacity(int minCapacity) {
+		if (minCapacity <= MIN_SIZE) return MIN_SIZE;
+		if (minCapacity > MAX_SIZE)  return minCapacity;
+		return Integer.highestOneBit(minCapacity - 1) << 1;
+	}
+
+	/**
+	 * @return The size class index of a buffer with the given capacity in bytes, or -1 if it does not belong to a
+	 *         size class
+	 */
+	private static int
+	sizeClass(int capacity) {
+		if (capacity < MIN_SIZE || capacity > MAX_SIZE || Integer.bitCount(capacity) != 1) return -1;
+		return Integer.numberOfTrailingZeros(capacity) - MIN_SHIFT;
+	}
+
+	/**
+	 * Blocks while borrowing another <var>bytes</var> would exceed the limit, and <var>mayExceedLimit</var> produces
+	 * {@code false}.
+	 */
+	private void
+	reserve(int bytes, BooleanSupplier mayExceedLimit) throws InterruptedIOException {
+
+		this.acquires.incrementAndGet();
+
+		if (mayExceedLimit.getAsBoolean()) {
+			this.forceReserve(bytes);
+			return;
+		}
+
+		if (this.tryReserve(bytes)) return;
+
+		this.waits.incrementAndGet();
+		long start = System.nanoTime();
+		try {
+			synchronized (this) {
+				this.waiters.incrementAndGet();
+				try {
+					while (!this.tryReserve(bytes)) {
+						if (mayExceedLimit.getAsBoolean()) {
+							this.forceReserve(bytes);
+							break;
+						}
+						this.wait();
+					}
+				} finally {
+					this.waiters.decrementAndGet();
+				}
+			}
+		} catch (InterruptedException ie) {
+			throw new InterruptedIOException();
+		} finally {
+			this.waitNanos.addAndGet(System.nanoTime() - start);
+		}
+	}
+
+	private boolean
+	tryReserve(int bytes) {
+		for (;;) {
+			long borrowed = this.borrowedBytes.get();
+			if (borrowed > 0 && borrowed + bytes > this.maxBytes) return false;
+			if (this.borrowedBytes.compareAndSet(borrowed, borrowed + bytes)) {
+				this.peakBorrowedBytes.accumulateAndGet(borrowed + bytes, Math::max);
+				return true;
+			}
+		}
+	}
+
+	private void
+	forceReserve(int bytes) {
+		long borrowed = this.borrowedBytes.addAndGet(bytes);
+		this.peakBorrowedBytes.accumulateAndGet(borrowed, Math::max);
+	}
+
+	private void
+	signal() {
+		if (this.waiters.get() == 0) return;
+		synchronized (this) { this.notifyAll(); }
+	}
+
+	private <B> B
+	poll(Deque<B>[] queues, int capacity) {
+
+		int sc = BufferPool.sizeClass(capacity);
+		if (sc == -1) return null;
+
+		B result = queues[sc].pollFirst();
+		if (result != null) this.idleBytes.addAndGet(-capacity);
+		return result;
+	}
+
+	private <B> B
+	allocated(B buffer) {
+		this.allocations.incrementAndGet();
+		return buffer;
+	}
+
+	/**
+	 * Retains the <var>buffer</var> for reuse, unless the idle buffers already take up more than a quarter of the
+	 * limit. The idle buffers are reused last-in-first-out, because the most recently returned buffer is the most
+	 * likely to still be in the CPU cache.
+	 */
+	private <B extends Buffer> void
+	release(Deque<B>[] queues, B buffer, int bytes) {
+
+		this.borrowedBytes.addAndGet(-bytes);
+		this.signal();
+
+		int sc = BufferPool.sizeClass(bytes);
+		if (sc == -1 || this.idleBytes.get() + bytes > this.maxBytes / 4) return;
+
+		buffer.clear();
+		this.idleBytes.addAndGet(bytes);
+		queues[sc].addFirst(buffer);
+	}
+}
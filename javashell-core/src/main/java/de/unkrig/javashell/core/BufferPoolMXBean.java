@@ -0,0 +1,44 @@
+
+package de.unkrig.javashell.core;
+
+/**
+ * The JMX view of the {@link BufferPool}; registered as "{@value BufferPool#OBJECT_NAME}".
+ *
+ * @see JavaShell#registerBufferPoolMXBean()
+ */
+public
+interface BufferPoolMXBean {
+
+	/**
+	 * @return The number of bytes that may be borrowed at the same time, before {@link BufferPool#acquire(int)}
+	 *         blocks
+	 */
+	long getMaxBytes();
+
+	/**
+	 * @return The total capacity (in bytes) of the buffers that are currently borrowed
+	 */
+	long getBorrowedBytes();
+
+	long getPeakBorrowedBytes();
+
+	/**
+	 * @return The total capacity (in bytes) of the returned buffers that the pool retains for reuse
+	 */
+	long getIdleBytes();
+
+	long getAcquires();
+
+	/**
+	 * @return How many of the {@link #getAcquires() acquires} had to allocate a new buffer
+	 */
+	long getAllocations();
+
+	/**
+	 * @return How many of the {@link #getAcquires() acquires} blocked because the {@link #getMaxBytes() limit} was
+	 *         reached
+	 */
+	long getWaits();
+
+	long getWaitMillis();
+}
@@ -3,9 +3,7 @@ package de.unkrig.javashell.core;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.Writer;
 import java.nio.charset.Charset;
@@ -30,27 +28,22 @@ public interface CharFilter<T> {
 
 	default T
 	execute(InputStream in, Writer out) throws IOException {
-		return this.execute(new InputStreamReader(in), out);
+		return this.execute(CharsetBridge.reader(in, Charset.defaultCharset()), out);
 	}
 	
 	default T
 	execute(InputStream in, Charset inCharset, Writer out) throws IOException {
-		return this.execute(new InputStreamReader(in, inCharset), out);
+		return this.execute(CharsetBridge.reader(in, inCharset), out);
 	}
 
 	default T
 	execute(Reader in, OutputStream out) throws IOException {
-		OutputStreamWriter w = new OutputStreamWriter(out);
-		try {
-			return this.execute(in, w);
-		} finally {
-			w.flush();
-		}
+		return this.execute(in, out, Charset.defaultCharset());
 	}
 	
 	default T
 	execute(Reader in, OutputStream out, Charset outCharset) throws IOException {
-		OutputStreamWriter w = new OutputStreamWriter(out, outCharset);
+		Writer w = CharsetBridge.writer(out, outCharset);
 		try {
 			return this.execute(in, w);
 		} finally {
@@ -60,27 +53,35 @@ public interface CharFilter<T> {
 
 	default T
 	execute(InputStream in, OutputStream out) throws IOException {
-		return this.execute(new InputStreamReader(in), out);
+		return this.execute(in, Charset.defaultCharset(), out, Charset.defaultCharset());
 	}
 	
 	default T
 	execute(InputStream in, Charset inCharset, OutputStream out, Charset outCharset) throws IOException {
-		return this.execute(new InputStreamReader(in, inCharset), out, outCharset);
+		return this.execute(CharsetBridge.reader(in, inCharset), out, outCharset);
 	}
 
+	/**
+	 * Equivalent with {@link #asByteFilter(Charset) asByteFilter(Charset.defaultCharset())}.
+	 */
 	default ByteFilter<T>
 	asByteFilter() {
-		return (in, out) -> CharFilter.this.execute(in, out);
+		return this.asByteFilter(Charset.defaultCharset());
 	}
 	
 	default ByteFilter<T>
 	asByteFilter(Charset charset) {
-		return (in, out) -> CharFilter.this.execute(in, charset, out, charset);
+		return this.asByteFilter(charset, charset);
 	}
 	
+	/**
+	 * Notice that when adjacent stages of a {@link JavaShell#byteFilter_(boolean, boolean, ByteFilter[])} pipeline
+	 * were created with this method, and the <var>outCharset</var> of the first equals the <var>inCharset</var> of
+	 * the second, then the two stages exchange chars directly, without encoding and re-decoding them.
+	 */
 	default ByteFilter<T>
 	asByteFilter(Charset inCharset, Charset outCharset) {
-		return (in, out) -> CharFilter.this.execute(in, inCharset, out, outCharset);
+		return new CharFilterByteFilter<>(this, inCharset, outCharset);
 	}
 
 	default T execute()                 throws IOException { return this.execute(System.in, System.out); }
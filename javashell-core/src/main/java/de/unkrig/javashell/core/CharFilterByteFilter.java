@@ -0,0 +1,36 @@
+
+package de.unkrig.javashell.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * The {@link ByteFilter} returned by {@link CharFilter#asByteFilter(Charset, Charset)}. Remembers the {@link
+ * CharFilter} and the charsets, so that {@link JavaShell#byteFilter_(boolean, boolean, ByteFilter[])} can fuse
+ * adjacent stages.
+ */
+final
+class CharFilterByteFilter<T> implements ByteFilter<T> {
+
+	final CharFilter<T> charFilter;
+	final Charset       inCharset;
+	final Charset       outCharset;
+
+	CharFilterByteFilter(CharFilter<T> charFilter, Charset inCharset, Charset outCharset) {
+		this.charFilter = charFilter;
+		this.inCharset  = inCharset;
+		this.outCharset = outCharset;
+	}
+
+	@Override public T
+	execute(InputStream in, OutputStream out) throws IOException {
+		return this.charFilter.execute(in, this.inCharset, out, this.outCharset);
+	}
+
+	@Override public String
+	toString() {
+		return Instrumentation.stageName(this.charFilter) + " (" + this.inCharset + " -> " + this.outCharset + ")";
+	}
+}
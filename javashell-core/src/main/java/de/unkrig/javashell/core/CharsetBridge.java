@@ -0,0 +1,309 @@
+
+package de.unkrig.javashell.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Converts between byte streams and character streams, like {@link InputStreamReader} and {@link
+ * OutputStreamWriter}, but with dedicated fast paths for the most frequently used charsets: US-ASCII and ISO-8859-1
+ * are converted without any {@link CharsetDecoder}, and the ASCII subset of UTF-8 is copied directly, so that the
+ * decoder only sees the multi-byte sequences. UTF-8 is encoded without a {@link java.nio.charset.CharsetEncoder}.
+ * <p>
+ *   Malformed input and unmappable characters are replaced exactly like {@link InputStreamReader} and {@link
+ *   OutputStreamWriter} do.
+ * </p>
+ */
+public final
+class CharsetBridge {
+
+	private CharsetBridge() {}
+
+	private static final int BUFFER_SIZE = 8192;
+
+	/**
+	 * @return A reader that decodes the bytes of <var>in</var> with the <var>charset</var>
+	 */
+	public static Reader
+	reader(InputStream in, Charset charset) {
+
+		if (
+			charset.equals(StandardCharsets.UTF_8)
+			|| charset.equals(StandardCharsets.US_ASCII)
+			|| charset.equals(StandardCharsets.ISO_8859_1)
+		) return new DecodingReader(in, charset);
+
+		return new InputStreamReader(in, charset);
+	}
+
+	/**
+	 * @return A writer that encodes its characters with the <var>charset</var> and writes them to <var>out</var>
+	 */
+	public static Writer
+	writer(OutputStream out, Charset charset) {
+
+		if (charset.equals(StandardCharsets.UTF_8))      return new EncodingWriter(out, 0x10ffff);
+		if (charset.equals(StandardCharsets.ISO_8859_1)) return new EncodingWriter(out, 0xff);
+		if (charset.equals(StandardCharsets.US_ASCII))   return new EncodingWriter(out, 0x7f);
+
+		return new OutputStreamWriter(out, charset);
+	}
+
+	private static final
+	class DecodingReader extends Reader {
+
+		private final InputStream    in;
+		private final int            maxByte;  // 0xff for ISO-8859-1, 0x7f for US-ASCII and UTF-8
+		private final CharsetDecoder decoder;  // Only for UTF-8
+		private final byte[]         bytes = new byte[BUFFER_SIZE];
+		private final ByteBuffer     bb    = ByteBuffer.wrap(this.bytes, 0, 0);
+		private CharBuffer           cb;
+		private boolean              endOfInput;
+		private boolean              flushed;
+		private int                  pendingChar = -1;
+
+		DecodingReader(InputStream in, Charset charset) {
+			this.in      = in;
+			this.maxByte = charset.equals(StandardCharsets.ISO_8859_1) ? 0xff : 0x7f;
+			this.decoder = charset.equals(StandardCharsets.UTF_8) ? (
+				charset
+				.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE)
+			) : null;
+		}
+
+		@Override public int
+		read(char[] cbuf, int off, int len) throws IOException {
+
+			if (len == 0) return 0;
+
+			if (this.pendingChar != -1) {
+				cbuf[off] = (char) this.pendingChar;
+				this.pendingChar = -1;
+				return 1;
+			}
+
+			for (;;) {
+				int n = this.decode(cbuf, off, len);
+				if (n != 0) return n;
+				this.fill();
+			}
+		}
+
+		/**
+		 * @return The number of chars decoded, 0 iff more input is needed, or -1 at end-of-input
+		 */
+		private int
+		decode(char[] cbuf, int off, int len) throws IOException {
+
+			ByteBuffer bb = this.bb;
+			byte[]     ba = this.bytes;
+
+			// Fast path: Copy bytes in the range 0...maxByte.
+			int pos = bb.position(), lim = bb.limit(), n = 0;
+			for (int b; n < len && pos < lim && (b = ba[pos] & 0xff) <= this.maxByte; pos++) cbuf[off + n++] = (char) b;
+			bb.position(pos);
+			if (n > 0) return n;
+
+			if (this.decoder == null) {
+
+				// US-ASCII; replace non-ASCII bytes.
+				if (pos < lim) {
+					bb.position(pos + 1);
+					cbuf[off] = '\ufffd';
+					return 1;
+				}
+				return this.endOfInput ? -1 : 0;
+			}
+
+			// UTF-8 multi-byte sequence. Once flushed, the decoder must not be invoked again.
+			if (this.flushed) return -1;
+			if (this.cb == null || this.cb.array() != cbuf) this.cb = CharBuffer.wrap(cbuf);
+			CharBuffer cb = this.cb;
+			cb.limit(off + len).position(off);
+
+			CoderResult cr = this.decoder.decode(bb, cb, this.endOfInput);
+			if (cr.isOverflow() && cb.position() == off) {
+
+				// "cbuf" has room for only one char, but the decoder produced a surrogate pair.
+				CharBuffer pair = CharBuffer.allocate(2);
+				this.decoder.decode(bb, pair, this.endOfInput);
+				cbuf[off]        = pair.get(0);
+				this.pendingChar = pair.get(1);
+				return 1;
+			}
+			if (this.endOfInput && !bb.hasRemaining() && !this.flushed) {
+				this.decoder.flush(cb);
+				this.flushed = true;
+			}
+
+			n = cb.position() - off;
+			if (n > 0) return n;
+
+			return this.endOfInput && !bb.hasRemaining() ? -1 : 0;
+		}
+
+		private void
+		fill() throws IOException {
+
+			if (this.endOfInput) return;
+
+			ByteBuffer bb = this.bb;
+			bb.compact();
+
+			int n = this.in.read(this.bytes, bb.position(), bb.remaining());
+			if (n == -1) {
+				this.endOfInput = true;
+			} else {
+				bb.position(bb.position() + n);
+			}
+
+			bb.flip();
+		}
+
+		@Override public boolean
+		ready() throws IOException {
+			return this.pendingChar != -1 || this.bb.hasRemaining() || this.in.available() > 0;
+		}
+
+		@Override public void
+		close() throws IOException { this.in.close(); }
+	}
+
+	private static final
+	class EncodingWriter extends Writer {
+
+		private final OutputStream out;
+		private final int          maxCodePoint; // 0x7f for US-ASCII, 0xff for ISO-8859-1, 0x10ffff for UTF-8
+		private final byte[]       buffer = new byte[BUFFER_SIZE];
+		private int                count;
+		private int                highSurrogate = -1;
+
+		EncodingWriter(OutputStream out, int maxCodePoint) {
+			this.out          = out;
+			this.maxCodePoint = maxCodePoint;
+		}
+
+		@Override public void
+		write(int c) throws IOException { this.encode((char) c); }
+
+		@Override public void
+		write(char[] cbuf, int off, int len) throws IOException {
+
+			byte[] buffer = this.buffer;
+
+			for (int end = off + len; off < end;) {
+
+				// Fast path: ASCII chars.
+				int count = this.count;
+				if (this.highSurrogate == -1) {
+					for (char c; off < end && count < buffer.length && (c = cbuf[off]) < 0x80; off++) {
+						buffer[count++] = (byte) c;
+					}
+				}
+				this.count = count;
+
+				if (off < end) this.encode(cbuf[off++]);
+			}
+		}
+
+		@Override public void
+		write(String str, int off, int len) throws IOException {
+			for (int end = off + len; off < end; off++) this.encode(str.charAt(off));
+		}
+
+		private void
+		encode(char c) throws IOException {
+
+			if (this.count > this.buffer.length - 5) this.flushBuffer();
+
+			if (this.highSurrogate != -1) {
+				char hs = (char) this.highSurrogate;
+				this.highSurrogate = -1;
+				if (Character.isLowSurrogate(c)) {
+					this.encodeCodePoint(Character.toCodePoint(hs, c));
+					return;
+				}
+				this.buffer[this.count++] = '?';
+			}
+
+			if (Character.isHighSurrogate(c)) {
+				this.highSurrogate = c;
+			} else
+			if (Character.isLowSurrogate(c)) {
+				this.buffer[this.count++] = '?';
+			} else
+			{
+				this.encodeCodePoint(c);
+			}
+		}
+
+		private void
+		encodeCodePoint(int cp) {
+
+			byte[] b = this.buffer;
+
+			if (cp > this.maxCodePoint) {
+				b[this.count++] = '?';
+			} else
+			if (cp < 0x80 || this.maxCodePoint == 0xff) {
+				b[this.count++] = (byte) cp;
+			} else
+			if (cp < 0x800) {
+				b[this.count++] = (byte) (0xc0 | (cp >> 6));
+				b[this.count++] = (byte) (0x80 | (cp & 0x3f));
+			} else
+			if (cp < 0x10000) {
+				b[this.count++] = (byte) (0xe0 | (cp >> 12));
+				b[this.count++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+				b[this.count++] = (byte) (0x80 | (cp & 0x3f));
+			} else
+			{
+				b[this.count++] = (byte) (0xf0 | (cp >> 18));
+				b[this.count++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+				b[this.count++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+				b[this.count++] = (byte) (0x80 | (cp & 0x3f));
+			}
+		}
+
+		private void
+		flushBuffer() throws IOException {
+			if (this.count > 0) {
+				this.out.write(this.buffer, 0, this.count);
+				this.count = 0;
+			}
+		}
+
+		@Override public void
+		flush() throws IOException {
+			this.flushBuffer();
+			this.out.flush();
+		}
+
+		@Override public void
+		close() throws IOException {
+			try {
+				if (this.highSurrogate != -1) {
+					this.highSurrogate = -1;
+					this.buffer[this.count++] = '?';
+				}
+				this.flushBuffer();
+			} finally {
+				this.out.close();
+			}
+		}
+	}
+}
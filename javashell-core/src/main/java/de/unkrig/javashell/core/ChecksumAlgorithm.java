@@ -0,0 +1,88 @@
+
+package de.unkrig.javashell.core;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32C;
+
+/**
+ * The algorithms of {@link JavaShell#checksum(File, ChecksumAlgorithm)} and friends; named after the corresponding
+ * UNIX commands.
+ */
+public
+enum ChecksumAlgorithm {
+
+	/**
+	 * "{@code md5sum}"
+	 */
+	MD5("MD5"),
+
+	/**
+	 * "{@code sha1sum}"
+	 */
+	SHA_1("SHA-1"),
+
+	/**
+	 * "{@code sha256sum}"
+	 */
+	SHA_256("SHA-256"),
+
+	/**
+	 * The CRC-32C (Castagnoli) checksum, as four bytes in big-endian order. Much faster than the cryptographic hashes
+	 * (the JVM computes it with the CPU's CRC32 instructions), but only suitable for detecting accidental corruption.
+	 */
+	CRC32C(null);
+
+	private final String messageDigestAlgorithm;
+
+	ChecksumAlgorithm(String messageDigestAlgorithm) { this.messageDigestAlgorithm = messageDigestAlgorithm; }
+
+	/**
+	 * Accumulates the checksum of a sequence of bytes.
+	 */
+	abstract static
+	class Digest {
+
+		/**
+		 * Consumes all remaining bytes of the <var>buffer</var>.
+		 */
+		abstract void update(ByteBuffer buffer);
+
+		abstract byte[] digest();
+	}
+
+	Digest
+	newDigest() {
+
+		if (this.messageDigestAlgorithm == null) {
+			CRC32C crc = new CRC32C();
+			return new Digest() {
+
+				@Override void
+				update(ByteBuffer buffer) { crc.update(buffer); }
+
+				@Override byte[]
+				digest() { return ByteBuffer.allocate(4).putInt((int) crc.getValue()).array(); }
+			};
+		}
+
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance(this.messageDigestAlgorithm);
+		} catch (NoSuchAlgorithmException nsae) {
+
+			// Every JRE must support MD5, SHA-1 and SHA-256.
+			throw new AssertionError(nsae);
+		}
+		return new Digest() {
+
+			@Override void
+			update(ByteBuffer buffer) { md.update(buffer); }
+
+			@Override byte[]
+			digest() { return md.digest(); }
+		};
+	}
+}
@@ -0,0 +1,193 @@
+
+package de.unkrig.javashell.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import de.unkrig.javashell.core.ChecksumAlgorithm.Digest;
+
+/**
+ * The implementation of {@link JavaShell#checksum(File[], ChecksumAlgorithm, int)} and friends.
+ * <p>
+ *   Large files are hashed through memory mappings, so that their contents are never copied into the JVM; small
+ *   files are read into a pooled direct buffer, because mapping a file is more expensive than reading a few blocks.
+ * </p>
+ */
+final
+class Checksums {
+
+	private Checksums() {}
+
+	private static final long MAP_THRESHOLD = 4L << 20;
+	private static final long MAP_WINDOW    = 64L << 20;
+	private static final int  BUFFER_SIZE   = 64 << 10;
+
+	static byte[]
+	checksum(Path file, ChecksumAlgorithm algorithm) throws IOException {
+
+		Digest digest = algorithm.newDigest();
+		try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+
+			long size = in.size();
+			if (size >= MAP_THRESHOLD) {
+				for (long position = 0; position < size; position += MAP_WINDOW) {
+					long length = Math.min(MAP_WINDOW, size - position);
+					digest.update(in.map(FileChannel.MapMode.READ_ONLY, position, length));
+				}
+				return digest.digest();
+			}
+
+			ByteBuffer buffer = BufferPool.get().acquireDirect(BUFFER_SIZE, BufferPool.ALWAYS);
+			try {
+				while (in.read(buffer) != -1) {
+					buffer.flip();
+					digest.update(buffer);
+					buffer.clear();
+				}
+			} finally {
+				BufferPool.get().release(buffer);
+			}
+		}
+
+		return digest.digest();
+	}
+
+	/**
+	 * Computes the checksums of the <var>files</var> in <var>parallelism</var> threads. An error reading one file
+	 * does not terminate the computation; the first error is thrown when all files are processed, with the others
+	 * attached as "suppressed" exceptions.
+	 *
+	 * @return The checksums, in the order of the <var>files</var>
+	 */
+	static List<byte[]>
+	checksums(List<Path> files, ChecksumAlgorithm algorithm, int parallelism) throws IOException {
+
+		if (parallelism < 1) throw new IllegalArgumentException();
+
+		List<byte[]> result = new ArrayList<>(files.size());
+		if (parallelism == 1 || files.size() <= 1) {
+			IOException exception = null;
+			for (Path file : files) {
+				try {
+					result.add(Checksums.checksum(file, algorithm));
+				} catch (IOException ioe) {
+					exception = Checksums.addSuppressed(exception, ioe);
+				}
+			}
+			if (exception != null) throw exception;
+			return result;
+		}
+
+		ExecutorService executor = JavaShell.newDaemonThreadPool(Math.min(parallelism, files.size()));
+		try {
+			List<Future<byte[]>> futures = new ArrayList<>(files.size());
+			for (Path file : files) futures.add(executor.submit(() -> Checksums.checksum(file, algorithm)));
+
+			IOException exception = null;
+			for (Future<byte[]> future : futures) {
+				try {
+					result.add(future.get());
+				} catch (InterruptedException ie) {
+					throw new InterruptedIOException();
+				} catch (ExecutionException ee) {
+					Throwable cause = ee.getCause();
+					if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+					if (cause instanceof Error)            throw (Error) cause;
+					exception = Checksums.addSuppressed(exception, (IOException) cause);
+				}
+			}
+			if (exception != null) throw exception;
+			return result;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Copies <var>from</var> to <var>to</var>, and feeds the data into the <var>digest</var> in the same pass.
+	 *
+	 * @return The number of bytes copied
+	 */
+	static long
+	copy(Path from, Path to, Digest digest) throws IOException {
+
+		long       result = 0;
+		ByteBuffer buffer = BufferPool.get().acquireDirect(BUFFER_SIZE, BufferPool.ALWAYS);
+		try (
+			FileChannel in  = FileChannel.open(from, StandardOpenOption.READ);
+			FileChannel out = FileChannel.open(
+				to,
+				StandardOpenOption.WRITE,
+				StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING
+			);
+		) {
+			while (in.read(buffer) != -1) {
+				buffer.flip();
+				result += buffer.remaining();
+				digest.update(buffer.duplicate());
+				while (buffer.hasRemaining()) out.write(buffer);
+				buffer.clear();
+			}
+		} finally {
+			BufferPool.get().release(buffer);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Copies <var>in</var> to <var>out</var> (iff not {@code null}), and computes the checksum of the data in the
+	 * same pass.
+	 */
+	static byte[]
+	copy(InputStream in, OutputStream out, ChecksumAlgorithm algorithm) throws IOException {
+
+		Digest     digest = algorithm.newDigest();
+		ByteBuffer buffer = BufferPool.get().acquire(BUFFER_SIZE, BufferPool.ALWAYS);
+		try {
+			byte[] ba = buffer.array();
+			int    o  = buffer.arrayOffset();
+			for (int n; (n = in.read(ba, o, buffer.capacity())) != -1;) {
+				digest.update(ByteBuffer.wrap(ba, o, n));
+				if (out != null) out.write(ba, o, n);
+			}
+		} finally {
+			BufferPool.get().release(buffer);
+		}
+
+		return digest.digest();
+	}
+
+	/**
+	 * @return The <var>checksum</var> as lower-case hex digits
+	 */
+	static String
+	hex(byte[] checksum) {
+		char[] result = new char[2 * checksum.length];
+		for (int i = 0; i < checksum.length; i++) {
+			result[2 * i]     = Character.forDigit((checksum[i] >> 4) & 0xf, 16);
+			result[2 * i + 1] = Character.forDigit(checksum[i] & 0xf, 16);
+		}
+		return new String(result);
+	}
+
+	private static IOException
+	addSuppressed(IOException first, IOException next) {
+		if (first == null) return next;
+		first.addSuppressed(next);
+		return first;
+	}
+}
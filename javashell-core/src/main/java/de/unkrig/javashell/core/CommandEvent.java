@@ -0,0 +1,92 @@
+
+package de.unkrig.javashell.core;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The Flight Recorder event that is committed when a JavaShell command completes. Typical usage:
+ * <pre>
+ *   CommandEvent event = new CommandEvent();
+ *   if (event.isEnabled()) in = event.count(in);
+ *   event.begin();
+ *   try {
+ *       ...
+ *   } catch (IOException | RuntimeException e) {
+ *       event.exception = e;
+ *       throw e;
+ *   } finally {
+ *       event.commit("cmd", arg1, arg2, result);
+ *   }
+ * </pre>
+ * <p>
+ *   When no recording has the event enabled, {@link #isEnabled()} returns {@code false}, the streams are not
+ *   wrapped, and the arguments are never converted to strings.
+ * </p>
+ */
+@Name("de.unkrig.javashell.Command") @Label("Command") @Category("JavaShell")
+@Description("The execution of a JavaShell command")
+final
+class CommandEvent extends Event {
+
+	@Label("Command")                                                  String command;
+	@Label("Arguments")                                                String arguments;
+	@Label("Count") @Description("Bytes or chars processed, or -1")    long   count = -1;
+	@Label("Result") @Description("E.g. the number of lines or files") long   result;
+	@Label("Outcome")                                                  String outcome;
+
+	/**
+	 * The exception that the command produced, or {@code null}.
+	 */
+	transient Throwable exception;
+
+	private transient StageStats counter;
+
+	InputStream
+	count(InputStream in) { return new Instrumentation.CountingInputStream(in, this.counter()); }
+
+	OutputStream
+	count(OutputStream out) { return new Instrumentation.CountingOutputStream(out, this.counter()); }
+
+	Reader
+	count(Reader in) { return new Instrumentation.CountingReader(in, this.counter()); }
+
+	Writer
+	count(Writer out) { return new Instrumentation.CountingWriter(out, this.counter()); }
+
+	/**
+	 * Commits this event iff it is enabled and exceeds the configured threshold.
+	 *
+	 * @param arg1 Is converted to a string only if the event is committed; {@code null} for none
+	 * @param arg2 Is converted to a string only if the event is committed; {@code null} for none
+	 */
+	void
+	commit(String command, Object arg1, Object arg2, long result) {
+
+		if (!this.shouldCommit()) return;
+
+		this.command   = command;
+		this.arguments = arg1 == null ? "" : arg2 == null ? String.valueOf(arg1) : arg1 + " " + arg2;
+		this.result    = result;
+		this.outcome   = this.exception == null ? "OK" : this.exception.toString();
+
+		StageStats c = this.counter;
+		if (c != null) this.count = c.countIn + c.countOut;
+
+		this.commit();
+	}
+
+	private StageStats
+	counter() {
+		if (this.counter == null) this.counter = new StageStats(null, 0, 1, null, null);
+		return this.counter;
+	}
+}
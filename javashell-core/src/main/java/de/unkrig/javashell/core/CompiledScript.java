@@ -0,0 +1,91 @@
+
+package de.unkrig.javashell.core;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The class files of a single-file script, as produced by {@link ScriptCompiler#compile(String, String)}.
+ * <p>
+ *   Each {@link #load(ClassLoader)} defines the classes anew, in a class loader of their own, so that separate runs
+ *   of the same script do not share static state, although the script is compiled only once.
+ * </p>
+ */
+public final
+class CompiledScript {
+
+	private final String              mainClassName;
+	private final Map<String, byte[]> classFiles;
+
+	/**
+	 * @param mainClassName The fully qualified name of the class that declares the script's {@code main()} method
+	 * @param classFiles    Maps fully qualified class names to class file contents
+	 */
+	public
+	CompiledScript(String mainClassName, Map<String, byte[]> classFiles) {
+		this.mainClassName = mainClassName;
+		this.classFiles    = Collections.unmodifiableMap(new LinkedHashMap<>(classFiles));
+	}
+
+	public String
+	getMainClassName() { return this.mainClassName; }
+
+	/**
+	 * @return Maps fully qualified class names to class file contents
+	 */
+	public Map<String, byte[]>
+	getClassFiles() { return this.classFiles; }
+
+	/**
+	 * Defines the script's classes in a new class loader.
+	 *
+	 * @return The script's main class
+	 */
+	public Class<?>
+	load(ClassLoader parent) throws ClassNotFoundException {
+
+		return new ClassLoader(parent) {
+
+			@Override protected Class<?>
+			findClass(String name) throws ClassNotFoundException {
+				byte[] b = CompiledScript.this.classFiles.get(name);
+				if (b == null) throw new ClassNotFoundException(name);
+				return this.defineClass(name, b, 0, b.length);
+			}
+		}.loadClass(this.mainClassName);
+	}
+
+	/**
+	 * {@link #load(ClassLoader) Loads} the script's classes (with the class loader of {@link JavaShell} as the
+	 * parent) and invokes the main class's {@code public static void main(String[])} method.
+	 *
+	 * @throws Exception Any exception that the {@code main()} method throws
+	 */
+	public void
+	run(String... args) throws Exception {
+
+		Method main = this.load(JavaShell.class.getClassLoader()).getMethod("main", String[].class);
+		if (!Modifier.isStatic(main.getModifiers())) {
+			throw new NoSuchMethodException(this.mainClassName + ".main(String[]) is not static");
+		}
+
+		// The main class need not be public.
+		main.setAccessible(true);
+
+		try {
+			main.invoke(null, (Object) args);
+		} catch (InvocationTargetException ite) {
+			Throwable cause = ite.getCause();
+			if (cause instanceof Exception) throw (Exception) cause;
+			if (cause instanceof Error)     throw (Error) cause;
+			throw ite;
+		}
+	}
+
+	@Override public String
+	toString() { return this.mainClassName + " (" + this.classFiles.size() + " class(es))"; }
+}
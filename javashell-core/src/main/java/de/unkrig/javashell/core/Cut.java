@@ -0,0 +1,322 @@
+
+package de.unkrig.javashell.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The implementations of {@link JavaShell#cut_(char, int...)}, {@link JavaShell#cut_(Pattern, String, int...)} and
+ * {@link JavaShell#cutBytes_(byte, int...)}.
+ * <p>
+ *   The input is read into one buffer, which grows only if a line does not fit into it. Each line is split by
+ *   recording the offsets of its fields (and only as many fields as are selected), and the selected fields are
+ *   written directly from the buffer, so no objects are allocated per line or field.
+ * </p>
+ */
+final
+class Cut {
+
+	private Cut() {}
+
+	private static final int INITIAL_BUFFER_SIZE = 8192;
+
+	/**
+	 * Splits lines at a single delimiter char, or at matches of a regular expression.
+	 */
+	static final
+	class Chars implements CharFilter<Integer> {
+
+		private final char    delimiter;        // Iff pattern == null
+		private final Pattern pattern;
+		private final String  outputDelimiter;
+		private final int[]   fields;           // Zero-based
+		private final int     fieldCount;       // How many fields must be split off
+
+		Chars(char delimiter, int[] fields) {
+			this.delimiter       = delimiter;
+			this.pattern         = null;
+			this.outputDelimiter = String.valueOf(delimiter);
+			this.fields          = Cut.zeroBased(fields);
+			this.fieldCount      = Cut.max(this.fields) + 1;
+		}
+
+		Chars(Pattern pattern, String outputDelimiter, int[] fields) {
+			this.delimiter       = 0;
+			this.pattern         = pattern;
+			this.outputDelimiter = outputDelimiter;
+			this.fields          = Cut.zeroBased(fields);
+			this.fieldCount      = Cut.max(this.fields) + 1;
+		}
+
+		@Override public Integer
+		execute(Reader in, Writer out) throws IOException {
+
+			char[]  buffer      = new char[INITIAL_BUFFER_SIZE];
+			Matcher matcher     = this.pattern == null ? null : this.pattern.matcher(CharBuffer.wrap(buffer));
+			int[]   fieldStarts = new int[this.fieldCount];
+			int[]   fieldEnds   = new int[this.fieldCount];
+			int     start       = 0; // Start of the current line
+			int     scan        = 0; // Where to continue searching for the end of the current line
+			int     limit       = 0; // End of valid data
+			boolean eoi         = false;
+			int     lineCount   = 0;
+
+			for (;;) {
+
+				// Find the end of the current line.
+				int eol = -1;
+				for (; scan < limit; scan++) {
+					if (buffer[scan] == '\n') {
+						eol = scan;
+						break;
+					}
+				}
+
+				if (eol == -1) {
+					if (eoi) {
+						if (start < limit) {
+							this.cutLine(buffer, matcher, start, limit, fieldStarts, fieldEnds, out);
+							lineCount++;
+						}
+						return lineCount;
+					}
+
+					// Make room for more data, then read.
+					if (start > 0) {
+						System.arraycopy(buffer, start, buffer, 0, limit - start);
+						limit -= start;
+						scan  -= start;
+						start =  0;
+					} else
+					if (limit == buffer.length) {
+						buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+						if (matcher != null) matcher = this.pattern.matcher(CharBuffer.wrap(buffer));
+					}
+					int n = in.read(buffer, limit, buffer.length - limit);
+					if (n == -1) {
+						eoi = true;
+					} else {
+						limit += n;
+					}
+					continue;
+				}
+
+				int end = eol > start && buffer[eol - 1] == '\r' ? eol - 1 : eol;
+				this.cutLine(buffer, matcher, start, end, fieldStarts, fieldEnds, out);
+				lineCount++;
+				start = scan = eol + 1;
+			}
+		}
+
+		private void
+		cutLine(char[] buffer, Matcher matcher, int start, int end, int[] fieldStarts, int[] fieldEnds, Writer out)
+		throws IOException {
+
+			int n = 0;
+			if (matcher == null) {
+				int fieldStart = start;
+				for (int i = start; i < end && n < this.fieldCount - 1; i++) {
+					if (buffer[i] == this.delimiter) {
+						fieldStarts[n] = fieldStart;
+						fieldEnds[n++] = i;
+						fieldStart     = i + 1;
+					}
+				}
+				fieldStarts[n] = fieldStart;
+				fieldEnds[n++] = Cut.fieldEnd(buffer, fieldStart, end, this.delimiter);
+			} else {
+				matcher.region(start, end);
+				int     fieldStart = start;
+				boolean found      = true;
+				while (n < this.fieldCount - 1 && (found = matcher.find())) {
+					fieldStarts[n] = fieldStart;
+					fieldEnds[n++] = matcher.start();
+					fieldStart     = matcher.end();
+				}
+
+				// Notice: After an unsuccessful "find()", the next "find()" would start over at the region start.
+				fieldStarts[n] = fieldStart;
+				fieldEnds[n++] = found && matcher.find() ? matcher.start() : end;
+			}
+
+			for (int i = 0; i < this.fields.length; i++) {
+				if (i > 0) out.write(this.outputDelimiter);
+				int f = this.fields[i];
+				if (f < n) out.write(buffer, fieldStarts[f], fieldEnds[f] - fieldStarts[f]);
+			}
+			out.write(JavaShell.LINE_TERMINATOR);
+		}
+
+		@Override public String
+		toString() {
+			return (
+				"cut -d '"
+				+ (this.pattern == null ? String.valueOf(this.delimiter) : this.pattern.pattern())
+				+ "' -f "
+				+ Cut.toString(this.fields)
+			);
+		}
+	}
+
+	/**
+	 * Splits lines at a single delimiter byte. Suitable for ASCII and UTF-8 input with an ASCII delimiter, because in
+	 * UTF-8, the bytes of multi-byte sequences are never in the ASCII range.
+	 */
+	static final
+	class Bytes implements ByteFilter<Integer> {
+
+		private static final byte[] LINE_TERMINATOR = JavaShell.LINE_TERMINATOR.getBytes(StandardCharsets.US_ASCII);
+
+		private final byte  delimiter;
+		private final int[] fields;     // Zero-based
+		private final int   fieldCount; // How many fields must be split off
+
+		Bytes(byte delimiter, int[] fields) {
+			this.delimiter  = delimiter;
+			this.fields     = Cut.zeroBased(fields);
+			this.fieldCount = Cut.max(this.fields) + 1;
+		}
+
+		@Override public Integer
+		execute(InputStream in, OutputStream out) throws IOException {
+
+			byte[]  buffer      = new byte[INITIAL_BUFFER_SIZE];
+			int[]   fieldStarts = new int[this.fieldCount];
+			int[]   fieldEnds   = new int[this.fieldCount];
+			int     start       = 0;
+			int     scan        = 0;
+			int     limit       = 0;
+			boolean eoi         = false;
+			int     lineCount   = 0;
+
+			for (;;) {
+
+				int eol = -1;
+				for (; scan < limit; scan++) {
+					if (buffer[scan] == '\n') {
+						eol = scan;
+						break;
+					}
+				}
+
+				if (eol == -1) {
+					if (eoi) {
+						if (start < limit) {
+							this.cutLine(buffer, start, limit, fieldStarts, fieldEnds, out);
+							lineCount++;
+						}
+						return lineCount;
+					}
+
+					if (start > 0) {
+						System.arraycopy(buffer, start, buffer, 0, limit - start);
+						limit -= start;
+						scan  -= start;
+						start =  0;
+					} else
+					if (limit == buffer.length) {
+						buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+					}
+					int n = in.read(buffer, limit, buffer.length - limit);
+					if (n == -1) {
+						eoi = true;
+					} else {
+						limit += n;
+					}
+					continue;
+				}
+
+				int end = eol > start && buffer[eol - 1] == '\r' ? eol - 1 : eol;
+				this.cutLine(buffer, start, end, fieldStarts, fieldEnds, out);
+				lineCount++;
+				start = scan = eol + 1;
+			}
+		}
+
+		private void
+		cutLine(byte[] buffer, int start, int end, int[] fieldStarts, int[] fieldEnds, OutputStream out)
+		throws IOException {
+
+			int n          = 0;
+			int fieldStart = start;
+			for (int i = start; i < end && n < this.fieldCount - 1; i++) {
+				if (buffer[i] == this.delimiter) {
+					fieldStarts[n] = fieldStart;
+					fieldEnds[n++] = i;
+					fieldStart     = i + 1;
+				}
+			}
+			fieldStarts[n] = fieldStart;
+			fieldEnds[n++] = Cut.fieldEnd(buffer, fieldStart, end, this.delimiter);
+
+			for (int i = 0; i < this.fields.length; i++) {
+				if (i > 0) out.write(this.delimiter);
+				int f = this.fields[i];
+				if (f < n) out.write(buffer, fieldStarts[f], fieldEnds[f] - fieldStarts[f]);
+			}
+			out.write(LINE_TERMINATOR);
+		}
+
+		@Override public String
+		toString() { return "cut -d '" + (char) (this.delimiter & 0xff) + "' -f " + Cut.toString(this.fields); }
+	}
+
+	// ----------------------------------------------------------------------------------------------------------------
+
+	/**
+	 * @return The offset of the first <var>delimiter</var> in the given range, or <var>end</var>
+	 */
+	private static int
+	fieldEnd(char[] buffer, int start, int end, char delimiter) {
+		for (int i = start; i < end; i++) {
+			if (buffer[i] == delimiter) return i;
+		}
+		return end;
+	}
+
+	private static int
+	fieldEnd(byte[] buffer, int start, int end, byte delimiter) {
+		for (int i = start; i < end; i++) {
+			if (buffer[i] == delimiter) return i;
+		}
+		return end;
+	}
+
+	private static int[]
+	zeroBased(int[] fields) {
+
+		if (fields.length == 0) throw new IllegalArgumentException("No fields selected");
+
+		int[] result = new int[fields.length];
+		for (int i = 0; i < fields.length; i++) {
+			if (fields[i] < 1) throw new IllegalArgumentException("Field numbers start at 1");
+			result[i] = fields[i] - 1;
+		}
+		return result;
+	}
+
+	private static int
+	max(int[] values) {
+		int result = values[0];
+		for (int value : values) result = Math.max(result, value);
+		return result;
+	}
+
+	private static String
+	toString(int[] fields) {
+		StringBuilder sb = new StringBuilder();
+		for (int f : fields) {
+			if (sb.length() > 0) sb.append(',');
+			sb.append(f + 1);
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,50 @@
+
+package de.unkrig.javashell.core;
+
+import java.io.File;
+
+/**
+ * The result of {@link JavaShell#du(File[], File, int)}.
+ */
+public final
+class DiskUsage {
+
+	private final long size, allocatedSize, fileCount;
+
+	DiskUsage(long size, long allocatedSize, long fileCount) {
+		this.size          = size;
+		this.allocatedSize = allocatedSize;
+		this.fileCount     = fileCount;
+	}
+
+	/**
+	 * @return The sum of the sizes of all files and directories, like "{@code du --apparent-size --bytes}"
+	 */
+	public long
+	getSize() { return this.size; }
+
+	/**
+	 * @return The sum of the sizes of all files and directories, each rounded up to the block size of the file
+	 *         store; approximates "{@code du --bytes}", except for sparse files
+	 */
+	public long
+	getAllocatedSize() { return this.allocatedSize; }
+
+	/**
+	 * @return The number of files and directories, including the starting point
+	 */
+	public long
+	getFileCount() { return this.fileCount; }
+
+	DiskUsage
+	add(DiskUsage that) {
+		return new DiskUsage(
+			this.size + that.size,
+			this.allocatedSize + that.allocatedSize,
+			this.fileCount + that.fileCount
+		);
+	}
+
+	@Override public String
+	toString() { return this.size + " bytes (" + this.allocatedSize + " allocated) in " + this.fileCount + " files"; }
+}
@@ -0,0 +1,504 @@
+
+package de.unkrig.javashell.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * The implementation of {@link JavaShell#du(File[], File, int)}.
+ * <p>
+ *   The optional cache file maps each directory to its modification time, the total size of its non-directory
+ *   members, the names of its subdirectories, and its members with more than one hard link. When a directory's
+ *   modification time is unchanged, the directory is not read again; only its subdirectories are "{@code
+ *   stat()}"ed. Notice that rewriting a file in place does not change the modification time of its directory, so
+ *   such changes go unnoticed until a member of that directory is created, deleted or renamed.
+ * </p>
+ * <p>
+ *   A directory that was modified less than {@link #RACY_MILLIS} before it was read is not cached: Another
+ *   modification in the same file system timestamp granule would leave its modification time unchanged (cf. git's
+ *   "racy clean" entries).
+ * </p>
+ */
+final
+class Du {
+
+	private static final int  CACHE_MAGIC        = 0x6a736432;
+	private static final long DEFAULT_BLOCK_SIZE = 4096;
+
+	/**
+	 * The coarsest modification time granularity that is expected, e.g. of FAT file systems.
+	 */
+	private static final long RACY_MILLIS = 2000;
+
+	private final Map<String, DirectoryEntry> oldCache;
+	private final Map<String, DirectoryEntry> newCache = new ConcurrentHashMap<>();
+	private final LongPairSet                 inodes   = new LongPairSet();
+	private final boolean                     parallel;
+	private IOException                       exception;
+
+	private
+	Du(Map<String, DirectoryEntry> oldCache, boolean parallel) {
+		this.oldCache = oldCache;
+		this.parallel = parallel;
+	}
+
+	/**
+	 * Files with more than one hard link are counted only once, even if they appear under more than one of the
+	 * <var>roots</var>.
+	 *
+	 * @param cacheFile   Is read before and written after the computation, or {@code null}
+	 * @param parallelism 1 for a sequential computation; otherwise the directories are read concurrently by that
+	 *                    many threads
+	 * @return            One element for each of the <var>roots</var>
+	 */
+	static List<DiskUsage>
+	execute(List<Path> roots, File cacheFile, int parallelism) throws IOException {
+
+		Du du = new Du(cacheFile == null ? Collections.emptyMap() : Du.load(cacheFile), parallelism > 1);
+
+		List<DiskUsage> result = new ArrayList<>();
+		List<Path>      keys   = new ArrayList<>();
+		ForkJoinPool    pool   = du.parallel ? new ForkJoinPool(parallelism) : null;
+		try {
+			for (Path root : roots) {
+
+				root = root.toAbsolutePath().normalize();
+				keys.add(root);
+
+				Attributes attributes = Attributes.read(root);
+				long       blockSize  = Du.blockSize(root);
+
+				if (!attributes.isDirectory) {
+					result.add(
+						attributes.nlink > 1 && !du.inodes.add(attributes.dev, attributes.ino)
+						? new DiskUsage(0, 0, 0)
+						: new DiskUsage(attributes.size, Du.allocated(attributes.size, blockSize), 1)
+					);
+					continue;
+				}
+
+				DirectoryTask task = du.new DirectoryTask(root, attributes, blockSize);
+				result.add(pool == null ? task.invoke() : pool.invoke(task));
+			}
+		} finally {
+			if (pool != null) pool.shutdownNow();
+		}
+
+		if (cacheFile != null) du.save(cacheFile, keys);
+
+		if (du.exception != null) throw du.exception;
+
+		return result;
+	}
+
+	/**
+	 * Computes the usage of one directory tree.
+	 */
+	private
+	class DirectoryTask extends RecursiveTask<DiskUsage> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Path       directory;
+		private final Attributes attributes;
+		private final long       blockSize;
+
+		DirectoryTask(Path directory, Attributes attributes, long blockSize) {
+			this.directory  = directory;
+			this.attributes = attributes;
+			this.blockSize  = blockSize;
+		}
+
+		@Override protected DiskUsage
+		compute() {
+
+			DiskUsage result = new DiskUsage(
+				this.attributes.size,
+				Du.allocated(this.attributes.size, this.blockSize),
+				1
+			);
+
+			String                  key                    = this.directory.toString();
+			DirectoryEntry          entry                  = Du.this.oldCache.get(key);
+			Map<String, Attributes> subdirectoryAttributes = new HashMap<>();
+			boolean                 racy                   = false;
+			if (entry == null || !entry.lastModified.equals(this.attributes.lastModified)) {
+				long now = System.currentTimeMillis();
+				try {
+					entry = this.scan(subdirectoryAttributes);
+				} catch (IOException ioe) {
+					Du.this.addException(ioe);
+					return result;
+				}
+				racy = this.attributes.lastModified.toMillis() > now - RACY_MILLIS;
+			}
+			if (!racy) Du.this.newCache.put(key, entry);
+
+			result = result.add(new DiskUsage(entry.size, entry.allocatedSize, entry.fileCount));
+			for (int i = 0; i < entry.links.length; i += 4) {
+				if (Du.this.inodes.add(entry.links[i], entry.links[i + 1])) {
+					result = result.add(new DiskUsage(entry.links[i + 2], entry.links[i + 3], 1));
+				}
+			}
+
+			List<DirectoryTask> subtasks = new ArrayList<>();
+			for (String name : entry.subdirectories) {
+
+				Path       subdirectory = this.directory.resolve(name);
+				Attributes attributes   = subdirectoryAttributes.get(name);
+				if (attributes == null) {
+					try {
+						attributes = Attributes.read(subdirectory);
+					} catch (IOException ioe) {
+						Du.this.addException(ioe);
+						continue;
+					}
+					if (!attributes.isDirectory) continue;
+				}
+
+				DirectoryTask subtask = new DirectoryTask(subdirectory, attributes, this.blockSize);
+				if (Du.this.parallel) {
+					subtask.fork();
+					subtasks.add(subtask);
+				} else {
+					result = result.add(subtask.compute());
+				}
+			}
+
+			for (DirectoryTask subtask : subtasks) result = result.add(subtask.join());
+
+			return result;
+		}
+
+		private DirectoryEntry
+		scan(Map<String, Attributes> subdirectoryAttributes) throws IOException {
+
+			long         size = 0, allocatedSize = 0, fileCount = 0;
+			List<String> subdirectories = new ArrayList<>();
+			long[]       links          = new long[0];
+
+			try (DirectoryStream<Path> ds = Files.newDirectoryStream(this.directory)) {
+				for (Path member : ds) {
+
+					Attributes a;
+					try {
+						a = Attributes.read(member);
+					} catch (IOException ioe) {
+
+						// E.g. the member was deleted since the directory was read.
+						Du.this.addException(ioe);
+						continue;
+					}
+
+					String name      = member.getFileName().toString();
+					long   allocated = Du.allocated(a.size, this.blockSize);
+					if (a.isDirectory) {
+						subdirectories.add(name);
+						subdirectoryAttributes.put(name, a);
+					} else
+					if (a.nlink > 1) {
+						int n = links.length;
+						links        = Arrays.copyOf(links, n + 4);
+						links[n]     = a.dev;
+						links[n + 1] = a.ino;
+						links[n + 2] = a.size;
+						links[n + 3] = allocated;
+					} else
+					{
+						size          += a.size;
+						allocatedSize += allocated;
+						fileCount++;
+					}
+				}
+			}
+
+			return new DirectoryEntry(
+				this.attributes.lastModified,
+				size,
+				allocatedSize,
+				fileCount,
+				subdirectories.toArray(new String[subdirectories.size()]),
+				links
+			);
+		}
+	}
+
+	private synchronized void
+	addException(IOException ioe) {
+		if (this.exception == null) {
+			this.exception = ioe;
+		} else {
+			this.exception.addSuppressed(ioe);
+		}
+	}
+
+	private static long
+	allocated(long size, long blockSize) { return (size + blockSize - 1) / blockSize * blockSize; }
+
+	private static long
+	blockSize(Path path) {
+		try {
+			return Files.getFileStore(path).getBlockSize();
+		} catch (IOException | UnsupportedOperationException e) {
+			return DEFAULT_BLOCK_SIZE;
+		}
+	}
+
+	// ----------------------------------------------------------------------------------------------------------------
+
+	/**
+	 * The attributes that {@link Du} needs, read with one single system call.
+	 */
+	private static final
+	class Attributes {
+
+		final boolean  isDirectory;
+		final long     size;
+		final FileTime lastModified;
+		final long     dev, ino;
+		final int      nlink;
+
+		Attributes(boolean isDirectory, long size, FileTime lastModified, long dev, long ino, int nlink) {
+			this.isDirectory  = isDirectory;
+			this.size         = size;
+			this.lastModified = lastModified;
+			this.dev          = dev;
+			this.ino          = ino;
+			this.nlink        = nlink;
+		}
+
+		static Attributes
+		read(Path path) throws IOException {
+
+			if (path.getFileSystem().supportedFileAttributeViews().contains("unix")) {
+				try {
+					Map<String, Object> m = Files.readAttributes(
+						path,
+						"unix:isDirectory,size,lastModifiedTime,dev,ino,nlink",
+						LinkOption.NOFOLLOW_LINKS
+					);
+					return new Attributes(
+						(Boolean) m.get("isDirectory"),
+						(Long) m.get("size"),
+						(FileTime) m.get("lastModifiedTime"),
+						(Long) m.get("dev"),
+						(Long) m.get("ino"),
+						(Integer) m.get("nlink")
+					);
+				} catch (UnsupportedOperationException | IllegalArgumentException e) {
+					;
+				}
+			}
+
+			// Without the "unix" view, hard links cannot be detected.
+			BasicFileAttributes a = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			return new Attributes(a.isDirectory(), a.size(), a.lastModifiedTime(), 0, 0, 1);
+		}
+	}
+
+	/**
+	 * What the cache file stores for one directory.
+	 */
+	private static final
+	class DirectoryEntry {
+
+		final FileTime lastModified;
+		final long     size, allocatedSize, fileCount; // Of the non-directory members with only one link
+		final String[] subdirectories;
+		final long[]   links;                          // "dev, ino, size, allocatedSize" of each multi-link member
+
+		DirectoryEntry(
+			FileTime lastModified,
+			long     size,
+			long     allocatedSize,
+			long     fileCount,
+			String[] subdirectories,
+			long[]   links
+		) {
+			this.lastModified   = lastModified;
+			this.size           = size;
+			this.allocatedSize  = allocatedSize;
+			this.fileCount      = fileCount;
+			this.subdirectories = subdirectories;
+			this.links          = links;
+		}
+	}
+
+	/**
+	 * @return An empty map iff the <var>cacheFile</var> does not exist or is unreadable
+	 */
+	private static Map<String, DirectoryEntry>
+	load(File cacheFile) {
+
+		Map<String, DirectoryEntry> result = new HashMap<>();
+		try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)))) {
+
+			if (dis.readInt() != CACHE_MAGIC) return Collections.emptyMap();
+
+			for (int i = dis.readInt(); i > 0; i--) {
+				String   key          = dis.readUTF();
+				FileTime lastModified = FileTime.from(Instant.ofEpochSecond(dis.readLong(), dis.readInt()));
+				long     size         = dis.readLong();
+				long     allocated    = dis.readLong();
+				long     fileCount    = dis.readLong();
+
+				String[] subdirectories = new String[dis.readInt()];
+				for (int j = 0; j < subdirectories.length; j++) subdirectories[j] = dis.readUTF();
+
+				long[] links = new long[dis.readInt()];
+				for (int j = 0; j < links.length; j++) links[j] = dis.readLong();
+
+				result.put(key, new DirectoryEntry(lastModified, size, allocated, fileCount, subdirectories, links));
+			}
+		} catch (IOException ioe) {
+
+			// A missing or corrupt cache is not an error; it only costs time.
+			return Collections.emptyMap();
+		}
+
+		return result;
+	}
+
+	/**
+	 * Writes the directories visited in this run, plus those cached directories that are not under any of the
+	 * <var>roots</var>.
+	 */
+	private void
+	save(File cacheFile, List<Path> roots) throws IOException {
+
+		Map<String, DirectoryEntry> entries = new HashMap<>();
+		ENTRIES:
+		for (Map.Entry<String, DirectoryEntry> e : this.oldCache.entrySet()) {
+
+			// "Path.startsWith()" compares name elements, and thus also works for the root directory.
+			Path key = Paths.get(e.getKey());
+			for (Path root : roots) {
+				if (key.startsWith(root)) continue ENTRIES;
+			}
+			entries.put(e.getKey(), e.getValue());
+		}
+		entries.putAll(this.newCache);
+
+		// A temporary file of its own, so that concurrent runs do not write into the same file; the last run wins.
+		Path tmp = Files.createTempFile(cacheFile.getAbsoluteFile().getParentFile().toPath(), cacheFile.getName(), null);
+		try {
+			Du.write(tmp, entries);
+			Files.move(tmp, cacheFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(tmp);
+			throw e;
+		}
+	}
+
+	private static void
+	write(Path file, Map<String, DirectoryEntry> entries) throws IOException {
+
+		try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+
+			dos.writeInt(CACHE_MAGIC);
+			dos.writeInt(entries.size());
+			for (Map.Entry<String, DirectoryEntry> e : entries.entrySet()) {
+				DirectoryEntry de = e.getValue();
+
+				Instant lastModified = de.lastModified.toInstant();
+
+				dos.writeUTF(e.getKey());
+				dos.writeLong(lastModified.getEpochSecond());
+				dos.writeInt(lastModified.getNano());
+				dos.writeLong(de.size);
+				dos.writeLong(de.allocatedSize);
+				dos.writeLong(de.fileCount);
+
+				dos.writeInt(de.subdirectories.length);
+				for (String s : de.subdirectories) dos.writeUTF(s);
+
+				dos.writeInt(de.links.length);
+				for (long l : de.links) dos.writeLong(l);
+			}
+		}
+	}
+
+	// ----------------------------------------------------------------------------------------------------------------
+
+	/**
+	 * A thread-safe set of (dev, ino) pairs, stored in one open-addressing {@code long[]}; avoids the overhead of
+	 * one object per element. The pair (0, 0) cannot be stored.
+	 */
+	private static final
+	class LongPairSet {
+
+		private long[] table = new long[2 * 64];
+		private int    size;
+
+		/**
+		 * @return Whether the pair was not yet in the set
+		 */
+		synchronized boolean
+		add(long a, long b) {
+
+			if (2 * (this.size + 1) > this.table.length / 2) this.rehash(this.table.length * 2);
+
+			if (!LongPairSet.insert(this.table, a, b)) return false;
+			this.size++;
+			return true;
+		}
+
+		private void
+		rehash(int length) {
+			long[] table = new long[length];
+			for (int i = 0; i < this.table.length; i += 2) {
+				if (this.table[i] != 0 || this.table[i + 1] != 0) {
+					LongPairSet.insert(table, this.table[i], this.table[i + 1]);
+				}
+			}
+			this.table = table;
+		}
+
+		private static boolean
+		insert(long[] table, long a, long b) {
+
+			int mask = (table.length >> 1) - 1;
+			for (int i = LongPairSet.hash(a, b) & mask;; i = (i + 1) & mask) {
+				long ta = table[2 * i], tb = table[2 * i + 1];
+				if (ta == 0 && tb == 0) {
+					table[2 * i]     = a;
+					table[2 * i + 1] = b;
+					return true;
+				}
+				if (ta == a && tb == b) return false;
+			}
+		}
+
+		private static int
+		hash(long a, long b) {
+			long h = a * 0x9e3779b97f4a7c15L + b;
+			h ^= h >>> 33;
+			h *= 0xff51afd7ed558ccdL;
+			h ^= h >>> 33;
+			return (int) h;
+		}
+	}
+}
@@ -0,0 +1,440 @@
+
+package de.unkrig.javashell.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Broadcasts a byte or char stream to a set of concurrently executing {@link ByteFilter}s or {@link CharFilter}s.
+ * Each chunk of input is read only once, and the same chunk array is shared by all branches; it is recycled when
+ * the last branch has consumed it. Because each branch has a bounded queue of chunks, the input is read no faster
+ * than the slowest branch consumes it.
+ * <p>
+ *   {@link #split(InputStream, Partitioner, List, List)} uses the same machinery, but routes each line to exactly
+ *   one branch instead of broadcasting the input.
+ * </p>
+ */
+final
+class FanOut {
+
+	private FanOut() {}
+
+	private static final int CHUNK_SIZE     = 8192;
+	private static final int QUEUE_CAPACITY = 16;
+
+	static <T> List<T>
+	execute(InputStream in, List<? extends ByteFilter<? extends T>> branches, List<? extends OutputStream> outs)
+	throws IOException {
+
+		List<Branch>          branches2 = new ArrayList<>();
+		List<Callable<T>>     tasks     = FanOut.tasks(branches, outs, branches2);
+		BlockingQueue<Object> freeList  = new ArrayBlockingQueue<>(QUEUE_CAPACITY + 2);
+
+		return FanOut.execute(branches2, tasks, FanOut.broadcast(() -> {
+			byte[] ba = (byte[]) freeList.poll();
+			if (ba == null) ba = new byte[CHUNK_SIZE];
+			int n = in.read(ba);
+			return n == -1 ? null : new Chunk(ba, n, branches2.size(), freeList);
+		}));
+	}
+
+	/**
+	 * Instead of broadcasting the input, routes each line of it to exactly one of the <var>branches</var>, as
+	 * determined by the <var>partitioner</var>.
+	 */
+	static <T> List<T>
+	split(
+		InputStream                             in,
+		Partitioner                             partitioner,
+		List<? extends ByteFilter<? extends T>> branches,
+		List<? extends OutputStream>            outs
+	) throws IOException {
+
+		List<Branch>      branches2 = new ArrayList<>();
+		List<Callable<T>> tasks     = FanOut.tasks(branches, outs, branches2);
+
+		return FanOut.execute(branches2, tasks, bs -> new Splitter(partitioner, bs).execute(in));
+	}
+
+	private static <T> List<Callable<T>>
+	tasks(
+		List<? extends ByteFilter<? extends T>> filters,
+		List<? extends OutputStream>            outs,
+		List<Branch>                            branches
+	) {
+		List<Callable<T>> result = new ArrayList<>();
+		for (int i = 0; i < filters.size(); i++) {
+			Branch                  branch = new Branch();
+			ByteFilter<? extends T> filter = filters.get(i);
+			OutputStream            out    = outs.get(i);
+			InputStream             is     = branch.inputStream();
+
+			branches.add(branch);
+			result.add(() -> filter.execute(is, out));
+		}
+		return result;
+	}
+
+	static <T> List<T>
+	execute(Reader in, List<? extends CharFilter<? extends T>> branches, List<? extends Writer> outs)
+	throws IOException {
+
+		List<Branch>          branches2 = new ArrayList<>();
+		List<Callable<T>>     tasks     = new ArrayList<>();
+		BlockingQueue<Object> freeList  = new ArrayBlockingQueue<>(QUEUE_CAPACITY + 2);
+		for (int i = 0; i < branches.size(); i++) {
+			Branch                  branch = new Branch();
+			CharFilter<? extends T> filter = branches.get(i);
+			Writer                  out    = outs.get(i);
+			Reader                  r      = branch.reader();
+
+			branches2.add(branch);
+			tasks.add(() -> {
+				try {
+					return filter.execute(r, out);
+				} finally {
+					out.flush();
+				}
+			});
+		}
+
+		return FanOut.execute(branches2, tasks, FanOut.broadcast(() -> {
+			char[] ca = (char[]) freeList.poll();
+			if (ca == null) ca = new char[CHUNK_SIZE];
+			int n = in.read(ca);
+			return n == -1 ? null : new Chunk(ca, n, branches2.size(), freeList);
+		}));
+	}
+
+	private
+	interface ChunkReader { Chunk read() throws IOException; }
+
+	/**
+	 * Distributes the input to the branches.
+	 */
+	private
+	interface Feeder { void feed(List<Branch> branches) throws IOException; }
+
+	private static Feeder
+	broadcast(ChunkReader in) {
+		return branches -> {
+			for (Chunk chunk; (chunk = in.read()) != null;) {
+				if (chunk.length == 0) {
+					chunk.release(branches.size());
+					continue;
+				}
+				for (Branch branch : branches) branch.put(chunk);
+			}
+		};
+	}
+
+	private static <T> List<T>
+	execute(List<Branch> branches, List<Callable<T>> tasks, Feeder feeder)
+	throws IOException {
+
+		ExecutorService executor = JavaShell.newDaemonThreadPool(Math.max(1, tasks.size()));
+		try {
+			List<Future<T>> futures = new ArrayList<>();
+			for (int i = 0; i < tasks.size(); i++) {
+				Branch      branch = branches.get(i);
+				Callable<T> task   = tasks.get(i);
+				futures.add(executor.submit(() -> {
+					try {
+						return task.call();
+					} finally {
+
+						// A branch that returns before end-of-input must not block the others.
+						branch.drain();
+					}
+				}));
+			}
+
+			try {
+				feeder.feed(branches);
+			} finally {
+				for (Branch branch : branches) branch.put(Chunk.END_OF_INPUT);
+			}
+
+			List<T>     results   = new ArrayList<>();
+			IOException exception = null;
+			for (Future<T> future : futures) {
+				try {
+					results.add(future.get());
+				} catch (InterruptedException ie) {
+					throw new InterruptedIOException();
+				} catch (ExecutionException ee) {
+					Throwable cause = ee.getCause();
+					if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+					if (cause instanceof Error)            throw (Error) cause;
+					IOException ioe = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+					if (exception == null) {
+						exception = ioe;
+					} else {
+						exception.addSuppressed(ioe);
+					}
+					results.add(null);
+				}
+			}
+			if (exception != null) throw exception;
+
+			return results;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Collects the lines of the input in one chunk per branch, and passes each chunk to its branch when the next
+	 * line does not fit into it. Lines that are longer than a chunk get a chunk of their own.
+	 */
+	private static final
+	class Splitter {
+
+		private static final int SPLIT_CHUNK_SIZE = 32 << 10;
+
+		private final Partitioner           partitioner;
+		private final List<Branch>          branches;
+		private final BlockingQueue<Object> freeList;
+		private final byte[][]              chunks;
+		private final int[]                 chunkLengths;
+		private long                        lineNumber, byteOffset;
+
+		Splitter(Partitioner partitioner, List<Branch> branches) {
+			this.partitioner  = partitioner;
+			this.branches     = branches;
+			this.freeList     = new ArrayBlockingQueue<>(branches.size() * (QUEUE_CAPACITY + 2));
+			this.chunks       = new byte[branches.size()][];
+			this.chunkLengths = new int[branches.size()];
+		}
+
+		void
+		execute(InputStream in) throws IOException {
+
+			byte[] buffer = new byte[SPLIT_CHUNK_SIZE];
+			int    start  = 0; // Of the current line
+			int    end    = 0; // Of the data in the buffer
+			for (;;) {
+				int n = in.read(buffer, end, buffer.length - end);
+				if (n == -1) break;
+
+				// Only the new data can contain line terminators.
+				for (int i = end, limit = end + n; i < limit; i++) {
+					if (buffer[i] == '\n') {
+						this.line(buffer, start, i + 1 - start);
+						start = i + 1;
+					}
+				}
+				end += n;
+
+				if (start == end) {
+					start = end = 0;
+				} else
+				if (end == buffer.length) {
+					if (start > 0) {
+						System.arraycopy(buffer, start, buffer, 0, end - start);
+						end   -= start;
+						start =  0;
+					} else {
+						buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+					}
+				}
+			}
+
+			// Unterminated last line.
+			if (start < end) this.line(buffer, start, end - start);
+
+			for (int i = 0; i < this.chunks.length; i++) {
+				if (this.chunkLengths[i] > 0) this.emit(i);
+			}
+		}
+
+		/**
+		 * @param length Including the line terminator
+		 */
+		private void
+		line(byte[] buffer, int offset, int length) throws IOException {
+
+			int contentLength = length;
+			if (contentLength > 0 && buffer[offset + contentLength - 1] == '\n') contentLength--;
+			if (contentLength > 0 && buffer[offset + contentLength - 1] == '\r') contentLength--;
+
+			int partitions = this.branches.size();
+			int p          = this.partitioner.partition(
+				buffer,
+				offset,
+				contentLength,
+				this.lineNumber++,
+				this.byteOffset,
+				partitions
+			);
+			if (p < 0 || p >= partitions) throw new IllegalStateException("Partitioner returned " + p);
+			this.byteOffset += length;
+
+			byte[] chunk = this.chunks[p];
+			if (chunk != null && this.chunkLengths[p] + length > chunk.length) {
+				this.emit(p);
+				chunk = null;
+			}
+			if (chunk == null) {
+				chunk = (byte[]) this.freeList.poll();
+				if (chunk == null) chunk = new byte[Math.max(SPLIT_CHUNK_SIZE, length)];
+				if (chunk.length < length) chunk = new byte[length];
+				this.chunks[p] = chunk;
+			}
+
+			System.arraycopy(buffer, offset, chunk, this.chunkLengths[p], length);
+			this.chunkLengths[p] += length;
+		}
+
+		private void
+		emit(int p) throws InterruptedIOException {
+			this.branches.get(p).put(new Chunk(this.chunks[p], this.chunkLengths[p], 1, this.freeList));
+			this.chunks[p]       = null;
+			this.chunkLengths[p] = 0;
+		}
+	}
+
+	private static final
+	class Chunk {
+
+		static final Chunk END_OF_INPUT = new Chunk(null, 0, 0, null);
+
+		final Object                        array;
+		final int                           length;
+		private final AtomicInteger         references;
+		private final BlockingQueue<Object> freeList;
+
+		Chunk(Object array, int length, int references, BlockingQueue<Object> freeList) {
+			this.array      = array;
+			this.length     = length;
+			this.references = new AtomicInteger(references);
+			this.freeList   = freeList;
+		}
+
+		void
+		release(int n) {
+			if (this.references.addAndGet(-n) == 0) this.freeList.offer(this.array);
+		}
+	}
+
+	private static final
+	class Branch {
+
+		private final BlockingQueue<Chunk> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+		private Chunk                      current;
+		private int                        position;
+		private boolean                    endOfInput;
+
+		void
+		put(Chunk chunk) throws InterruptedIOException {
+			try {
+				this.queue.put(chunk);
+			} catch (InterruptedException ie) {
+				throw new InterruptedIOException();
+			}
+		}
+
+		/**
+		 * @return The chunk that has unconsumed data, or {@code null} at end-of-input
+		 */
+		private Chunk
+		current() throws InterruptedIOException {
+
+			while (this.current == null || this.position == this.current.length) {
+
+				if (this.current != null) {
+					this.current.release(1);
+					this.current = null;
+				}
+
+				if (this.endOfInput) return null;
+
+				Chunk chunk;
+				try {
+					chunk = this.queue.take();
+				} catch (InterruptedException ie) {
+					throw new InterruptedIOException();
+				}
+
+				if (chunk == Chunk.END_OF_INPUT) {
+					this.endOfInput = true;
+					return null;
+				}
+
+				this.current  = chunk;
+				this.position = 0;
+			}
+
+			return this.current;
+		}
+
+		void
+		drain() throws InterruptedIOException {
+			this.position = this.current == null ? 0 : this.current.length;
+			while (this.current() != null) this.position = this.current.length;
+		}
+
+		InputStream
+		inputStream() {
+			return new InputStream() {
+
+				@Override public int
+				read() throws IOException {
+					Chunk chunk = Branch.this.current();
+					return chunk == null ? -1 : ((byte[]) chunk.array)[Branch.this.position++] & 0xff;
+				}
+
+				@Override public int
+				read(byte[] b, int off, int len) throws IOException {
+
+					if (len == 0) return 0;
+
+					Chunk chunk = Branch.this.current();
+					if (chunk == null) return -1;
+
+					int n = Math.min(len, chunk.length - Branch.this.position);
+					System.arraycopy(chunk.array, Branch.this.position, b, off, n);
+					Branch.this.position += n;
+					return n;
+				}
+			};
+		}
+
+		Reader
+		reader() {
+			return new Reader() {
+
+				@Override public int
+				read(char[] cbuf, int off, int len) throws IOException {
+
+					if (len == 0) return 0;
+
+					Chunk chunk = Branch.this.current();
+					if (chunk == null) return -1;
+
+					int n = Math.min(len, chunk.length - Branch.this.position);
+					System.arraycopy(chunk.array, Branch.this.position, cbuf, off, n);
+					Branch.this.position += n;
+					return n;
+				}
+
+				@Override public void
+				close() {}
+			};
+		}
+	}
+}
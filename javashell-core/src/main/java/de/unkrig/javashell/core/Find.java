@@ -0,0 +1,222 @@
+
+package de.unkrig.javashell.core;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import de.unkrig.commons.lang.protocol.ConsumerWhichThrows;
+
+/**
+ * The implementation of {@link JavaShell#find(java.io.File, FindPredicate, FindPredicate, int, int,
+ * ConsumerWhichThrows)}.
+ */
+final
+class Find {
+
+	private final FindPredicate                                  predicate;
+	private final FindPredicate                                  prune;
+	private final int                                            maxDepth;
+	private final ConsumerWhichThrows<? super Path, IOException> action;
+	private IOException                                          exception;
+
+	private
+	Find(
+		FindPredicate                                  predicate,
+		FindPredicate                                  prune,
+		int                                            maxDepth,
+		ConsumerWhichThrows<? super Path, IOException> action
+	) {
+		this.predicate = predicate;
+		this.prune     = prune;
+		this.maxDepth  = maxDepth;
+		this.action    = action;
+	}
+
+	/**
+	 * Exceptions that occur while reading a directory or the attributes of a file do not terminate the traversal;
+	 * the first of them is thrown after the traversal has completed, with the others attached as "suppressed"
+	 * exceptions. Exceptions thrown by the <var>action</var>, however, terminate the traversal immediately.
+	 *
+	 * @param parallelism 1 for a sequential, depth-first traversal; otherwise the directories are read concurrently
+	 *                    by that many threads, and the <var>action</var> must be thread-safe
+	 */
+	static void
+	execute(
+		Path                                           root,
+		FindPredicate                                  predicate,
+		FindPredicate                                  prune,
+		int                                            maxDepth,
+		int                                            parallelism,
+		ConsumerWhichThrows<? super Path, IOException> action
+	) throws IOException {
+
+		Find  find  = new Find(predicate, prune, maxDepth, action);
+		Entry entry = new Entry(root, ShellContext.current().resolve(root), 0);
+
+		try {
+			if (parallelism <= 1) {
+				find.visitSequentially(entry);
+			} else
+			if (find.visit(entry)) {
+				ForkJoinPool pool = new ForkJoinPool(parallelism);
+				try {
+					pool.invoke(find.new DirectoryTask(entry));
+				} finally {
+					pool.shutdownNow();
+				}
+			}
+		} catch (UncheckedIOException uioe) {
+
+			// Thrown by the action.
+			throw uioe.getCause();
+		}
+
+		if (find.exception != null) throw find.exception;
+	}
+
+	/**
+	 * Applies the action to the <var>entry</var> iff it matches the predicate.
+	 *
+	 * @return Whether the traversal should descend into the <var>entry</var>
+	 */
+	private boolean
+	visit(Entry entry) {
+
+		try {
+			if (this.predicate.test(entry)) {
+				try {
+					this.action.consume(entry.path);
+				} catch (IOException ioe) {
+					throw new UncheckedIOException(ioe);
+				}
+			}
+
+			// Check the (typically cheap) prune predicate before the file type, so that pruned directories are
+			// never "stat()"ed for the traversal's sake.
+			return (
+				entry.depth < this.maxDepth
+				&& !this.prune.test(entry)
+				&& entry.basicAttributes().isDirectory()
+			);
+		} catch (IOException ioe) {
+			this.addException(ioe);
+			return false;
+		}
+	}
+
+	private void
+	visitSequentially(Entry entry) {
+
+		if (!this.visit(entry)) return;
+
+		try (DirectoryStream<Path> ds = Files.newDirectoryStream(entry.file)) {
+			for (Path member : ds) this.visitSequentially(entry.member(member));
+		} catch (IOException ioe) {
+			this.addException(ioe);
+		}
+	}
+
+	private synchronized void
+	addException(IOException ioe) {
+		if (this.exception == null) {
+			this.exception = ioe;
+		} else {
+			this.exception.addSuppressed(ioe);
+		}
+	}
+
+	/**
+	 * Reads one directory, and forks one task per subdirectory.
+	 */
+	private
+	class DirectoryTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Entry directory;
+
+		DirectoryTask(Entry directory) { this.directory = directory; }
+
+		@Override protected void
+		compute() {
+
+			List<DirectoryTask> subtasks = new ArrayList<>();
+			try (DirectoryStream<Path> ds = Files.newDirectoryStream(this.directory.file)) {
+				for (Path member : ds) {
+					Entry entry = this.directory.member(member);
+					if (Find.this.visit(entry)) {
+						DirectoryTask subtask = new DirectoryTask(entry);
+						subtask.fork();
+						subtasks.add(subtask);
+					}
+				}
+			} catch (IOException ioe) {
+				Find.this.addException(ioe);
+			}
+
+			for (DirectoryTask subtask : subtasks) subtask.join();
+		}
+	}
+
+	private static final
+	class Entry implements FindPredicate.Entry {
+
+		final Path                  path; // As reported to the action
+		final Path                  file; // Resolved against the current shell context
+		final int                   depth;
+		private BasicFileAttributes basicAttributes;
+		private PosixFileAttributes posixAttributes;
+
+		Entry(Path path, Path file, int depth) {
+			this.path  = path;
+			this.file  = file;
+			this.depth = depth;
+		}
+
+		/**
+		 * @param member As returned by the directory stream of this entry
+		 */
+		Entry
+		member(Path member) {
+			return new Entry(this.path.resolve(member.getFileName()), member, this.depth + 1);
+		}
+
+		@Override public Path path()  { return this.path;  }
+		@Override public int  depth() { return this.depth; }
+
+		@Override public BasicFileAttributes
+		basicAttributes() throws IOException {
+			if (this.basicAttributes == null) {
+				this.basicAttributes = Files.readAttributes(
+					this.file,
+					BasicFileAttributes.class,
+					LinkOption.NOFOLLOW_LINKS
+				);
+			}
+			return this.basicAttributes;
+		}
+
+		@Override public PosixFileAttributes
+		posixAttributes() throws IOException {
+			if (this.posixAttributes == null) {
+				this.posixAttributes = Files.readAttributes(
+					this.file,
+					PosixFileAttributes.class,
+					LinkOption.NOFOLLOW_LINKS
+				);
+				this.basicAttributes = this.posixAttributes;
+			}
+			return this.posixAttributes;
+		}
+	}
+}
@@ -0,0 +1,215 @@
+
+package de.unkrig.javashell.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.regex.Pattern;
+
+/**
+ * A condition on a file, as evaluated by {@link JavaShell#find(File, FindPredicate, FindPredicate, int, int,
+ * de.unkrig.commons.lang.protocol.ConsumerWhichThrows)}; the counterpart of the "tests" of the UNIX "{@code find}"
+ * command.
+ * <p>
+ *   Each predicate declares its {@link #cost()}. The file attributes are read only when the first predicate that
+ *   needs them is evaluated, and {@link #and(FindPredicate...)} and {@link #or(FindPredicate...)} evaluate their
+ *   cheap operands first. Thus "{@code and(name("*.log"), sizeGreaterThan(1000000))}" reads the attributes only of
+ *   the files named "*.log".
+ * </p>
+ */
+public
+interface FindPredicate {
+
+	/**
+	 * What a predicate needs to read in order to evaluate it; in ascending order of cost.
+	 */
+	enum Cost { NAME, BASIC_ATTRIBUTES, POSIX_ATTRIBUTES }
+
+	/**
+	 * A file being tested. The attributes are read lazily and at most once.
+	 */
+	interface Entry {
+
+		Path path();
+
+		/**
+		 * @return 0 for the starting point of the search, 1 for its members, and so forth
+		 */
+		int depth();
+
+		/**
+		 * @return The attributes of the file; symbolic links are not followed
+		 */
+		BasicFileAttributes basicAttributes() throws IOException;
+
+		/**
+		 * @return The attributes of the file; symbolic links are not followed
+		 * @throws UnsupportedOperationException The file system does not support POSIX file attributes
+		 */
+		PosixFileAttributes posixAttributes() throws IOException;
+	}
+
+	boolean
+	test(Entry entry) throws IOException;
+
+	Cost
+	cost();
+
+	// ----------------------------------------------------------------------------------------------------------------
+
+	FindPredicate TRUE  = FindPredicate.of(Cost.NAME, e -> true);
+	FindPredicate FALSE = FindPredicate.of(Cost.NAME, e -> false);
+
+	/**
+	 * "{@code -name glob}": Whether the name of the file (the last element of its path) matches the <var>glob</var>.
+	 *
+	 * @see java.nio.file.FileSystem#getPathMatcher(String)
+	 */
+	static FindPredicate
+	name(String glob) {
+		PathMatcher pm = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+		return FindPredicate.of(Cost.NAME, e -> {
+			Path name = e.path().getFileName();
+			return pm.matches(name == null ? e.path() : name);
+		});
+	}
+
+	/**
+	 * "{@code -regex}": Whether the entire path of the file matches the <var>regex</var>.
+	 */
+	static FindPredicate
+	path(Pattern regex) { return FindPredicate.of(Cost.NAME, e -> regex.matcher(e.path().toString()).matches()); }
+
+	/**
+	 * "{@code -type f}"
+	 */
+	static FindPredicate
+	isRegularFile() { return FindPredicate.of(Cost.BASIC_ATTRIBUTES, e -> e.basicAttributes().isRegularFile()); }
+
+	/**
+	 * "{@code -type d}"
+	 */
+	static FindPredicate
+	isDirectory() { return FindPredicate.of(Cost.BASIC_ATTRIBUTES, e -> e.basicAttributes().isDirectory()); }
+
+	/**
+	 * "{@code -type l}"
+	 */
+	static FindPredicate
+	isSymbolicLink() { return FindPredicate.of(Cost.BASIC_ATTRIBUTES, e -> e.basicAttributes().isSymbolicLink()); }
+
+	/**
+	 * "{@code -size +n}"
+	 */
+	static FindPredicate
+	sizeGreaterThan(long n) { return FindPredicate.of(Cost.BASIC_ATTRIBUTES, e -> e.basicAttributes().size() > n); }
+
+	/**
+	 * "{@code -size -n}"
+	 */
+	static FindPredicate
+	sizeLessThan(long n) { return FindPredicate.of(Cost.BASIC_ATTRIBUTES, e -> e.basicAttributes().size() < n); }
+
+	/**
+	 * "{@code -newermt t}"
+	 */
+	static FindPredicate
+	modifiedAfter(FileTime t) {
+		return FindPredicate.of(Cost.BASIC_ATTRIBUTES, e -> e.basicAttributes().lastModifiedTime().compareTo(t) > 0);
+	}
+
+	/**
+	 * "{@code ! -newermt t}"
+	 */
+	static FindPredicate
+	modifiedBefore(FileTime t) {
+		return FindPredicate.of(Cost.BASIC_ATTRIBUTES, e -> e.basicAttributes().lastModifiedTime().compareTo(t) < 0);
+	}
+
+	/**
+	 * "{@code -user name}"
+	 */
+	static FindPredicate
+	owner(String name) {
+		return FindPredicate.of(Cost.POSIX_ATTRIBUTES, e -> e.posixAttributes().owner().getName().equals(name));
+	}
+
+	/**
+	 * "{@code -maxdepth}" and "{@code -mindepth}", as a predicate.
+	 */
+	static FindPredicate
+	depthBetween(int min, int max) { return FindPredicate.of(Cost.NAME, e -> e.depth() >= min && e.depth() <= max); }
+
+	/**
+	 * Evaluates the <var>operands</var> in ascending order of their {@link #cost()}, until one evaluates to {@code
+	 * false}.
+	 */
+	static FindPredicate
+	and(FindPredicate... operands) {
+
+		FindPredicate[] ops = FindPredicate.sortByCost(operands);
+
+		return FindPredicate.of(FindPredicate.maxCost(ops), e -> {
+			for (FindPredicate op : ops) {
+				if (!op.test(e)) return false;
+			}
+			return true;
+		});
+	}
+
+	/**
+	 * Evaluates the <var>operands</var> in ascending order of their {@link #cost()}, until one evaluates to {@code
+	 * true}.
+	 */
+	static FindPredicate
+	or(FindPredicate... operands) {
+
+		FindPredicate[] ops = FindPredicate.sortByCost(operands);
+
+		return FindPredicate.of(FindPredicate.maxCost(ops), e -> {
+			for (FindPredicate op : ops) {
+				if (op.test(e)) return true;
+			}
+			return false;
+		});
+	}
+
+	static FindPredicate
+	not(FindPredicate operand) { return FindPredicate.of(operand.cost(), e -> !operand.test(e)); }
+
+	/**
+	 * A predicate that needs nothing but what its {@link Cost} says.
+	 */
+	interface Test { boolean test(Entry entry) throws IOException; }
+
+	static FindPredicate
+	of(Cost cost, Test test) {
+		return new FindPredicate() {
+			@Override public boolean test(Entry entry) throws IOException { return test.test(entry); }
+			@Override public Cost    cost()                                { return cost;                   }
+		};
+	}
+
+	static FindPredicate[]
+	sortByCost(FindPredicate[] predicates) {
+		FindPredicate[] result = predicates.clone();
+		Arrays.sort(result, Comparator.comparing(FindPredicate::cost));
+		return result;
+	}
+
+	static Cost
+	maxCost(FindPredicate[] predicates) {
+		Cost result = Cost.NAME;
+		for (FindPredicate p : predicates) {
+			if (p.cost().compareTo(result) > 0) result = p.cost();
+		}
+		return result;
+	}
+}
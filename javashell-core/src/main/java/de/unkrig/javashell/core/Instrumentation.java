@@ -0,0 +1,400 @@
+
+package de.unkrig.javashell.core;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.FilterReader;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The opt-in instrumentation of the stages of {@link JavaShell#byteFilter_(boolean, boolean, ByteFilter[])} and
+ * {@link JavaShell#charFilter_(boolean, boolean, CharFilter[])} pipelines. It is enabled iff a {@link
+ * PipelineListener} is set, the {@link PipelineMXBean} is registered, or a Flight Recorder recording has the {@link
+ * PipelineStageEvent} enabled. When disabled, the only cost is the naming of the stage threads.
+ * <p>
+ *   An instrumented stage reads and writes through counting wrappers; notice that these hide the concrete type of
+ *   the streams, which disables the optimizations of some filters for e.g. {@link java.io.FileInputStream}s.
+ * </p>
+ */
+final
+class Instrumentation implements PipelineMXBean {
+
+	static final String OBJECT_NAME = "de.unkrig.javashell:type=Pipeline";
+
+	private static final Instrumentation     INSTANCE = new Instrumentation();
+	private static final AtomicInteger       NEXT_ID  = new AtomicInteger(1);
+	private static volatile PipelineListener listener;
+	private static volatile boolean          mxBeanRegistered;
+
+	private final AtomicLong      pipelinesStarted       = new AtomicLong();
+	private final AtomicLong      stagesCompleted        = new AtomicLong();
+	private final AtomicLong      stagesFailed           = new AtomicLong();
+	private final AtomicLong      totalCountIn           = new AtomicLong();
+	private final AtomicLong      totalReadBlockedNanos  = new AtomicLong();
+	private final AtomicLong      totalWriteBlockedNanos = new AtomicLong();
+	private final Set<StageStats> activeStages           = ConcurrentHashMap.newKeySet();
+
+	private Instrumentation() {}
+
+	static void
+	setListener(PipelineListener listener) { Instrumentation.listener = listener; }
+
+	static synchronized void
+	registerMXBean() {
+
+		if (Instrumentation.mxBeanRegistered) return;
+
+		try {
+			MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+			ObjectName  on  = new ObjectName(OBJECT_NAME);
+			if (!mbs.isRegistered(on)) mbs.registerMBean(INSTANCE, on);
+		} catch (JMException jme) {
+			throw new AssertionError(jme);
+		}
+
+		Instrumentation.mxBeanRegistered = true;
+	}
+
+	static synchronized void
+	unregisterMXBean() {
+
+		if (!Instrumentation.mxBeanRegistered) return;
+
+		try {
+			MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+			ObjectName  on  = new ObjectName(OBJECT_NAME);
+			if (mbs.isRegistered(on)) mbs.unregisterMBean(on);
+		} catch (JMException jme) {
+			throw new AssertionError(jme);
+		}
+
+		Instrumentation.mxBeanRegistered = false;
+	}
+
+	/**
+	 * @return E.g. "{@code byteFilter-7}"
+	 */
+	static String
+	newPipeline(String kind) { return kind + '-' + NEXT_ID.getAndIncrement(); }
+
+	/**
+	 * @return {@code null} iff instrumentation is disabled
+	 */
+	static StageStats[]
+	newStageStats(String pipeline, Object[] stages) {
+
+		if (
+			Instrumentation.listener == null
+			&& !Instrumentation.mxBeanRegistered
+			&& !new PipelineStageEvent().isEnabled()
+		) return null;
+
+		INSTANCE.pipelinesStarted.incrementAndGet();
+
+		StageStats[] result = new StageStats[stages.length];
+		for (int i = 0; i < stages.length; i++) {
+			result[i] = new StageStats(
+				pipeline,
+				i,
+				stages.length,
+				Instrumentation.stageName(stages[i]),
+				i == 0 ? null : result[i - 1]
+			);
+		}
+		return result;
+	}
+
+	/**
+	 * @return The name for the thread that executes the <var>index</var>th stage
+	 */
+	static String
+	threadName(String pipeline, int index, Object[] stages) {
+		return pipeline + '[' + index + '/' + stages.length + "] " + Instrumentation.stageName(stages[index]);
+	}
+
+	/**
+	 * @param threadName The name for the thread that executes the stage, or {@code null} to leave the thread's name
+	 *                   unchanged
+	 * @param stats      {@code null} iff instrumentation is disabled
+	 */
+	@SuppressWarnings("overloads") static <T> ByteFilter<T>
+	stage(ByteFilter<T> filter, String threadName, StageStats[] stats, int index) {
+
+		if (stats == null) {
+			if (threadName == null) return filter;
+			return (in, out) -> {
+				Thread.currentThread().setName(threadName);
+				return filter.execute(in, out);
+			};
+		}
+
+		StageStats s = stats[index];
+		return (in, out) -> {
+			if (threadName != null) Thread.currentThread().setName(threadName);
+			PipelineStageEvent event = INSTANCE.started(s);
+			try {
+				return filter.execute(new CountingInputStream(in, s), new CountingOutputStream(out, s));
+			} catch (IOException | RuntimeException | Error e) {
+				s.exception = e;
+				throw e;
+			} finally {
+				INSTANCE.completed(s, event);
+			}
+		};
+	}
+
+	/**
+	 * @see #stage(ByteFilter, String, StageStats[], int)
+	 */
+	@SuppressWarnings("overloads") static <T> CharFilter<T>
+	stage(CharFilter<T> filter, String threadName, StageStats[] stats, int index) {
+
+		if (stats == null) {
+			if (threadName == null) return filter;
+			return (in, out) -> {
+				Thread.currentThread().setName(threadName);
+				return filter.execute(in, out);
+			};
+		}
+
+		StageStats s = stats[index];
+		return (in, out) -> {
+			if (threadName != null) Thread.currentThread().setName(threadName);
+			PipelineStageEvent event = INSTANCE.started(s);
+			try {
+				return filter.execute(new CountingReader(in, s), new CountingWriter(out, s));
+			} catch (IOException | RuntimeException | Error e) {
+				s.exception = e;
+				throw e;
+			} finally {
+				INSTANCE.completed(s, event);
+			}
+		};
+	}
+
+	/**
+	 * @return The {@link Object#toString()} of the <var>filter</var>, if it overrides that method, otherwise {@code
+	 *         "stage"}
+	 */
+	static String
+	stageName(Object filter) {
+		try {
+			if (filter.getClass().getMethod("toString").getDeclaringClass() != Object.class) return filter.toString();
+		} catch (NoSuchMethodException nsme) {
+			throw new AssertionError(nsme);
+		}
+		return "stage";
+	}
+
+	private PipelineStageEvent
+	started(StageStats s) {
+
+		s.threadName = Thread.currentThread().getName();
+		s.startNanos = System.nanoTime();
+		this.activeStages.add(s);
+
+		PipelineListener l = Instrumentation.listener;
+		if (l != null) l.stageStarted(s);
+
+		PipelineStageEvent event = new PipelineStageEvent();
+		event.begin();
+		return event;
+	}
+
+	private void
+	completed(StageStats s, PipelineStageEvent event) {
+
+		event.end();
+		s.endNanos = System.nanoTime();
+		this.activeStages.remove(s);
+
+		(s.exception == null ? this.stagesCompleted : this.stagesFailed).incrementAndGet();
+		this.totalCountIn.addAndGet(s.countIn);
+		this.totalReadBlockedNanos.addAndGet(s.readBlockedNanos);
+		this.totalWriteBlockedNanos.addAndGet(s.writeBlockedNanos);
+
+		if (event.shouldCommit()) {
+			event.pipeline     = s.getPipeline();
+			event.index        = s.getIndex();
+			event.name         = s.getName();
+			event.countIn      = s.countIn;
+			event.countOut     = s.countOut;
+			event.readBlocked  = s.readBlockedNanos;
+			event.writeBlocked = s.writeBlockedNanos;
+			event.maxInputFill = s.maxFill;
+			event.outcome      = s.exception == null ? "OK" : s.exception.toString();
+			event.commit();
+		}
+
+		PipelineListener l = Instrumentation.listener;
+		if (l != null) l.stageCompleted(s);
+	}
+
+	// PipelineMXBean
+
+	@Override public long getPipelinesStarted()        { return this.pipelinesStarted.get();                   }
+	@Override public long getStagesCompleted()         { return this.stagesCompleted.get();                    }
+	@Override public long getStagesFailed()            { return this.stagesFailed.get();                       }
+	@Override public long getTotalCountIn()            { return this.totalCountIn.get();                       }
+	@Override public long getTotalReadBlockedMillis()  { return this.totalReadBlockedNanos.get() / 1000000;  }
+	@Override public long getTotalWriteBlockedMillis() { return this.totalWriteBlockedNanos.get() / 1000000; }
+
+	@Override public String[]
+	getActiveStages() {
+		return this.activeStages.stream().map(StageStats::toString).sorted().toArray(String[]::new);
+	}
+
+	// ----------------------------------------------------------------------------------------------------------------
+
+	static final
+	class CountingInputStream extends FilterInputStream {
+
+		private final StageStats stats;
+
+		CountingInputStream(InputStream in, StageStats stats) {
+			super(in);
+			this.stats = stats;
+		}
+
+		@Override public int
+		read() throws IOException {
+			this.stats.sampleFill();
+			long t0 = System.nanoTime();
+			int  b  = this.in.read();
+			this.stats.readBlockedNanos += System.nanoTime() - t0;
+			if (b != -1) this.stats.countIn++;
+			return b;
+		}
+
+		@Override public int
+		read(byte[] b, int off, int len) throws IOException {
+			this.stats.sampleFill();
+			long t0 = System.nanoTime();
+			int  n  = this.in.read(b, off, len);
+			this.stats.readBlockedNanos += System.nanoTime() - t0;
+			if (n > 0) this.stats.countIn += n;
+			return n;
+		}
+	}
+
+	static final
+	class CountingOutputStream extends FilterOutputStream {
+
+		private final StageStats stats;
+
+		CountingOutputStream(OutputStream out, StageStats stats) {
+			super(out);
+			this.stats = stats;
+		}
+
+		@Override public void
+		write(int b) throws IOException {
+			long t0 = System.nanoTime();
+			this.out.write(b);
+			this.stats.writeBlockedNanos += System.nanoTime() - t0;
+			this.stats.countOut++;
+		}
+
+		@Override public void
+		write(byte[] b, int off, int len) throws IOException {
+			long t0 = System.nanoTime();
+			this.out.write(b, off, len);
+			this.stats.writeBlockedNanos += System.nanoTime() - t0;
+			this.stats.countOut += len;
+		}
+
+		@Override public void
+		flush() throws IOException {
+			long t0 = System.nanoTime();
+			this.out.flush();
+			this.stats.writeBlockedNanos += System.nanoTime() - t0;
+		}
+	}
+
+	static final
+	class CountingReader extends FilterReader {
+
+		private final StageStats stats;
+
+		CountingReader(Reader in, StageStats stats) {
+			super(in);
+			this.stats = stats;
+		}
+
+		@Override public int
+		read() throws IOException {
+			this.stats.sampleFill();
+			long t0 = System.nanoTime();
+			int  c  = this.in.read();
+			this.stats.readBlockedNanos += System.nanoTime() - t0;
+			if (c != -1) this.stats.countIn++;
+			return c;
+		}
+
+		@Override public int
+		read(char[] cbuf, int off, int len) throws IOException {
+			this.stats.sampleFill();
+			long t0 = System.nanoTime();
+			int  n  = this.in.read(cbuf, off, len);
+			this.stats.readBlockedNanos += System.nanoTime() - t0;
+			if (n > 0) this.stats.countIn += n;
+			return n;
+		}
+	}
+
+	static final
+	class CountingWriter extends FilterWriter {
+
+		private final StageStats stats;
+
+		CountingWriter(Writer out, StageStats stats) {
+			super(out);
+			this.stats = stats;
+		}
+
+		@Override public void
+		write(int c) throws IOException {
+			long t0 = System.nanoTime();
+			this.out.write(c);
+			this.stats.writeBlockedNanos += System.nanoTime() - t0;
+			this.stats.countOut++;
+		}
+
+		@Override public void
+		write(char[] cbuf, int off, int len) throws IOException {
+			long t0 = System.nanoTime();
+			this.out.write(cbuf, off, len);
+			this.stats.writeBlockedNanos += System.nanoTime() - t0;
+			this.stats.countOut += len;
+		}
+
+		@Override public void
+		write(String str, int off, int len) throws IOException {
+			long t0 = System.nanoTime();
+			this.out.write(str, off, len);
+			this.stats.writeBlockedNanos += System.nanoTime() - t0;
+			this.stats.countOut += len;
+		}
+
+		@Override public void
+		flush() throws IOException {
+			long t0 = System.nanoTime();
+			this.out.flush();
+			this.stats.writeBlockedNanos += System.nanoTime() - t0;
+		}
+	}
+}
@@ -4,54 +4,181 @@ package de.unkrig.javashell.core;
 import java.io.BufferedReader;
 import java.io.Closeable;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
-import java.io.PipedReader;
-import java.io.PipedWriter;
 import java.io.Reader;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.util.regex.MatchResult;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import de.unkrig.commons.io.InputStreams;
 import de.unkrig.commons.io.IoUtil;
-import de.unkrig.commons.lang.ProcessUtil;
+import de.unkrig.commons.io.WriterOutputStream;
+import de.unkrig.commons.lang.protocol.ConsumerWhichThrows;
 import de.unkrig.commons.lang.protocol.FunctionWhichThrows;
 import de.unkrig.commons.lang.protocol.ProducerUtil;
 import de.unkrig.commons.text.pattern.Pattern2;
 import de.unkrig.commons.text.pattern.PatternUtil;
+import de.unkrig.javashell.core.ChecksumAlgorithm.Digest;
 
 public class JavaShell {
 
 	private static final File   ROOT_DIRECTORY    = new File("/");
-	private static final File   WORKING_DIRECTORY = new File(".");
-	private static final String LINE_TERMINATOR   = String.format("%n");
+	static final String         LINE_TERMINATOR   = String.format("%n");
+
+	// ----------------------------------------------------------------------------------------------------------------
+
+	@SafeVarargs @SuppressWarnings("varargs") public static <T> T
+	bufferFilter(InputStream in, OutputStream out, BufferFilter<? extends T>... pipes) throws IOException {
+		return JavaShell.bufferFilter_(pipes).asByteFilter().execute(in, out);
+	}
+
+	@SafeVarargs @SuppressWarnings("varargs") public static <T> T
+	bufferFilter(ReadableByteChannel in, WritableByteChannel out, BufferFilter<? extends T>... pipes)
+	throws IOException {
+		return JavaShell.bufferFilter_(pipes).execute(in, out);
+	}
+
+	/**
+	 * Creates background threads that execute {@code pipes[0...n-2]}, then executes {@code pipes[n-1]} and
+	 * returns. The stages are connected through bounded queues of {@link ByteBuffer}s, so that the buffers are passed
+	 * on by reference, and never copied.
+	 * <p>
+	 *   Notice that the return values and exceptions produced by <var>pipes</var>{@code [0...N-2]} are ignored.
+	 * </p>
+	 *
+	 * @return                  The return value produced by <var>pipes</var>{@code [N-1]}
+	 * @throws RuntimeException The exception produced by <var>pipes</var>{@code [N-1]}
+	 */
+	@SafeVarargs public static <T> BufferFilter<? extends T>
+	bufferFilter_(BufferFilter<? extends T>... pipes) {
+
+		switch (pipes.length) {
+
+		case 0:
+			return cpBuffer_();
+
+		case 1:
+			return pipes[0];
+
+		default:
+			return (in, out) -> {
+				BufferFilter.Source source   = in;
+				BufferPipe          upstream = null;
+
+				for (int i = 0; i < pipes.length - 1; i++) {
+					BufferPipe pipe = new BufferPipe(BUFFER_PIPE_CAPACITY);
+					executePipeInBackground(pipes[i], source, upstream, pipe);
+					source = upstream = pipe;
+				}
+
+				try {
+					return pipes[pipes.length - 1].execute(source, out);
+				} finally {
+					upstream.closeSource();
+				}
+			};
+		}
+	}
+
+	private static final int BUFFER_PIPE_CAPACITY = 16;
+
+	/**
+	 * @return A filter that passes all buffers on, unmodified
+	 */
+	@SuppressWarnings("unchecked") public static <T> BufferFilter<T>
+	cpBuffer_() { return (BufferFilter<T>) CP_BUFFER_; }
+
+	public static final BufferFilter<?> CP_BUFFER_ = (in, out) -> {
+		for (ByteBuffer buffer; (buffer = in.take()) != null;) out.put(buffer);
+		return null;
+	};
+
+	/**
+	 * Like {@link #tr_(byte, byte)}, but replaces the bytes in place, i.e. within the buffers that it takes.
+	 */
+	public static BufferFilter<Integer>
+	trBuffer_(byte pattern, byte replacement) {
+		return (in, out) -> {
+			int count = 0;
+			for (ByteBuffer buffer; (buffer = in.take()) != null; out.put(buffer)) {
+				for (int i = buffer.position(), limit = buffer.limit(); i < limit; i++) {
+					if (buffer.get(i) == pattern) {
+						buffer.put(i, replacement);
+						count++;
+					}
+				}
+			}
+			return count;
+		};
+	}
 
 	// ----------------------------------------------------------------------------------------------------------------
 	
 	@SafeVarargs public static <T> T
 	byteFilter(ByteFilter<? extends T>... pipes) throws IOException {
-		return JavaShell.byteFilter_(pipes).execute(System.in, System.out);
+		ShellContext ctx = ShellContext.current();
+		return JavaShell.byteFilter_(pipes).execute(ctx.getStdin(), ctx.getStdout());
 	}
 	
 	@SafeVarargs public static <T> T
 	byteFilter(InputStream in, ByteFilter<? extends T>... pipes) throws IOException {
-		return JavaShell.byteFilter_(pipes).execute(in, System.out);
+		return JavaShell.byteFilter_(pipes).execute(in, ShellContext.current().getStdout());
 	}
 	
 	@SafeVarargs public static <T> T
 	byteFilter(OutputStream out, ByteFilter<? extends T>... pipes) throws IOException {
-		return JavaShell.byteFilter_(pipes).execute(System.in, out);
+		return JavaShell.byteFilter_(pipes).execute(ShellContext.current().getStdin(), out);
 	}
 
 	@SafeVarargs public static <T> T
@@ -102,25 +229,35 @@ public class JavaShell {
 	 */
 	@SafeVarargs public static <T> ByteFilter<? extends T>
 	byteFilter_(boolean closeIn, boolean closeOut, ByteFilter<? extends T>... pipes) throws IOException {
-	
-		switch (pipes.length) {
+
+		ByteFilter<? extends T>[] stages = PipelinePlan.of(pipes).prepare().byteStages();
+
+		switch (stages.length) {
 		
 		case 0:
 			return cp_();
 			
 		case 1:
-			return close(pipes[0], closeIn, closeOut);
+			return close(stages[0], closeIn, closeOut);
 			
 		default:
 			return (in, out) -> {
-				int i = 0;
-	
-				in = pipeAsInputStream(pipes[i++], in, closeIn);
-	
-				while (i < pipes.length - 1) in = pipeAsInputStream(pipes[i++], in, true);
-	
+				String       pipeline = Instrumentation.newPipeline("byteFilter");
+				StageStats[] stats    = Instrumentation.newStageStats(pipeline, stages);
+
+				for (int i = 0; i < stages.length - 1; i++) {
+					in = pipeAsInputStream(
+						Instrumentation.stage(stages[i], Instrumentation.threadName(pipeline, i, stages), stats, i),
+						in,
+						i == 0 ? closeIn : true
+					);
+				}
+
 				try {
-					return pipes[i].execute(in, out);
+					return Instrumentation.stage(stages[stages.length - 1], null, stats, stages.length - 1).execute(
+						in,
+						out
+					);
 				} finally {
 					if (closeOut) close(out);
 				}
@@ -179,57 +316,333 @@ public class JavaShell {
 
 	// ----------------------------------------------------------------------------------------------------------------
 	
+	/**
+	 * Copies the contents of all <var>in</var> streams to <var>out</var>. {@link FileInputStream}s are transferred
+	 * with {@link FileChannel#transferTo(long, long, WritableByteChannel)} iff <var>out</var> is a {@link
+	 * FileOutputStream}; all other streams are copied through a buffer.
+	 */
 	public static void
 	cat(InputStream[] in, OutputStream out) throws IOException {
-		for (InputStream in2 : in) IoUtil.copy(in2, /*closeInputStream*/ false, out, /*closeOutputStream*/ false);
+
+		WritableByteChannel outChannel = JavaShell.channel(out);
+
+		for (InputStream in2 : in) {
+			if (outChannel != null && in2 instanceof FileInputStream) {
+				FileChannel inChannel = ((FileInputStream) in2).getChannel();
+				inChannel.position(JavaShell.transfer(inChannel, inChannel.position(), outChannel));
+			} else {
+				BufferPool.copy(in2, out);
+			}
+		}
 	}
 	
 	public static <T> T
 	cat(Reader[] in, Writer out) throws IOException {
-		for (Reader in2 : in) IoUtil.copy(in2, /*closeReader*/ false, out, /*closeWriter*/ false);
+		for (Reader in2 : in) BufferPool.copy(in2, out);
 		return null;
 	}
 
+	/**
+	 * Copies the contents of the <var>files</var> to <var>os</var>. Iff <var>os</var> is a {@link FileOutputStream},
+	 * then the data is transferred through {@link #cat(File[], WritableByteChannel)}, i.e. it is never copied into
+	 * the JVM.
+	 */
 	public static void
 	cat(File[] files, OutputStream os) throws IOException {
-		for (File file : files) IoUtil.copy(file, os, /*closeOutputStream*/ false);
+
+		WritableByteChannel channel = JavaShell.channel(os);
+		if (channel != null) {
+			JavaShell.cat(files, channel);
+			return;
+		}
+
+		for (File file : files) IoUtil.copy(ShellContext.current().resolve(file), os, /*closeOutputStream*/ false);
 	}
-	
+
+	/**
+	 * Copies the contents of the <var>files</var> to <var>out</var> with {@link FileChannel#transferTo(long, long,
+	 * WritableByteChannel)}, so that (on most operating systems) the data is moved by the kernel and never enters
+	 * the JVM.
+	 * <p>
+	 *   <var>out</var> is typically a {@link FileChannel}, a {@link java.nio.channels.SocketChannel}, a {@link
+	 *   java.nio.channels.Pipe.SinkChannel} or {@link #stdout()}, and must be in blocking mode.
+	 * </p>
+	 */
+	public static void
+	cat(File[] files, WritableByteChannel out) throws IOException {
+		for (File file : files) {
+			Path path = ShellContext.current().resolve(file.toPath());
+			try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+				JavaShell.transfer(in, 0, out);
+			}
+		}
+	}
+
+	/**
+	 * Equivalent with {@link #cat(File[], int, int, int, OutputStream) cat(files, readAhead, 4, 65536, os)}.
+	 */
+	public static void
+	cat(File[] files, int readAhead, OutputStream os) throws IOException {
+		JavaShell.cat(files, readAhead, 4, 65536, os);
+	}
+
+	/**
+	 * Copies the contents of the <var>files</var> to <var>os</var>, while background threads already read the
+	 * following <var>readAhead</var> files. This pays off when opening and reading files is slow compared to writing
+	 * them, e.g. with many medium-sized files on network storage.
+	 * <p>
+	 *   The data is read into direct buffers from the {@link BufferPool}; never more than <var>readAhead</var> {@code
+	 *   *} <var>buffersPerFile</var> {@code *} <var>bufferSize</var> bytes of buffer memory are borrowed.
+	 * </p>
+	 *
+	 * @param readAhead      How many files are read concurrently (including the file currently being written)
+	 * @param buffersPerFile How many buffers may be filled in advance for each file being read
+	 */
+	public static void
+	cat(File[] files, int readAhead, int buffersPerFile, int bufferSize, OutputStream os) throws IOException {
+
+		if (readAhead < 1 || buffersPerFile < 1 || bufferSize < 1) throw new IllegalArgumentException();
+
+		if (files.length == 0) return;
+
+		WritableByteChannel channel = JavaShell.channel(os);
+		ByteBuffer          heap    = channel == null ? BufferPool.get().acquire(bufferSize, BufferPool.ALWAYS) : null;
+		byte[]              array   = heap == null ? null : heap.array();
+
+		PrefetchSlot[]  slots    = new PrefetchSlot[Math.min(readAhead, files.length)];
+		ExecutorService executor = JavaShell.newDaemonThreadPool(slots.length);
+		try {
+			for (int i = 0; i < slots.length; i++) {
+				slots[i] = new PrefetchSlot(buffersPerFile, bufferSize);
+				slots[i].prefetch(files[i], executor);
+			}
+
+			for (int i = 0; i < files.length; i++) {
+				PrefetchSlot slot = slots[i % slots.length];
+
+				for (ByteBuffer buffer; (buffer = slot.take()) != null;) {
+					try {
+						if (channel != null) {
+							while (buffer.hasRemaining()) channel.write(buffer);
+						} else {
+							int n = buffer.remaining();
+							buffer.get(array, 0, n);
+							os.write(array, 0, n);
+						}
+					} finally {
+						slot.recycle(buffer);
+					}
+				}
+
+				// Now that the slot's buffers are all free again, start reading the next file.
+				if (i + slots.length < files.length) slot.prefetch(files[i + slots.length], executor);
+			}
+		} finally {
+
+			// The slots' buffers must not go back to the pool while a reader thread may still be filling them. The
+			// readers block only interruptibly, so they terminate promptly.
+			executor.shutdownNow();
+			boolean interrupted = false;
+			for (;;) {
+				try {
+					if (executor.awaitTermination(1, TimeUnit.MINUTES)) break;
+				} catch (InterruptedException ie) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) Thread.currentThread().interrupt();
+
+			for (PrefetchSlot slot : slots) {
+				if (slot != null) slot.release();
+			}
+			if (heap != null) BufferPool.get().release(heap);
+		}
+	}
+
+	/**
+	 * Reads one file after the other into its own, private set of buffers. Because no two slots share buffers, a
+	 * slow consumer can never starve the slot that it is waiting for.
+	 */
+	private static final
+	class PrefetchSlot {
+
+		private static final ByteBuffer END_OF_INPUT = ByteBuffer.allocate(0);
+
+		private final BlockingQueue<ByteBuffer> free;
+		private final BlockingQueue<ByteBuffer> full;
+		private IOException                     exception;
+
+		PrefetchSlot(int buffers, int bufferSize) throws InterruptedIOException {
+			this.free = new ArrayBlockingQueue<>(buffers);
+			this.full = new ArrayBlockingQueue<>(buffers + 1);
+			for (int i = 0; i < buffers; i++) this.free.add(BufferPool.get().acquireDirect(bufferSize, BufferPool.ALWAYS));
+		}
+
+		/**
+		 * Must only be invoked when all buffers of the previous file have been {@link #recycle(ByteBuffer)
+		 * recycled}.
+		 */
+		void
+		prefetch(File file, Executor executor) {
+
+			this.exception = null;
+
+			Path path = ShellContext.current().resolve(file.toPath());
+			executor.execute(() -> {
+				ByteBuffer buffer = null; // Taken from "free", but not yet passed on
+				try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+					for (;;) {
+						buffer = this.free.take();
+						buffer.clear();
+						if (in.read(buffer) == -1) break;
+						buffer.flip();
+						this.full.add(buffer);
+						buffer = null;
+					}
+				} catch (IOException ioe) {
+
+					// Notice: An interrupt while reading causes a "ClosedByInterruptException".
+					this.exception = ioe;
+				} catch (InterruptedException ie) {
+					return;
+				} finally {
+					if (buffer != null) this.free.add(buffer);
+				}
+				this.full.add(END_OF_INPUT);
+			});
+		}
+
+		/**
+		 * @return The next buffer of file data, or {@code null} at end-of-input
+		 */
+		ByteBuffer
+		take() throws IOException {
+
+			ByteBuffer result;
+			try {
+				result = this.full.take();
+			} catch (InterruptedException ie) {
+				throw new InterruptedIOException();
+			}
+
+			if (result != END_OF_INPUT) return result;
+
+			if (this.exception != null) throw this.exception;
+
+			return null;
+		}
+
+		void
+		recycle(ByteBuffer buffer) { this.free.add(buffer); }
+
+		/**
+		 * Returns all buffers to the {@link BufferPool}; must only be invoked when no file is being read.
+		 */
+		void
+		release() {
+			for (ByteBuffer buffer; (buffer = this.free.poll()) != null;) BufferPool.get().release(buffer);
+			for (ByteBuffer buffer; (buffer = this.full.poll()) != null;) {
+				if (buffer != END_OF_INPUT) BufferPool.get().release(buffer);
+			}
+		}
+	}
+
 	@SuppressWarnings("unchecked") public static <T> CharFilter<T>
 	cat_() throws IOException { return (CharFilter<T>) CAT_; }
 
-	public static final CharFilter<?> CAT_ = (in, out) -> JavaShell.cat(new Reader[] { in }, out);
+	public static final CharFilter<?> CAT_ = new Stages.Cat<Object>();
+
+	/**
+	 * @return A filter that ignores its input and copies the contents of the <var>files</var> to its output
+	 * @see    #cat(File[], OutputStream)
+	 */
+	public static ByteFilter<Void>
+	cat_(File... files) {
+		return (in, out) -> { JavaShell.cat(files, out); return null; };
+	}
+
+	/**
+	 * Transfers the bytes of <var>in</var>, starting at <var>position</var>, to <var>out</var>.
+	 *
+	 * @return The position of <var>in</var> after the last byte transferred
+	 */
+	static long
+	transfer(FileChannel in, long position, WritableByteChannel out) throws IOException {
+
+		for (long size = in.size(); position < size;) {
+			long n = in.transferTo(position, size - position, out);
+			if (n <= 0) break;
+			position += n;
+		}
+
+		// "transferTo()" never transfers more than "size()" bytes, so copy the rest conventionally up to the end of
+		// the file: Data that was appended meanwhile, data that "transferTo()" refused to transfer, or the contents
+		// of files that report a size of zero (e.g. those under "/proc").
+		ByteBuffer buffer = BufferPool.get().acquire(8192, BufferPool.ALWAYS);
+		try {
+			for (;;) {
+				buffer.clear();
+				int n = in.read(buffer, position);
+				if (n == -1) return position;
+				position += n;
+				for (buffer.flip(); buffer.hasRemaining();) out.write(buffer);
+			}
+		} finally {
+			BufferPool.get().release(buffer);
+		}
+	}
+
+	/**
+	 * @return The channel underlying <var>out</var>, or {@code null} iff <var>out</var> is not backed by a channel
+	 */
+	private static WritableByteChannel
+	channel(OutputStream out) {
+		return out instanceof FileOutputStream ? ((FileOutputStream) out).getChannel() : null;
+	}
 
 	// ----------------------------------------------------------------------------------------------------------------
 
+	/**
+	 * Changes the working directory of the {@link ShellContext#current() current shell context} to the user's home
+	 * directory.
+	 */
 	public static void
 	cd() throws IOException, InterruptedException {
 		String userHome = System.getProperty("user.home");
 		assert userHome != null;
-		System.setProperty("user.dir", userHome);
+		JavaShell.cd(new File(userHome));
 	}
 
+	/**
+	 * Changes the working directory of the {@link ShellContext#current() current shell context}; other contexts (and
+	 * the "{@code user.dir}" system property) are not affected.
+	 *
+	 * @param dir Relative to the current working directory
+	 */
 	public static void
 	cd(File dir) throws IOException, InterruptedException {
-		if (!dir.isDirectory()) throw new FileNotFoundException(dir.toString());
-		System.setProperty("user.dir", dir.getAbsolutePath());
+		ShellContext ctx  = ShellContext.current();
+		File         dir2 = ctx.resolve(dir);
+		if (!dir2.isDirectory()) throw new FileNotFoundException(dir.toString());
+		ctx.setDirectory(dir2.toPath().normalize().toFile());
 	}
 
 	// ----------------------------------------------------------------------------------------------------------------
 	
 	@SafeVarargs public static <T> T
 	charFilter(CharFilter<? extends T>... pipes) throws IOException {
-		return JavaShell.charFilter_(pipes).execute(System.in, System.out);
+		ShellContext ctx = ShellContext.current();
+		return JavaShell.charFilter_(pipes).execute(ctx.getStdin(), ctx.getStdout());
 	}
 	
 	@SafeVarargs public static <T> T
 	charFilter(Reader in, CharFilter<? extends T>... pipes) throws IOException {
-		return JavaShell.charFilter_(pipes).execute(in, System.out);
+		return JavaShell.charFilter_(pipes).execute(in, ShellContext.current().getStdout());
 	}
 	
 	@SafeVarargs public static <T> T
 	charFilter(Writer out, CharFilter<? extends T>... pipes) throws IOException {
-		return JavaShell.charFilter_(pipes).execute(System.in, out);
+		return JavaShell.charFilter_(pipes).execute(ShellContext.current().getStdin(), out);
 	}
 
 	@SafeVarargs public static <T> T
@@ -280,28 +693,36 @@ public class JavaShell {
 	 */
 	@SafeVarargs public static <T> CharFilter<? extends T>
 	charFilter_(boolean closeIn, boolean closeOut, CharFilter<? extends T>... pipes) throws IOException {
-	
-		switch (pipes.length) {
+
+		CharFilter<? extends T>[] stages = PipelinePlan.of(pipes).prepare().charStages();
+
+		switch (stages.length) {
 		
 		case 0:
 			return cat_();
 			
 		case 1:
-			return close(pipes[0], closeIn, closeOut);
+			return close(stages[0], closeIn, closeOut);
 	
 		default:
 			
 			return (in, out) -> {
-				int i = 0;
-				
-				in = pipeAsReader(pipes[i++], in, closeIn);
-				
-				while (i < pipes.length - 1) {
-					in = pipeAsReader(pipes[i++], in, true);
+				String       pipeline = Instrumentation.newPipeline("charFilter");
+				StageStats[] stats    = Instrumentation.newStageStats(pipeline, stages);
+
+				for (int i = 0; i < stages.length - 1; i++) {
+					in = pipeAsReader(
+						Instrumentation.stage(stages[i], Instrumentation.threadName(pipeline, i, stages), stats, i),
+						in,
+						i == 0 ? closeIn : true
+					);
 				}
-				
+
 				try {
-					return pipes[i].execute(in, out);
+					return Instrumentation.stage(stages[stages.length - 1], null, stats, stages.length - 1).execute(
+						in,
+						out
+					);
 				} finally {
 					if (closeOut) JavaShell.close(out);
 				}
@@ -388,9 +809,176 @@ public class JavaShell {
 
 	// ----------------------------------------------------------------------------------------------------------------
 
+	/**
+	 * @return The checksum of the contents of the <var>file</var>, as lower-case hex digits
+	 * @see    #checksum(File[], ChecksumAlgorithm, int)
+	 */
+	public static String
+	checksum(File file, ChecksumAlgorithm algorithm) throws IOException {
+		return Checksums.hex(Checksums.checksum(ShellContext.current().resolve(file.toPath()), algorithm));
+	}
+
+	/**
+	 * Computes the checksums of the contents of the <var>files</var>, like the UNIX "{@code md5sum}", "{@code
+	 * sha1sum}" and "{@code sha256sum}" commands. Large files are read through memory mappings.
+	 * <p>
+	 *   An error reading one file does not terminate the computation; the first error is thrown when all files are
+	 *   processed, with the others attached as "suppressed" exceptions.
+	 * </p>
+	 *
+	 * @param parallelism 1 for a sequential computation; otherwise up to that many files are read concurrently
+	 * @return            The checksums (as lower-case hex digits), in the order of the <var>files</var>
+	 */
+	public static List<String>
+	checksum(File[] files, ChecksumAlgorithm algorithm, int parallelism) throws IOException {
+
+		CommandEvent event = new CommandEvent();
+		event.begin();
+
+		List<String> result = new ArrayList<>(files.length);
+		try {
+			List<Path> paths = new ArrayList<>(files.length);
+			for (File file : files) paths.add(ShellContext.current().resolve(file.toPath()));
+
+			for (byte[] checksum : Checksums.checksums(paths, algorithm, parallelism)) {
+				result.add(Checksums.hex(checksum));
+			}
+		} catch (IOException | RuntimeException e) {
+			event.exception = e;
+			throw e;
+		} finally {
+			event.commit("checksum", algorithm, files.length, result.size());
+		}
+
+		return result;
+	}
+
+	/**
+	 * Prints the checksums of the <var>files</var> like "{@code sha256sum}", i.e. the checksum, two spaces, and the
+	 * path.
+	 *
+	 * @see #checksum(File[], ChecksumAlgorithm, int)
+	 */
+	public static List<String>
+	checksum(File[] files, ChecksumAlgorithm algorithm, int parallelism, Appendable out) throws IOException {
+
+		List<String> result = JavaShell.checksum(files, algorithm, parallelism);
+		for (int i = 0; i < files.length; i++) {
+			out.append(result.get(i)).append("  ").append(files[i].getPath()).append(LINE_TERMINATOR);
+		}
+
+		return result;
+	}
+
+	/**
+	 * @see #checksum(File[], ChecksumAlgorithm, int, Appendable)
+	 */
+	public static CharFilter<List<String>>
+	checksum_(File[] files, ChecksumAlgorithm algorithm, int parallelism) {
+		return (in, out) -> JavaShell.checksum(files, algorithm, parallelism, out);
+	}
+
+	/**
+	 * Like "{@code find root -type f | sort | xargs sha256sum}": Computes the checksums of all regular files under
+	 * (and including) <var>root</var> that match the <var>predicate</var>. Up to <var>parallelism</var> threads
+	 * traverse the directories, and then hash the files.
+	 *
+	 * @param predicate E.g. {@link FindPredicate#TRUE}; files other than regular files are never hashed
+	 * @return          The checksums (as lower-case hex digits), sorted by path
+	 * @see             #find(File, FindPredicate, FindPredicate, int, int, ConsumerWhichThrows)
+	 * @see             #checksum(File[], ChecksumAlgorithm, int)
+	 */
+	public static SortedMap<Path, String>
+	checksumTree(File root, FindPredicate predicate, ChecksumAlgorithm algorithm, int parallelism)
+	throws IOException {
+
+		List<Path> paths = Collections.synchronizedList(new ArrayList<>());
+		JavaShell.find(
+			root,
+			FindPredicate.and(FindPredicate.isRegularFile(), predicate),
+			FindPredicate.FALSE,
+			Integer.MAX_VALUE,
+			parallelism,
+			paths::add
+		);
+
+		File[] files = new File[paths.size()];
+		for (int i = 0; i < files.length; i++) files[i] = paths.get(i).toFile();
+
+		List<String>            checksums = JavaShell.checksum(files, algorithm, parallelism);
+		SortedMap<Path, String> result    = new TreeMap<>();
+		for (int i = 0; i < files.length; i++) result.put(paths.get(i), checksums.get(i));
+
+		return result;
+	}
+
+	/**
+	 * Prints the checksums of the files like "{@code sha256sum}", sorted by path.
+	 *
+	 * @see #checksumTree(File, FindPredicate, ChecksumAlgorithm, int)
+	 */
+	public static SortedMap<Path, String>
+	checksumTree(File root, FindPredicate predicate, ChecksumAlgorithm algorithm, int parallelism, Appendable out)
+	throws IOException {
+
+		SortedMap<Path, String> result = JavaShell.checksumTree(root, predicate, algorithm, parallelism);
+		for (Map.Entry<Path, String> e : result.entrySet()) {
+			out.append(e.getValue()).append("  ").append(e.getKey().toString()).append(LINE_TERMINATOR);
+		}
+
+		return result;
+	}
+
+	/**
+	 * @see #checksumTree(File, FindPredicate, ChecksumAlgorithm, int, Appendable)
+	 */
+	public static CharFilter<SortedMap<Path, String>>
+	checksumTree_(File root, FindPredicate predicate, ChecksumAlgorithm algorithm, int parallelism) {
+		return (in, out) -> JavaShell.checksumTree(root, predicate, algorithm, parallelism, out);
+	}
+
+	/**
+	 * Computes the checksum of its input, prints it like "{@code sha256sum}" does for its standard input (the
+	 * checksum, two spaces, and "{@code -}"), and returns it.
+	 *
+	 * @see #checksumTee_(ChecksumAlgorithm)
+	 */
+	public static ByteFilter<String>
+	checksum_(ChecksumAlgorithm algorithm) {
+		return (in, out) -> {
+			String checksum = Checksums.hex(Checksums.copy(in, null, algorithm));
+			out.write((checksum + "  -" + LINE_TERMINATOR).getBytes(StandardCharsets.US_ASCII));
+			return checksum;
+		};
+	}
+
+	/**
+	 * Copies its input to its output unmodified, and returns the checksum of the data (as lower-case hex digits).
+	 * Useful for verifying data on its way through a pipeline, without reading it twice.
+	 */
+	public static ByteFilter<String>
+	checksumTee_(ChecksumAlgorithm algorithm) {
+		return (in, out) -> Checksums.hex(Checksums.copy(in, out, algorithm));
+	}
+
+	// ----------------------------------------------------------------------------------------------------------------
+
 	public static <T> T
 	cp(InputStream in, OutputStream out) throws IOException {
-		IoUtil.copy(in, out);
+
+		CommandEvent event = new CommandEvent();
+		event.begin();
+		long n = 0;
+		try {
+			n = BufferPool.copy(in, out);
+		} catch (IOException | RuntimeException e) {
+			event.exception = e;
+			throw e;
+		} finally {
+			event.count = n;
+			event.commit("cp", null, null, n);
+		}
+
 		return null;
 	}
 	
@@ -406,7 +994,7 @@ public class JavaShell {
 
 	public static <T> T
 	cp(Collection<File> fromFiles, File toFile) throws IOException {
-		if (fromFiles.size() == 1 && !toFile.isDirectory()) {
+		if (fromFiles.size() == 1 && !ShellContext.current().resolve(toFile).isDirectory()) {
 			cpToFile(fromFiles.iterator().next(), toFile);
 		} else {
 			for (File fromFile : fromFiles) cpToDir(fromFile, toFile);
@@ -422,7 +1010,7 @@ public class JavaShell {
 	
 	public static Long
 	cp(File fromFile, File toFileOrDir) throws IOException {
-		if (toFileOrDir.isDirectory()) {
+		if (ShellContext.current().resolve(toFileOrDir).isDirectory()) {
 			return cpToDir(fromFile, toFileOrDir);
 		} else {
 			return cpToFile(fromFile, toFileOrDir);
@@ -433,42 +1021,206 @@ public class JavaShell {
 	cpToDir(File fromFile, File toDir) throws IOException { return cp(fromFile, new File(toDir, fromFile.getName())); }
 	
 	public static Long
-	cpToFile(File fromFile, File toFile) throws IOException { return IoUtil.copy(fromFile, toFile); }
-	
-	@SuppressWarnings("unchecked") public static <T> ByteFilter<T>
-	cp_() { return (ByteFilter<T>) CP_; }
-	
-	public static final ByteFilter<?> CP_ = (in, out) -> cp(in, out);
+	cpToFile(File fromFile, File toFile) throws IOException {
+
+		CommandEvent event = new CommandEvent();
+		event.begin();
+		long n = 0;
+		try {
+			n = IoUtil.copy(ShellContext.current().resolve(fromFile), ShellContext.current().resolve(toFile));
+		} catch (IOException | RuntimeException e) {
+			event.exception = e;
+			throw e;
+		} finally {
+			event.count = n;
+			event.commit("cpToFile", fromFile, toFile, n);
+		}
 
-	// ----------------------------------------------------------------------------------------------------------------
-	
-	public static <T> T
-	echo(String word, Appendable out) throws IOException {
-		out.append(word).append(LINE_TERMINATOR);
-		return null;
+		return n;
 	}
 	
-	public static <T> T
-	echo(Appendable out, String... words) throws IOException { return JavaShell.echo(words, out); }
+	/**
+	 * Copies <var>fromFile</var> to <var>toFile</var>, and computes the checksum of the data in the same pass, so that
+	 * the copy can be verified without reading the source again.
+	 *
+	 * @return The checksum of the copied data, as lower-case hex digits
+	 */
+	public static String
+	cpToFile(File fromFile, File toFile, ChecksumAlgorithm algorithm) throws IOException {
+
+		Digest digest = algorithm.newDigest();
+
+		CommandEvent event = new CommandEvent();
+		event.begin();
+		long n = 0;
+		try {
+			n = Checksums.copy(
+				ShellContext.current().resolve(fromFile.toPath()),
+				ShellContext.current().resolve(toFile.toPath()),
+				digest
+			);
+		} catch (IOException | RuntimeException e) {
+			event.exception = e;
+			throw e;
+		} finally {
+			event.count = n;
+			event.commit("cpToFile", fromFile, toFile, n);
+		}
 
-	public static <T> T
-	echo(String[] words, Appendable out) throws IOException {
+		return Checksums.hex(digest.digest());
+	}
 
-		if (words.length > 0) {
-			out.append(words[0]);
-			for (int i = 1; i < words.length; i++) out.append(' ').append(words[i]);
+	/**
+	 * Copies <var>fromFile</var> to <var>toFile</var>, and verifies the checksum of the data in the same pass.
+	 *
+	 * @param expectedChecksum Lower- or upper-case hex digits
+	 * @throws IOException     The checksum of the data is not the <var>expectedChecksum</var>; <var>toFile</var> was
+	 *                         deleted
+	 */
+	public static void
+	cpToFile(File fromFile, File toFile, ChecksumAlgorithm algorithm, String expectedChecksum) throws IOException {
+
+		String checksum = JavaShell.cpToFile(fromFile, toFile, algorithm);
+		if (!checksum.equalsIgnoreCase(expectedChecksum)) {
+			Files.delete(ShellContext.current().resolve(toFile.toPath()));
+			throw new IOException(fromFile + ": " + algorithm + " is " + checksum + ", expected " + expectedChecksum);
 		}
-		
-		out.append(LINE_TERMINATOR);
-		
-		return null;
 	}
-	
+
+	@SuppressWarnings("unchecked") public static <T> ByteFilter<T>
+	cp_() { return (ByteFilter<T>) CP_; }
+	
+	public static final ByteFilter<?> CP_ = new Stages.Cp<Object>();
+
+	// ----------------------------------------------------------------------------------------------------------------
+
+	/**
+	 * Like the UNIX "{@code cut -d <delimiter> -f <fields>}" command: Splits each line at the <var>delimiter</var>,
+	 * and writes the selected <var>fields</var>, separated by the <var>delimiter</var>. Unlike "{@code cut}", the
+	 * fields are written in the given order (and may be repeated), so this can also reorder columns. Fields that a
+	 * line does not have are written as empty strings.
+	 * <p>
+	 *   No objects are allocated per line or field.
+	 * </p>
+	 *
+	 * @param fields The (one-based) numbers of the fields to write
+	 * @return       The number of lines processed
+	 */
+	public static CharFilter<Integer>
+	cut_(char delimiter, int... fields) { return new Cut.Chars(delimiter, fields); }
+
+	/**
+	 * Like {@link #cut_(char, int...)}, but splits each line at the matches of the <var>delimiter</var> pattern
+	 * (e.g. "{@code \\s+}", like "{@code awk}"), and separates the selected fields with the
+	 * <var>outputDelimiter</var>.
+	 */
+	public static CharFilter<Integer>
+	cut_(Pattern delimiter, String outputDelimiter, int... fields) {
+		return new Cut.Chars(delimiter, outputDelimiter, fields);
+	}
+
+	/**
+	 * The byte-oriented counterpart of {@link #cut_(char, int...)}, which saves the decoding and encoding of the data.
+	 * Works for ASCII and UTF-8 input, as long as the <var>delimiter</var> is an ASCII character.
+	 */
+	public static ByteFilter<Integer>
+	cutBytes_(byte delimiter, int... fields) { return new Cut.Bytes(delimiter, fields); }
+
+	// ----------------------------------------------------------------------------------------------------------------
+
+	/**
+	 * @return The disk usage of the tree under (and including) <var>root</var>
+	 * @see    #du(File[], File, int)
+	 */
+	public static DiskUsage
+	du(File root) throws IOException { return JavaShell.du(new File[] { root }, null, 1).get(0); }
+
+	/**
+	 * Computes the disk usage of each of the <var>roots</var>, like the UNIX "{@code du -s}" command. Symbolic links
+	 * are not followed, and files with more than one hard link are counted only once (even if they appear under
+	 * different <var>roots</var>).
+	 * <p>
+	 *   If a <var>cacheFile</var> is given, then directories whose modification time has not changed since the
+	 *   previous run are not read again. Notice that rewriting a file in place does not change the modification time
+	 *   of its directory.
+	 * </p>
+	 * <p>
+	 *   Errors reading a directory or the attributes of a file do not terminate the computation; the first of them
+	 *   is thrown when the computation has completed, with the others attached as "suppressed" exceptions.
+	 * </p>
+	 *
+	 * @param cacheFile   Is read before and written after the computation, or {@code null}
+	 * @param parallelism 1 for a sequential computation; otherwise the directories are read concurrently by that
+	 *                    many threads
+	 */
+	public static List<DiskUsage>
+	du(File[] roots, File cacheFile, int parallelism) throws IOException {
+
+		List<Path> roots2 = new ArrayList<>();
+		for (File root : roots) {
+			Path root2 = ShellContext.current().resolve(root.toPath());
+			if (!Files.exists(root2)) throw new FileNotFoundException(root.toString());
+			roots2.add(root2);
+		}
+
+		return Du.execute(roots2, cacheFile == null ? null : ShellContext.current().resolve(cacheFile), parallelism);
+	}
+
+	/**
+	 * Prints the disk usage of each of the <var>roots</var> like "{@code du -s -k}", i.e. the allocated size in
+	 * kilobytes, a TAB, and the path.
+	 *
+	 * @see #du(File[], File, int)
+	 */
+	public static List<DiskUsage>
+	du(File[] roots, File cacheFile, int parallelism, Appendable out) throws IOException {
+
+		List<DiskUsage> result = JavaShell.du(roots, cacheFile, parallelism);
+		for (int i = 0; i < roots.length; i++) {
+			out.append(Long.toString((result.get(i).getAllocatedSize() + 1023) / 1024));
+			out.append('\t').append(roots[i].getPath()).append(LINE_TERMINATOR);
+		}
+
+		return result;
+	}
+
+	/**
+	 * @see #du(File[], File, int, Appendable)
+	 */
+	public static CharFilter<List<DiskUsage>>
+	du_(File[] roots, File cacheFile, int parallelism) {
+		return (in, out) -> JavaShell.du(roots, cacheFile, parallelism, out);
+	}
+
+	// ----------------------------------------------------------------------------------------------------------------
+	
+	public static <T> T
+	echo(String word, Appendable out) throws IOException {
+		out.append(word).append(LINE_TERMINATOR);
+		return null;
+	}
+	
+	public static <T> T
+	echo(Appendable out, String... words) throws IOException { return JavaShell.echo(words, out); }
+
+	public static <T> T
+	echo(String[] words, Appendable out) throws IOException {
+
+		if (words.length > 0) {
+			out.append(words[0]);
+			for (int i = 1; i < words.length; i++) out.append(' ').append(words[i]);
+		}
+		
+		out.append(LINE_TERMINATOR);
+		
+		return null;
+	}
+	
 	public static <T> CharFilter<T>
-	echo_(String word) { return (in, out) -> JavaShell.echo(word, out); }
+	echo_(String word) { return new Stages.Echo<T>(new String[] { word }); }
 	
 	public static <T> CharFilter<T>
-	echo_(String... words) { return (in, out) -> JavaShell.echo(words, out); }
+	echo_(String... words) { return new Stages.Echo<T>(words); }
 	
 	// ----------------------------------------------------------------------------------------------------------------
 
@@ -480,12 +1232,12 @@ public class JavaShell {
 
 	public static boolean
 	exec(List<String> command) throws IOException, InterruptedException {
-		return JavaShell.exec(command, System.out);
+		return JavaShell.exec(command, ShellContext.current().getStdout());
 	}
 	
 	public static boolean
 	exec(List<String> command, OutputStream out) throws IOException, InterruptedException {
-		return JavaShell.exec(command, out, System.err);
+		return JavaShell.exec(command, out, ShellContext.current().getStderr());
 	}
 	
 	public static boolean
@@ -513,6 +1265,15 @@ public class JavaShell {
 		);
 	}
 
+	/**
+	 * Executes the <var>command</var> as a subprocess and waits until it terminates.
+	 *
+	 * @param environment      Entries to add to (or replace in) the environment of the {@link ShellContext#current()
+	 *                         current shell context}, or {@code null}
+	 * @param workingDirectory Relative to the working directory of the current shell context; {@code null} means
+	 *                         that working directory
+	 * @return                 Whether the subprocess exited with status 0
+	 */
 	public static boolean
 	exec(
 		InputStream         stdin,
@@ -526,18 +1287,45 @@ public class JavaShell {
 		boolean             closeStderr
 	) throws IOException, InterruptedException {
 
-		return ProcessUtil.execute(
-	        command,
-	        workingDirectory,
-	        stdin,
-	        closeStdin,
-	        stdout,
-	        closeStdout,
-	        stderr,
-	        closeStderr
-	    );
+		CommandEvent event = new CommandEvent();
+		if (event.isEnabled()) stdout = event.count(stdout);
+		event.begin();
+		boolean success = false;
+		try {
+			success = JavaShell.execute(
+				JavaShell.processBuilder(command, environment, workingDirectory),
+				stdin,
+				closeStdin,
+				stdout,
+				closeStdout,
+				stderr,
+				closeStderr
+			) == 0;
+		} catch (IOException | InterruptedException | RuntimeException e) {
+			event.exception = e;
+			throw e;
+		} finally {
+			event.commit("exec", command, null, success ? 0 : 1);
+		}
+
+		return success;
 	}
 
+	/**
+	 * Equivalent with {@link #exec_(List, Map, File, OutputStream) exec_(Arrays.asList(command), null, null,
+	 * null)}.
+	 */
+	public static ByteFilter<Boolean>
+	exec_(String... command) { return JavaShell.exec_(Arrays.asList(command), null, null, null); }
+
+	/**
+	 * @param environment      See {@link #exec(InputStream, boolean, List, Map, File, OutputStream, boolean,
+	 *                         OutputStream, boolean)}
+	 * @param workingDirectory See {@link #exec(InputStream, boolean, List, Map, File, OutputStream, boolean,
+	 *                         OutputStream, boolean)}
+	 * @param stderr           {@code null} means the standard error of the {@link ShellContext#current() current
+	 *                         shell context}
+	 */
 	public static ByteFilter<Boolean>
 	exec_(
 		List<String>        command,
@@ -545,25 +1333,285 @@ public class JavaShell {
 		File                workingDirectory,
 		OutputStream        stderr
 	) {
-		return (in, out) -> {
-			try {
-				return JavaShell.exec(
-					in,               // stdin
-					false,            // closeStdin
-					command,          // command
-					environment,      // environment
-					workingDirectory, // workingDirectory
-					out,              // stdout,
-					false,            // closeStdout
-					stderr,           // stderr
-					false             // closeStderr
-				);
-			} catch (InterruptedException e) {
-				return false;
+		return new Stages.Exec(command, environment, workingDirectory, stderr);
+	}
+
+	/**
+	 * @return A {@link ProcessBuilder} for the <var>command</var>, with the working directory and the environment of
+	 *         the {@link ShellContext#current() current shell context}
+	 */
+	static ProcessBuilder
+	processBuilder(List<String> command, Map<String, String> environment, File workingDirectory) {
+
+		ShellContext   ctx    = ShellContext.current();
+		ProcessBuilder result = new ProcessBuilder(command).directory(
+			workingDirectory == null ? ctx.getDirectory() : ctx.resolve(workingDirectory)
+		);
+
+		if (ctx.getEnvironment() != null) {
+			result.environment().clear();
+			result.environment().putAll(ctx.getEnvironment());
+		}
+		if (environment != null) result.environment().putAll(environment);
+
+		return result;
+	}
+
+	/**
+	 * Starts the process, copies <var>stdin</var> to its standard input and its standard error to <var>stderr</var>
+	 * in background threads, and its standard output to <var>stdout</var>, and waits until it terminates.
+	 *
+	 * @return The process's exit status
+	 */
+	private static int
+	execute(
+		ProcessBuilder processBuilder,
+		InputStream    stdin,
+		boolean        closeStdin,
+		OutputStream   stdout,
+		boolean        closeStdout,
+		OutputStream   stderr,
+		boolean        closeStderr
+	) throws IOException, InterruptedException {
+
+		Process process = processBuilder.start();
+
+		JavaShell.executeRunnableInBackground(() -> {
+			try (OutputStream processStdin = process.getOutputStream()) {
+				BufferPool.copy(stdin, processStdin);
+			} catch (IOException ioe) {
+
+				// E.g. the process exited before reading all its input.
+				;
+			} finally {
+				if (closeStdin) {
+					try { stdin.close(); } catch (IOException ioe) {}
+				}
 			}
-		};
+		});
+
+		Thread stderrCopier = new Thread(() -> {
+			try (InputStream processStderr = process.getErrorStream()) {
+				BufferPool.copy(processStderr, stderr);
+				stderr.flush();
+			} catch (IOException ioe) {
+				;
+			}
+		});
+		stderrCopier.setDaemon(true);
+		stderrCopier.start();
+
+		try {
+			try (InputStream processStdout = process.getInputStream()) {
+				BufferPool.copy(processStdout, stdout);
+			}
+			stdout.flush();
+
+			stderrCopier.join();
+			return process.waitFor();
+		} finally {
+			process.destroy();
+			if (closeStdout) stdout.close();
+			if (closeStderr) stderr.close();
+		}
 	}
 	
+	// ----------------------------------------------------------------------------------------------------------------
+
+	/**
+	 * @return A description of how {@link #byteFilter_(boolean, boolean, ByteFilter[])} would execute the
+	 *         <var>pipes</var>, after {@link PipelinePlan#optimize() optimization}
+	 */
+	@SuppressWarnings("overloads") public static String
+	explain(ByteFilter<?>... pipes) { return PipelinePlan.of(pipes).prepare().explain(); }
+
+	/**
+	 * @return A description of how {@link #charFilter_(boolean, boolean, CharFilter[])} would execute the
+	 *         <var>pipes</var>, after {@link PipelinePlan#optimize() optimization}
+	 */
+	@SuppressWarnings("overloads") public static String
+	explain(CharFilter<?>... pipes) { return PipelinePlan.of(pipes).prepare().explain(); }
+
+	/**
+	 * Enables or disables the {@link PipelinePlan#optimize() optimization} of the {@link #byteFilter_(boolean,
+	 * boolean, ByteFilter[])} and {@link #charFilter_(boolean, boolean, CharFilter[])} pipelines that are created from
+	 * now on; enabled by default. Disabling it is useful e.g. to get one {@link StageStats} and one "{@code
+	 * de.unkrig.javashell.PipelineStage}" Flight Recorder event per original stage.
+	 */
+	public static void
+	setPipelineOptimization(boolean enabled) { PipelinePlan.setOptimization(enabled); }
+
+	// ----------------------------------------------------------------------------------------------------------------
+
+	/**
+	 * Executes all <var>branches</var> concurrently, each reading a copy of <var>in</var> and writing to the
+	 * respective element of <var>outs</var>. Each chunk of input is read once and shared (not copied) between the
+	 * branches, and the input is read no faster than the slowest branch consumes it.
+	 * <p>
+	 *   Branches that complete before end-of-input do not hold up the others.
+	 * </p>
+	 *
+	 * @return            The return values of the <var>branches</var>
+	 * @throws IOException The first exception produced by any of the <var>branches</var>; the exceptions of other
+	 *                     branches are attached as "suppressed" exceptions
+	 */
+	public static <T> List<T>
+	fanOut(InputStream in, List<? extends ByteFilter<? extends T>> branches, List<? extends OutputStream> outs)
+	throws IOException {
+		if (branches.size() != outs.size()) throw new IllegalArgumentException();
+		return FanOut.execute(in, branches, outs);
+	}
+
+	/**
+	 * The {@link CharFilter} counterpart of {@link #fanOut(InputStream, List, List)}.
+	 */
+	public static <T> List<T>
+	fanOut(Reader in, List<? extends CharFilter<? extends T>> branches, List<? extends Writer> outs)
+	throws IOException {
+		if (branches.size() != outs.size()) throw new IllegalArgumentException();
+		return FanOut.execute(in, branches, outs);
+	}
+
+	/**
+	 * @return A filter that feeds its input to all <var>branches</var>, discards their output, and returns their
+	 *         return values
+	 * @see    #fanOut(InputStream, List, List)
+	 */
+	@SafeVarargs @SuppressWarnings({ "overloads", "varargs" }) public static <T> ByteFilter<List<T>>
+	fanOut_(ByteFilter<? extends T>... branches) {
+		return (in, out) -> JavaShell.fanOut(
+			in,
+			Arrays.asList(branches),
+			Collections.nCopies(branches.length, OutputStream.nullOutputStream())
+		);
+	}
+
+	/**
+	 * @return A filter that feeds its input to all <var>branches</var>, discards their output, and returns their
+	 *         return values
+	 * @see    #fanOut(Reader, List, List)
+	 */
+	@SafeVarargs @SuppressWarnings({ "overloads", "varargs" }) public static <T> CharFilter<List<T>>
+	fanOut_(CharFilter<? extends T>... branches) {
+		return (in, out) -> JavaShell.fanOut(
+			in,
+			Arrays.asList(branches),
+			Collections.nCopies(branches.length, Writer.nullWriter())
+		);
+	}
+
+	// ----------------------------------------------------------------------------------------------------------------
+
+	/**
+	 * @return The paths of all files under (and including) <var>root</var> that match the <var>predicate</var>
+	 * @see    #find(File, FindPredicate, FindPredicate, int, int, ConsumerWhichThrows)
+	 */
+	public static List<Path>
+	find(File root, FindPredicate predicate) throws IOException {
+		List<Path> result = new ArrayList<>();
+		JavaShell.find(root, predicate, FindPredicate.FALSE, Integer.MAX_VALUE, 1, result::add);
+		return result;
+	}
+
+	/**
+	 * Prints the paths of all files under (and including) <var>root</var> that match the <var>predicate</var>, one
+	 * per line, as soon as they are found.
+	 *
+	 * @see #find(File, FindPredicate, FindPredicate, int, int, ConsumerWhichThrows)
+	 */
+	public static void
+	find(File root, FindPredicate predicate, Appendable out) throws IOException {
+		JavaShell.find(root, predicate, FindPredicate.FALSE, Integer.MAX_VALUE, 1, out);
+	}
+
+	/**
+	 * Like {@link #find(File, FindPredicate, Appendable)}, but with pruning, depth limit and parallel traversal; the
+	 * lines are printed in the order in which the files are found.
+	 *
+	 * @see #find(File, FindPredicate, FindPredicate, int, int, ConsumerWhichThrows)
+	 */
+	public static void
+	find(File root, FindPredicate predicate, FindPredicate prune, int maxDepth, int parallelism, Appendable out)
+	throws IOException {
+		JavaShell.find(root, predicate, prune, maxDepth, parallelism, path -> {
+			synchronized (out) {
+				out.append(path.toString()).append(LINE_TERMINATOR);
+			}
+		});
+	}
+
+	/**
+	 * Searches the tree under <var>root</var> like the UNIX "{@code find}" command, and passes each file that matches
+	 * the <var>predicate</var> to the <var>action</var> as soon as it is found. Symbolic links are not followed.
+	 * <p>
+	 *   The attributes of a file are read only if a predicate needs them, and then only once (see {@link
+	 *   FindPredicate}). Directories that match <var>prune</var> (evaluated before the file type is determined), and
+	 *   directories at depth <var>maxDepth</var>, are not descended into.
+	 * </p>
+	 * <p>
+	 *   Errors reading a directory or the attributes of a file do not terminate the search; the first of them is
+	 *   thrown when the search has completed, with the others attached as "suppressed" exceptions.
+	 * </p>
+	 *
+	 * @param prune       E.g. {@code FindPredicate.name(".git")}; {@link FindPredicate#FALSE} for no pruning
+	 * @param maxDepth    0 for only the <var>root</var> itself, 1 for the <var>root</var> and its members, etc.
+	 * @param parallelism 1 for a sequential, depth-first search; otherwise the directories are read concurrently by
+	 *                    that many threads, and the <var>action</var> must be thread-safe
+	 */
+	public static void
+	find(
+		File                                           root,
+		FindPredicate                                  predicate,
+		FindPredicate                                  prune,
+		int                                            maxDepth,
+		int                                            parallelism,
+		ConsumerWhichThrows<? super Path, IOException> action
+	) throws IOException {
+		if (!ShellContext.current().resolve(root).exists()) throw new FileNotFoundException(root.toString());
+		Find.execute(root.toPath(), predicate, prune, maxDepth, parallelism, action);
+	}
+
+	/**
+	 * @return A filter that ignores its input, and prints the paths of all files under (and including)
+	 *         <var>root</var> that match the <var>predicate</var>
+	 * @see    #find(File, FindPredicate, Appendable)
+	 */
+	public static CharFilter<Void>
+	find_(File root, FindPredicate predicate) {
+		return (in, out) -> {
+			JavaShell.find(root, predicate, out);
+			return null;
+		};
+	}
+
+	/**
+	 * @see #find(File, FindPredicate, FindPredicate, int, int, Appendable)
+	 */
+	public static CharFilter<Void>
+	find_(File root, FindPredicate predicate, FindPredicate prune, int maxDepth, int parallelism) {
+		return (in, out) -> {
+			JavaShell.find(root, predicate, prune, maxDepth, parallelism, out);
+			return null;
+		};
+	}
+
+	// ----------------------------------------------------------------------------------------------------------------
+
+	/**
+	 * Creates a named pipe that the <var>producer</var> writes to, like BASH's "{@code <(producer)}". Typically the
+	 * path of the FIFO is then passed to an {@link #exec(String...) exec}uted command, e.g.:
+	 * <pre>
+	 *   try (
+	 *       ProcessSubstitution a = inputFifo(exec_("sort", "a.txt"));
+	 *       ProcessSubstitution b = inputFifo(exec_("sort", "b.txt"));
+	 *   ) {
+	 *       exec("diff", a.getPath(), b.getPath());
+	 *   }
+	 * </pre>
+	 */
+	public static ProcessSubstitution
+	inputFifo(ByteFilter<?> producer) throws IOException { return ProcessSubstitution.input(producer); }
+
 	// ----------------------------------------------------------------------------------------------------------------
 	
 	public static <T> T
@@ -575,11 +1623,12 @@ public class JavaShell {
 	public static <T> T
 	ls(File[] files, Appendable out) throws IOException {
 		for (File file : files) {
-			if (file.isDirectory()) {
+			File file2 = ShellContext.current().resolve(file);
+			if (file2.isDirectory()) {
 				if (files.length > 1) out.append(LINE_TERMINATOR).append(file.getPath()).append(':').append(LINE_TERMINATOR);
-				for (String memberName : file.list()) out.append(memberName).append(LINE_TERMINATOR);
+				for (String memberName : file2.list()) out.append(memberName).append(LINE_TERMINATOR);
 			} else
-			if (file.isFile()) {
+			if (file2.isFile()) {
 				JavaShell.lsD(file, out);
 			} else
 			{
@@ -589,10 +1638,187 @@ public class JavaShell {
 		return null;
 	}
 	
+	/**
+	 * Lists the <var>files</var> like the UNIX "{@code ls}" command: First all non-directories, then the contents of
+	 * all directories. The entries are read with {@link Files#newDirectoryStream(Path)}, and all attributes of an
+	 * entry (if any are required) are read with one single {@link Files#readAttributes(Path, Class, LinkOption...)}
+	 * call.
+	 * <p>
+	 *   With {@link LsOption#UNSORTED}, each entry is printed as soon as it is read; otherwise, the entries of one
+	 *   directory are collected and sorted before they are printed.
+	 * </p>
+	 */
+	public static <T> T
+	ls(File[] files, Appendable out, LsOption... options) throws IOException {
+
+		Set<LsOption> options2 = EnumSet.noneOf(LsOption.class);
+		options2.addAll(Arrays.asList(options));
+
+		List<LsEntry> nonDirectories = new ArrayList<>();
+		List<Path>    directories    = new ArrayList<>();
+		for (File file : files) {
+			Path path = file.toPath();
+			if (Files.isDirectory(ShellContext.current().resolve(path))) {
+				directories.add(path);
+			} else
+			if (Files.exists(ShellContext.current().resolve(path), LinkOption.NOFOLLOW_LINKS)) {
+				nonDirectories.add(new LsEntry(path, JavaShell.lsAttributes(path)));
+			} else
+			{
+				throw new FileNotFoundException(file.toString());
+			}
+		}
+
+		JavaShell.lsSort(nonDirectories, options2);
+		for (LsEntry entry : nonDirectories) JavaShell.lsPrint(entry, entry.path.toString(), options2, out);
+
+		boolean printHeaders = files.length > 1 || options2.contains(LsOption.RECURSIVE);
+		boolean first        = nonDirectories.isEmpty();
+		for (Path directory : directories) {
+			JavaShell.lsDirectory(directory, printHeaders, first, options2, out);
+			first = false;
+		}
+
+		return null;
+	}
+
+	private static void
+	lsDirectory(Path directory, boolean printHeader, boolean first, Set<LsOption> options, Appendable out)
+	throws IOException {
+
+		if (printHeader) {
+			if (!first) out.append(LINE_TERMINATOR);
+			out.append(directory.toString()).append(':').append(LINE_TERMINATOR);
+		}
+
+		boolean recursive  = options.contains(LsOption.RECURSIVE);
+		boolean unsorted   = options.contains(LsOption.UNSORTED);
+		boolean attributes = (
+			recursive
+			|| options.contains(LsOption.LONG)
+			|| options.contains(LsOption.SORT_BY_SIZE)
+			|| options.contains(LsOption.SORT_BY_TIME)
+		);
+
+		List<LsEntry> entries        = unsorted ? null : new ArrayList<>();
+		List<Path>    subdirectories = new ArrayList<>();
+		try (DirectoryStream<Path> ds = Files.newDirectoryStream(ShellContext.current().resolve(directory))) {
+			for (Path resolved : ds) {
+
+				// Keep the path relative to the working directory, for the headers of the subdirectories.
+				Path path = directory.resolve(resolved.getFileName());
+
+				if (!options.contains(LsOption.ALL) && path.getFileName().toString().startsWith(".")) continue;
+
+				LsEntry entry = new LsEntry(path, attributes ? JavaShell.lsAttributes(path) : null);
+
+				if (unsorted) {
+					JavaShell.lsPrint(entry, path.getFileName().toString(), options, out);
+					if (recursive && entry.attributes.isDirectory()) subdirectories.add(path);
+				} else {
+					entries.add(entry);
+				}
+			}
+		}
+
+		if (!unsorted) {
+			JavaShell.lsSort(entries, options);
+			for (LsEntry entry : entries) {
+				JavaShell.lsPrint(entry, entry.path.getFileName().toString(), options, out);
+				if (recursive && entry.attributes.isDirectory()) subdirectories.add(entry.path);
+			}
+		}
+
+		for (Path subdirectory : subdirectories) JavaShell.lsDirectory(subdirectory, true, false, options, out);
+	}
+
+	private static final
+	class LsEntry {
+
+		final Path                path;
+		final BasicFileAttributes attributes;
+
+		LsEntry(Path path, BasicFileAttributes attributes) {
+			this.path       = path;
+			this.attributes = attributes;
+		}
+	}
+
+	private static BasicFileAttributes
+	lsAttributes(Path path) throws IOException {
+		path = ShellContext.current().resolve(path);
+		try {
+			return Files.readAttributes(path, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+		} catch (UnsupportedOperationException uoe) {
+			return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+		}
+	}
+
+	private static void
+	lsSort(List<LsEntry> entries, Set<LsOption> options) {
+
+		Comparator<LsEntry> c = Comparator.comparing(e -> e.path.getFileName().toString());
+		if (options.contains(LsOption.SORT_BY_SIZE)) {
+			c = Comparator.<LsEntry>comparingLong(e -> -e.attributes.size()).thenComparing(c);
+		} else
+		if (options.contains(LsOption.SORT_BY_TIME)) {
+			c = Comparator.<LsEntry>comparingLong(e -> -e.attributes.lastModifiedTime().toMillis()).thenComparing(c);
+		}
+		if (options.contains(LsOption.REVERSE)) c = c.reversed();
+
+		entries.sort(c);
+	}
+
+	private static void
+	lsPrint(LsEntry entry, String name, Set<LsOption> options, Appendable out) throws IOException {
+
+		if (!options.contains(LsOption.LONG)) {
+			out.append(name).append(LINE_TERMINATOR);
+			return;
+		}
+
+		BasicFileAttributes a = entry.attributes;
+
+		char type = a.isDirectory() ? 'd' : a.isSymbolicLink() ? 'l' : a.isRegularFile() ? '-' : '?';
+
+		String permissions, owner, group;
+		if (a instanceof PosixFileAttributes) {
+			PosixFileAttributes pa = (PosixFileAttributes) a;
+			permissions = PosixFilePermissions.toString(pa.permissions());
+			owner       = pa.owner().getName();
+			group       = pa.group().getName();
+		} else {
+			permissions = "?????????";
+			owner       = "?";
+			group       = "?";
+		}
+
+		out.append(String.format(
+			"%c%s %-8s %-8s %10d %s %s",
+			type,
+			permissions,
+			owner,
+			group,
+			a.size(),
+			LS_TIME_FORMAT.format(a.lastModifiedTime().toInstant()),
+			name
+		));
+		if (a.isSymbolicLink()) {
+			out.append(" -> ").append(Files.readSymbolicLink(ShellContext.current().resolve(entry.path)).toString());
+		}
+		out.append(LINE_TERMINATOR);
+	}
+
+	private static final DateTimeFormatter
+	LS_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm").withZone(ZoneId.systemDefault());
+
 	public static CharFilter<Void> ls_()             throws FileNotFoundException { return (in, out) -> JavaShell.ls(out); } 
 	public static CharFilter<Void> ls_(File file)    throws FileNotFoundException { return (in, out) -> JavaShell.ls(file, out); } 
 	public static CharFilter<Void> ls_(File[] files) throws FileNotFoundException { return (in, out) -> JavaShell.ls(files, out); } 
 
+	public static CharFilter<Void>
+	ls_(File[] files, LsOption... options) { return (in, out) -> JavaShell.ls(files, out, options); }
+
 	// ----------------------------------------------------------------------------------------------------------------
 	
 	public static <T> T
@@ -611,28 +1837,240 @@ public class JavaShell {
 
 	// ----------------------------------------------------------------------------------------------------------------
 
+	/**
+	 * Moves <var>from</var> to <var>toFileOrDir</var>, or, iff that is an existing directory, into it, like the UNIX
+	 * "{@code mv}" command.
+	 * <p>
+	 *   On the same file system, this is a single atomic rename. Otherwise the tree is copied (preserving symbolic
+	 *   links, modification times and permissions) and renamed over the target, and then <var>from</var> is deleted;
+	 *   if copying fails, the partial copy is removed, and <var>from</var> and an existing target remain untouched.
+	 * </p>
+	 */
+	public static <T> T
+	mv(File from, File toFileOrDir) throws IOException {
+
+		File to = ShellContext.current().resolve(toFileOrDir).isDirectory()
+			? new File(toFileOrDir, from.getName())
+			: toFileOrDir;
+
+		CommandEvent event = new CommandEvent();
+		event.begin();
+		long n = 0;
+		try {
+			n = Mv.execute(
+				ShellContext.current().resolve(from.toPath()),
+				ShellContext.current().resolve(to.toPath())
+			);
+		} catch (IOException | RuntimeException e) {
+			event.exception = e;
+			throw e;
+		} finally {
+			event.count = n;
+			event.commit("mv", from, to, n);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Moves each of the <var>fromFiles</var> into <var>toDir</var>.
+	 *
+	 * @see #mv(File, File)
+	 */
+	public static <T> T
+	mvToDir(Collection<File> fromFiles, File toDir) throws IOException {
+		if (!ShellContext.current().resolve(toDir).isDirectory()) throw new NotDirectoryException(toDir.getPath());
+		for (File fromFile : fromFiles) JavaShell.mv(fromFile, toDir);
+		return null;
+	}
+
+	// ----------------------------------------------------------------------------------------------------------------
+
+	/**
+	 * Creates a named pipe that the <var>consumer</var> reads from, like BASH's "{@code >(consumer)}". The
+	 * <var>consumer</var> writes to <var>out</var>.
+	 *
+	 * @see #inputFifo(ByteFilter)
+	 */
+	public static ProcessSubstitution
+	outputFifo(ByteFilter<?> consumer, OutputStream out) throws IOException {
+		return ProcessSubstitution.output(consumer, out);
+	}
+
+	// ----------------------------------------------------------------------------------------------------------------
+
+	/**
+	 * Equivalent with {@link #parallelMap_(Function, int, int, int) parallelMap_(function, N, 1000, 2 * N)}, where
+	 * N is the number of available processors.
+	 */
+	public static CharFilter<Integer>
+	parallelMap_(Function<String, String> function) {
+		int nThreads = Runtime.getRuntime().availableProcessors();
+		return JavaShell.parallelMap_(function, nThreads, 1000, 2 * nThreads);
+	}
+
+	/**
+	 * @see #parallelMap(Reader, Function, int, int, int, Appendable)
+	 */
+	public static CharFilter<Integer>
+	parallelMap_(Function<String, String> function, int nThreads, int batchSize, int maxBatchesInFlight) {
+		return (in, out) -> JavaShell.parallelMap(in, function, nThreads, batchSize, maxBatchesInFlight, out);
+	}
+
+	/**
+	 * Reads lines from <var>in</var>, applies the <var>function</var> to them in <var>nThreads</var> background
+	 * threads, and writes the results to <var>out</var>, in the original order.
+	 * <p>
+	 *   The lines are processed in batches of <var>batchSize</var> lines. When <var>maxBatchesInFlight</var> batches
+	 *   have been read, but not yet written, then reading is suspended until the oldest batch is written.
+	 * </p>
+	 *
+	 * @param function Maps each line (without the line terminator) to the output line, or to {@code null}, which
+	 *                 means that the line is dropped
+	 * @return         The number of lines read
+	 */
+	public static int
+	parallelMap(
+		Reader                   in,
+		Function<String, String> function,
+		int                      nThreads,
+		int                      batchSize,
+		int                      maxBatchesInFlight,
+		Appendable               out
+	) throws IOException {
+
+		if (nThreads < 1 || batchSize < 1 || maxBatchesInFlight < 1) throw new IllegalArgumentException();
+
+		BufferedReader br = in instanceof BufferedReader ? (BufferedReader) in : new BufferedReader(in);
+
+		Deque<Future<List<String>>> inFlight  = new ArrayDeque<>();
+		ExecutorService             executor  = JavaShell.newDaemonThreadPool(nThreads);
+		int                         lineCount = 0;
+		try {
+			for (;;) {
+				List<String> batch = new ArrayList<>(batchSize);
+				for (String line; batch.size() < batchSize && (line = br.readLine()) != null;) batch.add(line);
+				if (batch.isEmpty()) break;
+				lineCount += batch.size();
+
+				if (inFlight.size() >= maxBatchesInFlight) JavaShell.writeLines(inFlight.removeFirst(), out);
+
+				inFlight.add(executor.submit(() -> {
+					for (int i = 0; i < batch.size(); i++) batch.set(i, function.apply(batch.get(i)));
+					return batch;
+				}));
+
+				if (batch.size() < batchSize) break;
+			}
+
+			while (!inFlight.isEmpty()) JavaShell.writeLines(inFlight.removeFirst(), out);
+		} finally {
+			executor.shutdownNow();
+		}
+
+		return lineCount;
+	}
+
+	private static void
+	writeLines(Future<List<String>> lines, Appendable out) throws IOException {
+
+		List<String> lines2;
+		try {
+			lines2 = lines.get();
+		} catch (InterruptedException ie) {
+			throw new InterruptedIOException();
+		} catch (ExecutionException ee) {
+			Throwable cause = ee.getCause();
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			if (cause instanceof Error)            throw (Error) cause;
+			throw new IOException(cause);
+		}
+
+		for (String line : lines2) {
+			if (line != null) out.append(line).append(LINE_TERMINATOR);
+		}
+	}
+
+	// ----------------------------------------------------------------------------------------------------------------
+
+	/**
+	 * @return The (absolute) working directory of the {@link ShellContext#current() current shell context}
+	 */
 	public static File
-	pwd() throws IOException {
-		String userDir = System.getProperty("user.dir");
-		assert userDir != null;
-		return new File(userDir);
-	}
+	pwd() throws IOException { return ShellContext.current().getDirectory(); }
 	
 	public static CharFilter<String>
 	pwd_() {
 		return (in, out) -> { String pwd = pwd().getPath(); out.append(pwd).append(LINE_TERMINATOR); return pwd; };
 	}
 
+	// ----------------------------------------------------------------------------------------------------------------
+
+	/**
+	 * @see #rmR(File[], int)
+	 */
+	public static long
+	rmR(File file) throws IOException { return JavaShell.rmR(new File[] { file }, 1); }
+
+	/**
+	 * Deletes each of the <var>files</var> and, if it is a directory, everything under it, like the UNIX
+	 * "{@code rm -rf}" command. Symbolic links are deleted, not followed. Non-existing <var>files</var> are silently
+	 * ignored.
+	 * <p>
+	 *   Failures to delete single files or directories do not terminate the operation; the first of them is thrown
+	 *   when all other files were processed, with the others attached as "suppressed" exceptions. Each of them names
+	 *   the path that could not be deleted.
+	 * </p>
+	 *
+	 * @param parallelism 1 for a sequential operation; otherwise subtrees are deleted concurrently by that many
+	 *                    threads
+	 * @return            The number of files and directories deleted
+	 */
+	public static long
+	rmR(File[] files, int parallelism) throws IOException {
+
+		List<Path> paths = new ArrayList<>();
+		for (File file : files) paths.add(ShellContext.current().resolve(file.toPath()));
+
+		CommandEvent event = new CommandEvent();
+		event.begin();
+		long n = 0;
+		try {
+			n = Rm.execute(paths, parallelism);
+		} catch (IOException | RuntimeException e) {
+			event.exception = e;
+			throw e;
+		} finally {
+			event.commit("rmR", Arrays.asList(files), parallelism, n);
+		}
+
+		return n;
+	}
+
 	// ----------------------------------------------------------------------------------------------------------------
 	
 	public static int
 	sedSubstituteAll(Reader in, Pattern pattern, String replacementString, Appendable out) throws IOException {
-		return (int) PatternUtil.replaceAll(in, pattern, replacementString, out);
+
+		CommandEvent event = new CommandEvent();
+		if (event.isEnabled()) in = event.count(in);
+		event.begin();
+		int n = 0;
+		try {
+			n = (int) PatternUtil.replaceAll(in, pattern, replacementString, out);
+		} catch (IOException | RuntimeException e) {
+			event.exception = e;
+			throw e;
+		} finally {
+			event.commit("sedSubstituteAll", pattern, replacementString, n);
+		}
+
+		return n;
 	}
 
 	public static CharFilter<Integer>
 	sedSubstituteAll_(Pattern pattern, String replacementString) throws IOException {
-		return (in, out) -> JavaShell.sedSubstituteAll(in, pattern, replacementString, out);
+		return new Stages.Sed(pattern, replacementString, true);
 	}
 	
 	// ----------------------------------------------------------------------------------------------------------------
@@ -656,39 +2094,452 @@ public class JavaShell {
 
 	public static CharFilter<Integer>
 	sedSubstituteFirst_(Pattern pattern, String replacementString) throws IOException {
-		return (in, out) -> JavaShell.sedSubstituteFirst(in, pattern, replacementString, out);
+		return new Stages.Sed(pattern, replacementString, false);
 	}
 	
+	// ----------------------------------------------------------------------------------------------------------------
+
+	/**
+	 * Executes all <var>branches</var> concurrently, like {@link #fanOut(InputStream, List, List)}, but instead of a
+	 * copy of <var>in</var>, each branch reads only the lines that the <var>partitioner</var> routes to it. The input
+	 * is always cut on line boundaries, and the input of each branch is a sequence of complete lines.
+	 *
+	 * @return             The return values of the <var>branches</var>
+	 * @throws IOException The first exception produced by any of the <var>branches</var>; the exceptions of other
+	 *                     branches are attached as "suppressed" exceptions
+	 * @see                Partitioner#bytes(long)
+	 * @see                Partitioner#lines(long)
+	 * @see                Partitioner#key(Function, Charset)
+	 */
+	public static <T> List<T>
+	split(
+		InputStream                             in,
+		Partitioner                             partitioner,
+		List<? extends ByteFilter<? extends T>> branches,
+		List<? extends OutputStream>            outs
+	) throws IOException {
+
+		if (branches.isEmpty() || branches.size() != outs.size()) throw new IllegalArgumentException();
+
+		CommandEvent event = new CommandEvent();
+		if (event.isEnabled()) in = event.count(in);
+		event.begin();
+		try {
+			return FanOut.split(in, partitioner, branches, outs);
+		} catch (IOException | RuntimeException e) {
+			event.exception = e;
+			throw e;
+		} finally {
+			event.commit("split", branches.size(), null, 0);
+		}
+	}
+
+	/**
+	 * Splits <var>in</var> into the <var>files</var>, which are written concurrently.
+	 *
+	 * @return The number of bytes written to each of the <var>files</var>
+	 * @see    #split(InputStream, Partitioner, List, List)
+	 */
+	public static List<Long>
+	split(InputStream in, Partitioner partitioner, File... files) throws IOException {
+
+		List<OutputStream> outs = new ArrayList<>();
+		try {
+			for (File file : files) outs.add(new FileOutputStream(ShellContext.current().resolve(file)));
+
+			return JavaShell.split(
+				in,
+				partitioner,
+				Collections.nCopies(files.length, (ByteFilter<Long>) BufferPool::copy),
+				outs
+			);
+		} finally {
+			IOException exception = null;
+			for (OutputStream out : outs) {
+				try {
+					out.close();
+				} catch (IOException ioe) {
+					if (exception == null) exception = ioe; else exception.addSuppressed(ioe);
+				}
+			}
+			if (exception != null) throw exception;
+		}
+	}
+
+	/**
+	 * @return A filter that splits its input between the <var>branches</var>, discards their output, and returns
+	 *         their return values
+	 * @see    #split(InputStream, Partitioner, List, List)
+	 */
+	@SafeVarargs @SuppressWarnings("varargs") public static <T> ByteFilter<List<T>>
+	split_(Partitioner partitioner, ByteFilter<? extends T>... branches) {
+		return (in, out) -> JavaShell.split(
+			in,
+			partitioner,
+			Arrays.asList(branches),
+			Collections.nCopies(branches.length, OutputStream.nullOutputStream())
+		);
+	}
+
+	/**
+	 * @return A filter that splits its input into the <var>files</var>, and returns the number of bytes written to
+	 *         each of them
+	 * @see    #split(InputStream, Partitioner, File...)
+	 */
+	public static ByteFilter<List<Long>>
+	split_(Partitioner partitioner, File... files) {
+		return (in, out) -> JavaShell.split(in, partitioner, files);
+	}
+
+	// ----------------------------------------------------------------------------------------------------------------
+
+	/**
+	 * Flushes {@link System#out} and returns a channel that writes directly to the process's standard output (file
+	 * descriptor 1). Notice that this bypasses any redirection established with {@link System#setOut(
+	 * java.io.PrintStream)}.
+	 */
+	public static WritableByteChannel
+	stdout() {
+		System.out.flush();
+		return STDOUT;
+	}
+
+	private static final WritableByteChannel STDOUT = new FileOutputStream(FileDescriptor.out).getChannel();
+
+	// ----------------------------------------------------------------------------------------------------------------
+
+	/**
+	 * Equivalent with {@link #tailF_(File, boolean, long) tailF_(file, false, 1000)}.
+	 */
+	public static ByteFilter<Void>
+	tailF_(File file) { return JavaShell.tailF_(file, false, 1000); }
+
+	/**
+	 * Like the UNIX "{@code tail -F}" command: Ignores its input, and copies data that is appended to the
+	 * <var>file</var> to its output, as soon as it is written. Never completes normally; terminates when its thread
+	 * is interrupted, or when writing the output fails (e.g. because the downstream stage has completed). Can thus
+	 * serve as the first stage of a {@link #byteFilter_(ByteFilter[])} chain.
+	 * <p>
+	 *   Changes are detected through a {@link java.nio.file.WatchService}, plus polling every
+	 *   <var>pollInterval</var> milliseconds for file systems where that is slow or unavailable.
+	 * </p>
+	 * <p>
+	 *   If the <var>file</var> is replaced by another file (e.g. by log rotation), then the rest of the old file is
+	 *   copied, and then the new file from its start. If the <var>file</var> is truncated, then copying continues at
+	 *   its start. If the <var>file</var> does not exist (yet), then the filter waits until it is created.
+	 * </p>
+	 *
+	 * @param fromStart Whether to copy the current contents of the <var>file</var>, or only data appended later
+	 */
+	public static ByteFilter<Void>
+	tailF_(File file, boolean fromStart, long pollInterval) { return new Tail(file, fromStart, pollInterval); }
+
+	/**
+	 * The {@link CharFilter} counterpart of {@link #tailF_(File, boolean, long)}, e.g. for the first stage of a
+	 * {@link #charFilter_(CharFilter[])} chain.
+	 */
+	public static CharFilter<Void>
+	tailF_(File file, Charset charset, boolean fromStart, long pollInterval) {
+		ByteFilter<Void> tail = new Tail(file, fromStart, pollInterval);
+		return (in, out) -> tail.execute(InputStream.nullInputStream(), new WriterOutputStream(out, charset));
+	}
+
+	// ----------------------------------------------------------------------------------------------------------------
+
+	/**
+	 * Writes a tar archive of the <var>files</var> to <var>out</var>, like "{@code tar -c}"; directories are archived
+	 * with their contents. Entry names are the paths of the <var>files</var> as given (e.g. as returned by {@link
+	 * #expand(String)}), without leading "{@code /}"s and "{@code ..}"s. Symbolic links are archived as such, and
+	 * devices, pipes and sockets are ignored.
+	 * <p>
+	 *   Does not close <var>out</var>; use {@link #gzip_()} for a compressed archive.
+	 * </p>
+	 *
+	 * @return The number of entries written
+	 */
+	public static int
+	tar(File[] files, OutputStream out) throws IOException {
+
+		CommandEvent event = new CommandEvent();
+		event.begin();
+
+		int count = 0;
+		try {
+			count = Archives.create(Archives.Format.TAR, files, out);
+		} catch (IOException | RuntimeException e) {
+			event.exception = e;
+			throw e;
+		} finally {
+			event.commit("tar", files.length, null, count);
+		}
+		return count;
+	}
+
+	/**
+	 * @return A filter that ignores its input and writes a tar archive of the <var>files</var>
+	 * @see    #tar(File[], OutputStream)
+	 */
+	public static ByteFilter<Integer>
+	tar_(File... files) { return new Stages.Archive(Archives.Format.TAR, files); }
+
+	/**
+	 * Extracts the tar archive that <var>in</var> reads into the <var>targetDir</var>, like "{@code tar -x -C}". The
+	 * archive is read sequentially, while <var>parallelism</var> threads write the files. Memory consumption is
+	 * bounded, no matter how large the archive and its entries are.
+	 * <p>
+	 *   Entries that would be extracted outside of the <var>targetDir</var> (through absolute names, "{@code ..}"
+	 *   segments or symbolic links) terminate the extraction with an {@link IOException}. Failures to write single
+	 *   files do not; the first of them is thrown after the extraction, with the others attached as "suppressed"
+	 *   exceptions.
+	 * </p>
+	 *
+	 * @return The number of entries extracted
+	 */
+	public static int
+	untar(InputStream in, File targetDir, int parallelism) throws IOException {
+
+		CommandEvent event = new CommandEvent();
+		if (event.isEnabled()) in = event.count(in);
+		event.begin();
+
+		int count = 0;
+		try {
+			count = Archives.extract(Archives.Format.TAR, in, targetDir, parallelism);
+		} catch (IOException | RuntimeException e) {
+			event.exception = e;
+			throw e;
+		} finally {
+			event.commit("untar", targetDir, null, count);
+		}
+		return count;
+	}
+
+	/**
+	 * Equivalent with {@link #untar_(File, int) untar_(targetDir, Runtime.getRuntime().availableProcessors())}.
+	 */
+	public static ByteFilter<Integer>
+	untar_(File targetDir) { return JavaShell.untar_(targetDir, Runtime.getRuntime().availableProcessors()); }
+
+	/**
+	 * @return A filter that extracts the tar archive that it reads, and writes nothing
+	 * @see    #untar(InputStream, File, int)
+	 */
+	public static ByteFilter<Integer>
+	untar_(File targetDir, int parallelism) { return new Stages.Extract(Archives.Format.TAR, targetDir, parallelism); }
+
+	/**
+	 * The ZIP counterpart of {@link #tar(File[], OutputStream)}. File names are encoded in UTF-8, and UNIX file modes
+	 * are stored.
+	 */
+	public static int
+	zip(File[] files, OutputStream out) throws IOException {
+
+		CommandEvent event = new CommandEvent();
+		event.begin();
+
+		int count = 0;
+		try {
+			count = Archives.create(Archives.Format.ZIP, files, out);
+		} catch (IOException | RuntimeException e) {
+			event.exception = e;
+			throw e;
+		} finally {
+			event.commit("zip", files.length, null, count);
+		}
+		return count;
+	}
+
+	public static ByteFilter<Integer>
+	zip_(File... files) { return new Stages.Archive(Archives.Format.ZIP, files); }
+
+	/**
+	 * The ZIP counterpart of {@link #untar(InputStream, File, int)}. Notice that file modes and symbolic links can
+	 * only be restored from a ZIP <em>file</em>; see {@link #unzip(File, File, int)}.
+	 */
+	public static int
+	unzip(InputStream in, File targetDir, int parallelism) throws IOException {
+
+		CommandEvent event = new CommandEvent();
+		if (event.isEnabled()) in = event.count(in);
+		event.begin();
+
+		int count = 0;
+		try {
+			count = Archives.extract(Archives.Format.ZIP, in, targetDir, parallelism);
+		} catch (IOException | RuntimeException e) {
+			event.exception = e;
+			throw e;
+		} finally {
+			event.commit("unzip", targetDir, null, count);
+		}
+		return count;
+	}
+
+	/**
+	 * Like {@link #unzip(InputStream, File, int)}, but reads a ZIP file. Unlike a ZIP stream, a ZIP file has a
+	 * "central directory", which holds the UNIX file modes and marks symbolic links; thus only this method restores
+	 * these.
+	 */
+	public static int
+	unzip(File zipFile, File targetDir, int parallelism) throws IOException {
+
+		CommandEvent event = new CommandEvent();
+		event.begin();
+
+		int count = 0;
+		try {
+			count = Archives.extract(zipFile, targetDir, parallelism);
+		} catch (IOException | RuntimeException e) {
+			event.exception = e;
+			throw e;
+		} finally {
+			event.commit("unzip", zipFile, targetDir, count);
+		}
+		return count;
+	}
+
+	public static ByteFilter<Integer>
+	unzip_(File targetDir) { return JavaShell.unzip_(targetDir, Runtime.getRuntime().availableProcessors()); }
+
+	public static ByteFilter<Integer>
+	unzip_(File targetDir, int parallelism) { return new Stages.Extract(Archives.Format.ZIP, targetDir, parallelism); }
+
+	/**
+	 * Compresses <var>in</var> into <var>out</var>, like "{@code gzip}"; does not close <var>out</var>.
+	 *
+	 * @return The number of bytes read
+	 */
+	public static long
+	gzip(InputStream in, OutputStream out) throws IOException {
+		GZIPOutputStream gzos = new GZIPOutputStream(out, GZIP_BUFFER_SIZE);
+		long             n    = in.transferTo(gzos);
+		gzos.finish();
+		return n;
+	}
+
+	/**
+	 * Decompresses <var>in</var> (which may consist of several concatenated GZIP members) into <var>out</var>.
+	 *
+	 * @return The number of bytes written
+	 */
+	public static long
+	gunzip(InputStream in, OutputStream out) throws IOException {
+		return new GZIPInputStream(in, GZIP_BUFFER_SIZE).transferTo(out);
+	}
+
+	/**
+	 * @see #gzip(InputStream, OutputStream)
+	 */
+	public static ByteFilter<Long>
+	gzip_() { return new Stages.Gzip(true); }
+
+	/**
+	 * @see #gunzip(InputStream, OutputStream)
+	 */
+	public static ByteFilter<Long>
+	gunzip_() { return new Stages.Gzip(false); }
+
+	private static final int GZIP_BUFFER_SIZE = 64 << 10;
+
+	// ----------------------------------------------------------------------------------------------------------------
+
+	/**
+	 * Copies <var>in</var> to <var>out</var> and, concurrently, feeds it to the <var>branches</var>, like
+	 * "{@code tee >(branch1) >(branch2)}". The output of the <var>branches</var> is discarded.
+	 *
+	 * @return The return values of the <var>branches</var>
+	 * @see    #fanOut(InputStream, List, List)
+	 */
+	@SafeVarargs public static <T> List<T>
+	tee(InputStream in, OutputStream out, ByteFilter<? extends T>... branches) throws IOException {
+
+		List<ByteFilter<? extends T>> branches2 = new ArrayList<>();
+		List<OutputStream>            outs      = new ArrayList<>();
+		for (ByteFilter<? extends T> branch : branches) {
+			branches2.add(branch);
+			outs.add(OutputStream.nullOutputStream());
+		}
+		branches2.add(JavaShell.cp_());
+		outs.add(out);
+
+		List<T> result = JavaShell.fanOut(in, branches2, outs);
+		return result.subList(0, branches.length);
+	}
+
+	/**
+	 * The {@link CharFilter} counterpart of {@link #tee(InputStream, OutputStream, ByteFilter[])}.
+	 */
+	@SafeVarargs public static <T> List<T>
+	tee(Reader in, Writer out, CharFilter<? extends T>... branches) throws IOException {
+
+		List<CharFilter<? extends T>> branches2 = new ArrayList<>();
+		List<Writer>                  outs      = new ArrayList<>();
+		for (CharFilter<? extends T> branch : branches) {
+			branches2.add(branch);
+			outs.add(Writer.nullWriter());
+		}
+		branches2.add(JavaShell.cat_());
+		outs.add(out);
+
+		List<T> result = JavaShell.fanOut(in, branches2, outs);
+		return result.subList(0, branches.length);
+	}
+
+	@SafeVarargs @SuppressWarnings({ "overloads", "varargs" }) public static <T> ByteFilter<List<T>>
+	tee_(ByteFilter<? extends T>... branches) { return (in, out) -> JavaShell.tee(in, out, branches); }
+
+	@SafeVarargs @SuppressWarnings({ "overloads", "varargs" }) public static <T> CharFilter<List<T>>
+	tee_(CharFilter<? extends T>... branches) { return (in, out) -> JavaShell.tee(in, out, branches); }
+
 	// ----------------------------------------------------------------------------------------------------------------
 	
 	public static int
 	tr(InputStream in, byte pattern, byte replacement, OutputStream out) throws IOException {
-		int count = 0;
-		for (;;) {
-			int b = in.read();
-			if (b == -1) break;
-			if ((byte) b == pattern) {
-				b = replacement;
-				count++;
+
+		ByteBuffer buffer = BufferPool.get().acquire(8192, BufferPool.ALWAYS);
+		try {
+			byte[] ba    = buffer.array();
+			int    count = 0;
+			for (int n; (n = in.read(ba)) != -1;) {
+				for (int i = 0; i < n; i++) {
+					if (ba[i] == pattern) {
+						ba[i] = replacement;
+						count++;
+					}
+				}
+				out.write(ba, 0, n);
 			}
-			out.write(b);
+			return count;
+		} finally {
+			BufferPool.get().release(buffer);
 		}
-		return count;
 	}
 
 	public static ByteFilter<Integer>
 	tr_(byte pattern, byte replacement) {
-		return (in, out) -> tr(in, pattern, replacement, out);
+		return new Stages.Tr(pattern, replacement);
 	}
 
 	// ----------------------------------------------------------------------------------------------------------------
 
 	public static int
 	wcL(Reader in) throws IOException {
+
+		CommandEvent event = new CommandEvent();
+		if (event.isEnabled()) in = event.count(in);
+		event.begin();
+
 		BufferedReader br = in instanceof BufferedReader ? (BufferedReader) in : new BufferedReader(in);
 		
 		int lineCount = 0;
-		while (br.readLine() != null) lineCount++;
+		try {
+			while (br.readLine() != null) lineCount++;
+		} catch (IOException | RuntimeException e) {
+			event.exception = e;
+			throw e;
+		} finally {
+			event.commit("wcL", null, null, lineCount);
+		}
 		return lineCount;
 	}
 
@@ -711,18 +2562,29 @@ public class JavaShell {
 	 */
 	public static List<File>
 	expand(String glob) throws IOException, InterruptedException {
+
+		CommandEvent event = new CommandEvent();
+		event.begin();
+
 		List<File> files = new ArrayList<>();
-		Pattern pattern = Pattern2.compile(glob, Pattern2.WILDCARD);
-		
-		if (pattern.matcher("/").lookingAt()) {
-			JavaShell.expand(ROOT_DIRECTORY, pattern, files);
-		} else
-		{
-			String[] memberNames = WORKING_DIRECTORY.list();
-			Arrays.sort(memberNames);
-			for (String memberName : memberNames) {
-				expand(new File(memberName), pattern, files);
+		try {
+			Pattern pattern = Pattern2.compile(glob, Pattern2.WILDCARD);
+			
+			if (pattern.matcher("/").lookingAt()) {
+				JavaShell.expand(ROOT_DIRECTORY, pattern, files);
+			} else
+			{
+				String[] memberNames = ShellContext.current().getDirectory().list();
+				Arrays.sort(memberNames);
+				for (String memberName : memberNames) {
+					expand(new File(memberName), pattern, files);
+				}
 			}
+		} catch (RuntimeException e) {
+			event.exception = e;
+			throw e;
+		} finally {
+			event.commit("expand", glob, null, files.size());
 		}
 		return files;
 	}
@@ -733,8 +2595,8 @@ public class JavaShell {
 		if (pattern.matcher(file.getPath()).matches()) result.add(file);
 		
 		Matcher m = pattern.matcher(file.getPath() + "/");
-		if ((m.matches() || m.hitEnd()) && file.isDirectory()) {
-			String[] memberNames = file.list();
+		if ((m.matches() || m.hitEnd()) && ShellContext.current().resolve(file).isDirectory()) {
+			String[] memberNames = ShellContext.current().resolve(file).list();
 			Arrays.sort(memberNames);
 			for (String memberName : memberNames) {
 				expand(new File(file, memberName), pattern, result);
@@ -748,6 +2610,42 @@ public class JavaShell {
 	public static Pattern
 	regex(String regex, int flags) { return Pattern.compile(regex, flags); }
 	
+	/**
+	 * Enables the instrumentation of all {@link #byteFilter_(boolean, boolean, ByteFilter[])} and {@link
+	 * #charFilter_(boolean, boolean, CharFilter[])} pipelines that start from now on: Each stage counts the bytes or
+	 * chars that it reads and writes, measures the time it spends blocked reading and writing, and samples the fill
+	 * level of its input; see {@link StageStats}. The same data is committed as Flight Recorder events named "{@code
+	 * de.unkrig.javashell.PipelineStage}", if enabled in a recording.
+	 *
+	 * @param listener {@code null} to disable the instrumentation (unless the {@link PipelineMXBean} is registered or
+	 *                 a recording is active)
+	 */
+	public static void
+	setPipelineListener(PipelineListener listener) { Instrumentation.setListener(listener); }
+
+	/**
+	 * Enables the instrumentation (see {@link #setPipelineListener(PipelineListener)}), and registers the {@link
+	 * PipelineMXBean} with the platform MBean server. Calling this method more than once has no effect.
+	 *
+	 * @see #unregisterPipelineMXBean()
+	 */
+	public static void
+	registerPipelineMXBean() { Instrumentation.registerMXBean(); }
+
+	/**
+	 * Undoes {@link #registerPipelineMXBean()}. Calling this method when the {@link PipelineMXBean} is not registered
+	 * has no effect.
+	 */
+	public static void
+	unregisterPipelineMXBean() { Instrumentation.unregisterMXBean(); }
+
+	/**
+	 * Registers the {@link BufferPoolMXBean} of the {@link BufferPool} with the platform MBean server. Calling this
+	 * method more than once has no effect.
+	 */
+	public static void
+	registerBufferPoolMXBean() { BufferPool.registerMXBean(); }
+
 	public static void
 	executeRunnableInBackground(Runnable runnable) {
 		
@@ -756,6 +2654,18 @@ public class JavaShell {
 		t.start();
 	}
 
+	/**
+	 * @return A thread pool of <var>nThreads</var> daemon threads
+	 */
+	static ExecutorService
+	newDaemonThreadPool(int nThreads) {
+		return Executors.newFixedThreadPool(nThreads, runnable -> {
+			Thread t = new Thread(runnable);
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
 	/**
 	 * Creates a background thread that executes the <var>pipe</var> and returns.
 	 * <p>
@@ -769,13 +2679,11 @@ public class JavaShell {
 	public static <T> InputStream
 	pipeAsInputStream(ByteFilter<T> pipe, InputStream in, boolean closeIn) throws IOException {
 		
-		PipedInputStream  pis = new PipedInputStream();
-		PipedOutputStream pos = new PipedOutputStream();
-		pis.connect(pos);
+		PooledPipe pp = PooledPipe.bytes();
 
-		executePipeInBackground(pipe, in, closeIn, pos, true);
+		executePipeInBackground(pipe, in, closeIn, pp.outputStream(), true);
 
-		return pis;
+		return pp.inputStream();
 	}
 
 	/**
@@ -791,13 +2699,11 @@ public class JavaShell {
 	public static <T> OutputStream
 	pipeAsOutputStream(ByteFilter<T> pipe, OutputStream out, boolean closeOut) throws IOException {
 
-		PipedInputStream  pis = new PipedInputStream();
-		PipedOutputStream pos = new PipedOutputStream();
-		pis.connect(pos);
+		PooledPipe pp = PooledPipe.bytes();
 		
-		executePipeInBackground(pipe, pis, true, out, closeOut);
+		executePipeInBackground(pipe, pp.inputStream(), true, out, closeOut);
 		
-		return pos;
+		return pp.outputStream();
 	}
 
 	private static <T> ByteFilter<? extends T>
@@ -858,13 +2764,11 @@ public class JavaShell {
 	public static <T> Reader
 	pipeAsReader(CharFilter<T> pipe, Reader in, boolean closeIn) throws IOException {
 		
-		PipedReader pr = new PipedReader();
-		PipedWriter pw = new PipedWriter();
-		pr.connect(pw);
+		PooledPipe pp = PooledPipe.chars();
 		
-		executePipeInBackground(pipe, in, closeIn, pw, true);
+		executePipeInBackground(pipe, in, closeIn, pp.writer(), true);
 		
-		return pr;
+		return pp.reader();
 	}
 
 	/**
@@ -880,15 +2784,53 @@ public class JavaShell {
 	public static <T> Writer
 	pipeAsWriter(CharFilter<T> pipe, Writer out, boolean closeOut) throws IOException {
 		
-		PipedReader pis = new PipedReader();
-		PipedWriter pos = new PipedWriter();
-		pis.connect(pos);
+		PooledPipe pp = PooledPipe.chars();
 		
-		executePipeInBackground(pipe, pis, true, out, closeOut);
+		executePipeInBackground(pipe, pp.reader(), true, out, closeOut);
 		
-		return pos;
+		return pp.writer();
+	}
+
+	/**
+	 * Executes the <var>pipe</var> in a background thread, and returns its output as a stream of lines. The stream is
+	 * populated lazily; the <var>pipe</var> blocks while the consumer does not keep up, so the output is never held
+	 * in memory as a whole.
+	 * <p>
+	 *   An exception that the <var>pipe</var> produces is thrown (wrapped in an {@link java.io.UncheckedIOException}
+	 *   iff it is an {@link IOException}) after the last line. Closing the stream before all lines are consumed makes
+	 *   the <var>pipe</var> fail when it writes its next output.
+	 * </p>
+	 *
+	 * @param in      Where the <var>pipe</var> reads from
+	 * @param closeIn Whether <var>in</var> should be closed when the <var>pipe</var> completes
+	 */
+	public static <T> Stream<String>
+	pipeAsStream(CharFilter<T> pipe, Reader in, boolean closeIn) { return LineStreams.stream(pipe, in, closeIn); }
+
+	/**
+	 * Like {@link #pipeAsStream(CharFilter, Reader, boolean)}, but returns a publisher that delivers the lines to its
+	 * subscriber (in a dedicated thread) only as fast as the subscriber requests them. Because <var>in</var> can be
+	 * read only once, the publisher accepts only one subscriber.
+	 */
+	public static <T> Flow.Publisher<String>
+	pipeAsPublisher(CharFilter<T> pipe, Reader in, boolean closeIn) {
+		return LineStreams.publisher(pipe, in, closeIn);
 	}
 
+	/**
+	 * @return Reads the <var>lines</var>, each followed by a line terminator; consumes them only as the reader is
+	 *         read; closing the reader closes the <var>lines</var>
+	 */
+	public static Reader
+	streamAsReader(Stream<String> lines) { return LineStreams.reader(lines); }
+
+	/**
+	 * Subscribes to the <var>lines</var>, and returns a reader that reads them, each followed by a line terminator.
+	 * Lines are requested in small batches as the reader is read; closing the reader cancels the subscription.
+	 */
+	public static Reader
+	publisherAsReader(Flow.Publisher<String> lines) { return LineStreams.reader(lines); }
+
 	private static <T> CharFilter<? extends T>
 	close(CharFilter<? extends T> delegate, boolean closeIn, boolean closeOut) {
 		
@@ -934,6 +2876,35 @@ public class JavaShell {
 		});
 	}
 
+	/**
+	 * Creates a background thread that executes the <var>pipe</var> asynchronously, and returns.
+	 * <p>
+	 *   Notice that the return value and any exceptions produced by the <var>pipe</var> are ignored.
+	 * </p>
+	 *
+	 * @param in     Where the <var>pipe</var> reads from
+	 * @param inPipe Is closed when the <var>pipe</var> completes, or {@code null}
+	 * @param out    Where the <var>pipe</var> writes to; is closed when the <var>pipe</var> completes
+	 */
+	private static <T> void
+	executePipeInBackground(BufferFilter<T> pipe, BufferFilter.Source in, BufferPipe inPipe, BufferPipe out) {
+
+		JavaShell.executeRunnableInBackground(new Runnable() {
+
+			@Override public void
+			run() {
+				try {
+					pipe.execute(in, out);
+				} catch (IOException e) {
+					;
+				} finally {
+					if (inPipe != null) inPipe.closeSource();
+					out.closeSink();
+				}
+			}
+		});
+	}
+
 	static void
 	close(Closeable closeable) {
 		try { closeable.close(); } catch (Exception e) {}
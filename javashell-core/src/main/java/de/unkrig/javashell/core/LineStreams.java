@@ -0,0 +1,384 @@
+
+package de.unkrig.javashell.core;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * The implementations of {@link JavaShell#pipeAsStream(CharFilter, Reader, boolean)}, {@link
+ * JavaShell#pipeAsPublisher(CharFilter, Reader, boolean)}, {@link JavaShell#streamAsReader(Stream)} and {@link
+ * JavaShell#publisherAsReader(Flow.Publisher)}.
+ * <p>
+ *   All of them are lazy: Lines are produced only as fast as they are consumed, because the pipe stage blocks when
+ *   its {@link PooledPipe} is full, and a publisher is only asked for as many lines as fit into a small queue.
+ * </p>
+ */
+final
+class LineStreams {
+
+	private LineStreams() {}
+
+	/**
+	 * How many lines a {@link Flow.Subscriber} requests at a time.
+	 */
+	private static final int BATCH_SIZE = 32;
+
+	private static final Object END_OF_INPUT = new Object();
+
+	static <T> Stream<String>
+	stream(CharFilter<T> pipe, Reader in, boolean closeIn) {
+
+		PooledPipe     pp       = PooledPipe.chars();
+		Writer         writer   = pp.writer();
+		Reader         ppReader = pp.reader();
+		BufferedReader reader   = new BufferedReader(ppReader);
+
+		FutureTask<T> task = new FutureTask<>(() -> {
+			try {
+				return pipe.execute(in, writer);
+			} finally {
+				if (closeIn) JavaShell.close(in);
+				JavaShell.close(writer);
+			}
+		});
+		JavaShell.executeRunnableInBackground(task);
+
+		Iterator<String> lines = new Iterator<String>() {
+
+			private String  next;
+			private boolean eoi;
+
+			@Override public boolean
+			hasNext() {
+
+				if (this.next != null) return true;
+				if (this.eoi) return false;
+
+				try {
+					this.next = reader.readLine();
+				} catch (IOException ioe) {
+					throw new UncheckedIOException(ioe);
+				}
+				if (this.next != null) return true;
+
+				// End of output; report the exception that the pipe produced, if any.
+				this.eoi = true;
+				try {
+					task.get();
+				} catch (InterruptedException ie) {
+					throw new UncheckedIOException(new InterruptedIOException());
+				} catch (ExecutionException ee) {
+					throw LineStreams.unchecked(ee.getCause());
+				}
+				return false;
+			}
+
+			@Override public String
+			next() {
+				if (!this.hasNext()) throw new NoSuchElementException();
+				String result = this.next;
+				this.next = null;
+				return result;
+			}
+		};
+
+		// Close the pipe's reader, not the BufferedReader: "BufferedReader.close()" would wait until a "readLine()"
+		// in another thread returns, i.e. until the pipe stage produces its next line.
+		return StreamSupport.stream(
+			Spliterators.spliteratorUnknownSize(lines, Spliterator.ORDERED | Spliterator.NONNULL),
+			false // parallel
+		).onClose(() -> JavaShell.close(ppReader));
+	}
+
+	/**
+	 * @return A publisher that accepts only one subscriber, because the <var>in</var> can only be read once
+	 */
+	static <T> Flow.Publisher<String>
+	publisher(CharFilter<T> pipe, Reader in, boolean closeIn) {
+
+		AtomicBoolean subscribed = new AtomicBoolean();
+
+		return subscriber -> {
+			Objects.requireNonNull(subscriber);
+
+			if (!subscribed.compareAndSet(false, true)) {
+				subscriber.onSubscribe(new Flow.Subscription() {
+					@Override public void request(long n) {}
+					@Override public void cancel()        {}
+				});
+				subscriber.onError(new IllegalStateException("Publisher has already been subscribed to"));
+				return;
+			}
+
+			LineSubscription subscription = new LineSubscription(
+				LineStreams.stream(pipe, in, closeIn),
+				subscriber
+			);
+			subscriber.onSubscribe(subscription);
+			JavaShell.executeRunnableInBackground(subscription);
+		};
+	}
+
+	/**
+	 * Delivers lines in a dedicated thread, as long as the subscriber has signalled demand.
+	 */
+	private static
+	class LineSubscription implements Flow.Subscription, Runnable {
+
+		private final Stream<String>                  lines;
+		private final Flow.Subscriber<? super String> subscriber;
+
+		// Guarded by "this".
+		private long    demand;
+		private boolean cancelled, badRequest;
+
+		LineSubscription(Stream<String> lines, Flow.Subscriber<? super String> subscriber) {
+			this.lines      = lines;
+			this.subscriber = subscriber;
+		}
+
+		@Override public synchronized void
+		request(long n) {
+			if (n <= 0) {
+				this.badRequest = true;
+			} else {
+				this.demand = this.demand + n < 0 ? Long.MAX_VALUE : this.demand + n;
+			}
+			this.notifyAll();
+		}
+
+		@Override public void
+		cancel() {
+			synchronized (this) {
+				if (this.cancelled) return;
+				this.cancelled = true;
+				this.notifyAll();
+			}
+
+			// Unblocks the delivery thread, and makes the pipe fail when it writes its next output.
+			this.lines.close();
+		}
+
+		private synchronized boolean
+		isCancelled() { return this.cancelled; }
+
+		@Override public void
+		run() {
+			try (Stream<String> lines = this.lines) {
+				Iterator<String> it = lines.iterator();
+				for (;;) {
+					boolean badRequest;
+					synchronized (this) {
+						while (this.demand == 0 && !this.cancelled && !this.badRequest) this.wait();
+						if (this.cancelled) return;
+						badRequest = this.badRequest;
+						if (badRequest) {
+							this.cancelled = true;
+						} else
+						if (this.demand != Long.MAX_VALUE) {
+							this.demand--;
+						}
+					}
+
+					if (badRequest) {
+						this.subscriber.onError(new IllegalArgumentException("Non-positive request"));
+						return;
+					}
+
+					String line;
+					try {
+						if (!it.hasNext()) {
+							if (!this.isCancelled()) this.subscriber.onComplete();
+							return;
+						}
+						line = it.next();
+					} catch (RuntimeException e) {
+						if (!this.isCancelled()) this.subscriber.onError(e);
+						return;
+					}
+					this.subscriber.onNext(line);
+				}
+			} catch (InterruptedException ie) {
+				;
+			}
+		}
+	}
+
+	// ----------------------------------------------------------------------------------------------------------------
+
+	static Reader
+	reader(Stream<String> lines) { return new LinesReader(lines.iterator(), lines::close); }
+
+	static Reader
+	reader(Flow.Publisher<String> publisher) {
+
+		QueueSubscriber subscriber = new QueueSubscriber();
+		publisher.subscribe(subscriber);
+
+		return new LinesReader(subscriber, subscriber::cancel);
+	}
+
+	/**
+	 * Buffers up to two batches of lines, and requests the next batch whenever one has been consumed.
+	 */
+	private static
+	class QueueSubscriber implements Flow.Subscriber<String>, Iterator<String> {
+
+		private final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(2 * BATCH_SIZE + 1);
+		private volatile Flow.Subscription  subscription;
+		private volatile boolean            cancelled;
+
+		// Accessed only by the consumer.
+		private Object next;
+		private int    consumed;
+
+		@Override public void
+		onSubscribe(Flow.Subscription subscription) {
+
+			if (this.subscription != null) {
+				subscription.cancel();
+				return;
+			}
+
+			this.subscription = subscription;
+			if (this.cancelled) {
+				subscription.cancel();
+			} else {
+				subscription.request(2 * BATCH_SIZE);
+			}
+		}
+
+		@Override public void
+		onNext(String item) { this.queue.add(Objects.requireNonNull(item)); }
+
+		@Override public void
+		onError(Throwable throwable) { this.queue.add(throwable); }
+
+		@Override public void
+		onComplete() { this.queue.add(END_OF_INPUT); }
+
+		@Override public boolean
+		hasNext() {
+
+			if (this.next == null) {
+				try {
+					this.next = this.queue.take();
+				} catch (InterruptedException ie) {
+					throw new UncheckedIOException(new InterruptedIOException());
+				}
+			}
+
+			if (this.next == END_OF_INPUT) return false;
+			if (this.next instanceof Throwable) throw LineStreams.unchecked((Throwable) this.next);
+			return true;
+		}
+
+		@Override public String
+		next() {
+
+			if (!this.hasNext()) throw new NoSuchElementException();
+
+			String result = (String) this.next;
+			this.next = null;
+
+			if (++this.consumed == BATCH_SIZE) {
+				this.consumed = 0;
+				this.subscription.request(BATCH_SIZE);
+			}
+
+			return result;
+		}
+
+		void
+		cancel() {
+			this.cancelled = true;
+			Flow.Subscription s = this.subscription;
+			if (s != null) s.cancel();
+		}
+	}
+
+	/**
+	 * Reads the lines produced by an iterator, each followed by a line terminator.
+	 */
+	private static
+	class LinesReader extends Reader {
+
+		private final Iterator<String> lines;
+		private final Runnable         onClose;
+
+		private String  current;    // The current line, or the line terminator, or null
+		private int     offset;     // Into "current"
+		private boolean terminate;  // Whether a line terminator is due after "current"
+
+		LinesReader(Iterator<String> lines, Runnable onClose) {
+			this.lines   = lines;
+			this.onClose = onClose;
+		}
+
+		@Override public int
+		read(char[] cbuf, int off, int len) throws IOException {
+
+			if (len == 0) return 0;
+
+			int n = 0;
+			try {
+				while (n < len) {
+
+					if (this.current == null) {
+
+						// Avoid blocking when some chars are available.
+						if (n > 0) break;
+
+						if (!this.lines.hasNext()) return -1;
+						this.current   = this.lines.next();
+						this.offset    = 0;
+						this.terminate = true;
+					}
+
+					int m = Math.min(len - n, this.current.length() - this.offset);
+					this.current.getChars(this.offset, this.offset + m, cbuf, off + n);
+					this.offset += m;
+					n           += m;
+
+					if (this.offset == this.current.length()) {
+						this.current   = this.terminate ? JavaShell.LINE_TERMINATOR : null;
+						this.offset    = 0;
+						this.terminate = false;
+					}
+				}
+			} catch (UncheckedIOException uioe) {
+				throw uioe.getCause();
+			}
+
+			return n;
+		}
+
+		@Override public void
+		close() { this.onClose.run(); }
+	}
+
+	private static RuntimeException
+	unchecked(Throwable t) {
+		if (t instanceof IOException)      return new UncheckedIOException((IOException) t);
+		if (t instanceof RuntimeException) return (RuntimeException) t;
+		if (t instanceof Error)            throw (Error) t;
+		return new RuntimeException(t);
+	}
+}
@@ -0,0 +1,48 @@
+
+package de.unkrig.javashell.core;
+
+import java.io.File;
+
+/**
+ * Options for {@link JavaShell#ls(File[], Appendable, LsOption...)}; named after the corresponding options of the
+ * UNIX "{@code ls}" command.
+ */
+public
+enum LsOption {
+
+	/**
+	 * "{@code -A}": Also list entries whose names start with ".".
+	 */
+	ALL,
+
+	/**
+	 * "{@code -l}": Print type, permissions, owner, group, size and modification time of each entry.
+	 */
+	LONG,
+
+	/**
+	 * "{@code -R}": List subdirectories recursively.
+	 */
+	RECURSIVE,
+
+	/**
+	 * "{@code -r}": Reverse the sort order.
+	 */
+	REVERSE,
+
+	/**
+	 * "{@code -S}": Sort by size, largest first.
+	 */
+	SORT_BY_SIZE,
+
+	/**
+	 * "{@code -t}": Sort by modification time, newest first.
+	 */
+	SORT_BY_TIME,
+
+	/**
+	 * "{@code -U}": Do not sort; list the entries in directory order. Each entry is printed as soon as it is read,
+	 * so that even huge directories are listed with constant memory.
+	 */
+	UNSORTED,
+}
@@ -0,0 +1,144 @@
+
+package de.unkrig.javashell.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.Collections;
+
+/**
+ * The implementation of {@link JavaShell#mv(File, File)}.
+ * <p>
+ *   Within one file system, a move is a single atomic "{@code rename()}". Only when that is not possible (typically
+ *   because source and target are on different devices), the tree is copied next to the target (regular files
+ *   through {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}, which avoids copying
+ *   the data through the Java heap), the copy is renamed over the target, and then the source is deleted.
+ * </p>
+ */
+final
+class Mv {
+
+	private Mv() {}
+
+	/**
+	 * @return The number of bytes copied, i.e. 0 iff <var>from</var> was renamed atomically
+	 */
+	static long
+	execute(Path from, Path to) throws IOException {
+
+		try {
+			Files.move(from, to, StandardCopyOption.ATOMIC_MOVE);
+			return 0;
+		} catch (AtomicMoveNotSupportedException amnse) {
+			;
+		}
+
+		// Copy into a temporary directory next to the target, and rename the copy over the target only when it is
+		// complete, so that a failed copy leaves an existing target untouched.
+		Path tmpDir = Files.createTempDirectory(to.toAbsolutePath().getParent(), ".mv-");
+
+		long result;
+		try {
+			Path tmp = tmpDir.resolve(to.getFileName().toString());
+			result = Mv.copyTree(from, tmp);
+			Files.move(tmp, to, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException | RuntimeException e) {
+			try {
+				Rm.execute(Collections.singletonList(tmpDir), 1);
+			} catch (IOException ioe) {
+				e.addSuppressed(ioe);
+			}
+			throw e;
+		}
+		Files.delete(tmpDir);
+
+		Rm.execute(Collections.singletonList(from), 1);
+
+		return result;
+	}
+
+	/**
+	 * Copies the tree under (and including) <var>from</var>, preserving symbolic links, modification times and (where
+	 * supported) POSIX permissions.
+	 *
+	 * @return The number of bytes copied
+	 */
+	private static long
+	copyTree(Path from, Path to) throws IOException {
+
+		long[] result = new long[1];
+
+		Files.walkFileTree(from, new SimpleFileVisitor<Path>() {
+
+			@Override public FileVisitResult
+			preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				Files.createDirectory(Mv.target(from, dir, to));
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override public FileVisitResult
+			visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+
+				Path target = Mv.target(from, file, to);
+				if (attrs.isSymbolicLink()) {
+					Files.createSymbolicLink(target, Files.readSymbolicLink(file));
+					return FileVisitResult.CONTINUE;
+				}
+				if (!attrs.isRegularFile()) throw new IOException(file + ": Cannot move special file across devices");
+
+				try (
+					FileChannel in  = FileChannel.open(file, StandardOpenOption.READ);
+					FileChannel out = FileChannel.open(
+						target,
+						StandardOpenOption.WRITE,
+						StandardOpenOption.CREATE,
+						StandardOpenOption.TRUNCATE_EXISTING
+					);
+				) {
+					result[0] += JavaShell.transfer(in, 0, out);
+				}
+
+				Mv.copyAttributes(file, attrs, target);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override public FileVisitResult
+			postVisitDirectory(Path dir, IOException exc) throws IOException {
+				if (exc != null) throw exc;
+
+				// The modification time must be set after the members were created.
+				Mv.copyAttributes(dir, Files.readAttributes(dir, BasicFileAttributes.class), Mv.target(from, dir, to));
+				return FileVisitResult.CONTINUE;
+			}
+		});
+
+		return result[0];
+	}
+
+	private static Path
+	target(Path fromRoot, Path from, Path toRoot) {
+		return from.equals(fromRoot) ? toRoot : toRoot.resolve(fromRoot.relativize(from).toString());
+	}
+
+	private static void
+	copyAttributes(Path from, BasicFileAttributes attrs, Path to) throws IOException {
+
+		PosixFileAttributeView view = Files.getFileAttributeView(to, PosixFileAttributeView.class);
+		if (view != null) {
+			PosixFileAttributes posixAttrs = Files.readAttributes(from, PosixFileAttributes.class);
+			view.setPermissions(posixAttrs.permissions());
+		}
+
+		Files.setLastModifiedTime(to, attrs.lastModifiedTime());
+	}
+}
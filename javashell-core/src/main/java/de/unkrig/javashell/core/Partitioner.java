@@ -0,0 +1,65 @@
+
+package de.unkrig.javashell.core;
+
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Function;
+
+/**
+ * Decides to which partition a line is routed by {@link JavaShell#split(InputStream, Partitioner, List, List)}.
+ * Partitioners are stateless; everything they need to know about the position of the line is passed to them.
+ */
+public
+interface Partitioner {
+
+	/**
+	 * @param buffer     Contains the line, excluding its line terminator
+	 * @param lineNumber The zero-based index of the line
+	 * @param byteOffset The offset of the first byte of the line in the input
+	 * @param partitions The number of partitions
+	 * @return           A number between 0 (inclusive) and <var>partitions</var> (exclusive)
+	 */
+	int
+	partition(byte[] buffer, int offset, int length, long lineNumber, long byteOffset, int partitions);
+
+	// ----------------------------------------------------------------------------------------------------------------
+
+	/**
+	 * Like "{@code split -C bytesPerBlock}": Routes consecutive blocks of (approximately) <var>bytesPerBlock</var>
+	 * bytes to the partitions in round-robin fashion. A line belongs to the block where it starts.
+	 */
+	static Partitioner
+	bytes(long bytesPerBlock) {
+		if (bytesPerBlock <= 0) throw new IllegalArgumentException("bytesPerBlock");
+		return (buffer, offset, length, lineNumber, byteOffset, partitions) -> (
+			(int) ((byteOffset / bytesPerBlock) % partitions)
+		);
+	}
+
+	/**
+	 * Like "{@code split -l linesPerBlock}": Routes consecutive blocks of <var>linesPerBlock</var> lines to the
+	 * partitions in round-robin fashion.
+	 */
+	static Partitioner
+	lines(long linesPerBlock) {
+		if (linesPerBlock <= 0) throw new IllegalArgumentException("linesPerBlock");
+		return (buffer, offset, length, lineNumber, byteOffset, partitions) -> (
+			(int) ((lineNumber / linesPerBlock) % partitions)
+		);
+	}
+
+	/**
+	 * Routes each line by the hash code of its key, so that all lines with equal keys end up in the same partition.
+	 *
+	 * @param key Maps a line (decoded with the <var>charset</var>) to its key, e.g. its first field
+	 */
+	static Partitioner
+	key(Function<? super String, ?> key, Charset charset) {
+		return (buffer, offset, length, lineNumber, byteOffset, partitions) -> Math.floorMod(
+			Objects.hashCode(key.apply(new String(buffer, offset, length, charset))),
+			partitions
+		);
+	}
+}
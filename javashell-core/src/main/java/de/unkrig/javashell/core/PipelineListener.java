@@ -0,0 +1,16 @@
+
+package de.unkrig.javashell.core;
+
+/**
+ * Is notified when the stages of instrumented {@link JavaShell#byteFilter_(boolean, boolean, ByteFilter[])} and
+ * {@link JavaShell#charFilter_(boolean, boolean, CharFilter[])} pipelines start and complete. The methods are
+ * invoked by the stage threads, i.e. concurrently.
+ *
+ * @see JavaShell#setPipelineListener(PipelineListener)
+ */
+public
+interface PipelineListener {
+
+	default void stageStarted(StageStats stats)   {}
+	default void stageCompleted(StageStats stats) {}
+}
@@ -0,0 +1,28 @@
+
+package de.unkrig.javashell.core;
+
+/**
+ * The JMX view of the pipeline instrumentation; registered as "{@value Instrumentation#OBJECT_NAME}".
+ *
+ * @see JavaShell#registerPipelineMXBean()
+ */
+public
+interface PipelineMXBean {
+
+	long getPipelinesStarted();
+	long getStagesCompleted();
+	long getStagesFailed();
+
+	/**
+	 * @return The number of bytes and chars that all completed stages have read
+	 */
+	long getTotalCountIn();
+
+	long getTotalReadBlockedMillis();
+	long getTotalWriteBlockedMillis();
+
+	/**
+	 * @return One {@link StageStats#toString()} for each stage that is currently executing
+	 */
+	String[] getActiveStages();
+}
@@ -0,0 +1,284 @@
+
+package de.unkrig.javashell.core;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import de.unkrig.javashell.core.Stages.Cat;
+import de.unkrig.javashell.core.Stages.CharPipeline;
+import de.unkrig.javashell.core.Stages.Cp;
+import de.unkrig.javashell.core.Stages.Exec;
+import de.unkrig.javashell.core.Stages.ExecPipeline;
+import de.unkrig.javashell.core.Stages.Sed;
+import de.unkrig.javashell.core.Stages.SedChain;
+import de.unkrig.javashell.core.Stages.Tr;
+
+/**
+ * The stages of a {@link JavaShell#byteFilter_(boolean, boolean, ByteFilter[])} or {@link
+ * JavaShell#charFilter_(boolean, boolean, CharFilter[])} pipeline, before they are executed.
+ * <p>
+ *   {@link #optimize()} rewrites the plan into an equivalent one that requires fewer threads and copies:
+ * </p>
+ * <ul>
+ *   <li>Runs of adjacent {@link CharFilter#asByteFilter(Charset, Charset)} stages are fused into one, so that the
+ *   chars are not encoded and re-decoded between them.</li>
+ *   <li>{@link JavaShell#cp_() cp_()} and {@link JavaShell#cat_() cat_()} stages are dropped, except in the last
+ *   position (where they determine the pipeline's return value).</li>
+ *   <li>Adjacent {@link JavaShell#tr_(byte, byte) tr_()} stages are merged into one translation table.</li>
+ *   <li>Adjacent {@link JavaShell#sedSubstituteAll_(java.util.regex.Pattern, String) sedSubstituteAll_()} and
+ *   {@link JavaShell#sedSubstituteFirst_(java.util.regex.Pattern, String) sedSubstituteFirst_()} stages are
+ *   merged into one stage that executes all substitutions in one thread.</li>
+ *   <li>Adjacent {@link JavaShell#exec_(String...) exec_()} stages with no custom environment and no custom
+ *   standard error are collapsed into one pipeline of processes that are connected through OS pipes.</li>
+ * </ul>
+ * <p>
+ *   Notice that the optimizer only recognizes the stages that the {@link JavaShell} factory methods return, not
+ *   equivalent lambdas.
+ * </p>
+ * <p>
+ *   The merged stages commit the same {@link CommandEvent}s as the original stages. {@link JavaShell#cp_() cp_()}
+ *   stages, however, are not dropped while a Flight Recorder recording has these events enabled.
+ * </p>
+ * <p>
+ *   {@link JavaShell#byteFilter_(boolean, boolean, ByteFilter[])} and {@link JavaShell#charFilter_(boolean,
+ *   boolean, CharFilter[])} optimize their stages, unless {@link JavaShell#setPipelineOptimization(boolean)
+ *   disabled}.
+ * </p>
+ *
+ * @see JavaShell#explain(ByteFilter[])
+ * @see JavaShell#explain(CharFilter[])
+ */
+public final
+class PipelinePlan {
+
+	private static volatile boolean optimization = true;
+
+	private final ByteFilter<?>[] byteStages; // Iff this is a BYTE pipeline
+	private final CharFilter<?>[] charStages; // Iff this is a CHAR pipeline
+	private final List<String>    rewrites;
+
+	private
+	PipelinePlan(ByteFilter<?>[] byteStages, CharFilter<?>[] charStages, List<String> rewrites) {
+		this.byteStages = byteStages;
+		this.charStages = charStages;
+		this.rewrites   = rewrites;
+	}
+
+	/**
+	 * @return The (not yet optimized) plan of a {@link JavaShell#byteFilter_(boolean, boolean, ByteFilter[])}
+	 *         pipeline
+	 */
+	@SuppressWarnings("overloads") public static PipelinePlan
+	of(ByteFilter<?>... stages) { return new PipelinePlan(stages, null, Collections.emptyList()); }
+
+	/**
+	 * @return The (not yet optimized) plan of a {@link JavaShell#charFilter_(boolean, boolean, CharFilter[])}
+	 *         pipeline
+	 */
+	@SuppressWarnings("overloads") public static PipelinePlan
+	of(CharFilter<?>... stages) { return new PipelinePlan(null, stages, Collections.emptyList()); }
+
+	static void
+	setOptimization(boolean enabled) { PipelinePlan.optimization = enabled; }
+
+	/**
+	 * @return The descriptions of the stages; stages that were not created by the {@link JavaShell} factory methods
+	 *         are described as {@code "stage"}, unless they override {@link Object#toString()}
+	 */
+	public List<String>
+	getStages() {
+		List<String> result = new ArrayList<>();
+		for (Object stage : this.byteStages != null ? this.byteStages : this.charStages) {
+			result.add(Instrumentation.stageName(stage));
+		}
+		return result;
+	}
+
+	/**
+	 * @return The rewrites that {@link #optimize()} has applied to produce this plan
+	 */
+	public List<String>
+	getRewrites() { return Collections.unmodifiableList(this.rewrites); }
+
+	/**
+	 * @return An equivalent plan, with the rewrites listed {@link PipelinePlan above} applied
+	 */
+	public PipelinePlan
+	optimize() {
+
+		List<String> rewrites = new ArrayList<>(this.rewrites);
+
+		if (this.byteStages != null) {
+			List<ByteFilter<?>> stages = new ArrayList<>(Arrays.asList(this.byteStages));
+			PipelinePlan.fuseCharFilters(stages, rewrites);
+
+			// Dropping a "cp_()" stage would also drop its "cp" event.
+			if (!new CommandEvent().isEnabled()) PipelinePlan.dropIdentities(stages, Cp.class, rewrites);
+
+			PipelinePlan.mergeTrs(stages, rewrites);
+			PipelinePlan.collapseExecs(stages, rewrites);
+			return new PipelinePlan(stages.toArray(new ByteFilter<?>[stages.size()]), null, rewrites);
+		} else {
+			List<CharFilter<?>> stages = new ArrayList<>(Arrays.asList(this.charStages));
+			PipelinePlan.optimizeCharStages(stages, rewrites);
+			return new PipelinePlan(null, stages.toArray(new CharFilter<?>[stages.size()]), rewrites);
+		}
+	}
+
+	/**
+	 * @return The {@link #optimize() optimized} plan, or {@code this} iff the optimization is {@link
+	 *         JavaShell#setPipelineOptimization(boolean) disabled}
+	 */
+	PipelinePlan
+	prepare() { return PipelinePlan.optimization ? this.optimize() : this; }
+
+	/**
+	 * @return A human-readable, multi-line description of the stages and the applied rewrites
+	 */
+	public String
+	explain() {
+
+		StringBuilder sb = new StringBuilder(this.byteStages != null ? "byteFilter" : "charFilter");
+		sb.append(JavaShell.LINE_TERMINATOR);
+
+		List<String> stages = this.getStages();
+		for (int i = 0; i < stages.size(); i++) {
+			sb.append("  [").append(i).append("] ").append(stages.get(i)).append(JavaShell.LINE_TERMINATOR);
+		}
+
+		for (String rewrite : this.rewrites) sb.append("  -- ").append(rewrite).append(JavaShell.LINE_TERMINATOR);
+
+		return sb.toString();
+	}
+
+	@Override public String
+	toString() { return String.join(" | ", this.getStages()); }
+
+	@SuppressWarnings("unchecked") <T> ByteFilter<? extends T>[]
+	byteStages() { return (ByteFilter<? extends T>[]) this.byteStages; }
+
+	@SuppressWarnings("unchecked") <T> CharFilter<? extends T>[]
+	charStages() { return (CharFilter<? extends T>[]) this.charStages; }
+
+	// ----------------------------------------------------------------------------------------------------------------
+
+	/**
+	 * Replaces each run of adjacent {@link CharFilterByteFilter}s with one that executes the (optimized) {@link
+	 * CharFilter}s as a {@link CharPipeline}.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" }) private static void
+	fuseCharFilters(List<ByteFilter<?>> stages, List<String> rewrites) {
+
+		for (int i = 0; i < stages.size(); i++) {
+
+			if (!(stages.get(i) instanceof CharFilterByteFilter)) continue;
+
+			CharFilterByteFilter<?> first      = (CharFilterByteFilter<?>) stages.get(i);
+			List<CharFilter<?>>     run        = new ArrayList<>();
+			Charset                 outCharset = first.outCharset;
+
+			run.add(first.charFilter);
+			while (
+				i + 1 < stages.size()
+				&& stages.get(i + 1) instanceof CharFilterByteFilter
+				&& ((CharFilterByteFilter<?>) stages.get(i + 1)).inCharset.equals(outCharset)
+			) {
+				CharFilterByteFilter<?> next = (CharFilterByteFilter<?>) stages.remove(i + 1);
+				run.add(next.charFilter);
+				outCharset = next.outCharset;
+			}
+
+			if (run.size() == 1) continue;
+
+			rewrites.add("fused " + run.size() + " char filters at stage " + i);
+			PipelinePlan.optimizeCharStages(run, rewrites);
+			stages.set(i, new CharFilterByteFilter(
+				new CharPipeline(run.toArray(new CharFilter<?>[run.size()])),
+				first.inCharset,
+				outCharset
+			));
+		}
+	}
+
+	private static void
+	optimizeCharStages(List<CharFilter<?>> stages, List<String> rewrites) {
+		PipelinePlan.dropIdentities(stages, Cat.class, rewrites);
+		PipelinePlan.mergeSeds(stages, rewrites);
+	}
+
+	/**
+	 * Removes all instances of the <var>identity</var> class, except in the last position.
+	 */
+	private static void
+	dropIdentities(List<?> stages, Class<?> identity, List<String> rewrites) {
+		for (int i = stages.size() - 2; i >= 0; i--) {
+			if (identity.isInstance(stages.get(i))) {
+				rewrites.add("dropped \"" + stages.remove(i) + "\" at stage " + i);
+			}
+		}
+	}
+
+	private static void
+	mergeTrs(List<ByteFilter<?>> stages, List<String> rewrites) {
+		for (int i = 0; i < stages.size() - 1; i++) {
+			while (i + 1 < stages.size() && stages.get(i) instanceof Tr && stages.get(i + 1) instanceof Tr) {
+				stages.set(i, ((Tr) stages.get(i)).then((Tr) stages.remove(i + 1)));
+				rewrites.add("merged \"tr\" into stage " + i);
+			}
+		}
+	}
+
+	private static void
+	mergeSeds(List<CharFilter<?>> stages, List<String> rewrites) {
+		for (int i = 0; i < stages.size() - 1; i++) {
+
+			if (!PipelinePlan.isSed(stages.get(i)) || !PipelinePlan.isSed(stages.get(i + 1))) continue;
+
+			List<Sed> seds = new ArrayList<>();
+			PipelinePlan.addSeds(stages.get(i), seds);
+			while (i + 1 < stages.size() && PipelinePlan.isSed(stages.get(i + 1))) {
+				PipelinePlan.addSeds(stages.remove(i + 1), seds);
+			}
+
+			stages.set(i, new SedChain(seds));
+			rewrites.add("merged " + seds.size() + " sed substitutions into stage " + i);
+		}
+	}
+
+	private static boolean
+	isSed(CharFilter<?> stage) { return stage instanceof Sed || stage instanceof SedChain; }
+
+	private static void
+	addSeds(CharFilter<?> stage, List<Sed> result) {
+		if (stage instanceof Sed) {
+			result.add((Sed) stage);
+		} else {
+			result.addAll(((SedChain) stage).seds);
+		}
+	}
+
+	private static void
+	collapseExecs(List<ByteFilter<?>> stages, List<String> rewrites) {
+		for (int i = 0; i < stages.size() - 1; i++) {
+
+			if (!PipelinePlan.isCollapsibleExec(stages.get(i)) || !PipelinePlan.isCollapsibleExec(stages.get(i + 1))) {
+				continue;
+			}
+
+			List<Exec> execs = new ArrayList<>();
+			execs.add((Exec) stages.get(i));
+			while (i + 1 < stages.size() && PipelinePlan.isCollapsibleExec(stages.get(i + 1))) {
+				execs.add((Exec) stages.remove(i + 1));
+			}
+
+			stages.set(i, new ExecPipeline(execs));
+			rewrites.add("connected " + execs.size() + " processes through OS pipes at stage " + i);
+		}
+	}
+
+	private static boolean
+	isCollapsibleExec(ByteFilter<?> stage) { return stage instanceof Exec && ((Exec) stage).isCollapsible(); }
+}
@@ -0,0 +1,28 @@
+
+package de.unkrig.javashell.core;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * The Flight Recorder event that is committed when a stage of an instrumented pipeline completes.
+ */
+@Name("de.unkrig.javashell.PipelineStage") @Label("Pipeline Stage") @Category("JavaShell")
+@Description("A stage of a byteFilter_ or charFilter_ pipeline")
+final
+class PipelineStageEvent extends Event {
+
+	@Label("Pipeline")                String  pipeline;
+	@Label("Stage Index")             int     index;
+	@Label("Stage Name")              String  name;
+	@Label("Count In")                long    countIn;
+	@Label("Count Out")               long    countOut;
+	@Label("Read Blocked") @Timespan  long    readBlocked;
+	@Label("Write Blocked") @Timespan long    writeBlocked;
+	@Label("Max Input Fill")          long    maxInputFill;
+	@Label("Outcome")                 String  outcome;
+}
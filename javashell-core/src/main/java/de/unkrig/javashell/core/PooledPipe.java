@@ -0,0 +1,306 @@
+
+package de.unkrig.javashell.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Replaces {@link java.io.PipedInputStream}/{@link java.io.PipedOutputStream} and {@link java.io.PipedReader}/{@link
+ * java.io.PipedWriter} for the stages of a pipeline. The data is held in chunks that are borrowed from the {@link
+ * BufferPool} when the writer needs room, and returned as soon as the reader has consumed them, so an idle pipe holds
+ * no memory at all. What the writer writes is immediately visible to the reader (no flushing is necessary).
+ * <p>
+ *   Iff the pool's limit is reached, the writer blocks until buffers are returned to the pool.
+ * </p>
+ */
+final
+class PooledPipe {
+
+	private static final int CHUNK_BYTES = 8192;
+	private static final int MAX_CHUNKS  = 4;
+
+	private final boolean      chars;
+	private final Deque<Chunk> chunks = new ArrayDeque<>();
+	private volatile boolean   empty  = true;
+	private boolean            writerClosed, readerClosed;
+
+	private
+	PooledPipe(boolean chars) { this.chars = chars; }
+
+	/**
+	 * @return A pipe whose {@link #outputStream()} and {@link #inputStream()} may be used
+	 */
+	static PooledPipe
+	bytes() { return new PooledPipe(false); }
+
+	/**
+	 * @return A pipe whose {@link #writer()} and {@link #reader()} may be used
+	 */
+	static PooledPipe
+	chars() { return new PooledPipe(true); }
+
+	InputStream
+	inputStream() {
+
+		return new InputStream() {
+
+			private final byte[] one = new byte[1];
+
+			@Override public int
+			read() throws IOException { return PooledPipe.this.read(this.one, 0, 1) == -1 ? -1 : this.one[0] & 0xff; }
+
+			@Override public int
+			read(byte[] b, int off, int len) throws IOException { return PooledPipe.this.read(b, off, len); }
+
+			@Override public int
+			available() { return PooledPipe.this.available(); }
+
+			@Override public void
+			close() { PooledPipe.this.closeReader(); }
+		};
+	}
+
+	OutputStream
+	outputStream() {
+
+		return new OutputStream() {
+
+			private final byte[] one = new byte[1];
+
+			@Override public void
+			write(int b) throws IOException {
+				this.one[0] = (byte) b;
+				PooledPipe.this.write(this.one, 0, 1);
+			}
+
+			@Override public void
+			write(byte[] b, int off, int len) throws IOException { PooledPipe.this.write(b, off, len); }
+
+			@Override public void
+			close() { PooledPipe.this.closeWriter(); }
+		};
+	}
+
+	Reader
+	reader() {
+
+		return new Reader() {
+
+			@Override public int
+			read(char[] cbuf, int off, int len) throws IOException { return PooledPipe.this.read(cbuf, off, len); }
+
+			@Override public boolean
+			ready() { return PooledPipe.this.available() > 0; }
+
+			@Override public void
+			close() { PooledPipe.this.closeReader(); }
+		};
+	}
+
+	Writer
+	writer() {
+
+		return new Writer() {
+
+			@Override public void
+			write(char[] cbuf, int off, int len) throws IOException { PooledPipe.this.write(cbuf, off, len); }
+
+			@Override public void
+			flush() {}
+
+			@Override public void
+			close() { PooledPipe.this.closeWriter(); }
+		};
+	}
+
+	// ----------------------------------------------------------------------------------------------------------------
+
+	/**
+	 * @param src A {@code byte[]} or a {@code char[]}
+	 */
+	private void
+	write(Object src, int off, int len) throws IOException {
+
+		while (len > 0) {
+
+			synchronized (this) {
+				for (;;) {
+					if (this.writerClosed) throw new IOException("Pipe closed");
+					if (this.readerClosed) throw new IOException("Read end dead");
+
+					Chunk tail = this.chunks.peekLast();
+					if (tail != null && tail.writePosition < tail.capacity) {
+						int n = Math.min(len, tail.capacity - tail.writePosition);
+						System.arraycopy(src, off, tail.array, tail.offset + tail.writePosition, n);
+						tail.writePosition += n;
+						off                += n;
+						len                -= n;
+						this.notifyAll();
+						break;
+					}
+
+					if (this.chunks.size() < MAX_CHUNKS) break;
+
+					this.await();
+				}
+			}
+
+			if (len == 0) return;
+
+			// Borrow the next chunk *without* holding the lock, because the pool may block until the reader (or some
+			// other pipe's reader) returns chunks. However, a pipe always gets its first chunk; otherwise the pipes of
+			// a pipeline could hold all the memory while their readers wait for another pipe.
+			BooleanSupplier isEmpty = () -> this.empty;
+			Chunk           chunk   = (
+				this.chars
+				? new Chunk(BufferPool.get().acquireChars(CHUNK_BYTES / 2, isEmpty))
+				: new Chunk(BufferPool.get().acquire(CHUNK_BYTES, isEmpty))
+			);
+			synchronized (this) {
+				if (this.readerClosed) {
+					chunk.release();
+					throw new IOException("Read end dead");
+				}
+				this.chunks.addLast(chunk);
+				this.empty = false;
+			}
+		}
+	}
+
+	/**
+	 * @param dst A {@code byte[]} or a {@code char[]}
+	 */
+	private int
+	read(Object dst, int off, int len) throws IOException {
+
+		if (len == 0) return 0;
+
+		Chunk exhausted = null;
+		int   n;
+		synchronized (this) {
+			for (;;) {
+				if (this.readerClosed) throw new IOException("Pipe closed");
+
+				Chunk head = this.chunks.peekFirst();
+				if (head != null && head.readPosition < head.writePosition) {
+					n = Math.min(len, head.writePosition - head.readPosition);
+					System.arraycopy(head.array, head.offset + head.readPosition, dst, off, n);
+					head.readPosition += n;
+
+					// Return the chunk to the pool iff the writer has moved on to the next chunk.
+					if (
+						head.readPosition == head.writePosition
+						&& (head.writePosition == head.capacity || head != this.chunks.peekLast())
+					) {
+						exhausted  = this.chunks.removeFirst();
+						this.empty = this.chunks.isEmpty();
+					}
+					this.notifyAll();
+					break;
+				}
+
+				if (head != null && head != this.chunks.peekLast()) {
+					this.chunks.removeFirst().release();
+					this.empty = this.chunks.isEmpty();
+					continue;
+				}
+
+				if (this.writerClosed) {
+					this.releaseAll();
+					return -1;
+				}
+
+				this.await();
+			}
+		}
+
+		if (exhausted != null) exhausted.release();
+
+		return n;
+	}
+
+	private synchronized int
+	available() {
+		int result = 0;
+		for (Chunk chunk : this.chunks) result += chunk.writePosition - chunk.readPosition;
+		return result;
+	}
+
+	private synchronized void
+	closeWriter() {
+		this.writerClosed = true;
+		this.notifyAll();
+	}
+
+	/**
+	 * Discards all pending data; any following write will fail.
+	 */
+	private synchronized void
+	closeReader() {
+		this.readerClosed = true;
+		this.releaseAll();
+		this.notifyAll();
+	}
+
+	private void
+	releaseAll() {
+		this.empty = true;
+		for (Chunk chunk; (chunk = this.chunks.pollFirst()) != null;) chunk.release();
+	}
+
+	private void
+	await() throws InterruptedIOException {
+		try {
+			this.wait();
+		} catch (InterruptedException ie) {
+			throw new InterruptedIOException();
+		}
+	}
+
+	/**
+	 * A pooled buffer, viewed as an array with separate read and write positions.
+	 */
+	private static final
+	class Chunk {
+
+		private final ByteBuffer byteBuffer;
+		private final CharBuffer charBuffer;
+		final Object             array;
+		final int                offset, capacity;
+		int                      readPosition, writePosition;
+
+		Chunk(ByteBuffer buffer) {
+			this.byteBuffer = buffer;
+			this.charBuffer = null;
+			this.array      = buffer.array();
+			this.offset     = buffer.arrayOffset();
+			this.capacity   = buffer.capacity();
+		}
+
+		Chunk(CharBuffer buffer) {
+			this.byteBuffer = null;
+			this.charBuffer = buffer;
+			this.array      = buffer.array();
+			this.offset     = buffer.arrayOffset();
+			this.capacity   = buffer.capacity();
+		}
+
+		void
+		release() {
+			if (this.byteBuffer != null) {
+				BufferPool.get().release(this.byteBuffer);
+			} else {
+				BufferPool.get().release(this.charBuffer);
+			}
+		}
+	}
+}
@@ -0,0 +1,151 @@
+
+package de.unkrig.javashell.core;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import de.unkrig.commons.io.InputStreams;
+
+/**
+ * A named pipe (FIFO) that is fed or drained by a {@link ByteFilter} executing in a background thread; the
+ * equivalent of BASH's "process substitution" {@code <(...)} and {@code >(...)}. Pass its {@link #getPath() path}
+ * as a command line argument to a process that reads or writes a file, and the data streams directly between the
+ * process and the filter, without touching the disk.
+ * <p>
+ *   Requires the "{@code mkfifo}" command, i.e. a UNIX-like operating system.
+ * </p>
+ *
+ * @see JavaShell#inputFifo(ByteFilter)
+ * @see JavaShell#outputFifo(ByteFilter, OutputStream)
+ */
+public final
+class ProcessSubstitution implements Closeable {
+
+	private final Path           directory;
+	private final Path           fifo;
+	private final Thread         thread;
+	private final CountDownLatch opened = new CountDownLatch(1);  // Counted down after the FIFO was opened
+	private Object               result;
+	private Throwable            exception;
+
+	private
+	ProcessSubstitution(ByteFilter<?> filter, boolean write, OutputStream out) throws IOException {
+
+		this.directory = Files.createTempDirectory("javashell-fifo-");
+		this.fifo      = this.directory.resolve("fifo");
+
+		try {
+			if (!JavaShell.exec("mkfifo", this.fifo.toString())) throw new IOException("mkfifo " + this.fifo + " failed");
+		} catch (InterruptedException ie) {
+			throw new InterruptedIOException();
+		} catch (IOException ioe) {
+			Files.deleteIfExists(this.directory);
+			throw ioe;
+		}
+
+		this.thread = new Thread(() -> {
+			try {
+				if (write) {
+					try (OutputStream os = new FileOutputStream(this.fifo.toFile())) {
+						this.opened.countDown();
+						this.result = filter.execute(InputStreams.EMPTY, os);
+					}
+				} else {
+					try (InputStream is = new FileInputStream(this.fifo.toFile())) {
+						this.opened.countDown();
+						this.result = filter.execute(is, out);
+					}
+					out.flush();
+				}
+			} catch (Throwable t) {
+				this.exception = t;
+			} finally {
+				this.opened.countDown();
+			}
+		});
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * @return A FIFO that the <var>producer</var> writes to; the producer's input is empty
+	 */
+	static ProcessSubstitution
+	input(ByteFilter<?> producer) throws IOException { return new ProcessSubstitution(producer, true, null); }
+
+	/**
+	 * @return A FIFO that the <var>consumer</var> reads from; the consumer writes to <var>out</var>
+	 */
+	static ProcessSubstitution
+	output(ByteFilter<?> consumer, OutputStream out) throws IOException {
+		return new ProcessSubstitution(consumer, false, out);
+	}
+
+	public File
+	getFile() { return this.fifo.toFile(); }
+
+	public String
+	getPath() { return this.fifo.toString(); }
+
+	/**
+	 * Waits until the filter completes.
+	 *
+	 * @return            The value returned by the filter
+	 * @throws IOException The exception thrown by the filter (unchecked exceptions and errors are rethrown as they
+	 *                     are)
+	 */
+	public Object
+	await() throws IOException, InterruptedException {
+		this.thread.join();
+
+		Throwable t = this.exception;
+		if (t == null) return this.result;
+		if (t instanceof IOException)      throw (IOException) t;
+		if (t instanceof RuntimeException) throw (RuntimeException) t;
+		if (t instanceof Error)            throw (Error) t;
+		throw new IOException(t);
+	}
+
+	/**
+	 * Waits until the filter completes, then deletes the FIFO. If no process has opened the FIFO, then the filter
+	 * sees an empty input or a broken pipe.
+	 */
+	@Override public void
+	close() throws IOException {
+
+		try {
+
+			// The filter thread blocks in "open()" until a process opens the other end of the FIFO. Opening a FIFO
+			// for reading *and* writing never blocks (on Linux), and releases the filter thread.
+			while (this.opened.getCount() > 0) {
+				RandomAccessFile raf = new RandomAccessFile(this.fifo.toFile(), "rw");
+				try {
+					this.opened.await(100, TimeUnit.MILLISECONDS);
+				} finally {
+					raf.close();
+				}
+			}
+
+			this.thread.join();
+		} catch (InterruptedException ie) {
+			throw new InterruptedIOException();
+		} finally {
+			Files.deleteIfExists(this.fifo);
+			Files.deleteIfExists(this.directory);
+		}
+	}
+
+	@Override public String
+	toString() { return this.fifo.toString(); }
+}
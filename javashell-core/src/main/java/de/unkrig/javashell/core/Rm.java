@@ -0,0 +1,134 @@
+
+package de.unkrig.javashell.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * The implementation of {@link JavaShell#rmR(File[], int)}.
+ * <p>
+ *   Each member of a directory is deleted right away; only if that fails because it is a non-empty directory, that
+ *   directory is emptied (concurrently with its siblings) and then deleted. Thus every file costs one "{@code
+ *   lstat()}" (which {@link Files#delete(Path)} does to choose between "{@code unlink()}" and "{@code rmdir()}")
+ *   and one "{@code unlink()}", but no directory listing, and symbolic links are never followed.
+ * </p>
+ */
+final
+class Rm {
+
+	private final boolean parallel;
+	private IOException   exception;
+
+	private
+	Rm(boolean parallel) { this.parallel = parallel; }
+
+	/**
+	 * Deletes the <var>roots</var> and everything under them. Failures to delete single files or directories do not
+	 * terminate the operation; the first of them is thrown after all other files were processed, with the others
+	 * attached as "suppressed" exceptions; each of them names the path that could not be deleted. Non-existing
+	 * <var>roots</var> are not an error.
+	 *
+	 * @param parallelism 1 for a sequential operation; otherwise the directories are processed concurrently by that
+	 *                    many threads
+	 * @return            The number of files and directories deleted
+	 */
+	static long
+	execute(List<Path> roots, int parallelism) throws IOException {
+
+		if (parallelism < 1) throw new IllegalArgumentException();
+
+		Rm           rm     = new Rm(parallelism > 1);
+		ForkJoinPool pool   = rm.parallel ? new ForkJoinPool(parallelism) : null;
+		long         result = 0;
+		try {
+			for (Path root : roots) {
+				DeleteTask task = rm.new DeleteTask(root);
+				result += pool == null ? task.invoke() : pool.invoke(task);
+			}
+		} finally {
+			if (pool != null) pool.shutdownNow();
+		}
+
+		if (rm.exception != null) throw rm.exception;
+
+		return result;
+	}
+
+	/**
+	 * Deletes one file or directory tree.
+	 */
+	private
+	class DeleteTask extends RecursiveTask<Long> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Path path;
+
+		DeleteTask(Path path) { this.path = path; }
+
+		@Override protected Long
+		compute() {
+
+			try {
+				Files.delete(this.path);
+				return 1L;
+			} catch (NoSuchFileException nsfe) {
+				return 0L;
+			} catch (DirectoryNotEmptyException dnee) {
+				;
+			} catch (IOException ioe) {
+				Rm.this.addException(ioe);
+				return 0L;
+			}
+
+			long             result   = 0;
+			List<DeleteTask> subtasks = new ArrayList<>();
+			try (DirectoryStream<Path> ds = Files.newDirectoryStream(this.path)) {
+				for (Path member : ds) {
+					DeleteTask subtask = new DeleteTask(member);
+					if (Rm.this.parallel) {
+						subtask.fork();
+						subtasks.add(subtask);
+					} else {
+						result += subtask.compute();
+					}
+				}
+			} catch (IOException ioe) {
+				Rm.this.addException(ioe);
+			}
+
+			for (DeleteTask subtask : subtasks) result += subtask.join();
+
+			try {
+				Files.delete(this.path);
+				result++;
+			} catch (DirectoryNotEmptyException dnee) {
+
+				// Some member could not be deleted, which was already reported.
+				;
+			} catch (IOException ioe) {
+				Rm.this.addException(ioe);
+			}
+
+			return result;
+		}
+	}
+
+	private synchronized void
+	addException(IOException ioe) {
+		if (this.exception == null) {
+			this.exception = ioe;
+		} else {
+			this.exception.addSuppressed(ioe);
+		}
+	}
+}
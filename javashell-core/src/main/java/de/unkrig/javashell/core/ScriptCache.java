@@ -0,0 +1,159 @@
+
+package de.unkrig.javashell.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import de.unkrig.commons.file.FileUtil;
+
+/**
+ * An on-disk cache of {@link CompiledScript}s. The cache key is a hash of the script source, the JDK version and the
+ * class path (including the sizes and modification times of the class path entries), so that a script is recompiled
+ * iff it was changed, or the JDK or one of the libraries that it was compiled against was changed.
+ * <p>
+ *   Each entry is a directory that contains the class files and a file "{@value #MAIN_CLASS_FILE}" with the name of
+ *   the main class. Entries are created atomically, so concurrent processes can share the same cache. Nothing is ever
+ *   removed from the cache; it is safe to delete the cache directory (or any of its entries) at any time.
+ * </p>
+ *
+ * @see ScriptLauncher
+ */
+public final
+class ScriptCache {
+
+	/**
+	 * The name of the file in each cache entry that holds the name of the main class.
+	 */
+	public static final String MAIN_CLASS_FILE = "main-class";
+
+	private final Path directory;
+
+	public
+	ScriptCache(Path directory) { this.directory = directory; }
+
+	/**
+	 * @return The value of the system property "{@code de.unkrig.javashell.scriptCache}", or
+	 *         "{@code $XDG_CACHE_HOME/javashell}", or "{@code ~/.cache/javashell}"
+	 */
+	public static Path
+	defaultDirectory() {
+
+		String s = System.getProperty("de.unkrig.javashell.scriptCache");
+		if (s != null) return Paths.get(s);
+
+		s = System.getenv("XDG_CACHE_HOME");
+		if (s != null) return Paths.get(s, "javashell");
+
+		return Paths.get(System.getProperty("user.home"), ".cache", "javashell");
+	}
+
+	/**
+	 * Loads the compiled <var>source</var> from the cache or, iff it is not in the cache, compiles it and stores the
+	 * result in the cache. Failure to store the result is not an error.
+	 *
+	 * @param fileName Only used in compilation error messages
+	 * @throws IOException See {@link ScriptCompiler#compile(String, String)}
+	 */
+	public CompiledScript
+	get(String fileName, String source) throws IOException {
+
+		Path entry = this.directory.resolve(ScriptCache.key(source));
+
+		CompiledScript result = ScriptCache.load(entry);
+		if (result != null) return result;
+
+		result = ScriptCompiler.compile(fileName, source);
+		try {
+			this.store(entry, result);
+		} catch (IOException ioe) {
+
+			// E.g. the cache directory is not writable; the script can execute nonetheless.
+			;
+		}
+		return result;
+	}
+
+	/**
+	 * @return A hash of the <var>source</var>, the JDK version and the class path
+	 */
+	static String
+	key(String source) {
+
+		StringBuilder sb = new StringBuilder(source);
+		sb.append('\0').append(Runtime.version());
+		for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+			File f = new File(entry);
+			sb.append('\0').append(f.getAbsolutePath());
+			sb.append(':').append(f.length()).append(':').append(f.lastModified());
+		}
+
+		return ScriptCompiler.hash(sb.toString());
+	}
+
+	/**
+	 * @return {@code null} iff the <var>entry</var> does not exist
+	 */
+	private static CompiledScript
+	load(Path entry) throws IOException {
+
+		String mainClassName;
+		try {
+			mainClassName = new String(Files.readAllBytes(entry.resolve(MAIN_CLASS_FILE)), StandardCharsets.UTF_8);
+		} catch (NoSuchFileException nsfe) {
+			return null;
+		}
+
+		Map<String, byte[]> classFiles = new LinkedHashMap<>();
+		try (Stream<Path> files = Files.walk(entry)) {
+			for (Path file : (Iterable<Path>) files::iterator) {
+
+				String path = entry.relativize(file).toString().replace(File.separatorChar, '/');
+				if (!path.endsWith(".class")) continue;
+
+				String className = path.substring(0, path.length() - 6).replace('/', '.');
+				classFiles.put(className, Files.readAllBytes(file));
+			}
+		}
+
+		return new CompiledScript(mainClassName, classFiles);
+	}
+
+	/**
+	 * Writes the <var>script</var> into a temporary directory, and then renames that to <var>entry</var>, so that
+	 * concurrent {@link #load(Path)}s never see an incomplete entry.
+	 */
+	private void
+	store(Path entry, CompiledScript script) throws IOException {
+
+		Files.createDirectories(this.directory);
+		Path tmp = Files.createTempDirectory(this.directory, entry.getFileName() + ".");
+		try {
+			for (Map.Entry<String, byte[]> e : script.getClassFiles().entrySet()) {
+				Path file = tmp.resolve(e.getKey().replace('.', '/') + ".class");
+				Files.createDirectories(file.getParent());
+				Files.write(file, e.getValue());
+			}
+
+			Files.write(tmp.resolve(MAIN_CLASS_FILE), script.getMainClassName().getBytes(StandardCharsets.UTF_8));
+
+			Files.move(tmp, entry, StandardCopyOption.ATOMIC_MOVE);
+		} catch (FileAlreadyExistsException | DirectoryNotEmptyException e) {
+
+			// Another process has stored the same script in the meantime.
+			;
+		} finally {
+			if (Files.exists(tmp)) FileUtil.deleteRecursively(tmp.toFile());
+		}
+	}
+}
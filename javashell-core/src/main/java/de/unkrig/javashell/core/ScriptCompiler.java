@@ -0,0 +1,177 @@
+
+package de.unkrig.javashell.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import com.sun.source.tree.ClassTree;
+import com.sun.source.tree.CompilationUnitTree;
+import com.sun.source.tree.Tree;
+import com.sun.source.util.JavacTask;
+
+/**
+ * Compiles single-file scripts in memory, like the "{@code java --source 11 myscript}" launcher does: A leading
+ * "{@code #!}" line is ignored, the file name need not match the name of a public class, and the first top-level
+ * class in the file is the main class. The scripts are compiled against the class path of the running JVM.
+ * <p>
+ *   Compiling is the expensive part of running a script; a caller that runs the same script repeatedly should cache
+ *   the {@link CompiledScript}s, e.g. by the {@link #hash(String)} of their source.
+ * </p>
+ */
+public final
+class ScriptCompiler {
+
+	private ScriptCompiler() {}
+
+	/**
+	 * @param fileName Only used in compilation error messages
+	 * @return         The compiled script
+	 * @throws IOException The <var>source</var> has compilation errors, or no Java compiler is available (i.e. the
+	 *                     JVM is not a JDK)
+	 */
+	public static CompiledScript
+	compile(String fileName, String source) throws IOException {
+
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		if (compiler == null) throw new IOException("No Java compiler available; a JDK (not a JRE) is required");
+
+		DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+		Map<String, byte[]>                 classFiles  = new LinkedHashMap<>();
+
+		StandardJavaFileManager sfm = compiler.getStandardFileManager(diagnostics, null, StandardCharsets.UTF_8);
+		JavaFileManager         fm  = new ForwardingJavaFileManager<JavaFileManager>(sfm) {
+
+			@Override public JavaFileObject
+			getJavaFileForOutput(Location location, String className, JavaFileObject.Kind kind, FileObject sibling) {
+				URI uri = URI.create("mem:///" + className.replace('.', '/') + kind.extension);
+				return new SimpleJavaFileObject(uri, kind) {
+
+					@Override public OutputStream
+					openOutputStream() {
+						return new ByteArrayOutputStream() {
+
+							@Override public void
+							close() { classFiles.put(className, this.toByteArray()); }
+						};
+					}
+				};
+			}
+		};
+
+		JavaFileObject sourceFile = new SimpleJavaFileObject(
+			URI.create("script:///" + fileName.replace('\\', '/')),
+			JavaFileObject.Kind.SOURCE
+		) {
+
+			@Override public CharSequence
+			getCharContent(boolean ignoreEncodingErrors) { return ScriptCompiler.stripShebang(source); }
+
+			// Unlike regular compilation units, a script may declare a public class with any name.
+			@Override public boolean
+			isNameCompatible(String simpleName, JavaFileObject.Kind kind) { return true; }
+		};
+
+		List<String> options = Arrays.asList(
+			"-classpath", System.getProperty("java.class.path"),
+			"-proc:none"
+		);
+
+		try {
+			JavacTask task = (JavacTask) compiler.getTask(
+				null,                                 // out
+				fm,                                   // fileManager
+				diagnostics,                          // diagnosticListener
+				options,                              // options
+				null,                                 // classes
+				Collections.singletonList(sourceFile) // compilationUnits
+			);
+
+			String mainClassName = null;
+			for (CompilationUnitTree cu : task.parse()) {
+				for (Tree decl : cu.getTypeDecls()) {
+					if (decl instanceof ClassTree) {
+						String simpleName = ((ClassTree) decl).getSimpleName().toString();
+						mainClassName     = (
+							cu.getPackageName() == null
+							? simpleName
+							: cu.getPackageName() + "." + simpleName
+						);
+						break;
+					}
+				}
+			}
+
+			task.generate();
+
+			ScriptCompiler.checkErrors(fileName, diagnostics);
+			if (mainClassName == null) throw new IOException(fileName + ": No class declared in source file");
+
+			return new CompiledScript(mainClassName, classFiles);
+		} finally {
+			fm.close();
+		}
+	}
+
+	/**
+	 * @return The (hexadecimal) SHA-256 hash of the <var>source</var>
+	 */
+	public static String
+	hash(String source) {
+
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException nsae) {
+			throw new AssertionError(nsae);
+		}
+
+		StringBuilder sb = new StringBuilder();
+		for (byte b : md.digest(source.getBytes(StandardCharsets.UTF_8))) sb.append(String.format("%02x", b & 0xff));
+		return sb.toString();
+	}
+
+	/**
+	 * Blanks out the "{@code #!...}" line (if any), so that the line numbers of compilation errors are preserved.
+	 */
+	private static String
+	stripShebang(String source) {
+		if (!source.startsWith("#!")) return source;
+		int eol = source.indexOf('\n');
+		return eol == -1 ? "" : source.substring(eol);
+	}
+
+	private static void
+	checkErrors(String fileName, DiagnosticCollector<JavaFileObject> diagnostics) throws IOException {
+
+		StringBuilder sb = new StringBuilder();
+		for (Diagnostic<? extends JavaFileObject> d : diagnostics.getDiagnostics()) {
+			if (d.getKind() != Diagnostic.Kind.ERROR) continue;
+			if (sb.length() > 0) sb.append(JavaShell.LINE_TERMINATOR);
+			sb.append(fileName).append(':').append(d.getLineNumber()).append(": ").append(d.getMessage(Locale.ROOT));
+		}
+
+		if (sb.length() > 0) throw new IOException(sb.toString());
+	}
+}
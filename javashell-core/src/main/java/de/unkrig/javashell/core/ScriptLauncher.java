@@ -0,0 +1,54 @@
+
+package de.unkrig.javashell.core;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * A replacement for the "{@code java --source 11}" launcher that compiles each script only once, and later loads it
+ * from the {@link ScriptCache}:
+ * <pre>
+ *   #!/usr/bin/env -S java -jar /path/to/javashell-core-0.0.1-SNAPSHOT-jar-with-dependencies.jar
+ * </pre>
+ * <p>
+ *   The cache directory is determined by {@link ScriptCache#defaultDirectory()}.
+ * </p>
+ */
+public final
+class ScriptLauncher {
+
+	private ScriptLauncher() {}
+
+	/**
+	 * Usage:
+	 * <pre>
+	 *   java -jar javashell-core-0.0.1-SNAPSHOT-jar-with-dependencies.jar <em>script-file</em> [ <em>arg</em> ... ]
+	 * </pre>
+	 * Exits with status 1 iff the script has compilation errors; exceptions thrown by the script's {@code main()}
+	 * method are propagated (which makes the JVM exit with status 1, too).
+	 */
+	public static void
+	main(String[] args) throws Exception {
+
+		if (args.length == 0) {
+			System.err.println("Usage: ScriptLauncher <script-file> [ <arg> ... ]");
+			System.exit(2);
+		}
+
+		String source = new String(Files.readAllBytes(Paths.get(args[0])), StandardCharsets.UTF_8);
+
+		CompiledScript script;
+		try {
+			script = new ScriptCache(ScriptCache.defaultDirectory()).get(args[0], source);
+		} catch (IOException ioe) {
+			System.err.println(ioe.getMessage());
+			System.exit(1);
+			return;
+		}
+
+		script.run(Arrays.copyOfRange(args, 1, args.length));
+	}
+}
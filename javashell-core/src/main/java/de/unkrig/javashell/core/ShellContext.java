@@ -0,0 +1,146 @@
+
+package de.unkrig.javashell.core;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import de.unkrig.commons.lang.protocol.ProducerWhichThrows;
+import de.unkrig.commons.lang.protocol.RunnableWhichThrows;
+
+/**
+ * The state that a script shares with the commands it executes: The working directory, the environment variables
+ * for subprocesses, and the standard streams. {@link JavaShell#cd(File) cd()}, {@link JavaShell#pwd() pwd()},
+ * {@code ls()}, {@link JavaShell#expand(String) expand()}, {@code cat()}, {@code cp()}, {@code exec()} and friends
+ * resolve against the {@link #current()} context.
+ * <p>
+ *   The context is bound to a thread with {@link #run(RunnableWhichThrows)} or {@link #call(ProducerWhichThrows)},
+ *   and is inherited by the threads that the thread starts, in particular by the background stages of its
+ *   pipelines. Thus many scripts can execute concurrently in one JVM, each in its own context. Threads that have no
+ *   context bound use the JVM-wide default context, whose working directory is initially "{@code user.dir}", and
+ *   whose standard streams are {@link System#in}, {@link System#out} and {@link System#err}.
+ * </p>
+ */
+public final
+class ShellContext {
+
+	private static final InheritableThreadLocal<ShellContext> CURRENT = new InheritableThreadLocal<>();
+	private static final ShellContext                         DEFAULT = new ShellContext(
+		new File(System.getProperty("user.dir")).getAbsoluteFile(),
+		null,
+		null,
+		null,
+		null
+	);
+
+	private volatile File             directory;
+	private final Map<String, String> environment;
+	private final InputStream         stdin;
+	private final OutputStream        stdout, stderr;
+
+	/**
+	 * @param directory   The initial working directory; relative to the {@link #current()} context's working
+	 *                    directory
+	 * @param environment The environment variables for subprocesses, or {@code null} to inherit the JVM's environment
+	 * @param stdin       {@code null} means {@link System#in}
+	 * @param stdout      {@code null} means {@link System#out}
+	 * @param stderr      {@code null} means {@link System#err}
+	 */
+	public
+	ShellContext(
+		File                directory,
+		Map<String, String> environment,
+		InputStream         stdin,
+		OutputStream        stdout,
+		OutputStream        stderr
+	) {
+		this.directory   = directory.isAbsolute() ? directory : ShellContext.current().resolve(directory);
+		this.environment = environment == null ? null : Collections.unmodifiableMap(new HashMap<>(environment));
+		this.stdin       = stdin;
+		this.stdout      = stdout;
+		this.stderr      = stderr;
+	}
+
+	/**
+	 * @return The context bound to the current thread, or the JVM-wide default context
+	 */
+	public static ShellContext
+	current() {
+		ShellContext result = CURRENT.get();
+		return result != null ? result : DEFAULT;
+	}
+
+	/**
+	 * @return A new context with the same working directory, environment and standard streams as this one; changes
+	 *         of the working directory of either context do not affect the other
+	 */
+	public ShellContext
+	fork() { return new ShellContext(this.directory, this.environment, this.stdin, this.stdout, this.stderr); }
+
+	/**
+	 * Executes the <var>runnable</var> with this context bound to the current thread.
+	 */
+	public <EX extends Throwable> void
+	run(RunnableWhichThrows<EX> runnable) throws EX {
+		this.call(() -> { runnable.run(); return null; });
+	}
+
+	/**
+	 * Executes the <var>producer</var> with this context bound to the current thread.
+	 *
+	 * @return The value produced by the <var>producer</var>
+	 */
+	public <T, EX extends Throwable> T
+	call(ProducerWhichThrows<T, EX> producer) throws EX {
+
+		ShellContext previous = CURRENT.get();
+		CURRENT.set(this);
+		try {
+			return producer.produce();
+		} finally {
+			if (previous == null) {
+				CURRENT.remove();
+			} else {
+				CURRENT.set(previous);
+			}
+		}
+	}
+
+	/**
+	 * @return The (absolute) working directory
+	 */
+	public File
+	getDirectory() { return this.directory; }
+
+	/**
+	 * @return The environment variables for subprocesses, or {@code null} if they inherit the JVM's environment
+	 */
+	public Map<String, String>
+	getEnvironment() { return this.environment; }
+
+	public InputStream  getStdin()  { return this.stdin  != null ? this.stdin  : System.in;  }
+	public OutputStream getStdout() { return this.stdout != null ? this.stdout : System.out; }
+	public OutputStream getStderr() { return this.stderr != null ? this.stderr : System.err; }
+
+	/**
+	 * @return The <var>file</var>, if it is absolute, otherwise the <var>file</var> relative to the working directory
+	 */
+	public File
+	resolve(File file) { return file.isAbsolute() ? file : new File(this.directory, file.getPath()); }
+
+	/**
+	 * @return The <var>path</var>, if it is absolute, otherwise the <var>path</var> relative to the working directory
+	 */
+	public Path
+	resolve(Path path) { return path.isAbsolute() ? path : this.directory.toPath().resolve(path); }
+
+	void
+	setDirectory(File directory) { this.directory = directory; }
+
+	@Override public String
+	toString() { return "cwd=" + this.directory; }
+}
@@ -0,0 +1,110 @@
+
+package de.unkrig.javashell.core;
+
+/**
+ * The statistics of one stage of an instrumented pipeline. The values are updated while the stage executes, and
+ * may be read concurrently. "Count" means bytes for {@link ByteFilter} stages, and chars for {@link CharFilter}
+ * stages.
+ * <p>
+ *   The "fill level" of the stage's input is the number of bytes or chars that the previous stage has written, but
+ *   this stage has not yet read; it is sampled each time this stage reads. A stage whose input is constantly full
+ *   is a bottleneck; a stage that spends most of its time blocked reading waits for a bottleneck upstream.
+ * </p>
+ *
+ * @see JavaShell#setPipelineListener(PipelineListener)
+ */
+public final
+class StageStats {
+
+	private final String     pipeline;
+	private final int        index, stageCount;
+	private final String     name;
+	private final StageStats upstream;
+
+	volatile String    threadName;
+	volatile long      startNanos, endNanos;
+	volatile long      countIn, countOut;
+	volatile long      readBlockedNanos, writeBlockedNanos;
+	volatile long      maxFill, fillSum, fillSamples;
+	volatile Throwable exception;
+
+	StageStats(String pipeline, int index, int stageCount, String name, StageStats upstream) {
+		this.pipeline   = pipeline;
+		this.index      = index;
+		this.stageCount = stageCount;
+		this.name       = name;
+		this.upstream   = upstream;
+	}
+
+	/**
+	 * @return E.g. "{@code byteFilter-7}"; unique within the JVM
+	 */
+	public String getPipeline()   { return this.pipeline;   }
+	public int    getIndex()      { return this.index;      }
+	public int    getStageCount() { return this.stageCount; }
+
+	/**
+	 * @return The {@link Object#toString()} of the stage's filter, if it overrides that method, otherwise {@code
+	 *         "stage"}
+	 */
+	public String getName()       { return this.name;       }
+	public String getThreadName() { return this.threadName; }
+
+	public long getCountIn()           { return this.countIn;  }
+	public long getCountOut()          { return this.countOut; }
+	public long getReadBlockedNanos()  { return this.readBlockedNanos;  }
+	public long getWriteBlockedNanos() { return this.writeBlockedNanos; }
+
+	/**
+	 * @return Since the stage started, or until it completed
+	 */
+	public long
+	getElapsedNanos() {
+		long start = this.startNanos, end = this.endNanos;
+		return start == 0 ? 0 : (end == 0 ? System.nanoTime() : end) - start;
+	}
+
+	public long getMaxInputFill() { return this.maxFill; }
+
+	public long
+	getAverageInputFill() { long n = this.fillSamples; return n == 0 ? 0 : this.fillSum / n; }
+
+	public boolean isCompleted() { return this.endNanos != 0; }
+
+	/**
+	 * @return The exception that the stage produced, or {@code null}
+	 */
+	public Throwable getException() { return this.exception; }
+
+	/**
+	 * Records the current fill level of this stage's input.
+	 */
+	void
+	sampleFill() {
+
+		if (this.upstream == null) return;
+
+		long fill = this.upstream.countOut - this.countIn;
+		if (fill > this.maxFill) this.maxFill = fill;
+		this.fillSum += fill;
+		this.fillSamples++;
+	}
+
+	@Override public String
+	toString() {
+		return String.format(
+			"%s[%d/%d] %s: in=%d out=%d readBlocked=%dms writeBlocked=%dms elapsed=%dms fill(avg/max)=%d/%d",
+			this.pipeline,
+			this.index,
+			this.stageCount,
+			this.name,
+			this.countIn,
+			this.countOut,
+			this.readBlockedNanos / 1000000,
+			this.writeBlockedNanos / 1000000,
+			this.getElapsedNanos() / 1000000,
+			this.getAverageInputFill(),
+			this.maxFill
+		);
+	}
+}
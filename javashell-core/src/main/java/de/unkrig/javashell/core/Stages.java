@@ -0,0 +1,514 @@
+
+package de.unkrig.javashell.core;
+
+import java.io.File;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.MatchResult;
+import java.util.regex.Pattern;
+
+import de.unkrig.commons.io.IoUtil;
+import de.unkrig.commons.lang.protocol.FunctionWhichThrows;
+import de.unkrig.commons.text.pattern.PatternUtil;
+
+/**
+ * The filters that {@link JavaShell#tr_(byte, byte)}, {@link JavaShell#sedSubstituteAll_(Pattern, String)}, {@link
+ * JavaShell#cat_()}, {@link JavaShell#cp_()}, {@link JavaShell#exec_(String...)}, {@link JavaShell#echo_(String)}
+ * and friends return. Other than lambdas, they can be recognized and rewritten by the {@link PipelinePlan}
+ * optimizer, and their {@link Object#toString()} describes them for {@link PipelinePlan#explain()}.
+ */
+final
+class Stages {
+
+	private Stages() {}
+
+	/**
+	 * "{@code cp}": Copies its input to its output.
+	 */
+	static final
+	class Cp<T> implements ByteFilter<T> {
+
+		@Override public T
+		execute(InputStream in, OutputStream out) throws IOException { return JavaShell.cp(in, out); }
+
+		@Override public String
+		toString() { return "cp"; }
+	}
+
+	/**
+	 * "{@code cat}": Copies its input to its output.
+	 */
+	static final
+	class Cat<T> implements CharFilter<T> {
+
+		@Override public T
+		execute(Reader in, Writer out) throws IOException { return JavaShell.cat(new Reader[] { in }, out); }
+
+		@Override public String
+		toString() { return "cat"; }
+	}
+
+	/**
+	 * "{@code echo words...}": Ignores its input.
+	 */
+	static final
+	class Echo<T> implements CharFilter<T> {
+
+		private final String[] words;
+
+		Echo(String[] words) { this.words = words; }
+
+		@Override public T
+		execute(Reader in, Writer out) throws IOException { return JavaShell.echo(this.words, out); }
+
+		@Override public String
+		toString() { return "echo " + String.join(" ", this.words); }
+	}
+
+	/**
+	 * "{@code tar -c files...}" or "{@code zip -r - files...}": Ignores its input, and writes an archive of the
+	 * files; returns the number of entries.
+	 */
+	static final
+	class Archive implements ByteFilter<Integer> {
+
+		private final Archives.Format format;
+		private final File[]          files;
+
+		Archive(Archives.Format format, File[] files) {
+			this.format = format;
+			this.files  = files;
+		}
+
+		@Override public Integer
+		execute(InputStream in, OutputStream out) throws IOException {
+			return this.format == Archives.Format.TAR ? JavaShell.tar(this.files, out) : JavaShell.zip(this.files, out);
+		}
+
+		@Override public String
+		toString() {
+			StringBuilder sb = new StringBuilder(this.format == Archives.Format.TAR ? "tar -c" : "zip -r -");
+			for (File file : this.files) sb.append(' ').append(file);
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * "{@code tar -x -C dir}" or "{@code unzip -d dir -}": Extracts the archive that it reads; returns the number of
+	 * entries.
+	 */
+	static final
+	class Extract implements ByteFilter<Integer> {
+
+		private final Archives.Format format;
+		private final File            targetDir;
+		private final int             parallelism;
+
+		Extract(Archives.Format format, File targetDir, int parallelism) {
+			this.format      = format;
+			this.targetDir   = targetDir;
+			this.parallelism = parallelism;
+		}
+
+		@Override public Integer
+		execute(InputStream in, OutputStream out) throws IOException {
+			return (
+				this.format == Archives.Format.TAR
+				? JavaShell.untar(in, this.targetDir, this.parallelism)
+				: JavaShell.unzip(in, this.targetDir, this.parallelism)
+			);
+		}
+
+		@Override public String
+		toString() {
+			return (this.format == Archives.Format.TAR ? "tar -x -C " : "unzip -d ") + this.targetDir;
+		}
+	}
+
+	/**
+	 * "{@code gzip}" and "{@code gunzip}".
+	 */
+	static final
+	class Gzip implements ByteFilter<Long> {
+
+		private final boolean compress;
+
+		Gzip(boolean compress) { this.compress = compress; }
+
+		@Override public Long
+		execute(InputStream in, OutputStream out) throws IOException {
+			return this.compress ? JavaShell.gzip(in, out) : JavaShell.gunzip(in, out);
+		}
+
+		@Override public String
+		toString() { return this.compress ? "gzip" : "gunzip"; }
+	}
+
+	/**
+	 * "{@code tr}" with a complete translation table; returns the number of input bytes that are "counted".
+	 */
+	static final
+	class Tr implements ByteFilter<Integer> {
+
+		private final byte[]    table;
+		private final boolean[] counted;
+		private final String    description;
+
+		/**
+		 * Replaces <var>pattern</var> with <var>replacement</var>, and counts the replaced bytes.
+		 */
+		Tr(byte pattern, byte replacement) {
+
+			this.table   = new byte[256];
+			this.counted = new boolean[256];
+			for (int i = 0; i < 256; i++) this.table[i] = (byte) i;
+			this.table[pattern & 0xff]   = replacement;
+			this.counted[pattern & 0xff] = true;
+
+			this.description = Tr.toString(pattern) + ' ' + Tr.toString(replacement);
+		}
+
+		private
+		Tr(byte[] table, boolean[] counted, String description) {
+			this.table       = table;
+			this.counted     = counted;
+			this.description = description;
+		}
+
+		/**
+		 * @return A {@link Tr} that translates like {@code this}, then <var>that</var>, and counts what <var>that</var>
+		 *         counts
+		 */
+		Tr
+		then(Tr that) {
+
+			byte[]    table   = new byte[256];
+			boolean[] counted = new boolean[256];
+			for (int i = 0; i < 256; i++) {
+				int b = this.table[i] & 0xff;
+				table[i]   = that.table[b];
+				counted[i] = that.counted[b];
+			}
+
+			return new Tr(table, counted, this.description + "; " + that.description);
+		}
+
+		@Override public Integer
+		execute(InputStream in, OutputStream out) throws IOException {
+
+			ByteBuffer buffer = BufferPool.get().acquire(8192, BufferPool.ALWAYS);
+			try {
+				byte[] ba    = buffer.array();
+				int    count = 0;
+				for (int n; (n = in.read(ba)) != -1;) {
+					for (int i = 0; i < n; i++) {
+						int b = ba[i] & 0xff;
+						if (this.counted[b]) count++;
+						ba[i] = this.table[b];
+					}
+					out.write(ba, 0, n);
+				}
+				return count;
+			} finally {
+				BufferPool.get().release(buffer);
+			}
+		}
+
+		@Override public String
+		toString() { return "tr " + this.description; }
+
+		private static String
+		toString(byte b) {
+			return b >= 0x20 && b < 0x7f ? "'" + (char) b + "'" : String.format("0x%02x", b & 0xff);
+		}
+	}
+
+	/**
+	 * "{@code sed s/pattern/replacement/}" or "{@code sed s/pattern/replacement/g}".
+	 */
+	static final
+	class Sed implements CharFilter<Integer> {
+
+		final Pattern pattern;
+		final String  replacementString;
+		final boolean all;
+
+		Sed(Pattern pattern, String replacementString, boolean all) {
+			this.pattern           = pattern;
+			this.replacementString = replacementString;
+			this.all               = all;
+		}
+
+		@Override public Integer
+		execute(Reader in, Writer out) throws IOException {
+			return (
+				this.all
+				? JavaShell.sedSubstituteAll(in, this.pattern, this.replacementString, out)
+				: JavaShell.sedSubstituteFirst(in, this.pattern, this.replacementString, out)
+			);
+		}
+
+		@Override public String
+		toString() { return "sed s/" + this.pattern + '/' + this.replacementString + (this.all ? "/g" : "/"); }
+	}
+
+	/**
+	 * A sequence of {@link Sed}s that executes in one thread: Each substitution is a filter writer that writes to
+	 * the next one. Returns the number of substitutions made by the last {@link Sed}. Like the unfused stages, each
+	 * "{@code s/.../.../g}" substitution commits its own {@link CommandEvent}.
+	 */
+	static final
+	class SedChain implements CharFilter<Integer> {
+
+		final List<Sed> seds;
+
+		SedChain(List<Sed> seds) { this.seds = seds; }
+
+		@Override public Integer
+		execute(Reader in, Writer out) throws IOException {
+
+			int[]          counts = new int[this.seds.size()];
+			CommandEvent[] events = new CommandEvent[this.seds.size()];
+
+			// Closing the chain flushes all substitutions, but must not close "out".
+			Appendable a = new FilterWriter(out) { @Override public void close() throws IOException { this.flush(); } };
+
+			for (int i = this.seds.size() - 1; i >= 0; i--) {
+				Sed sed = this.seds.get(i);
+
+				FunctionWhichThrows<MatchResult, String, ? extends RuntimeException>
+				replacer = PatternUtil.<RuntimeException>replacementStringMatchReplacer(sed.replacementString);
+
+				int       index = i;
+				boolean[] done  = new boolean[1];
+				a = PatternUtil.replaceAllFilterWriter(sed.pattern, mr -> {
+					if (done[0]) return null;
+					if (!sed.all) done[0] = true;
+					counts[index]++;
+					return replacer.call(mr);
+				}, a);
+
+				CommandEvent event = new CommandEvent();
+				if (sed.all && event.isEnabled()) a = event.count((Writer) a);
+				events[i] = event;
+			}
+
+			for (CommandEvent event : events) event.begin();
+			try {
+				Writer w = (Writer) a;
+				IoUtil.copy(in, false, w, false);
+				w.close();
+			} catch (IOException | RuntimeException e) {
+				for (CommandEvent event : events) event.exception = e;
+				throw e;
+			} finally {
+				for (int i = 0; i < events.length; i++) {
+					Sed sed = this.seds.get(i);
+					if (sed.all) events[i].commit("sedSubstituteAll", sed.pattern, sed.replacementString, counts[i]);
+				}
+			}
+
+			return counts[counts.length - 1];
+		}
+
+		@Override public String
+		toString() {
+			List<String> l = new ArrayList<>();
+			for (Sed sed : this.seds) l.add(sed.toString());
+			return String.join("; ", l);
+		}
+	}
+
+	/**
+	 * "{@code exec command...}"
+	 */
+	static final
+	class Exec implements ByteFilter<Boolean> {
+
+		final List<String>        command;
+		final Map<String, String> environment;
+		final File                workingDirectory;
+		final OutputStream        stderr;
+
+		Exec(List<String> command, Map<String, String> environment, File workingDirectory, OutputStream stderr) {
+			this.command          = command;
+			this.environment      = environment;
+			this.workingDirectory = workingDirectory;
+			this.stderr           = stderr;
+		}
+
+		@Override public Boolean
+		execute(InputStream in, OutputStream out) throws IOException {
+			try {
+				return JavaShell.exec(
+					in,                    // stdin
+					false,                 // closeStdin
+					this.command,          // command
+					this.environment,      // environment
+					this.workingDirectory, // workingDirectory
+					out,                   // stdout,
+					false,                 // closeStdout
+					this.stderr != null ? this.stderr : ShellContext.current().getStderr(), // stderr
+					false                  // closeStderr
+				);
+			} catch (InterruptedException e) {
+				return false;
+			}
+		}
+
+		/**
+		 * @return Whether this stage can be part of an {@link ExecPipeline}, which redirects the standard error of all
+		 *         its processes to that of the {@link ShellContext#current() current shell context}
+		 */
+		boolean
+		isCollapsible() { return this.environment == null && this.stderr == null; }
+
+		@Override public String
+		toString() { return "exec " + String.join(" ", this.command); }
+	}
+
+	/**
+	 * A sequence of {@link Exec}s that are connected through OS pipes, see {@link
+	 * ProcessBuilder#startPipeline(List)}; the data passes between the processes without being copied through the
+	 * JVM. The processes' standard error is inherited, unless the {@link ShellContext#current() current shell
+	 * context} redirects it. Returns whether the last process exited with status 0. Like the unfused stages, each
+	 * process commits its own {@link CommandEvent}.
+	 */
+	static final
+	class ExecPipeline implements ByteFilter<Boolean> {
+
+		final List<Exec> execs;
+
+		ExecPipeline(List<Exec> execs) { this.execs = execs; }
+
+		@Override public Boolean
+		execute(InputStream in, OutputStream out) throws IOException {
+
+			OutputStream stderr        = ShellContext.current().getStderr();
+			boolean      inheritStderr = stderr == System.err;
+
+			List<ProcessBuilder> builders = new ArrayList<>();
+			for (Exec exec : this.execs) {
+				ProcessBuilder pb = JavaShell.processBuilder(exec.command, null, exec.workingDirectory);
+				if (inheritStderr) pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+				builders.add(pb);
+			}
+
+			CommandEvent[] events = new CommandEvent[this.execs.size()];
+			for (int i = 0; i < events.length; i++) events[i] = new CommandEvent();
+			if (events[events.length - 1].isEnabled()) out = events[events.length - 1].count(out);
+
+			for (CommandEvent event : events) event.begin();
+			List<Process> processes = Collections.emptyList();
+			try {
+				processes = ProcessBuilder.startPipeline(builders);
+				return this.execute(processes, in, out, inheritStderr ? null : stderr);
+			} catch (InterruptedException ie) {
+				for (CommandEvent event : events) event.exception = ie;
+				Thread.currentThread().interrupt();
+				return false;
+			} catch (IOException | RuntimeException e) {
+				for (CommandEvent event : events) event.exception = e;
+				throw e;
+			} finally {
+				for (int i = 0; i < events.length; i++) {
+					Process p       = i < processes.size() ? processes.get(i) : null;
+					boolean success = p != null && !p.isAlive() && p.exitValue() == 0;
+
+					// A no-op iff the process has already exited.
+					if (p != null) p.destroy();
+
+					events[i].commit("exec", this.execs.get(i).command, null, success ? 0 : 1);
+				}
+			}
+		}
+
+		/**
+		 * @param stderr {@code null} iff the processes inherit the standard error of the JVM
+		 */
+		private Boolean
+		execute(List<Process> processes, InputStream in, OutputStream out, OutputStream stderr)
+		throws IOException, InterruptedException {
+
+			Process first = processes.get(0);
+			Process last  = processes.get(processes.size() - 1);
+
+			List<Thread> stderrCopiers = new ArrayList<>();
+			if (stderr != null) {
+				for (Process p : processes) {
+					Thread t = new Thread(() -> {
+						try (InputStream processStderr = p.getErrorStream()) {
+							BufferPool.copy(processStderr, stderr);
+							stderr.flush();
+						} catch (IOException ioe) {
+							;
+						}
+					});
+					t.setDaemon(true);
+					t.start();
+					stderrCopiers.add(t);
+				}
+			}
+
+			JavaShell.executeRunnableInBackground(() -> {
+				try (OutputStream stdin = first.getOutputStream()) {
+					IoUtil.copy(in, stdin);
+				} catch (IOException ioe) {
+
+					// E.g. the first process exited before reading all its input.
+					;
+				}
+			});
+
+			try (InputStream stdout = last.getInputStream()) {
+				IoUtil.copy(stdout, out);
+			}
+
+			for (Process p : processes) p.waitFor();
+
+			// Like "JavaShell.execute()", do not return before the standard error was copied completely.
+			for (Thread t : stderrCopiers) t.join();
+
+			return last.exitValue() == 0;
+		}
+
+		@Override public String
+		toString() {
+			List<String> l = new ArrayList<>();
+			for (Exec exec : this.execs) l.add(String.join(" ", exec.command));
+			return "exec " + String.join(" | ", l);
+		}
+	}
+
+	/**
+	 * A {@link JavaShell#charFilter_(boolean, boolean, CharFilter[])} pipeline, as a single {@link CharFilter}.
+	 */
+	static final
+	class CharPipeline<T> implements CharFilter<T> {
+
+		final CharFilter<? extends T>[] stages;
+
+		CharPipeline(CharFilter<? extends T>[] stages) { this.stages = stages; }
+
+		@SuppressWarnings("unchecked") @Override public T
+		execute(Reader in, Writer out) throws IOException {
+			return (T) JavaShell.charFilter_(false, false, this.stages).execute(in, out);
+		}
+
+		@Override public String
+		toString() {
+			List<String> l = new ArrayList<>();
+			for (CharFilter<?> stage : this.stages) l.add(Instrumentation.stageName(stage));
+			return String.join(" | ", l);
+		}
+	}
+}
@@ -0,0 +1,208 @@
+
+package de.unkrig.javashell.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The implementation of {@link JavaShell#tailF_(File, boolean, long)}.
+ * <p>
+ *   Waits for changes of the file's directory through a {@link WatchService}; because some watch services are
+ *   slow (or not available at all), the file is also checked every <var>pollInterval</var> milliseconds.
+ * </p>
+ * <p>
+ *   Rotation is detected by the file key (e.g. the inode number) of the path changing; the old file is drained
+ *   before the new file is read from its start. Truncation is detected by the file size dropping below the read
+ *   position; reading then continues at the start of the file.
+ * </p>
+ */
+final
+class Tail implements ByteFilter<Void> {
+
+	private static final int BUFFER_SIZE = 64 << 10;
+
+	private final File    file;
+	private final boolean fromStart;
+	private final long    pollInterval; // Milliseconds
+
+	Tail(File file, boolean fromStart, long pollInterval) {
+
+		if (pollInterval <= 0) throw new IllegalArgumentException("pollInterval");
+
+		this.file         = file;
+		this.fromStart    = fromStart;
+		this.pollInterval = pollInterval;
+	}
+
+	/**
+	 * Never returns normally; terminates when the thread is interrupted or writing to <var>out</var> fails.
+	 *
+	 * @param in Is ignored
+	 */
+	@Override public Void
+	execute(InputStream in, OutputStream out) throws IOException {
+
+		Path path = ShellContext.current().resolve(this.file.toPath());
+
+		WatchService watcher = Tail.watch(path);
+		ByteBuffer   buffer  = BufferPool.get().acquire(BUFFER_SIZE, BufferPool.ALWAYS);
+		FileChannel  channel = null;
+		try {
+			Object  fileKey   = null;
+			long    position  = 0;
+			boolean fromStart = this.fromStart;
+			for (;;) {
+
+				if (channel == null) {
+					try {
+						channel  = FileChannel.open(path, StandardOpenOption.READ);
+						fileKey  = Tail.fileKey(path);
+						position = fromStart ? 0 : channel.size();
+					} catch (NoSuchFileException nsfe) {
+						;
+					}
+
+					// A file that appears later (e.g. after a rotation) is read from its start.
+					fromStart = true;
+				}
+
+				if (channel != null) {
+					if (channel.size() < position) position = 0;
+					position = Tail.copy(channel, position, buffer, out);
+
+					// Notice: While the path does not exist, we keep following the old file, because that is
+					// probably still being written.
+					Object newFileKey = Tail.fileKey(path);
+					if (newFileKey != null && !newFileKey.equals(fileKey)) {
+						Tail.copy(channel, position, buffer, out);
+						channel.close();
+						channel = null;
+						continue;
+					}
+				}
+
+				Tail.await(watcher, this.pollInterval);
+			}
+		} finally {
+			try {
+				if (channel != null) channel.close();
+				if (watcher != null) watcher.close();
+			} finally {
+				BufferPool.get().release(buffer);
+			}
+		}
+	}
+
+	@Override public String
+	toString() { return "tail -F " + this.file; }
+
+	/**
+	 * Copies the bytes from <var>position</var> to the end of the <var>channel</var> to <var>out</var>, and flushes
+	 * <var>out</var> iff any bytes were copied.
+	 *
+	 * @return The position after the last byte copied
+	 */
+	private static long
+	copy(FileChannel channel, long position, ByteBuffer buffer, OutputStream out) throws IOException {
+
+		boolean copied = false;
+		for (;;) {
+			buffer.clear();
+			int n = channel.read(buffer, position);
+			if (n <= 0) break;
+			position += n;
+			out.write(buffer.array(), buffer.arrayOffset(), n);
+			copied = true;
+		}
+		if (copied) out.flush();
+
+		return position;
+	}
+
+	/**
+	 * @return The file key of <var>path</var> (or, on platforms that do not support file keys, its creation time),
+	 *         or {@code null} iff <var>path</var> does not exist
+	 */
+	private static Object
+	fileKey(Path path) throws IOException {
+
+		BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes(path, BasicFileAttributes.class);
+		} catch (NoSuchFileException nsfe) {
+			return null;
+		}
+
+		Object result = attributes.fileKey();
+		return result != null ? result : attributes.creationTime();
+	}
+
+	/**
+	 * @return A watch service that reports changes in the directory of the <var>path</var>, or {@code null} iff that
+	 *         is not possible
+	 */
+	private static WatchService
+	watch(Path path) {
+
+		Path dir = path.toAbsolutePath().getParent();
+		if (dir == null) return null;
+
+		WatchService result;
+		try {
+			result = dir.getFileSystem().newWatchService();
+		} catch (IOException | UnsupportedOperationException e) {
+			return null;
+		}
+
+		try {
+			dir.register(
+				result,
+				StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_MODIFY,
+				StandardWatchEventKinds.ENTRY_DELETE
+			);
+			return result;
+		} catch (IOException | UnsupportedOperationException e) {
+			try { result.close(); } catch (IOException ioe) {}
+			return null;
+		}
+	}
+
+	/**
+	 * Waits until the <var>watcher</var> reports a change, or <var>pollInterval</var> milliseconds have elapsed.
+	 */
+	private static void
+	await(WatchService watcher, long pollInterval) throws InterruptedIOException {
+		try {
+			if (watcher == null) {
+				Thread.sleep(pollInterval);
+				return;
+			}
+
+			for (
+				WatchKey key = watcher.poll(pollInterval, TimeUnit.MILLISECONDS);
+				key != null;
+				key = watcher.poll()
+			) {
+				key.pollEvents();
+				key.reset();
+			}
+		} catch (InterruptedException ie) {
+			throw new InterruptedIOException();
+		}
+	}
+}
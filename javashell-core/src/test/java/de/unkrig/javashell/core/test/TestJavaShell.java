@@ -3,7 +3,10 @@ package de.unkrig.javashell.core.test;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -13,15 +16,50 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PipedReader;
 import java.io.PipedWriter;
+import java.io.Reader;
 import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
 import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+import javax.management.ObjectName;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarConstants;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -29,8 +67,25 @@ import org.junit.Test;
 import de.unkrig.commons.file.FileUtil;
 import de.unkrig.commons.io.InputStreams;
 import de.unkrig.commons.io.Readers;
+import de.unkrig.javashell.core.BufferFilter;
+import de.unkrig.javashell.core.BufferPool;
+import de.unkrig.javashell.core.ByteFilter;
 import de.unkrig.javashell.core.CharFilter;
+import de.unkrig.javashell.core.CharsetBridge;
+import de.unkrig.javashell.core.ChecksumAlgorithm;
+import de.unkrig.javashell.core.CompiledScript;
+import de.unkrig.javashell.core.DiskUsage;
+import de.unkrig.javashell.core.FindPredicate;
 import de.unkrig.javashell.core.JavaShell;
+import de.unkrig.javashell.core.LsOption;
+import de.unkrig.javashell.core.Partitioner;
+import de.unkrig.javashell.core.PipelineListener;
+import de.unkrig.javashell.core.PipelinePlan;
+import de.unkrig.javashell.core.ProcessSubstitution;
+import de.unkrig.javashell.core.ScriptCache;
+import de.unkrig.javashell.core.ScriptCompiler;
+import de.unkrig.javashell.core.ShellContext;
+import de.unkrig.javashell.core.StageStats;
 
 public
 class TestJavaShell {
@@ -76,6 +131,40 @@ class TestJavaShell {
 		fe(JavaShell.expand(tmpPath + "/dir1/**"), dir1_dir2, dir1_dir2_file1, dir1_file1);
 	}
 
+	@Test public void
+	testLs() throws IOException {
+
+		File dir1 = mkdir(new File(TMP, "dir1"));
+		mkfile(new File(TMP, "b"), "1");
+		mkfile(new File(TMP, "a"), "333");
+		mkfile(new File(TMP, ".c"), "22");
+		mkfile(new File(dir1, "d"), "");
+
+		assertEquals(lines("a", "b", "dir1"), ls(new File[] { TMP }));
+		assertEquals(lines(".c", "a", "b", "dir1"), ls(new File[] { TMP }, LsOption.ALL));
+		assertEquals(lines("dir1", "b", "a"), ls(new File[] { TMP }, LsOption.REVERSE));
+		File a = new File(TMP, "a"), b = new File(TMP, "b"), c = new File(TMP, ".c");
+		assertEquals(lines("" + a, "" + c, "" + b), ls(new File[] { a, b, c }, LsOption.SORT_BY_SIZE));
+		assertEquals(
+			lines(TMP + ":", "a", "b", "dir1", "", new File(TMP, "dir1") + ":", "d"),
+			ls(new File[] { TMP }, LsOption.RECURSIVE)
+		);
+
+		String[] longLines = ls(new File[] { new File(TMP, "a"), dir1 }, LsOption.LONG).split(LINE_SEPARATOR);
+		assertTrue(longLines[0], longLines[0].matches("-[-rwx]{9} .* 3 \\d{4}-\\d\\d-\\d\\d \\d\\d:\\d\\d tmp.a"));
+		assertEquals("", longLines[1]);
+		assertEquals(dir1 + ":", longLines[2]);
+		assertTrue(longLines[3], longLines[3].matches("-[-rwx]{9} .* 0 .* d"));
+
+		// Symbolic links are read relative to the working directory of the shell context.
+		Files.createSymbolicLink(new File(dir1, "link").toPath(), Paths.get("d"));
+		ShellContext ctx = new ShellContext(TMP, null, InputStream.nullInputStream(), null, null);
+		String       l1  = ctx.call(() -> ls(new File[] { new File("dir1", "link") }, LsOption.LONG));
+		assertTrue(l1, l1.matches("l[-rwx]{9} .* dir1.link -> d" + LINE_SEPARATOR));
+		String[] l2 = ctx.call(() -> ls(new File[] { new File("dir1") }, LsOption.LONG)).split(LINE_SEPARATOR);
+		assertTrue(l2[1], l2[1].matches("l[-rwx]{9} .* link -> d"));
+	}
+
 	@Test public void
 	testCp() throws IOException {
 
@@ -89,6 +178,90 @@ class TestJavaShell {
 		assertFileContents("HELLO", bar);
 	}
 
+	@Test public void
+	testCatFiles() throws IOException {
+
+		File foo = mkfile(new File(TMP, "foo"), "HELLO");
+		File bar = mkfile(new File(TMP, "bar"), "WORLD");
+		File baz = new File(TMP, "baz");
+
+		try (FileOutputStream os = new FileOutputStream(baz)) {
+			JavaShell.cat(new File[] { foo, bar }, os);
+		}
+		assertFileContents("HELLOWORLD", baz);
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		JavaShell.cat(new File[] { foo, bar }, baos);
+		assertEquals("HELLOWORLD", new String(baos.toByteArray()));
+
+		File qux = new File(TMP, "qux");
+		try (
+			InputStream      is1 = new ByteArrayInputStream("ONE".getBytes());
+			InputStream      is2 = new FileInputStream(foo);
+			FileOutputStream os  = new FileOutputStream(qux);
+		) {
+			JavaShell.cat(new InputStream[] { is1, is2 }, os);
+			assertEquals(-1, is2.read());
+		}
+		assertFileContents("ONEHELLO", qux);
+
+		// Data that is appended while the file is being transferred is copied, too.
+		File                growing = mkfile(new File(TMP, "growing"), "HELLO");
+		WritableByteChannel wbc     = Channels.newChannel(baos);
+		baos.reset();
+		JavaShell.cat(new File[] { growing }, new WritableByteChannel() {
+
+			private boolean appended;
+
+			@Override public int
+			write(ByteBuffer src) throws IOException {
+				if (!this.appended) {
+					Files.write(growing.toPath(), "WORLD".getBytes(), StandardOpenOption.APPEND);
+					this.appended = true;
+				}
+				return wbc.write(src);
+			}
+
+			@Override public boolean isOpen() { return true; }
+			@Override public void    close()  {}
+		});
+		assertEquals("HELLOWORLD", new String(baos.toByteArray()));
+	}
+
+	@Test public void
+	testCatReadAhead() throws IOException {
+
+		File[]        files    = new File[10];
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < files.length; i++) {
+			String contents = "file #" + i + ";";
+			files[i] = mkfile(new File(TMP, "file" + i), contents);
+			expected.append(contents);
+		}
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		JavaShell.cat(files, 3, 2, 4, baos);
+		assertEquals(expected.toString(), new String(baos.toByteArray()));
+
+		File out = new File(TMP, "out");
+		try (FileOutputStream os = new FileOutputStream(out)) {
+			JavaShell.cat(files, 20, os);
+		}
+		assertFileContents(expected.toString(), out);
+
+		// A failing output must not leak any of the read-ahead buffers.
+		long borrowed = BufferPool.get().getBorrowedBytes();
+		try {
+			JavaShell.cat(files, 3, 2, 4, new OutputStream() {
+				@Override public void write(int b) throws IOException { throw new IOException("Disk full"); }
+			});
+			fail();
+		} catch (IOException ioe) {
+			assertEquals("Disk full", ioe.getMessage());
+		}
+		assertEquals(borrowed, BufferPool.get().getBorrowedBytes());
+	}
+
 	@Test public void
 	testByteFilter1A() throws IOException {
 		
@@ -111,6 +284,102 @@ class TestJavaShell {
 		assertEquals("HHaalllloo", new String(out.toByteArray()));
 	}
 
+	@Test public void
+	testByteFilterCharsets() throws IOException {
+
+		Charset utf8   = Charset.forName("UTF-8");
+		Charset latin1 = Charset.forName("ISO-8859-1");
+
+		InputStream           in  = new ByteArrayInputStream("Gr\u00fc\u00dfe, \ud83d\ude00!".getBytes(utf8));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		JavaShell.byteFilter(
+			in,
+			out,
+			JavaShell.sedSubstituteAll_(Pattern.compile("\u00fc"), "ue").asByteFilter(utf8),
+			JavaShell.sedSubstituteAll_(Pattern.compile("\u00df"), "ss").asByteFilter(utf8, latin1),
+			JavaShell.sedSubstituteAll_(Pattern.compile("!"), "?").asByteFilter(latin1)
+		);
+
+		assertEquals("Gruesse, ??", new String(out.toByteArray(), latin1));
+	}
+
+	@Test public void
+	testCharsetBridge() throws IOException {
+
+		String text = "ASCII \u00e4\u00f6\u00fc \u20ac \ud83d\ude00 \ud800 end";
+		for (String charsetName : new String[] { "UTF-8", "ISO-8859-1", "US-ASCII" }) {
+			Charset charset = Charset.forName(charsetName);
+
+			// Encoding.
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			try (Writer w = CharsetBridge.writer(baos, charset)) {
+				w.write(text.substring(0, 13));
+				for (char c : text.substring(13).toCharArray()) w.write(c);
+			}
+			assertArrayEquals(charsetName, text.getBytes(charset), baos.toByteArray());
+
+			// Decoding, one char at a time.
+			byte[]        bytes = "Gr\u00fc\u00dfe \ud83d\ude00".getBytes(Charset.forName("UTF-8"));
+			StringBuilder sb    = new StringBuilder();
+			try (Reader r = CharsetBridge.reader(new ByteArrayInputStream(bytes), charset)) {
+				for (int c; (c = r.read()) != -1;) sb.append((char) c);
+
+				// Reading past end-of-input.
+				assertEquals(-1, r.read());
+				assertEquals(-1, r.read(new char[10], 0, 10));
+			}
+			assertEquals(charsetName, new String(bytes, charset), sb.toString());
+		}
+	}
+
+	@Test public void
+	testBufferFilter() throws IOException {
+
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 10000; i++) sb.append("abcde");
+		String input = sb.toString();
+
+		long borrowed = BufferPool.get().getBorrowedBytes();
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int count = JavaShell.bufferFilter(
+			inputStream(input),
+			out,
+			JavaShell.trBuffer_((byte) 'a', (byte) 'x'),
+			BufferFilter.from(JavaShell.tr_((byte) 'b', (byte) 'y')),
+			JavaShell.cpBuffer_(),
+			JavaShell.trBuffer_((byte) 'c', (byte) 'z')
+		);
+
+		assertEquals(10000, count);
+		assertEquals(input.replace('a', 'x').replace('b', 'y').replace('c', 'z'), new String(out.toByteArray()));
+
+		out.reset();
+		JavaShell.bufferFilter(
+			Channels.newChannel(inputStream(input)),
+			Channels.newChannel(out),
+			JavaShell.trBuffer_((byte) 'e', (byte) 'E')
+		);
+		assertEquals(input.replace('e', 'E'), new String(out.toByteArray()));
+
+		// A filter that drops the buffers that it takes, and puts buffers of its own.
+		BufferFilter<Void> copy = (in, o) -> {
+			for (ByteBuffer b; (b = in.take()) != null;) {
+				byte[] ba = new byte[b.remaining()];
+				b.get(ba);
+				o.put(ByteBuffer.wrap(ba));
+			}
+			return null;
+		};
+		out.reset();
+		JavaShell.bufferFilter(inputStream(input), out, copy, JavaShell.cpBuffer_());
+		assertEquals(input, new String(out.toByteArray()));
+
+		// All buffers went back to the pool.
+		assertEquals(borrowed, BufferPool.get().getBorrowedBytes());
+	}
+
 	@Test public void
 	testCharFilter2A() throws IOException {
 		
@@ -141,6 +410,489 @@ class TestJavaShell {
 		));
 	}
 	
+	@Test public void
+	testParallelMap() throws IOException {
+
+		StringBuilder input    = new StringBuilder();
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 10000; i++) {
+			input.append("line ").append(i).append('\n');
+			if (i % 3 != 0) expected.append("LINE ").append(i).append(LINE_SEPARATOR);
+		}
+
+		StringWriter sw        = new StringWriter();
+		int          lineCount = JavaShell.parallelMap_(
+			line -> Integer.parseInt(line.substring(5)) % 3 == 0 ? null : line.toUpperCase(),
+			4,  // nThreads
+			7,  // batchSize
+			3   // maxBatchesInFlight
+		).execute(new StringReader(input.toString()), sw);
+
+		assertEquals(10000, lineCount);
+		assertEquals(expected.toString(), sw.toString());
+	}
+
+	@Test public void
+	testTee() throws IOException {
+
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 20000; i++) sb.append("line ").append(i).append('\n');
+		String input = sb.toString();
+
+		ByteArrayOutputStream out     = new ByteArrayOutputStream();
+		List<Object>          results = JavaShell.tee(
+			inputStream(input),
+			out,
+			(in2, out2) -> { long n = 0; while (in2.read() != -1) n++; return n; },
+			JavaShell.wcL().asByteFilter(),
+			(in2, out2) -> in2.read()  // Returns early.
+		);
+
+		assertEquals(input, new String(out.toByteArray()));
+		assertEquals(Arrays.asList((long) input.length(), 20000, (int) 'l'), results);
+
+		StringWriter sw = new StringWriter();
+		assertEquals(Arrays.asList(20000, 20000), JavaShell.tee(
+			new StringReader(input),
+			sw,
+			JavaShell.wcL(),
+			JavaShell.wcL()
+		));
+		assertEquals(input, sw.toString());
+	}
+
+	@Test public void
+	testPipelinePlan() throws IOException {
+
+		// Identity stages are dropped, and adjacent "tr"s are merged, but the result is that of the last "tr".
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(4, (int) JavaShell.<Integer>byteFilter(
+			inputStream("abcab"),
+			out,
+			JavaShell.cp_(),
+			JavaShell.tr_((byte) 'a', (byte) 'b'),
+			JavaShell.tr_((byte) 'b', (byte) 'c')
+		));
+		assertEquals("ccccc", new String(out.toByteArray()));
+
+		PipelinePlan plan = PipelinePlan.of(
+			JavaShell.cp_(),
+			JavaShell.tr_((byte) 'a', (byte) 'b'),
+			JavaShell.tr_((byte) 'b', (byte) 'c'),
+			JavaShell.exec_("tr", "c", "d"),
+			JavaShell.exec_("cat"),
+			JavaShell.cp_()
+		);
+		assertEquals(Arrays.asList("cp", "tr 'a' 'b'", "tr 'b' 'c'", "exec tr c d", "exec cat", "cp"), plan.getStages());
+		assertEquals(
+			Arrays.asList("tr 'a' 'b'; 'b' 'c'", "exec tr c d | cat", "cp"),
+			plan.optimize().getStages()
+		);
+		assertEquals(3, plan.optimize().getRewrites().size());
+		assertTrue(JavaShell.explain(JavaShell.cat_(), JavaShell.wcL()).startsWith("charFilter" + LINE_SEPARATOR));
+
+		// Processes connected through an OS pipe.
+		out.reset();
+		assertTrue(JavaShell.<Boolean>byteFilter(
+			inputStream("abcab"),
+			out,
+			JavaShell.exec_("tr", "a", "x"),
+			JavaShell.exec_("tr", "b", "y")
+		));
+		assertEquals("xycxy", new String(out.toByteArray()));
+
+		// The standard error of all processes is copied before the pipeline completes.
+		ByteArrayOutputStream err = new ByteArrayOutputStream();
+		ShellContext          ctx = new ShellContext(TMP, null, InputStream.nullInputStream(), null, err);
+		out.reset();
+		assertTrue(ctx.call(() -> JavaShell.<Boolean>byteFilter(
+			inputStream("abc"),
+			out,
+			JavaShell.exec_("sh", "-c", "echo e1 >&2; cat"),
+			JavaShell.exec_("sh", "-c", "cat; echo e2 >&2")
+		)));
+		assertEquals("abc", new String(out.toByteArray()));
+		assertEquals(
+			new HashSet<>(Arrays.asList("e1", "e2")),
+			new HashSet<>(Arrays.asList(err.toString().split("\n")))
+		);
+
+		// A stage with its own standard error is not fused.
+		assertEquals(
+			Arrays.asList("exec cat", "exec cat"),
+			PipelinePlan.of(
+				JavaShell.exec_("cat"),
+				JavaShell.exec_(Arrays.asList("cat"), null, null, System.err)
+			).optimize().getStages()
+		);
+
+		// Consecutive substitutions are executed in one thread; check that the chain handles matches that span
+		// buffer boundaries.
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 20000; i++) sb.append("line ").append(i).append('\n');
+		String input = sb.toString();
+
+		StringWriter sw = new StringWriter();
+		assertEquals(1, (int) JavaShell.<Integer>charFilter(
+			new StringReader(input),
+			sw,
+			JavaShell.sedSubstituteAll_(Pattern.compile("(\\d+)"), "<$1>"),
+			JavaShell.cat_(),
+			JavaShell.sedSubstituteAll_(Pattern.compile("e <1"), "E <1"),
+			JavaShell.sedSubstituteFirst_(Pattern.compile("E <(\\d+)>"), "E[$1]")
+		));
+		assertEquals(
+			input.replaceAll("(\\d+)", "<$1>").replaceAll("e <1", "E <1").replaceFirst("E <(\\d+)>", "E[$1]"),
+			sw.toString()
+		);
+		assertEquals(
+			Arrays.asList("sed s/(\\d+)/<$1>/g; sed s/e <1/E <1/g; sed s/E <(\\d+)>/E[$1]/"),
+			PipelinePlan.of(
+				JavaShell.sedSubstituteAll_(Pattern.compile("(\\d+)"), "<$1>"),
+				JavaShell.cat_(),
+				JavaShell.sedSubstituteAll_(Pattern.compile("e <1"), "E <1"),
+				JavaShell.sedSubstituteFirst_(Pattern.compile("E <(\\d+)>"), "E[$1]")
+			).optimize().getStages()
+		);
+	}
+
+	@Test public void
+	testBufferPool() throws IOException {
+
+		BufferPool pool = BufferPool.get();
+
+		ByteBuffer buffer = pool.acquire(5000);
+		assertEquals(8192, buffer.capacity());
+		pool.release(buffer);
+		assertSame(buffer, pool.acquire(8000));
+		pool.release(buffer);
+
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 50000; i++) sb.append("line ").append(i).append('\n');
+		byte[] input = sb.toString().getBytes();
+
+		long borrowed = pool.getBorrowedBytes();
+		long maxBytes = pool.getMaxBytes();
+		long waits    = pool.getWaits();
+		pool.setMaxBytes(16384);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			JavaShell.byteFilter(
+				new ByteArrayInputStream(input),
+				out,
+				(in2, out2) -> JavaShell.tr(in2, (byte) 'l', (byte) 'L', out2),
+				(in2, out2) -> JavaShell.cp(in2, out2),
+				(in2, out2) -> JavaShell.tr(in2, (byte) 'i', (byte) 'I', out2),
+				JavaShell.sedSubstituteAll_(Pattern.compile("L"), "l").asByteFilter(),
+				((CharFilter<Object>) (in2, out2) -> JavaShell.cat(new Reader[] { in2 }, out2)).asByteFilter(),
+				JavaShell.cp_()
+			);
+			assertEquals(sb.toString().replace('i', 'I'), new String(out.toByteArray()));
+		} finally {
+			pool.setMaxBytes(maxBytes);
+		}
+
+		// The pipes' buffers have been returned, and the limit throttled the stages.
+		assertEquals(borrowed, pool.getBorrowedBytes());
+		assertTrue(pool.getWaits() > waits);
+	}
+
+	@Test public void
+	testPipelineInstrumentation() throws Exception {
+
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 10000; i++) sb.append("line ").append(i).append('\n');
+		byte[] input = sb.toString().getBytes();
+
+		List<StageStats> completed = Collections.synchronizedList(new ArrayList<>());
+		JavaShell.setPipelineListener(new PipelineListener() {
+			@Override public void stageCompleted(StageStats stats) { completed.add(stats); }
+		});
+		JavaShell.setPipelineOptimization(false);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			JavaShell.byteFilter_(
+				JavaShell.tr_((byte) 'l', (byte) 'L'),
+				JavaShell.tr_((byte) 'i', (byte) 'I'),
+				JavaShell.cp_()
+			).execute(new ByteArrayInputStream(input), out);
+			assertEquals(sb.toString().replace('l', 'L').replace('i', 'I'), new String(out.toByteArray()));
+		} finally {
+			JavaShell.setPipelineOptimization(true);
+			JavaShell.setPipelineListener(null);
+		}
+
+		assertEquals(3, completed.size());
+		completed.sort(Comparator.comparingInt(StageStats::getIndex));
+		for (StageStats s : completed) {
+			assertEquals(input.length, s.getCountIn());
+			assertEquals(input.length, s.getCountOut());
+			assertTrue(s.isCompleted());
+		}
+		String threadName = completed.get(0).getThreadName();
+		assertTrue(threadName, threadName.matches("byteFilter-\\d+\\[0/3] tr 'l' 'L'"));
+		assertEquals(completed.get(0).getPipeline(), completed.get(2).getPipeline());
+
+		JavaShell.registerPipelineMXBean();
+		ObjectName on = new ObjectName("de.unkrig.javashell:type=Pipeline");
+		try {
+			assertTrue((Long) ManagementFactory.getPlatformMBeanServer().getAttribute(on, "StagesCompleted") >= 3);
+		} finally {
+			JavaShell.unregisterPipelineMXBean();
+		}
+		assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(on));
+	}
+
+	@Test public void
+	testCommandEvents() throws Exception {
+
+		File recordingFile = new File(TMP, "recording.jfr");
+		File from          = mkfile(new File(TMP, "from"), "a\nb\nc\n");
+		try (Recording recording = new Recording()) {
+			recording.enable("de.unkrig.javashell.Command");
+			recording.enable("de.unkrig.javashell.PipelineStage");
+			recording.start();
+
+			JavaShell.cpToFile(from, new File(TMP, "to"));
+			JavaShell.cpToFile(from, new File(TMP, "to2"), ChecksumAlgorithm.CRC32C);
+			assertEquals(3, JavaShell.wcL(new StringReader("a\nb\nc\n")));
+			JavaShell.setPipelineOptimization(false);
+			try {
+				JavaShell.charFilter_(JavaShell.cat_(), JavaShell.wcL()).execute(
+					new StringReader("x\n"),
+					new StringWriter()
+				);
+			} finally {
+				JavaShell.setPipelineOptimization(true);
+			}
+
+			// The merged substitutions commit one event each.
+			JavaShell.charFilter_(
+				JavaShell.sedSubstituteAll_(Pattern.compile("x"), "y"),
+				JavaShell.sedSubstituteAll_(Pattern.compile("y"), "z")
+			).execute(new StringReader("x\n"), new StringWriter());
+
+			recording.stop();
+			recording.dump(recordingFile.toPath());
+		}
+
+		List<String> commands = new ArrayList<>();
+		int          stages   = 0;
+		for (RecordedEvent e : RecordingFile.readAllEvents(recordingFile.toPath())) {
+			if (e.getEventType().getName().equals("de.unkrig.javashell.PipelineStage")) {
+				assertEquals("OK", e.getString("outcome"));
+				stages++;
+				continue;
+			}
+			commands.add(e.getString("command") + " " + e.getLong("count") + " " + e.getLong("result"));
+		}
+		assertEquals(commands.toString(), 2, Collections.frequency(commands, "cpToFile 6 6"));
+		assertTrue(commands.toString(), commands.contains("wcL 6 3"));
+		assertEquals(commands.toString(), 2, Collections.frequency(commands, "sedSubstituteAll 2 1"));
+		assertEquals(2, stages);
+	}
+
+	@Test public void
+	testChecksum() throws IOException {
+
+		File hello = mkfile(new File(TMP, "hello"), "HELLO");
+		File check = mkfile(new File(TMP, "check"), "123456789");
+
+		// Large enough to be hashed through memory mappings.
+		byte[] data = new byte[5 * 1024 * 1024 + 17];
+		for (int i = 0; i < data.length; i++) data[i] = (byte) (i % 251);
+		File big = new File(TMP, "big");
+		Files.write(big.toPath(), data);
+
+		assertEquals("eb61eead90e3b899c6bcbe27ac581660", JavaShell.checksum(hello, ChecksumAlgorithm.MD5));
+		assertEquals("c65f99f8c5376adadddc46d5cbcf5762f9e55eb7", JavaShell.checksum(hello, ChecksumAlgorithm.SHA_1));
+		assertEquals("e3069283", JavaShell.checksum(check, ChecksumAlgorithm.CRC32C));
+
+		String helloSha = "3733cd977ff8eb18b987357e22ced99f46097f31ecb239e878ae63760e83e4d5";
+		String bigSha   = "d97ad7b4df620ac2f558898cac08bab937b11379eb177b0a3afa05d8a747acfb";
+
+		StringBuilder sb = new StringBuilder();
+		assertEquals(
+			Arrays.asList(helloSha, bigSha),
+			JavaShell.checksum(new File[] { hello, big }, ChecksumAlgorithm.SHA_256, 2, sb)
+		);
+		assertEquals(lines(helloSha + "  " + hello.getPath(), bigSha + "  " + big.getPath()), sb.toString());
+
+		// Copy and verify in one pass.
+		File copy = new File(TMP, "copy");
+		JavaShell.cpToFile(big, copy, ChecksumAlgorithm.SHA_256, bigSha.toUpperCase());
+		assertArrayEquals(data, Files.readAllBytes(copy.toPath()));
+		try {
+			JavaShell.cpToFile(hello, copy, ChecksumAlgorithm.SHA_256, bigSha);
+			fail();
+		} catch (IOException ioe) {
+			assertTrue(!copy.exists());
+		}
+
+		// The filters.
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		assertEquals(helloSha, JavaShell.checksumTee_(ChecksumAlgorithm.SHA_256).execute(inputStream("HELLO"), baos));
+		assertEquals("HELLO", baos.toString());
+		baos.reset();
+		JavaShell.checksum_(ChecksumAlgorithm.SHA_256).execute(inputStream("HELLO"), baos);
+		assertEquals(helloSha + "  -" + LINE_SEPARATOR, baos.toString());
+
+		// A directory tree, sorted by path.
+		File tree = mkdir(new File(TMP, "tree"));
+		mkfile(new File(mkdir(new File(tree, "sub")), "hello"), "HELLO");
+		mkfile(new File(tree, "check"), "123456789");
+		mkfile(new File(tree, "x.tmp"), "");
+		sb.setLength(0);
+		assertEquals(2, JavaShell.checksumTree(
+			tree,
+			FindPredicate.not(FindPredicate.name("*.tmp")),
+			ChecksumAlgorithm.SHA_256,
+			2,
+			sb
+		).size());
+		assertEquals(
+			lines(
+				"15e2b0d3c33891ebb0f1ef609ec419420c20e320ce94c65fbc8c3312448eb225  tmp/tree/check",
+				helloSha + "  tmp/tree/sub/hello"
+			),
+			sb.toString()
+		);
+	}
+
+	@Test public void
+	testCut() throws IOException {
+
+		String input = "a,b,c\r\nd,e\n\nf,g,h,i";
+
+		// Reordered and repeated fields; missing fields are empty.
+		StringWriter sw = new StringWriter();
+		assertEquals(4, (int) JavaShell.cut_(',', 3, 1, 1).execute(new StringReader(input), sw));
+		assertEquals(lines("c,a,a", ",d,d", ",,", "h,f,f"), sw.toString());
+
+		sw = new StringWriter();
+		JavaShell.cut_(Pattern.compile("\\s+"), "|", 2, 4).execute(new StringReader("x  y z\tw\n1 2"), sw);
+		assertEquals(lines("y|w", "2|"), sw.toString());
+
+		// Lines longer than the initial buffer, and multi-byte UTF-8 characters.
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 10000; i++) sb.append("\u00e4\u20ac").append(i).append(':').append(i).append('\n');
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		byte[]                utf8 = sb.toString().getBytes(StandardCharsets.UTF_8);
+		assertEquals(10000, (int) JavaShell.cutBytes_((byte) ':', 2, 1).execute(new ByteArrayInputStream(utf8), baos));
+		String[] lines = new String(baos.toByteArray(), StandardCharsets.UTF_8).split(LINE_SEPARATOR);
+		assertEquals("9999:\u00e4\u20ac9999", lines[9999]);
+
+		sw = new StringWriter();
+		JavaShell.cut_(',', 1).execute(new StringReader(sb.toString().replace("\n", "")), sw);
+		assertEquals(sb.length() - 10000 + LINE_SEPARATOR.length(), sw.toString().length());
+	}
+
+	@Test public void
+	testDu() throws Exception {
+
+		File a = mkdir(new File(TMP, "a"));
+		File b = mkdir(new File(a, "b"));
+		File x = mkfile(new File(a, "x"), "12345");
+		mkfile(new File(b, "y"), "1234567890");
+		Files.createLink(new File(b, "x2").toPath(), x.toPath());
+
+		// The hard link "b/x2" is counted only once.
+		long      dirSize = Files.size(a.toPath()) + Files.size(b.toPath());
+		DiskUsage du      = JavaShell.du(a);
+		assertEquals(dirSize + 15, du.getSize());
+		assertEquals(4, du.getFileCount());
+		assertTrue(du.getAllocatedSize() >= du.getSize());
+
+		// Only directories that were modified a while ago are cached.
+		FileTime anHourAgo = FileTime.fromMillis(System.currentTimeMillis() - 3600000);
+		Files.setLastModifiedTime(a.toPath(), anHourAgo);
+		Files.setLastModifiedTime(b.toPath(), anHourAgo);
+
+		File cache = new File(TMP, "du.cache");
+		assertEquals(dirSize + 15, JavaShell.du(new File[] { a }, cache, 4).get(0).getSize());
+
+		// Rewriting "y" in place is not noticed, because the modification time of "b" remains unchanged; creating
+		// "z" is.
+		mkfile(new File(b, "y"), "1");
+		mkfile(new File(a, "z"), "123");
+		dirSize = Files.size(a.toPath()) + Files.size(b.toPath());
+		assertEquals(dirSize + 18, JavaShell.du(new File[] { a }, cache, 1).get(0).getSize());
+		assertEquals(dirSize + 9, JavaShell.du(new File[] { a }, null, 1).get(0).getSize());
+
+		// "a" was modified just now, so it was not cached, and rewriting "z" in place is noticed.
+		mkfile(new File(a, "z"), "12345");
+		assertEquals(dirSize + 20, JavaShell.du(new File[] { a }, cache, 1).get(0).getSize());
+		// Concurrent runs write the cache through temporary files of their own.
+		long            expected = dirSize + 20;
+		List<Thread>    threads  = new ArrayList<>();
+		List<Throwable> errors   = Collections.synchronizedList(new ArrayList<>());
+		for (int i = 0; i < 8; i++) {
+			threads.add(new Thread(() -> {
+				try {
+					for (int j = 0; j < 10; j++) {
+						assertEquals(expected, JavaShell.du(new File[] { a }, cache, 1).get(0).getSize());
+					}
+				} catch (Throwable t) {
+					errors.add(t);
+				}
+			}));
+		}
+		for (Thread t : threads) t.start();
+		for (Thread t : threads) t.join();
+		assertEquals(Collections.emptyList(), errors);
+		assertEquals(Arrays.asList("a", "du.cache"), Arrays.stream(TMP.list()).sorted().collect(Collectors.toList()));
+		assertEquals(expected, JavaShell.du(new File[] { a }, cache, 1).get(0).getSize());
+	}
+
+	@Test public void
+	testFind() throws IOException {
+
+		File a   = mkdir(new File(TMP, "a"));
+		File git = mkdir(new File(a, ".git"));
+		File b   = mkdir(new File(a, "b"));
+		mkfile(new File(git, "x.txt"), "");
+		mkfile(new File(a, "x.txt"), "1");
+		mkfile(new File(b, "y.txt"), "12345");
+		mkfile(new File(b, "z.dat"), "12345");
+
+		// Pruned subtrees are not entered; the depth of "tmp/a/b/y.txt" is 2.
+		List<Path> paths = JavaShell.find(a, FindPredicate.name("*.txt"));
+		paths.sort(null);
+		assertEquals(
+			Arrays.asList(Paths.get("tmp/a/.git/x.txt"), Paths.get("tmp/a/b/y.txt"), Paths.get("tmp/a/x.txt")),
+			paths
+		);
+
+		StringBuilder sb = new StringBuilder();
+		JavaShell.find(a, FindPredicate.name("*.txt"), FindPredicate.name(".git"), 1, 1, sb);
+		assertEquals(lines("tmp/a/x.txt"), sb.toString());
+
+		// Parallel traversal with a combination of name and attribute predicates.
+		List<String> lines = new ArrayList<>();
+		JavaShell.find(
+			TMP,
+			FindPredicate.and(
+				FindPredicate.sizeGreaterThan(2),
+				FindPredicate.isRegularFile(),
+				FindPredicate.not(FindPredicate.name("*.dat"))
+			),
+			FindPredicate.name(".git"),
+			Integer.MAX_VALUE,
+			4,
+			path -> { synchronized (lines) { lines.add(path.toString()); } }
+		);
+		assertEquals(Arrays.asList("tmp/a/b/y.txt"), lines);
+
+		StringWriter sw = new StringWriter();
+		JavaShell.find_(a, FindPredicate.isDirectory(), FindPredicate.name(".git"), Integer.MAX_VALUE, 2).execute(
+			new StringReader(""),
+			sw
+		);
+		List<String> directories = Arrays.asList(sw.toString().split(LINE_SEPARATOR));
+		directories.sort(null);
+		assertEquals(Arrays.asList("tmp/a", "tmp/a/.git", "tmp/a/b"), directories);
+	}
+
 	@Test public void
 	testExec() throws IOException, InterruptedException {
 		ByteArrayOutputStream baos = new ByteArrayOutputStream();
@@ -154,8 +906,492 @@ class TestJavaShell {
 		assertTrue(s.contains("java"));
 	}
 
+	@Test public void
+	testProcessSubstitution() throws Exception {
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		try (
+			ProcessSubstitution a = JavaShell.inputFifo(JavaShell.echo_("HELLO").asByteFilter());
+			ProcessSubstitution b = JavaShell.inputFifo(JavaShell.exec_("echo", "WORLD"));
+		) {
+			assertTrue(JavaShell.exec(baos, "cat", a.getPath(), b.getPath()));
+		}
+		assertEquals("HELLO" + LINE_SEPARATOR + "WORLD\n", new String(baos.toByteArray()));
+
+		baos.reset();
+		try (ProcessSubstitution c = JavaShell.outputFifo(JavaShell.tr_((byte) 'o', (byte) '0'), baos)) {
+			assertTrue(JavaShell.exec("sh", "-c", "echo foo >" + c.getPath()));
+			assertEquals(2, c.await());
+		}
+		assertEquals("f00\n", new String(baos.toByteArray()));
+
+		// A FIFO that no process ever opens.
+		JavaShell.inputFifo(JavaShell.echo_("HELLO").asByteFilter()).close();
+
+		// A filter that throws an unchecked exception.
+		try (ProcessSubstitution d = JavaShell.inputFifo((in, out) -> { throw new IllegalStateException("BOOM"); })) {
+			assertTrue(JavaShell.exec(OutputStream.nullOutputStream(), "cat", d.getPath()));
+			d.await();
+			fail();
+		} catch (IllegalStateException ise) {
+			assertEquals("BOOM", ise.getMessage());
+		}
+	}
+
+	@Test public void
+	testShellContext() throws Exception {
+
+		File a = mkdir(new File(TMP, "a"));
+		File b = mkdir(new File(TMP, "b"));
+		mkfile(new File(a, "file1"), "HELLO");
+		mkfile(new File(b, "file2"), "WORLD");
+
+		File                  userDir = JavaShell.pwd();
+		ByteArrayOutputStream baosA   = new ByteArrayOutputStream();
+		ByteArrayOutputStream baosB   = new ByteArrayOutputStream();
+		ShellContext          ctxA    = new ShellContext(TMP, Collections.singletonMap("X", "A"), null, baosA, null);
+		ShellContext          ctxB    = new ShellContext(TMP, Collections.singletonMap("X", "B"), null, baosB, null);
+
+		// Two "scripts" that change their working directories concurrently.
+		List<Thread>    threads = new ArrayList<>();
+		List<Throwable> errors  = Collections.synchronizedList(new ArrayList<>());
+		for (ShellContext ctx : Arrays.asList(ctxA, ctxB)) {
+			String dir  = ctx == ctxA ? "a" : "b";
+			File   dir2 = new File(TMP, dir).getAbsoluteFile().toPath().normalize().toFile();
+			threads.add(new Thread(() -> {
+				try {
+					ctx.run(() -> {
+						for (int i = 0; i < 50; i++) {
+							JavaShell.cd(new File(dir));
+							assertEquals(dir2, JavaShell.pwd());
+							assertEquals(1, JavaShell.expand("file*").size());
+							JavaShell.cd(new File(".."));
+						}
+						JavaShell.cd(new File(dir));
+						String        file = ctx == ctxA ? "file1" : "file2";
+						StringBuilder sb   = new StringBuilder();
+						JavaShell.find(new File("."), FindPredicate.name("file*"), sb);
+						assertEquals(lines(Paths.get(".", file).toString()), sb.toString());
+						assertEquals(5, JavaShell.du(new File(file)).getSize());
+						JavaShell.cat(JavaShell.expand("file*").toArray(new File[1]), ctx.getStdout());
+						assertTrue(JavaShell.exec("sh", "-c", "echo \" $X\"; pwd"));
+					});
+				} catch (Throwable t) {
+					errors.add(t);
+				}
+			}));
+		}
+		for (Thread t : threads) t.start();
+		for (Thread t : threads) t.join();
+		assertEquals(Collections.emptyList(), errors);
+
+		assertEquals("HELLO A\n" + new File(a.getAbsolutePath()).getCanonicalPath() + "\n", baosA.toString());
+		assertEquals("WORLD B\n" + new File(b.getAbsolutePath()).getCanonicalPath() + "\n", baosB.toString());
+
+		// The JVM-wide working directory is not affected.
+		assertEquals(userDir, JavaShell.pwd());
+		assertEquals(userDir.getPath(), System.getProperty("user.dir"));
+	}
+
+	@Test public void
+	testScriptCompiler() throws Exception {
+
+		String source = lines(
+			"#!/usr/bin/java --source 11",
+			"import static de.unkrig.javashell.core.JavaShell.*;",
+			"public class Hello {",
+			"    static int runs;",
+			"    public static void main(String[] args) throws Exception {",
+			"        charFilter(echo_(args[0] + \" \" + ++runs));",
+			"    }",
+			"}"
+		);
+		assertEquals(ScriptCompiler.hash(source), ScriptCompiler.hash(new String(source)));
+
+		CompiledScript script = ScriptCompiler.compile("hello.sh", source);
+		assertEquals("Hello", script.getMainClassName());
+
+		// Each run loads the classes anew, thus "runs" is 1 each time.
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		ShellContext          ctx  = new ShellContext(TMP, null, InputStream.nullInputStream(), baos, null);
+		ctx.run(() -> script.run("A"));
+		ctx.run(() -> script.run("B"));
+		assertEquals("A 1" + LINE_SEPARATOR + "B 1" + LINE_SEPARATOR, baos.toString());
+
+		try {
+			ScriptCompiler.compile("bad.sh", "public class Bad { int x = y; }");
+			fail();
+		} catch (IOException ioe) {
+			assertTrue(ioe.getMessage(), ioe.getMessage().startsWith("bad.sh:1: "));
+		}
+	}
+
+	@Test public void
+	testScriptCache() throws Exception {
+
+		Path        cacheDir = new File(TMP, "cache").toPath();
+		ScriptCache cache    = new ScriptCache(cacheDir);
+		String      source   = "class A { static class B {} public static void main(String[] args) { new B(); } }";
+
+		CompiledScript compiled = cache.get("a.sh", source);
+		assertEquals(1, cacheDir.toFile().list().length);
+
+		// The second "get()" loads the class files from the disk.
+		CompiledScript loaded = new ScriptCache(cacheDir).get("a.sh", source);
+		assertEquals("A", loaded.getMainClassName());
+		assertEquals(compiled.getClassFiles().keySet(), loaded.getClassFiles().keySet());
+		assertArrayEquals(compiled.getClassFiles().get("A$B"), loaded.getClassFiles().get("A$B"));
+		loaded.run();
+
+		// A modified source creates a second entry.
+		cache.get("a.sh", source + "\n");
+		assertEquals(2, cacheDir.toFile().list().length);
+	}
+
 	// ----------------------------------------------------------------------------------------------------------------
 
+	@Test public void
+	testArchives() throws Exception {
+
+		File src = mkdir(new File(TMP, "src"));
+		File a   = mkdir(new File(src, "a"));
+		mkfile(new File(a, "b.txt"), "BBB");
+		mkfile(new File(src, "c.txt"), "CCC");
+		Files.createSymbolicLink(new File(a, "link").toPath(), Paths.get("b.txt"));
+
+		// Larger than what is extracted in the background.
+		byte[] data = new byte[3 * 1024 * 1024 + 1];
+		for (int i = 0; i < data.length; i++) data[i] = (byte) (i % 253);
+		Files.write(new File(src, "big").toPath(), data);
+
+		// "tar | gzip" and "gunzip | untar".
+		File tgz = new File(TMP, "src.tgz");
+		try (OutputStream os = new FileOutputStream(tgz)) {
+			JavaShell.byteFilter_(JavaShell.tar_(src), JavaShell.gzip_()).execute(InputStream.nullInputStream(), os);
+		}
+		File out1 = new File(TMP, "out1");
+		try (InputStream is = new FileInputStream(tgz)) {
+			ByteFilter<?> gunzipUntar = JavaShell.byteFilter_(JavaShell.gunzip_(), JavaShell.untar_(out1, 4));
+			assertEquals(6, gunzipUntar.execute(is, OutputStream.nullOutputStream()));
+		}
+		assertFileContents("BBB", new File(out1, "tmp/src/a/b.txt"));
+		assertFileContents("CCC", new File(out1, "tmp/src/c.txt"));
+		assertEquals(Paths.get("b.txt"), Files.readSymbolicLink(new File(out1, "tmp/src/a/link").toPath()));
+		assertArrayEquals(data, Files.readAllBytes(new File(out1, "tmp/src/big").toPath()));
+
+		// ZIP.
+		ByteArrayOutputStream zip = new ByteArrayOutputStream();
+		assertEquals(6, JavaShell.zip(new File[] { src }, zip));
+		File out2 = new File(TMP, "out2");
+		assertEquals(6, JavaShell.unzip(new ByteArrayInputStream(zip.toByteArray()), out2, 1));
+		assertFileContents("BBB", new File(out2, "tmp/src/a/b.txt"));
+		assertArrayEquals(data, Files.readAllBytes(new File(out2, "tmp/src/big").toPath()));
+
+		File zipFile = new File(TMP, "src.zip");
+		Files.write(zipFile.toPath(), zip.toByteArray());
+		File out3 = new File(TMP, "out3");
+		assertEquals(6, JavaShell.unzip(zipFile, out3, 4));
+		assertFileContents("CCC", new File(out3, "tmp/src/c.txt"));
+		assertEquals(Paths.get("b.txt"), Files.readSymbolicLink(new File(out3, "tmp/src/a/link").toPath()));
+
+		// "Zip slip".
+		for (String[] entry : new String[][] { { "../evil", null }, { "link", "../../evil" } }) {
+			ByteArrayOutputStream tar = new ByteArrayOutputStream();
+			try (TarArchiveOutputStream tos = new TarArchiveOutputStream(tar)) {
+				TarArchiveEntry e;
+				if (entry[1] == null) {
+					e = new TarArchiveEntry(entry[0]);
+				} else {
+					e = new TarArchiveEntry(entry[0], TarConstants.LF_SYMLINK);
+					e.setLinkName(entry[1]);
+				}
+				tos.putArchiveEntry(e);
+				tos.closeArchiveEntry();
+			}
+			try {
+				JavaShell.untar(new ByteArrayInputStream(tar.toByteArray()), new File(TMP, "out4"), 2);
+				fail(entry[0]);
+			} catch (IOException ioe) {
+				assertTrue(ioe.getMessage(), ioe.getMessage().contains("Outside of the target directory"));
+			}
+		}
+		assertTrue(!new File(TMP, "evil").exists());
+
+		// A chain of symbolic links with harmless names: "d -> .", then "d/x/e -> ../..", i.e. "x/e" is the parent of
+		// the target directory.
+		ByteArrayOutputStream tar = new ByteArrayOutputStream();
+		try (TarArchiveOutputStream tos = new TarArchiveOutputStream(tar)) {
+			for (String[] link : new String[][] { { "d", "." }, { "d/x/e", "../.." } }) {
+				TarArchiveEntry e = new TarArchiveEntry(link[0], TarConstants.LF_SYMLINK);
+				e.setLinkName(link[1]);
+				tos.putArchiveEntry(e);
+				tos.closeArchiveEntry();
+			}
+			TarArchiveEntry e = new TarArchiveEntry("x/e/y/evil.txt");
+			e.setSize(4);
+			tos.putArchiveEntry(e);
+			tos.write("EVIL".getBytes());
+			tos.closeArchiveEntry();
+		}
+		try {
+			JavaShell.untar(new ByteArrayInputStream(tar.toByteArray()), new File(TMP, "out5"), 2);
+			fail();
+		} catch (IOException ioe) {
+			assertTrue(ioe.getMessage(), ioe.getMessage().contains("Outside of the target directory"));
+		}
+		assertTrue(!new File(TMP, "y").exists());
+
+		// "tearDown()" would follow "x/e".
+		JavaShell.rmR(new File(TMP, "out5"));
+	}
+
+	@Test public void
+	testLineStreams() throws Exception {
+
+		try (Stream<String> lines = JavaShell.pipeAsStream(JavaShell.cut_(',', 2), new StringReader("a,1\nb,2"), true)) {
+			assertEquals(Arrays.asList("1", "2"), lines.collect(Collectors.toList()));
+		}
+
+		// An endless pipe; only the consumed lines are produced.
+		CharFilter<Void> endless = (in, out) -> { for (int i = 0;; i++) out.write(i + "\n"); };
+		try (Stream<String> lines = JavaShell.pipeAsStream(endless, new StringReader(""), true)) {
+			assertEquals(Arrays.asList("0", "1", "2"), lines.limit(3).collect(Collectors.toList()));
+		}
+
+		// The exception of the pipe is thrown after the last line.
+		CharFilter<Void> failing = (in, out) -> { out.write("x\n"); throw new IOException("boom"); };
+		try (Stream<String> lines = JavaShell.pipeAsStream(failing, new StringReader(""), true)) {
+			lines.forEach(line -> {});
+			fail();
+		} catch (UncheckedIOException uioe) {
+			assertEquals("boom", uioe.getCause().getMessage());
+		}
+
+		// A publisher, with a subscriber that requests one line at a time.
+		List<String>   received = new ArrayList<>();
+		CountDownLatch done     = new CountDownLatch(1);
+		JavaShell.pipeAsPublisher(JavaShell.cat_(), new StringReader("a\nb\nc\n"), true).subscribe(
+			new Flow.Subscriber<String>() {
+
+				private Flow.Subscription subscription;
+
+				@Override public void
+				onSubscribe(Flow.Subscription subscription) {
+					this.subscription = subscription;
+					subscription.request(1);
+				}
+
+				@Override public void
+				onNext(String item) {
+					received.add(item);
+					this.subscription.request(1);
+				}
+
+				@Override public void onError(Throwable throwable) {}
+				@Override public void onComplete()                 { done.countDown(); }
+			}
+		);
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertEquals(Arrays.asList("a", "b", "c"), received);
+
+		// And back.
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 1000; i++) sb.append(i).append('\n');
+		Flow.Publisher<String> publisher = JavaShell.pipeAsPublisher(JavaShell.cat_(), new StringReader("" + sb), true);
+		String                 expected  = sb.toString().replace("\n", LINE_SEPARATOR);
+		assertEquals(expected, Readers.readAll(JavaShell.publisherAsReader(publisher)));
+		assertEquals(lines("x", "y"), Readers.readAll(JavaShell.streamAsReader(Stream.of("x", "y"))));
+
+		// Closing the stream or cancelling the subscription while the pipe is idle (i.e. while another thread is
+		// waiting for the next line) does not block.
+		CountDownLatch   release = new CountDownLatch(1);
+		CharFilter<Void> idle    = (in, out) -> {
+			out.write("x\n");
+			try {
+				release.await();
+			} catch (InterruptedException ie) {
+				;
+			}
+			return null;
+		};
+		try {
+			try (Stream<String> lines = JavaShell.pipeAsStream(idle, new StringReader(""), true)) {
+				Iterator<String> it = lines.iterator();
+				assertEquals("x", it.next());
+
+				Thread consumer = new Thread(() -> {
+					try {
+						it.hasNext();
+					} catch (UncheckedIOException uioe) {
+						;
+					}
+				});
+				consumer.start();
+				awaitWaiting(consumer);
+
+				joinWithin(10, new Thread(lines::close));
+				consumer.join(10000);
+				assertFalse(consumer.isAlive());
+			}
+
+			Thread[]            delivery     = new Thread[1];
+			Flow.Subscription[] subscription = new Flow.Subscription[1];
+			CountDownLatch      first        = new CountDownLatch(1);
+			JavaShell.pipeAsPublisher(idle, new StringReader(""), true).subscribe(new Flow.Subscriber<String>() {
+
+				@Override public void
+				onSubscribe(Flow.Subscription s) {
+					subscription[0] = s;
+					s.request(2);
+				}
+
+				@Override public void
+				onNext(String item) {
+					delivery[0] = Thread.currentThread();
+					first.countDown();
+				}
+
+				@Override public void onError(Throwable throwable) {}
+				@Override public void onComplete()                 {}
+			});
+			assertTrue(first.await(10, TimeUnit.SECONDS));
+			awaitWaiting(delivery[0]);
+
+			joinWithin(10, new Thread(subscription[0]::cancel));
+			delivery[0].join(10000);
+			assertFalse(delivery[0].isAlive());
+		} finally {
+			release.countDown();
+		}
+	}
+
+	@Test public void
+	testTailF() throws Exception {
+
+		File log = mkfile(new File(TMP, "log"), "old\n");
+
+		StringWriter sw     = new StringWriter();
+		Thread       thread = new Thread(() -> {
+			try {
+				JavaShell.tailF_(log, StandardCharsets.UTF_8, true, 50).execute(new StringReader(""), sw);
+			} catch (IOException ioe) {
+				;
+			}
+		});
+		thread.start();
+		try {
+
+			// Once the existing contents are copied, the filter has opened the file.
+			awaitContents("old\n", sw);
+			Files.write(log.toPath(), "a\n".getBytes(), StandardOpenOption.APPEND);
+			awaitContents("old\na\n", sw);
+
+			// Truncation.
+			Files.write(log.toPath(), "b\n".getBytes());
+			awaitContents("old\na\nb\n", sw);
+
+			// Rotation; the rest of the old file is copied before the new file.
+			File rotated = new File(TMP, "log.1");
+			Files.move(log.toPath(), rotated.toPath());
+			Files.write(rotated.toPath(), "c\n".getBytes(), StandardOpenOption.APPEND);
+			mkfile(log, "d\n");
+			awaitContents("old\na\nb\nc\nd\n", sw);
+		} finally {
+			thread.interrupt();
+			thread.join();
+		}
+	}
+
+	@Test public void
+	testRmMv() throws Exception {
+
+		File outside = mkfile(new File(TMP, "outside"), "OUTSIDE");
+
+		File tree = mkdir(new File(TMP, "tree"));
+		for (int i = 0; i < 5; i++) {
+			File dir = mkdir(new File(tree, "dir" + i));
+			mkfile(new File(dir, "file"), "x");
+			mkfile(new File(mkdir(new File(dir, "sub")), "file"), "y");
+		}
+		Files.createSymbolicLink(new File(tree, "link").toPath(), outside.getAbsoluteFile().toPath());
+
+		// 5 * (2 directories + 2 files) + the symlink + "tree" itself.
+		assertEquals(22, JavaShell.rmR(new File[] { tree, new File(TMP, "missing") }, 4));
+		assertFalse(tree.exists());
+		assertFileContents("OUTSIDE", outside);
+
+		// Same file system, thus an atomic rename.
+		File dir = mkdir(new File(TMP, "dir"));
+		mkfile(new File(dir, "file"), "FILE");
+		File dest = mkdir(new File(TMP, "dest"));
+		JavaShell.mv(dir, dest);
+		assertFalse(dir.exists());
+		assertFileContents("FILE", new File(dest, "dir/file"));
+		JavaShell.mv(new File(dest, "dir/file"), new File(TMP, "file2"));
+		assertFileContents("FILE", new File(TMP, "file2"));
+
+
+		// Into a directory that already has a (empty) directory with the same name.
+		File x  = mkdir(new File(TMP, "x"));
+		File d2 = mkdir(new File(TMP, "d2"));
+		mkfile(new File(x, "file"), "X");
+		mkdir(new File(d2, "x"));
+		JavaShell.mvToDir(Collections.singletonList(x), d2);
+		assertFalse(x.exists());
+		assertFileContents("X", new File(d2, "x/file"));
+		assertFalse(new File(d2, "x/x").exists());
+
+		assertEquals(2, JavaShell.rmR(new File(TMP, "dest")));
+	}
+
+	@Test public void
+	testSplit() throws Exception {
+
+		// By lines, into files; the last line is unterminated.
+		File[] files = { new File(TMP, "x0"), new File(TMP, "x1"), new File(TMP, "x2") };
+		JavaShell.split(inputStream("1\n2\n3\n4\n5\n6\n7\n8\n9\n10"), Partitioner.lines(2), files);
+		assertFileContents("1\n2\n7\n8\n", files[0]);
+		assertFileContents("3\n4\n9\n10", files[1]);
+		assertFileContents("5\n6\n", files[2]);
+
+		// By bytes; a line belongs to the block where it starts.
+		ByteFilter<String> readAll = (in, out) -> new String(in.readAllBytes(), StandardCharsets.UTF_8);
+		assertEquals(
+			Arrays.asList("aa\nbb\ndd\n", "cc\n"),
+			JavaShell.split_(Partitioner.bytes(4), readAll, readAll).execute(inputStream("aa\nbb\ncc\ndd\n"), null)
+		);
+
+		// By key; many chunks, and a line that is longer than a chunk.
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 100000; i++) sb.append("k").append(i % 7).append(",").append(i).append("\r\n");
+		sb.append("k3,");
+		for (int i = 0; i < 100000; i++) sb.append('x');
+		sb.append("\r\n");
+
+		List<String> parts = JavaShell.split_(
+			Partitioner.key(line -> line.substring(0, line.indexOf(',')), StandardCharsets.UTF_8),
+			readAll,
+			readAll,
+			readAll,
+			readAll
+		).execute(inputStream("" + sb), null);
+
+		// Each key must appear in only one part.
+		int         lineCount = 0;
+		Set<String> allKeys   = new HashSet<>();
+		for (String part : parts) {
+			Set<String> keys = new HashSet<>();
+			for (String line : part.split("\r\n")) {
+				keys.add(line.substring(0, 2));
+				lineCount++;
+			}
+			for (String key : keys) assertTrue(key, allKeys.add(key));
+		}
+		assertEquals(7, allKeys.size());
+		assertEquals(100001, lineCount);
+		assertEquals(sb.length(), parts.stream().mapToInt(String::length).sum());
+	}
+
 	private void
 	assertFileContents(String expected, File actual) throws IOException {
 		try (InputStream is = new FileInputStream(actual)) {
@@ -182,6 +1418,52 @@ class TestJavaShell {
 		assertArrayEquals(expected, actual.toArray(new File[actual.size()]));
 	}
 
+	private static String
+	ls(File[] files, LsOption... options) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		JavaShell.ls(files, sb, options);
+		return sb.toString();
+	}
+
+	private static void
+	awaitContents(String expected, StringWriter actual) throws InterruptedException {
+		for (long deadline = System.currentTimeMillis() + 10000; System.currentTimeMillis() < deadline;) {
+			if (actual.toString().equals(expected)) return;
+			Thread.sleep(20);
+		}
+		assertEquals(expected, actual.toString());
+	}
+
+	/**
+	 * Waits until the <var>thread</var> is blocked in {@link Object#wait()} or similar.
+	 */
+	private static void
+	awaitWaiting(Thread thread) throws InterruptedException {
+		for (long deadline = System.currentTimeMillis() + 10000; System.currentTimeMillis() < deadline;) {
+			Thread.State state = thread.getState();
+			if (state == Thread.State.WAITING || state == Thread.State.TIMED_WAITING) return;
+			Thread.sleep(20);
+		}
+		fail(thread.getState().toString());
+	}
+
+	/**
+	 * Starts the <var>thread</var>, and asserts that it terminates within the given time.
+	 */
+	private static void
+	joinWithin(int seconds, Thread thread) throws InterruptedException {
+		thread.start();
+		thread.join(seconds * 1000L);
+		assertFalse(thread.isAlive());
+	}
+
+	private static String
+	lines(String... lines) {
+		StringBuilder sb = new StringBuilder();
+		for (String line : lines) sb.append(line).append(LINE_SEPARATOR);
+		return sb.toString();
+	}
+
 	private static InputStream
 	inputStream(String string) { return new ByteArrayInputStream(string.getBytes()); }
 
@@ -0,0 +1,172 @@
+
+package de.unkrig.javashell.daemon;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Map;
+
+import de.unkrig.javashell.core.ShellContext;
+
+/**
+ * Executes a JavaShell script in the {@link JavaShellDaemon}, and forwards its own standard input to the script,
+ * and the script's standard output and standard error to its own. Use it in the "{@code #!}" line of a script:
+ * <pre>
+ *   #!/usr/bin/env -S java -cp /path/to/javashell-daemon-0.0.1-SNAPSHOT-jar-with-dependencies.jar de.unkrig.javashell.daemon.JavaShellClient
+ * </pre>
+ * <p>
+ *   The client loads none of the JavaShell classes, so its startup is cheap. Iff no daemon is listening on the
+ *   socket, then the client executes the script in its own JVM (which is as slow as without the daemon).
+ * </p>
+ */
+public final
+class JavaShellClient {
+
+	private JavaShellClient() {}
+
+	/**
+	 * Usage:
+	 * <pre>
+	 *   java ... de.unkrig.javashell.daemon.JavaShellClient <em>script-file</em> [ <em>arg</em> ... ]
+	 * </pre>
+	 * Exits with the script's exit status.
+	 */
+	public static void
+	main(String[] args) throws IOException {
+
+		if (args.length == 0) {
+			System.err.println("Usage: JavaShellClient <script-file> [ <arg> ... ]");
+			System.exit(2);
+		}
+
+		Path   scriptFile = Paths.get(args[0]);
+		String source     = new String(Files.readAllBytes(scriptFile), StandardCharsets.UTF_8);
+
+		System.exit(JavaShellClient.run(
+			Protocol.defaultSocketPath(),
+			scriptFile.toString(),
+			source,
+			Arrays.copyOfRange(args, 1, args.length),
+			System.in,
+			System.out,
+			System.err
+		));
+	}
+
+	/**
+	 * Executes the script in the daemon that listens on the <var>socketPath</var> or, iff there is none, in this JVM.
+	 *
+	 * @return The script's exit status
+	 */
+	static int
+	run(
+		Path         socketPath,
+		String       scriptName,
+		String       source,
+		String[]     args,
+		InputStream  stdin,
+		OutputStream stdout,
+		OutputStream stderr
+	) throws IOException {
+
+		SocketChannel channel;
+		try {
+			channel = SocketChannel.open(UnixDomainSocketAddress.of(socketPath));
+		} catch (IOException ioe) {
+
+			// No daemon running; execute the script in this JVM.
+			return new JavaShellDaemon().run(
+				scriptName,
+				source,
+				args,
+				new ShellContext(new File(System.getProperty("user.dir")), null, stdin, stdout, stderr)
+			);
+		}
+
+		return JavaShellClient.run(channel, scriptName, source, args, stdin, stdout, stderr);
+	}
+
+	private static int
+	run(
+		SocketChannel channel,
+		String        scriptName,
+		String        source,
+		String[]      args,
+		InputStream   stdin,
+		OutputStream  stdout,
+		OutputStream  stderr
+	) throws IOException {
+
+		try (SocketChannel sc = channel) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Protocol.outputStream(sc)));
+			DataInputStream  in  = new DataInputStream(new BufferedInputStream(Protocol.inputStream(sc)));
+
+			out.writeInt(Protocol.MAGIC);
+			Protocol.writeString(out, scriptName);
+			Protocol.writeString(out, source);
+			Protocol.writeString(out, System.getProperty("user.dir"));
+			out.writeInt(args.length);
+			for (String arg : args) Protocol.writeString(out, arg);
+			Map<String, String> environment = System.getenv();
+			out.writeInt(environment.size());
+			for (Map.Entry<String, String> e : environment.entrySet()) {
+				Protocol.writeString(out, e.getKey());
+				Protocol.writeString(out, e.getValue());
+			}
+			out.flush();
+
+			// Forward stdin in the background, because the script may never read it.
+			Thread stdinForwarder = new Thread(() -> {
+				try {
+					byte[] buffer = new byte[8192];
+					for (int n; (n = stdin.read(buffer)) != -1;) {
+						Protocol.writeFrame(out, Protocol.STDIN, buffer, 0, n);
+						out.flush();
+					}
+					Protocol.writeFrame(out, Protocol.STDIN, buffer, 0, 0);
+					out.flush();
+				} catch (IOException ioe) {
+
+					// E.g. the script has completed and the daemon closed the connection.
+					;
+				}
+			});
+			stdinForwarder.setDaemon(true);
+			stdinForwarder.start();
+
+			byte[] buffer = new byte[8192];
+			for (;;) {
+				byte type   = in.readByte();
+				int  length = in.readInt();
+
+				if (type == Protocol.EXIT) {
+					int status = in.readInt();
+					stdout.flush();
+					stderr.flush();
+					return status;
+				}
+
+				OutputStream os = type == Protocol.STDOUT ? stdout : stderr;
+				while (length > 0) {
+					int n = in.read(buffer, 0, Math.min(buffer.length, length));
+					if (n == -1) throw new IOException("Connection closed by daemon");
+					os.write(buffer, 0, n);
+					length -= n;
+				}
+				if (in.available() == 0) os.flush();
+			}
+		}
+	}
+}
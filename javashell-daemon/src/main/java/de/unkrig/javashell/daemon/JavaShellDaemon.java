@@ -0,0 +1,344 @@
+
+package de.unkrig.javashell.daemon;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import jdk.net.ExtendedSocketOptions;
+
+import de.unkrig.javashell.core.CompiledScript;
+import de.unkrig.javashell.core.ScriptCache;
+import de.unkrig.javashell.core.ScriptCompiler;
+import de.unkrig.javashell.core.ShellContext;
+
+/**
+ * A resident JVM that executes JavaShell scripts on behalf of the {@link JavaShellClient}, so that a script run costs
+ * neither JVM startup nor (after the first run of the same script) compilation. Start it with
+ * <pre>
+ *   $ java -cp javashell-daemon-0.0.1-SNAPSHOT-jar-with-dependencies.jar de.unkrig.javashell.daemon.JavaShellDaemon [ <em>socket-path</em> ]
+ * </pre>
+ * <p>
+ *   The compiled scripts are cached in memory by the {@link ScriptCompiler#hash(String) hash} of their source, and
+ *   on disk in the {@link ScriptCache#defaultDirectory() default script cache}, which survives restarts. Each script
+ *   run executes on a thread of its own, in a {@link ShellContext} with the client's working directory, environment
+ *   and standard streams, and with its own copy of the script's classes (thus with its own static state). {@link
+ *   System#in}, {@link System#out} and {@link System#err} are redirected to the standard streams of the current
+ *   {@link ShellContext}, so that scripts that use them directly also work as expected.
+ * </p>
+ * <p>
+ *   Notice that all scripts share the one JVM: A script that invokes {@link System#exit(int)} terminates the daemon,
+ *   and a script that changes global state (system properties, the default locale, ...) affects all other scripts.
+ * </p>
+ */
+public final
+class JavaShellDaemon {
+
+	private static final int MAX_CACHED_SCRIPTS = 256;
+
+	private final ScriptCache                 diskCache = new ScriptCache(ScriptCache.defaultDirectory());
+	private final Map<String, CompiledScript> cache     = Collections.synchronizedMap(
+		new LinkedHashMap<String, CompiledScript>(16, .75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override protected boolean
+			removeEldestEntry(Map.Entry<String, CompiledScript> eldest) { return this.size() > MAX_CACHED_SCRIPTS; }
+		}
+	);
+
+	public static void
+	main(String[] args) throws IOException {
+
+		Path socketPath = args.length > 0 ? Paths.get(args[0]) : Protocol.defaultSocketPath();
+
+		JavaShellDaemon.redirectSystemStreams();
+
+		new JavaShellDaemon().serve(socketPath);
+	}
+
+	/**
+	 * Accepts and serves connections on the <var>socketPath</var>; never returns.
+	 * <p>
+	 *   Only the daemon's own user may execute code in this JVM: The socket is created in a directory that only that
+	 *   user can access (the directory is created if necessary), and connections from other users are rejected.
+	 * </p>
+	 *
+	 * @throws IOException Another daemon is already listening on the <var>socketPath</var>, or the directory of the
+	 *                     <var>socketPath</var> is accessible by other users
+	 */
+	public void
+	serve(Path socketPath) throws IOException {
+
+		UserPrincipal user = socketPath.getFileSystem().getUserPrincipalLookupService().lookupPrincipalByName(
+			System.getProperty("user.name")
+		);
+
+		JavaShellDaemon.createPrivateDirectory(socketPath.toAbsolutePath().getParent(), user);
+
+		// Remove a stale socket file, but do not hijack the socket of a running daemon.
+		if (Files.exists(socketPath)) {
+			if (JavaShellDaemon.isListening(socketPath)) {
+				throw new IOException("A daemon is already listening on \"" + socketPath + "\"");
+			}
+			Files.delete(socketPath);
+		}
+
+		try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+			server.bind(UnixDomainSocketAddress.of(socketPath));
+
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+				try { Files.deleteIfExists(socketPath); } catch (IOException ioe) {}
+			}));
+
+			for (;;) {
+				SocketChannel channel = server.accept();
+
+				if (!JavaShellDaemon.isPeer(channel, user)) {
+					channel.close();
+					continue;
+				}
+
+				// A new thread per connection, so that it does not inherit the ShellContext of an earlier script.
+				Thread t = new Thread(() -> this.serve(channel), "javashell-script");
+				t.setDaemon(true);
+				t.start();
+			}
+		}
+	}
+
+	/**
+	 * Creates the <var>directory</var> with permissions "{@code rwx------}", or verifies that it is a directory that
+	 * belongs to the <var>user</var> and that no other user can access. On file systems without POSIX permissions,
+	 * only the former is done.
+	 */
+	private static void
+	createPrivateDirectory(Path directory, UserPrincipal user) throws IOException {
+
+		if (!directory.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+			Files.createDirectories(directory);
+			return;
+		}
+
+		Path parent = directory.getParent();
+		if (parent != null) Files.createDirectories(parent);
+		try {
+			Files.createDirectory(directory, PosixFilePermissions.asFileAttribute(
+				PosixFilePermissions.fromString("rwx------")
+			));
+		} catch (FileAlreadyExistsException faee) {
+			;
+		}
+
+		PosixFileAttributes attributes = Files.readAttributes(
+			directory,
+			PosixFileAttributes.class,
+			LinkOption.NOFOLLOW_LINKS
+		);
+		if (
+			!attributes.isDirectory()
+			|| !attributes.owner().equals(user)
+			|| !PosixFilePermissions.toString(attributes.permissions()).endsWith("------")
+		) {
+			throw new IOException(
+				"\"" + directory + "\" is not a directory that only \"" + user.getName() + "\" can access"
+			);
+		}
+	}
+
+	private static boolean
+	isListening(Path socketPath) {
+		try {
+			SocketChannel.open(UnixDomainSocketAddress.of(socketPath)).close();
+			return true;
+		} catch (IOException ioe) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return Whether the process at the other end of the <var>channel</var> runs as the <var>user</var>, or the
+	 *         platform cannot tell
+	 */
+	private static boolean
+	isPeer(SocketChannel channel, UserPrincipal user) {
+
+		if (!channel.supportedOptions().contains(ExtendedSocketOptions.SO_PEERCRED)) return true;
+
+		try {
+			return channel.getOption(ExtendedSocketOptions.SO_PEERCRED).user().equals(user);
+		} catch (IOException ioe) {
+			return false;
+		}
+	}
+
+	/**
+	 * Compiles (or gets from the cache) and executes the <var>source</var>.
+	 *
+	 * @return The exit status: 0 iff the script's {@code main()} method completed normally
+	 */
+	public int
+	run(String scriptName, String source, String[] args, ShellContext context) {
+
+		OutputStream stderr  = context.getStderr();
+		PrintStream  stderr2 = stderr instanceof PrintStream ? (PrintStream) stderr : new PrintStream(stderr, true);
+
+		CompiledScript script;
+		try {
+			script = this.compile(scriptName, source);
+		} catch (IOException ioe) {
+			stderr2.println(ioe.getMessage());
+			return 1;
+		}
+
+		try {
+			context.run(() -> script.run(args));
+			return 0;
+		} catch (Throwable t) {
+			t.printStackTrace(stderr2);
+			return 1;
+		} finally {
+			stderr2.flush();
+		}
+	}
+
+	private CompiledScript
+	compile(String scriptName, String source) throws IOException {
+
+		String         hash   = ScriptCompiler.hash(source);
+		CompiledScript result = this.cache.get(hash);
+		if (result == null) {
+
+			// Two clients may compile the same script concurrently, which is harmless.
+			result = this.diskCache.get(scriptName, source);
+			this.cache.put(hash, result);
+		}
+		return result;
+	}
+
+	private void
+	serve(SocketChannel channel) {
+
+		try (SocketChannel sc = channel) {
+			DataInputStream  in  = new DataInputStream(new BufferedInputStream(Protocol.inputStream(sc)));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Protocol.outputStream(sc)));
+
+			if (in.readInt() != Protocol.MAGIC) return;
+
+			String   scriptName = Protocol.readString(in);
+			String   source     = Protocol.readString(in);
+			String   directory  = Protocol.readString(in);
+			String[] args       = new String[in.readInt()];
+			for (int i = 0; i < args.length; i++) args[i] = Protocol.readString(in);
+			Map<String, String> environment = new HashMap<>();
+			for (int i = in.readInt(); i > 0; i--) environment.put(Protocol.readString(in), Protocol.readString(in));
+
+			InputStream stdin  = Protocol.stdinInputStream(in);
+			PrintStream stdout = new PrintStream(Protocol.frameOutputStream(out, Protocol.STDOUT), true);
+			PrintStream stderr = new PrintStream(Protocol.frameOutputStream(out, Protocol.STDERR), true);
+
+			int status = this.run(
+				scriptName,
+				source,
+				args,
+				new ShellContext(new File(directory), environment, stdin, stdout, stderr)
+			);
+
+			stdout.flush();
+			stderr.flush();
+			Protocol.writeFrame(out, Protocol.EXIT, ByteBuffer.allocate(4).putInt(status).array(), 0, 4);
+			synchronized (out) { out.flush(); }
+		} catch (IOException ioe) {
+
+			// E.g. the client went away.
+			;
+		}
+	}
+
+	/**
+	 * Replaces {@link System#in}, {@link System#out} and {@link System#err} with streams that delegate to those of
+	 * the {@link ShellContext#current() current shell context}, or, if that has none, to the original streams.
+	 */
+	private static void
+	redirectSystemStreams() {
+
+		InputStream in  = System.in;
+		PrintStream out = System.out;
+		PrintStream err = System.err;
+
+		System.setIn(new InputStream() {
+
+			@Override public int
+			read() throws IOException { return this.target().read(); }
+
+			@Override public int
+			read(byte[] b, int off, int len) throws IOException { return this.target().read(b, off, len); }
+
+			@Override public int
+			available() throws IOException { return this.target().available(); }
+
+			private InputStream
+			target() {
+				InputStream result = ShellContext.current().getStdin();
+				return result == System.in ? in : result;
+			}
+		});
+		System.setOut(new PrintStream(new OutputStream() {
+
+			@Override public void
+			write(int b) throws IOException { this.target().write(b); }
+
+			@Override public void
+			write(byte[] b, int off, int len) throws IOException { this.target().write(b, off, len); }
+
+			@Override public void
+			flush() throws IOException { this.target().flush(); }
+
+			private OutputStream
+			target() {
+				OutputStream result = ShellContext.current().getStdout();
+				return result == System.out ? out : result;
+			}
+		}, true));
+		System.setErr(new PrintStream(new OutputStream() {
+
+			@Override public void
+			write(int b) throws IOException { this.target().write(b); }
+
+			@Override public void
+			write(byte[] b, int off, int len) throws IOException { this.target().write(b, off, len); }
+
+			@Override public void
+			flush() throws IOException { this.target().flush(); }
+
+			private OutputStream
+			target() {
+				OutputStream result = ShellContext.current().getStderr();
+				return result == System.err ? err : result;
+			}
+		}, true));
+	}
+}
@@ -0,0 +1,212 @@
+
+package de.unkrig.javashell.daemon;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * The protocol between the {@link JavaShellClient} and the {@link JavaShellDaemon}, over a Unix-domain socket.
+ * <p>
+ *   The client sends a request header, consisting of the {@link #MAGIC}, the script name, the script source, the
+ *   working directory, the arguments and the environment variables; strings and byte arrays are prefixed with their
+ *   length. After that, the client sends its standard input as {@link #STDIN} frames, and the daemon sends the
+ *   script's standard output and standard error as {@link #STDOUT} and {@link #STDERR} frames, followed by one
+ *   {@link #EXIT} frame. Each frame consists of a one-byte type, a four-byte length and the payload. An empty
+ *   {@link #STDIN} frame signals end-of-input.
+ * </p>
+ */
+final
+class Protocol {
+
+	private Protocol() {}
+
+	static final int MAGIC = 0x4a534831; // "JSH1"
+
+	static final byte STDIN  = 0;
+	static final byte STDOUT = 1;
+	static final byte STDERR = 2;
+
+	/**
+	 * The payload is the script's four-byte exit status.
+	 */
+	static final byte EXIT = 3;
+
+	/**
+	 * @return The value of the system property "{@code de.unkrig.javashell.daemon.socket}", or
+	 *         "{@code $XDG_RUNTIME_DIR/javashell.sock}", or "{@code $TMPDIR/javashell-$USER/javashell.sock}"
+	 */
+	static Path
+	defaultSocketPath() {
+
+		String s = System.getProperty("de.unkrig.javashell.daemon.socket");
+		if (s != null) return Paths.get(s);
+
+		s = System.getenv("XDG_RUNTIME_DIR");
+		if (s != null) return Paths.get(s, "javashell.sock");
+
+		String directory = "javashell-" + System.getProperty("user.name");
+		return Paths.get(System.getProperty("java.io.tmpdir"), directory, "javashell.sock");
+	}
+
+	static void
+	writeString(DataOutputStream out, String s) throws IOException {
+		Protocol.writeBytes(out, s.getBytes(StandardCharsets.UTF_8));
+	}
+
+	static String
+	readString(DataInputStream in) throws IOException {
+		return new String(Protocol.readBytes(in), StandardCharsets.UTF_8);
+	}
+
+	static void
+	writeBytes(DataOutputStream out, byte[] b) throws IOException {
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	static byte[]
+	readBytes(DataInputStream in) throws IOException {
+		byte[] result = new byte[in.readInt()];
+		in.readFully(result);
+		return result;
+	}
+
+	/**
+	 * Writes one frame; concurrent invocations for the same <var>out</var> are serialized.
+	 */
+	static void
+	writeFrame(DataOutputStream out, byte type, byte[] b, int off, int len) throws IOException {
+		synchronized (out) {
+			out.writeByte(type);
+			out.writeInt(len);
+			out.write(b, off, len);
+		}
+	}
+
+	/**
+	 * @return An output stream that writes each chunk of data as one frame of the given <var>type</var>
+	 */
+	static OutputStream
+	frameOutputStream(DataOutputStream out, byte type) {
+
+		return new OutputStream() {
+
+			@Override public void
+			write(int b) throws IOException { this.write(new byte[] { (byte) b }, 0, 1); }
+
+			@Override public void
+			write(byte[] b, int off, int len) throws IOException {
+				if (len > 0) Protocol.writeFrame(out, type, b, off, len);
+			}
+
+			@Override public void
+			flush() throws IOException {
+				synchronized (out) { out.flush(); }
+			}
+		};
+	}
+
+	/**
+	 * @return An input stream that reads the payloads of the {@link #STDIN} frames from <var>in</var>, until an
+	 *         empty frame
+	 */
+	static InputStream
+	stdinInputStream(DataInputStream in) {
+
+		return new InputStream() {
+
+			private int     remaining;
+			private boolean eoi;
+
+			@Override public int
+			read() throws IOException {
+				byte[] b = new byte[1];
+				return this.read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+			}
+
+			@Override public synchronized int
+			read(byte[] b, int off, int len) throws IOException {
+
+				if (len == 0) return 0;
+
+				while (this.remaining == 0) {
+					if (this.eoi) return -1;
+
+					byte type;
+					try {
+						type = in.readByte();
+					} catch (EOFException eofe) {
+						this.eoi = true;
+						return -1;
+					}
+					if (type != STDIN) throw new IOException("Unexpected frame type " + type);
+
+					this.remaining = in.readInt();
+					if (this.remaining == 0) this.eoi = true;
+				}
+
+				int n = in.read(b, off, Math.min(len, this.remaining));
+				if (n == -1) throw new EOFException();
+				this.remaining -= n;
+				return n;
+			}
+		};
+	}
+
+	// ----------------------------------------------------------------------------------------------------------------
+
+	/**
+	 * Unlike {@link java.nio.channels.Channels#newInputStream(java.nio.channels.ReadableByteChannel)}, this does not
+	 * lock the channel, so that one thread can read while another thread writes.
+	 */
+	static InputStream
+	inputStream(SocketChannel channel) {
+
+		return new InputStream() {
+
+			@Override public int
+			read() throws IOException {
+				byte[] b = new byte[1];
+				return this.read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+			}
+
+			@Override public int
+			read(byte[] b, int off, int len) throws IOException {
+				return len == 0 ? 0 : channel.read(ByteBuffer.wrap(b, off, len));
+			}
+
+			@Override public void
+			close() throws IOException { channel.shutdownInput(); }
+		};
+	}
+
+	/**
+	 * The counterpart of {@link #inputStream(SocketChannel)}.
+	 */
+	static OutputStream
+	outputStream(SocketChannel channel) {
+
+		return new OutputStream() {
+
+			@Override public void
+			write(int b) throws IOException { this.write(new byte[] { (byte) b }, 0, 1); }
+
+			@Override public void
+			write(byte[] b, int off, int len) throws IOException {
+				for (ByteBuffer bb = ByteBuffer.wrap(b, off, len); bb.hasRemaining();) channel.write(bb);
+			}
+
+			@Override public void
+			close() throws IOException { channel.shutdownOutput(); }
+		};
+	}
+}
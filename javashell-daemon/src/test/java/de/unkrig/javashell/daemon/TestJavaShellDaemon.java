@@ -0,0 +1,201 @@
+
+package de.unkrig.javashell.daemon;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.unkrig.commons.file.FileUtil;
+
+public
+class TestJavaShellDaemon {
+
+	private static final File TMP = new File("tmp");
+
+	private static final String SCRIPT = String.join("\n",
+		"import static de.unkrig.javashell.core.JavaShell.*;",
+		"import de.unkrig.javashell.core.ShellContext;",
+		"public class Upper {",
+		"    public static void main(String[] args) throws Exception {",
+		"        byteFilter(tr_((byte) 'o', (byte) 'O'));",
+		"        ShellContext.current().getStderr().write(args[0].getBytes());",
+		"        if (args.length > 1) throw new Exception(args[1]);",
+		"    }",
+		"}"
+	);
+
+	@Before public void
+	setUp() throws IOException {
+		if (TMP.exists()) FileUtil.deleteRecursively(TMP);
+		TMP.mkdir();
+
+		// Keep the compiled scripts out of the user's script cache.
+		System.setProperty("de.unkrig.javashell.scriptCache", new File(TMP, "cache").getAbsolutePath());
+	}
+
+	@After public void
+	tearDown() throws IOException {
+		System.clearProperty("de.unkrig.javashell.scriptCache");
+		if (TMP.exists()) FileUtil.deleteRecursively(TMP);
+	}
+
+	@Test public void
+	testFraming() throws IOException {
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream      out  = new DataOutputStream(baos);
+
+		Protocol.writeString(out, "äöü");
+		OutputStream os = Protocol.frameOutputStream(out, Protocol.STDIN);
+		os.write("HELLO".getBytes());
+		os.write(new byte[0]);
+		os.write(' ');
+		os.write("xWORLDx".getBytes(), 1, 5);
+		Protocol.writeFrame(out, Protocol.STDIN, new byte[0], 0, 0);
+		Protocol.writeFrame(out, Protocol.EXIT, new byte[] { 0, 0, 0, 7 }, 0, 4);
+		os.flush();
+
+		// The string is length-prefixed UTF-8; each chunk is one frame, and an empty chunk is no frame.
+		byte[] bytes = baos.toByteArray();
+		assertEquals(4 + 6 + (5 + 5) + (5 + 1) + (5 + 5) + 5 + (5 + 4), bytes.length);
+		assertEquals(
+			Arrays.toString(new byte[] { Protocol.STDIN, 0, 0, 0, 5, 'H', 'E', 'L', 'L', 'O' }),
+			Arrays.toString(Arrays.copyOfRange(bytes, 10, 20))
+		);
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+		assertEquals("äöü", Protocol.readString(in));
+
+		// Reading the standard input stops at the empty frame, and leaves the following frames in the stream.
+		InputStream stdin = Protocol.stdinInputStream(in);
+		assertEquals("HELLO WORLD", new String(stdin.readAllBytes(), StandardCharsets.UTF_8));
+		assertEquals(-1, stdin.read());
+		assertEquals(Protocol.EXIT, in.readByte());
+		assertEquals(4, in.readInt());
+		assertEquals(7, in.readInt());
+
+		// A frame of another type where standard input is expected.
+		try {
+			Protocol.stdinInputStream(dataInputStream(Protocol.STDOUT, 0, 0, 0, 1, 'x')).read();
+			fail();
+		} catch (IOException ioe) {
+			assertEquals("Unexpected frame type 1", ioe.getMessage());
+		}
+
+		// A truncated frame.
+		try {
+			Protocol.stdinInputStream(dataInputStream(Protocol.STDIN, 0, 0, 0, 2, 'x')).readAllBytes();
+			fail();
+		} catch (EOFException eofe) {
+			;
+		}
+	}
+
+	@Test public void
+	testClientDaemonRoundTrip() throws Exception {
+
+		Path socketPath = new File(TMP, "run/javashell.sock").getAbsoluteFile().toPath();
+
+		Thread daemon = new Thread(() -> {
+			try {
+				new JavaShellDaemon().serve(socketPath);
+			} catch (IOException ioe) {
+				ioe.printStackTrace();
+			}
+		});
+		daemon.setDaemon(true);
+		daemon.start();
+		for (long deadline = System.currentTimeMillis() + 10000; !Files.exists(socketPath);) {
+			assertTrue(System.currentTimeMillis() < deadline);
+			Thread.sleep(20);
+		}
+
+		// The socket is in a directory that only the current user can access.
+		assertEquals("rwx------", PosixFilePermissions.toString(
+			Files.getPosixFilePermissions(socketPath.getParent())
+		));
+
+		// Standard input, standard output, standard error and the exit status travel through the socket.
+		ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+		ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+		assertEquals(0, JavaShellClient.run(
+			socketPath,
+			"upper.sh",
+			SCRIPT,
+			new String[] { "ERR" },
+			new ByteArrayInputStream("foo\nboo\n".getBytes()),
+			stdout,
+			stderr
+		));
+		assertEquals("fOO\nbOO\n", stdout.toString());
+		assertEquals("ERR", stderr.toString());
+
+		// A script that throws an exception.
+		stdout.reset();
+		stderr.reset();
+		assertEquals(1, JavaShellClient.run(
+			socketPath,
+			"upper.sh",
+			SCRIPT,
+			new String[] { "ERR", "BOOM" },
+			InputStream.nullInputStream(),
+			stdout,
+			stderr
+		));
+		assertEquals("", stdout.toString());
+		assertTrue(stderr.toString(), stderr.toString().startsWith("ERRjava.lang.Exception: BOOM"));
+
+		// A second daemon does not hijack the socket.
+		try {
+			new JavaShellDaemon().serve(socketPath);
+			fail();
+		} catch (IOException ioe) {
+			assertTrue(ioe.getMessage(), ioe.getMessage().startsWith("A daemon is already listening"));
+		}
+	}
+
+	@Test public void
+	testClientFallback() throws Exception {
+
+		// Without a daemon, the client executes the script in its own JVM.
+		ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+		ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+		assertEquals(0, JavaShellClient.run(
+			new File(TMP, "nosuchdaemon.sock").toPath(),
+			"upper.sh",
+			SCRIPT,
+			new String[] { "ERR" },
+			new ByteArrayInputStream("foo\n".getBytes()),
+			stdout,
+			stderr
+		));
+		assertEquals("fOO\n", stdout.toString());
+		assertEquals("ERR", stderr.toString());
+	}
+
+	private static DataInputStream
+	dataInputStream(int... bytes) {
+		byte[] ba = new byte[bytes.length];
+		for (int i = 0; i < bytes.length; i++) ba[i] = (byte) bytes[i];
+		return new DataInputStream(new ByteArrayInputStream(ba));
+	}
+}